@@ -84,6 +84,7 @@ import org.sakaiproject.site.api.ToolConfiguration;
 import org.sakaiproject.site.cover.SiteService;
 import org.sakaiproject.taggable.api.TaggingManager;
 import org.sakaiproject.taggable.api.TaggingProvider;
+import org.sakaiproject.thread_local.cover.ThreadLocalManager;
 import org.sakaiproject.time.api.Time;
 import org.sakaiproject.time.cover.TimeService;
 import org.sakaiproject.tool.api.SessionBindingEvent;
@@ -114,6 +115,10 @@ import java.text.Normalizer;
 import java.text.NumberFormat;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -725,6 +730,18 @@ public abstract class BaseAssignmentService implements AssignmentService, Entity
 	{
 		return m_allowGroupAssignmentsInGradebook;
 	}
+
+	/** Pool reading attachment bodies ahead of the submissions zip writers, null to read them on the request thread. */
+	protected ExecutorService m_zipPrefetchExecutor = null;
+
+	/** The most attachment bytes one submissions zip holds ahead of its writer. */
+	protected long m_zipPrefetchBuffer = 32L * 1024 * 1024;
+
+	/** Pool building the cached submissions zips. */
+	protected ExecutorService m_zipBuildExecutor = null;
+
+	/** Submissions zips built into files and reused, null to stream every download from the submissions. */
+	protected SubmissionsZipCache m_submissionsZipCache = null;
 	/**********************************************************************************************************************************************************************************************************************************************************
 	 * Init and Destroy
 	 *********************************************************************************************************************************************************************************************************************************************************/
@@ -752,6 +769,22 @@ public abstract class BaseAssignmentService implements AssignmentService, Entity
             M_log.info("Instructor submission of assignments is enabled");
         }
 
+		int prefetchThreads = m_serverConfigurationService.getInt("assignment.download.zip.prefetch.threads", 4);
+		if (prefetchThreads > 0)
+		{
+			m_zipPrefetchExecutor = newZipExecutor("assignment-zip-prefetch", prefetchThreads);
+		}
+		m_zipPrefetchBuffer = m_serverConfigurationService.getInt("assignment.download.zip.prefetch.buffer", (int) m_zipPrefetchBuffer);
+		if (m_serverConfigurationService.getBoolean("assignment.download.zip.cache", false))
+		{
+			String dir = m_serverConfigurationService.getString("assignment.download.zip.cache.dir",
+					new File(System.getProperty("java.io.tmpdir"), "assignment-zips").getPath());
+			m_zipBuildExecutor = newZipExecutor("assignment-zip-build", m_serverConfigurationService.getInt("assignment.download.zip.cache.threads", 2));
+			m_submissionsZipCache = new SubmissionsZipCache(new File(dir), m_zipBuildExecutor,
+					m_serverConfigurationService.getInt("assignment.download.zip.cache.size", 50));
+			M_log.info("Submissions zips are built in " + dir + " and reused until the submissions change");
+		}
+
 		// register as an entity producer
 		m_entityManager.registerEntityProducer(this, REFERENCE_ROOT);
 
@@ -785,9 +818,43 @@ public abstract class BaseAssignmentService implements AssignmentService, Entity
 		m_submissionStorage.close();
 		m_submissionStorage = null;
 
+		if (m_zipPrefetchExecutor != null)
+		{
+			m_zipPrefetchExecutor.shutdownNow();
+			m_zipPrefetchExecutor = null;
+		}
+		if (m_zipBuildExecutor != null)
+		{
+			m_zipBuildExecutor.shutdownNow();
+			m_zipBuildExecutor = null;
+		}
+		if (m_submissionsZipCache != null)
+		{
+			m_submissionsZipCache.clear();
+			m_submissionsZipCache = null;
+		}
+
 		M_log.info(this + " destroy()");
 	}
 
+	/**
+	 * A fixed pool of daemon threads for the submissions zips.
+	 */
+	protected ExecutorService newZipExecutor(final String name, int threads)
+	{
+		return Executors.newFixedThreadPool(threads, new ThreadFactory()
+		{
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
 	/**********************************************************************************************************************************************************************************************************************************************************
 	 * AssignmentService implementation
 	 *********************************************************************************************************************************************************************************************************************************************************/
@@ -5372,6 +5439,79 @@ public abstract class BaseAssignmentService implements AssignmentService, Entity
 		}
 
 	} // getSubmissionsZip
+
+	/**
+	 * Stream a submissions zip from the built zips, building it on the build pool when the submissions changed since
+	 * the last download of the same zip.
+	 * @param out
+	 * @param ref
+	 * @param queryString
+	 * @throws IdUnusedException
+	 * @throws PermissionException
+	 * @throws IOException
+	 */
+	protected void downloadSubmissionsZip(OutputStream out, final String ref, final String queryString) throws IdUnusedException, PermissionException, IOException
+	{
+		String aRef = assignmentReferenceFromSubmissionsZipReference(ref);
+		Assignment a = getAssignment(aRef);
+		String userId = SessionManager.getCurrentSessionUserId();
+		if (!allowGradeSubmission(aRef))
+		{
+			throw new PermissionException(userId, SECURE_GRADE_ASSIGNMENT_SUBMISSION, aRef);
+		}
+
+		// the zip depends on what the user may see, so each user has their own
+		final org.sakaiproject.tool.api.Session session = SessionManager.getCurrentSession();
+		m_submissionsZipCache.download(userId + " " + ref + "?" + queryString, getSubmissionsZipVersion(a), new SubmissionsZipCache.Builder()
+		{
+			public void build(OutputStream zipOut) throws Exception
+			{
+				// build as the requesting user
+				SessionManager.setCurrentSession(session);
+				try
+				{
+					getSubmissionsZip(zipOut, ref, queryString);
+				}
+				finally
+				{
+					ThreadLocalManager.clear();
+				}
+			}
+		}, out);
+	}
+
+	/**
+	 * The version of what goes into an assignment's submissions zip: it changes when the assignment, one of its
+	 * submissions or the site membership changes.
+	 * @param a
+	 * @return
+	 */
+	protected String getSubmissionsZipVersion(Assignment a)
+	{
+		long siteModified = 0;
+		try
+		{
+			Time t = SiteService.getSite(a.getContext()).getModifiedTime();
+			siteModified = t == null ? 0 : t.getTime();
+		}
+		catch (IdUnusedException e)
+		{
+			M_log.debug(this + " getSubmissionsZipVersion: no site " + a.getContext());
+		}
+
+		// order independent digest of the submissions' last modified times
+		long digest = 0;
+		long lastModified = 0;
+		List<AssignmentSubmission> submissions = m_submissionStorage.getAll(a.getId());
+		for (AssignmentSubmission s : submissions)
+		{
+			long t = s.getTimeLastModified() == null ? 0 : s.getTimeLastModified().getTime();
+			digest += (s.getId() + ":" + t).hashCode();
+			lastModified = Math.max(lastModified, t);
+		}
+		return (a.getTimeLastModified() == null ? 0 : a.getTimeLastModified().getTime()) + "-" + siteModified + "-" + submissions.size()
+				+ "-" + lastModified + "-" + Long.toHexString(digest);
+	}
 	public String escapeInvalidCharsEntry(String accentedString) {
 		String decomposed = Normalizer.normalize(accentedString, Normalizer.Form.NFD);
 		String cleanString = decomposed.replaceAll("\\p{InCombiningDiacriticalMarks}+", "");
@@ -5381,9 +5521,22 @@ public abstract class BaseAssignmentService implements AssignmentService, Entity
 	protected void zipGroupSubmissions(String assignmentReference, String assignmentTitle, String gradeTypeString, int typeOfSubmission, Iterator submissions, OutputStream outputStream, StringBuilder exceptionMessage, boolean withStudentSubmissionText, boolean withStudentSubmissionAttachment, boolean withGradeFile, boolean withFeedbackText, boolean withFeedbackComment, boolean withFeedbackAttachment,String gradeFileFormat, boolean includeNotSubmitted)
 	{
 	    ZipOutputStream out = null;
+	    ZipAttachmentPrefetcher prefetcher = null;
 	    try {
 	        out = new ZipOutputStream(outputStream);
 
+	        // read the attachments ahead of the writer
+	        List<GroupSubmission> groupSubmissions = new ArrayList<GroupSubmission>();
+	        List<AssignmentSubmission> submissionList = new ArrayList<AssignmentSubmission>();
+	        while (submissions.hasNext())
+	        {
+	            GroupSubmission gs = (GroupSubmission) submissions.next();
+	            groupSubmissions.add(gs);
+	            submissionList.add(gs.getSubmission());
+	        }
+	        submissions = groupSubmissions.iterator();
+	        prefetcher = newZipAttachmentPrefetcher(getZipAttachments(submissionList, typeOfSubmission, withStudentSubmissionAttachment, withFeedbackAttachment, includeNotSubmitted));
+
 	        // create the folder structure - named after the assignment's title
 	        String root = escapeInvalidCharsEntry(Validator.escapeZipEntry(assignmentTitle)) + Entity.SEPARATOR;
 
@@ -5507,7 +5660,7 @@ public abstract class BaseAssignmentService implements AssignmentService, Entity
 	                                ZipEntry sSubAttachmentFolderEntry = new ZipEntry(sSubAttachmentFolder);
 	                                out.putNextEntry(sSubAttachmentFolderEntry);
 	                                // add all submission attachment into the submission attachment folder
-	                                zipAttachments(out, submittersName, sSubAttachmentFolder, s.getSubmittedAttachments());
+	                                zipAttachments(out, submittersName, sSubAttachmentFolder, s.getSubmittedAttachments(), prefetcher);
 	                                out.closeEntry();
 	                            }
 	                        }
@@ -5530,7 +5683,7 @@ public abstract class BaseAssignmentService implements AssignmentService, Entity
 	                            ZipEntry feedbackSubAttachmentFolderEntry = new ZipEntry(feedbackSubAttachmentFolder);
 	                            out.putNextEntry(feedbackSubAttachmentFolderEntry);
 	                            // add all feedback attachment folder
-	                            zipAttachments(out, submittersName, feedbackSubAttachmentFolder, s.getFeedbackAttachments());
+	                            zipAttachments(out, submittersName, feedbackSubAttachmentFolder, s.getFeedbackAttachments(), prefetcher);
 	                            out.closeEntry();
 	                        }
 
@@ -5545,6 +5698,9 @@ public abstract class BaseAssignmentService implements AssignmentService, Entity
 	                        }
 
 	                    } // if
+
+	                    // keep the download flowing while the next submission is read
+	                    out.flush();
 	                }
 	                catch (Exception e)
 	                {
@@ -5582,6 +5738,9 @@ public abstract class BaseAssignmentService implements AssignmentService, Entity
 	    {
 	        exceptionMessage.append("IOException for creating submission zip file for assignment " + "\"" + assignmentTitle + "\" exception: " + e + "\n");
 	    } finally {
+	        if (prefetcher != null) {
+	            prefetcher.close();
+	        }
 	        // Complete the ZIP file
 	        if (out != null) {
 	            try {
@@ -5602,10 +5761,20 @@ public abstract class BaseAssignmentService implements AssignmentService, Entity
 	protected void zipSubmissions(String assignmentReference, String assignmentTitle, String gradeTypeString, int typeOfSubmission, Iterator submissions, OutputStream outputStream, StringBuilder exceptionMessage, boolean withStudentSubmissionText, boolean withStudentSubmissionAttachment, boolean withGradeFile, boolean withFeedbackText, boolean withFeedbackComment, boolean withFeedbackAttachment, boolean withoutFolders,String gradeFileFormat, boolean includeNotSubmitted)
 	{
 	    ZipOutputStream out = null;
+	    ZipAttachmentPrefetcher prefetcher = null;
 
 		try {
 			out = new ZipOutputStream(outputStream);
 
+			// read the attachments ahead of the writer
+			List submissionList = new ArrayList();
+			while (submissions.hasNext())
+			{
+				submissionList.add(submissions.next());
+			}
+			submissions = submissionList.iterator();
+			prefetcher = newZipAttachmentPrefetcher(getZipAttachments(submissionList, typeOfSubmission, withStudentSubmissionAttachment, withFeedbackAttachment, includeNotSubmitted));
+
 			// create the folder structure - named after the assignment's title
 			String root = escapeInvalidCharsEntry(Validator.escapeZipEntry(assignmentTitle)) + Entity.SEPARATOR;
 
@@ -5782,7 +5951,7 @@ public abstract class BaseAssignmentService implements AssignmentService, Entity
 										}
 
 										// add all submission attachment into the submission attachment folder
-										zipAttachments(out, submittersName, sSubAttachmentFolder, s.getSubmittedAttachments());
+										zipAttachments(out, submittersName, sSubAttachmentFolder, s.getSubmittedAttachments(), prefetcher);
 										out.closeEntry();
 									}
 								}
@@ -5814,10 +5983,13 @@ public abstract class BaseAssignmentService implements AssignmentService, Entity
 									}
 								
 									// add all feedback attachment folder
-									zipAttachments(out, submittersName, feedbackSubAttachmentFolder, s.getFeedbackAttachments());
+									zipAttachments(out, submittersName, feedbackSubAttachmentFolder, s.getFeedbackAttachments(), prefetcher);
 									out.closeEntry();
 								}
 							} // if
+
+							// keep the download flowing while the next submission is read
+							out.flush();
 						}
 					}
 					catch (Exception e)
@@ -5856,6 +6028,9 @@ public abstract class BaseAssignmentService implements AssignmentService, Entity
 		{
 			exceptionMessage.append("IOException for creating submission zip file for assignment " + "\"" + assignmentTitle + "\" exception: " + e + "\n");
 		} finally {
+		    if (prefetcher != null) {
+		        prefetcher.close();
+		    }
 		    // Complete the ZIP file
 		    if (out != null) {
 		        try {
@@ -5923,7 +6098,39 @@ public abstract class BaseAssignmentService implements AssignmentService, Entity
 			return false;
 	}
 
-	private void zipAttachments(ZipOutputStream out, String submittersName, String sSubAttachmentFolder, List attachments) {
+	/**
+	 * The attachments a submissions zip may contain, in the order they are written.
+	 */
+	protected List<Reference> getZipAttachments(List<AssignmentSubmission> submissions, int typeOfSubmission, boolean withStudentSubmissionAttachment, boolean withFeedbackAttachment, boolean includeNotSubmitted)
+	{
+		List<Reference> rv = new ArrayList<Reference>();
+		for (AssignmentSubmission s : submissions)
+		{
+			if (s == null || !((s.getSubmitted() && s.isUserSubmission()) || includeNotSubmitted))
+			{
+				continue;
+			}
+			if (withStudentSubmissionAttachment && typeOfSubmission != Assignment.TEXT_ONLY_ASSIGNMENT_SUBMISSION && typeOfSubmission != Assignment.NON_ELECTRONIC_ASSIGNMENT_SUBMISSION)
+			{
+				rv.addAll(s.getSubmittedAttachments());
+			}
+			if (withFeedbackAttachment)
+			{
+				rv.addAll(s.getFeedbackAttachments());
+			}
+		}
+		return rv;
+	}
+
+	/**
+	 * Start reading the attachments of a submissions zip.
+	 */
+	protected ZipAttachmentPrefetcher newZipAttachmentPrefetcher(List<Reference> attachments)
+	{
+		return new ZipAttachmentPrefetcher(m_contentHostingService, m_zipPrefetchExecutor, m_zipPrefetchBuffer, attachments);
+	}
+
+	private void zipAttachments(ZipOutputStream out, String submittersName, String sSubAttachmentFolder, List attachments, ZipAttachmentPrefetcher prefetcher) {
 		int attachedUrlCount = 0;
 		InputStream content = null;
 		HashMap<String, Integer> done = new HashMap<String, Integer> ();
@@ -5932,7 +6139,8 @@ public abstract class BaseAssignmentService implements AssignmentService, Entity
 			Reference r = (Reference) attachments.get(j);
 			try
 			{
-				ContentResource resource = m_contentHostingService.getResource(r.getId());
+				ZipAttachmentPrefetcher.Attachment attachment = prefetcher.get(r);
+				ContentResource resource = attachment.getResource();
 
 				String contentType = resource.getContentType();
 				
@@ -5947,64 +6155,34 @@ public abstract class BaseAssignmentService implements AssignmentService, Entity
 					attachedUrlCount++;
 				}
 
-				// buffered stream input
-				content = resource.streamContent();
-				byte data[] = new byte[1024 * 10];
-				BufferedInputStream bContent = null;
-				try
-				{
-					bContent = new BufferedInputStream(content, data.length);
-					
-					String candidateName = sSubAttachmentFolder + displayName;
-					String realName = null;
-					Integer already = done.get(candidateName);
-					if (already == null) {
-					    realName = candidateName;
-					    done.put(candidateName, 1);
-					} else {
-						String fileName = FilenameUtils.removeExtension(candidateName);
-						String fileExt = FilenameUtils.getExtension(candidateName);
-						if(!"".equals(fileExt.trim())){
-							fileExt = "." + fileExt;
-						}
-					    realName = fileName + "+" + already + fileExt;
-					    done.put(candidateName, already + 1);
-					}
-
-					ZipEntry attachmentEntry = new ZipEntry(realName);
-					out.putNextEntry(attachmentEntry);
-					int bCount = -1;
-					while ((bCount = bContent.read(data, 0, data.length)) != -1) 
-					{
-						out.write(data, 0, bCount);
-					}
-					
-					try
-					{
-						out.closeEntry(); // The zip entry need to be closed
-					}
-					catch (IOException ioException)
-					{
-						M_log.warn(":zipAttachments: problem closing zip entry " + ioException);
+				String candidateName = sSubAttachmentFolder + displayName;
+				String realName = null;
+				Integer already = done.get(candidateName);
+				if (already == null) {
+				    realName = candidateName;
+				    done.put(candidateName, 1);
+				} else {
+					String fileName = FilenameUtils.removeExtension(candidateName);
+					String fileExt = FilenameUtils.getExtension(candidateName);
+					if(!"".equals(fileExt.trim())){
+						fileExt = "." + fileExt;
 					}
+				    realName = fileName + "+" + already + fileExt;
+				    done.put(candidateName, already + 1);
 				}
-				catch (IllegalArgumentException iException)
+
+				// already compressed files are stored as they are
+				boolean compressed = ZipAttachmentPrefetcher.isCompressed(displayName, contentType);
+				byte[] body = attachment.getBody();
+				if (body != null)
 				{
-					M_log.warn(":zipAttachments: problem creating BufferedInputStream with content and length " + data.length + iException);
+					ZipAttachmentPrefetcher.putEntry(out, realName, body, compressed);
 				}
-				finally
+				else
 				{
-					if (bContent != null)
-					{
-						try
-						{
-							bContent.close(); // The BufferedInputStream needs to be closed
-						}
-						catch (IOException ioException)
-						{
-							M_log.warn(":zipAttachments: problem closing FileChannel " + ioException);
-						}
-					}
+					// too large to be read ahead
+					content = resource.streamContent();
+					ZipAttachmentPrefetcher.putEntry(out, realName, content, compressed);
 				}
 			}
 			catch (PermissionException e)
@@ -6044,6 +6222,7 @@ public abstract class BaseAssignmentService implements AssignmentService, Entity
 					{
 						M_log.warn(":zipAttachments: problem closing Inputstream content " + ioException);
 					}
+					content = null;
 				}
 			}
 		} // for
@@ -6179,8 +6358,16 @@ public abstract class BaseAssignmentService implements AssignmentService, Entity
 							{
 							    out = res.getOutputStream();
 							    
-							    // get the submissions zip blob
-							    getSubmissionsZip(out, ref.getReference(), queryString);
+							    if (m_submissionsZipCache != null)
+							    {
+							        // reuse the zip built for the same download, unless the submissions changed
+							        downloadSubmissionsZip(out, ref.getReference(), queryString);
+							    }
+							    else
+							    {
+							        // get the submissions zip blob
+							        getSubmissionsZip(out, ref.getReference(), queryString);
+							    }
 							    
 							}
 							catch (Throwable ignore)
@@ -24,13 +24,16 @@ package org.sakaiproject.assignment.impl;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Stack;
 
 import org.apache.commons.collections.CollectionUtils;
+import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sakaiproject.assignment.api.Assignment;
@@ -39,14 +42,19 @@ import org.sakaiproject.assignment.api.AssignmentContentEdit;
 import org.sakaiproject.assignment.api.AssignmentEdit;
 import org.sakaiproject.assignment.api.AssignmentSubmission;
 import org.sakaiproject.assignment.api.AssignmentSubmissionEdit;
+import org.sakaiproject.assignment.api.ContentReviewResult;
 import org.sakaiproject.assignment.cover.AssignmentService;
 import org.sakaiproject.authz.api.Member;
+import org.sakaiproject.content.api.ContentResource;
 import org.sakaiproject.site.api.Site;
 import org.sakaiproject.site.api.Group;
 import org.sakaiproject.site.cover.SiteService;
+import org.sakaiproject.time.api.Time;
+import org.sakaiproject.time.cover.TimeService;
 import org.sakaiproject.db.api.SqlReader;
 import org.sakaiproject.db.api.SqlService;
 import org.sakaiproject.entity.api.Entity;
+import org.sakaiproject.entity.api.ResourceProperties;
 import org.sakaiproject.user.api.User;
 import org.sakaiproject.util.BaseDbSingleStorage;
 import org.sakaiproject.util.Xml;
@@ -81,6 +89,13 @@ public class DbAssignmentService extends BaseAssignmentService
 	/** Extra fields to store in the db with the XML in ASSIGNMENT_SUBMISSION table */
 	protected static final String[] SUBMISSION_FIELDS = { "CONTEXT", "SUBMITTER_ID", "SUBMIT_TIME", "SUBMITTED", "GRADED"};
 
+	/** Extra fields to store in the db with the XML in ASSIGNMENT_SUBMISSION table, when the structured submission columns are used */
+	protected static final String[] STRUCTURED_SUBMISSION_FIELDS = { "CONTEXT", "SUBMITTER_ID", "SUBMIT_TIME", "SUBMITTED", "GRADED",
+			"GRADE", "GRADE_RELEASED", "RETURNED", "RETURN_TIME", "MODIFIED_TIME"};
+
+	/** Select of the submission id, the structured submission columns but CONTEXT, and the XML, in that order */
+	protected static final String STRUCTURED_SELECT = "select SUBMISSION_ID, SUBMITTER_ID, SUBMIT_TIME, SUBMITTED, GRADED, GRADE, GRADE_RELEASED, RETURNED, RETURN_TIME, MODIFIED_TIME, XML";
+
 	/** Oracle in clause limit */
 	protected static final int MAX_IN_CLAUSE_SIZE = 1000;
 
@@ -160,6 +175,21 @@ public class DbAssignmentService extends BaseAssignmentService
 		m_convertToContext = Boolean.valueOf(value).booleanValue();
 	}
 
+	/** If true, the submission status, grade and dates are kept in their own columns and the XML is only parsed when needed. */
+	protected boolean m_structuredSubmissionColumns = false;
+
+	/**
+	 * Configuration: keep the submission status, grade and dates in their own columns of the submissions table. The columns of
+	 * existing submissions are filled in by the StructuredSubmissionColumnsConversion in upgradeschema_*.config.
+	 * 
+	 * @param value
+	 *        The structured submission columns value.
+	 */
+	public void setStructuredSubmissionColumns(String value)
+	{
+		m_structuredSubmissionColumns = Boolean.valueOf(value).booleanValue();
+	}
+
 	/** Configuration: to run the ddl on init or not. */
 	protected boolean m_autoDdl = false;
 
@@ -194,7 +224,8 @@ public class DbAssignmentService extends BaseAssignmentService
 			super.init();
 
 			M_log.info("init: assignments table: " + m_assignmentsTableName + " contents table: " + m_contentsTableName
-					+ " submissions table: " + m_submissionsTableName + " locks-in-db" + m_locksInDb);
+					+ " submissions table: " + m_submissionsTableName + " locks-in-db" + m_locksInDb
+					+ " structured submission columns: " + m_structuredSubmissionColumns);
 
 			// convert?
 			if (m_convertToContext)
@@ -242,6 +273,10 @@ public class DbAssignmentService extends BaseAssignmentService
 	 */
 	protected AssignmentSubmissionStorage newSubmissionStorage()
 	{
+		if (m_structuredSubmissionColumns)
+		{
+			return new DbCachedAssignmentSubmissionStorage(new StructuredSubmissionStorageUser());
+		}
 		return new DbCachedAssignmentSubmissionStorage(new AssignmentSubmissionStorageUser());
 
 	} // newSubmissionStorage
@@ -401,7 +436,8 @@ public class DbAssignmentService extends BaseAssignmentService
 		 */
 		public DbCachedAssignmentSubmissionStorage(AssignmentSubmissionStorageUser submission)
 		{
-			super(m_submissionsTableName, "SUBMISSION_ID", SUBMISSION_FIELDS, m_locksInDb, "submission", submission, m_sqlService);
+			super(m_submissionsTableName, "SUBMISSION_ID", m_structuredSubmissionColumns ? STRUCTURED_SUBMISSION_FIELDS : SUBMISSION_FIELDS,
+					m_locksInDb, "submission", submission, m_sqlService);
 
 		} // DbCachedAssignmentSubmissionStorage
 
@@ -476,7 +512,7 @@ public class DbAssignmentService extends BaseAssignmentService
 				String fields[] = new String[1 + userSublist.size()];
 
 				String param = "?";
-				sql.append("select XML from ").append(m_submissionsTableName)
+				sql.append(m_structuredSubmissionColumns ? STRUCTURED_SELECT : "select XML").append(" from ").append(m_submissionsTableName)
 					.append(" where (").append(SUBMISSION_FIELDS[0]).append(" = ").append(param).append(" AND ")
 					.append(SUBMISSION_FIELDS[1]).append(" in (");
 				fields[0] = caseId(assignment.getId());
@@ -498,10 +534,10 @@ public class DbAssignmentService extends BaseAssignmentService
 				// append "))" to close "in (" and "where("
 				sql.append("))");
 
-				List xmlResources = m_sql.dbRead(sql.toString(), fields, null);
-				for (Object xml : xmlResources)
+				List submissions = m_structuredSubmissionColumns ? readStructuredSubmissions(sql.toString(), fields, assignment) : m_sql.dbRead(sql.toString(), fields, null);
+				for (Object o : submissions)
 				{
-					AssignmentSubmission submission = (AssignmentSubmission) readResource((String) xml);
+					AssignmentSubmission submission = (AssignmentSubmission) (m_structuredSubmissionColumns ? o : readResource((String) o));
 					String submitterId = submission.getSubmitterId();
 					User u = userIdUserMap.get(submitterId);
 					if (u == null)
@@ -569,19 +605,16 @@ public class DbAssignmentService extends BaseAssignmentService
 				}
 				
 				site = SiteService.getSite(a.getContext());
-				List l = super.getSelectedResourcesWhere(sqlWhere);
+				List<String> submitterIds = getSubmitterIdsWhere(sqlWhere, a.isGroup());
 				
 				if (a.isGroup()) {
-                                    for (Object o : l) {
-                                        AssignmentSubmission assignmentSubmission = (AssignmentSubmission)o;
-                                        Group _gg = site.getGroup(assignmentSubmission.getSubmitterId());
+                                    for (String submitterId : submitterIds) {
+                                        Group _gg = site.getGroup(submitterId);
                                         if (_gg != null) count++;
                                     }
 				} else {
 				// check whether the submitter is an active member of the site
-				for (Object o : l) {
-					AssignmentSubmission assignmentSubmission = (AssignmentSubmission)o;
-					String userId = assignmentSubmission.getSubmitterIdString();
+				for (String userId : submitterIds) {
 					Member member = site != null ? site.getMember(userId) : null;
 					if(member != null && member.isActive()) 
 					{	
@@ -627,6 +660,74 @@ public class DbAssignmentService extends BaseAssignmentService
 			return count;
 		}
 		
+		/**
+		 * Read the submitter of each submission matching the where clause, from the SUBMITTER_ID column when the structured submission
+		 * columns are used, otherwise from the submission XML.
+		 */
+		private List<String> getSubmitterIdsWhere(String sqlWhere, boolean isGroup)
+		{
+			if (m_structuredSubmissionColumns)
+			{
+				return m_sql.dbRead("select " + SUBMISSION_FIELDS[1] + " from " + m_submissionsTableName + " " + sqlWhere);
+			}
+
+			List<String> rv = new ArrayList<String>();
+			for (Object o : super.getSelectedResourcesWhere(sqlWhere))
+			{
+				AssignmentSubmission assignmentSubmission = (AssignmentSubmission) o;
+				rv.add(isGroup ? assignmentSubmission.getSubmitterId() : assignmentSubmission.getSubmitterIdString());
+			}
+			return rv;
+		}
+
+		/**
+		 * Read submissions with a select starting with STRUCTURED_SELECT. The status, grade and dates are taken from the columns and the
+		 * XML is only parsed when some other part of the submission is asked for. Rows whose columns are not current are parsed straight
+		 * away, see {@link DbAssignmentService#readStructuredSubmission}.
+		 * 
+		 * @param sql
+		 *        The select statement.
+		 * @param fields
+		 *        The select statement parameters.
+		 * @param assignment
+		 *        The assignment the submissions belong to.
+		 * @return The list of AssignmentSubmission objects.
+		 */
+		protected List<AssignmentSubmission> readStructuredSubmissions(String sql, Object[] fields, final Assignment assignment)
+		{
+			final DbCachedAssignmentSubmissionStorage storage = this;
+			return m_sql.dbRead(sql, fields, new SqlReader<AssignmentSubmission>()
+			{
+				public AssignmentSubmission readSqlResultRecord(ResultSet result)
+				{
+					try
+					{
+						// SUBMISSION_ID and the structured fields but CONTEXT
+						String[] columns = new String[STRUCTURED_SUBMISSION_FIELDS.length];
+						for (int i = 0; i < columns.length; i++)
+						{
+							columns[i] = result.getString(i + 1);
+						}
+						String xml = result.getString(columns.length + 1);
+						return readStructuredSubmission(storage, assignment, columns, xml);
+					}
+					catch (SQLException e)
+					{
+						M_log.warn("readStructuredSubmissions(): " + e);
+						return null;
+					}
+				}
+			});
+		}
+
+		/**
+		 * Parse a submission from its XML.
+		 */
+		protected BaseAssignmentSubmission readSubmission(String xml)
+		{
+			return (BaseAssignmentSubmission) readResource(xml);
+		}
+
 		/**
 		 * {@inheritDoc}
 		 */
@@ -646,6 +747,15 @@ public class DbAssignmentService extends BaseAssignmentService
 
 		public List getAll(String context)
 		{
+			if (m_structuredSubmissionColumns)
+			{
+				Assignment assignment = m_assignmentStorage.get(context);
+				if (assignment != null)
+				{
+					return readStructuredSubmissions(STRUCTURED_SELECT + " from " + m_submissionsTableName + " where " + SUBMISSION_FIELDS[0] + " = ?",
+							new Object[] { caseId(context) }, assignment);
+				}
+			}
 			return super.getAllResourcesWhere(SUBMISSION_FIELDS[0], context);
 		}
 
@@ -684,6 +794,352 @@ public class DbAssignmentService extends BaseAssignmentService
 
 	} // DbCachedAssignmentSubmissionStorage
 
+	/**
+	 * Read one row of a STRUCTURED_SELECT. The structured columns are only used when MODIFIED_TIME is the lastmod of the XML, so rows
+	 * not converted yet, or saved while the structured columns were switched off, are parsed from the XML instead.
+	 * 
+	 * @param storage
+	 *        The storage to parse the XML with.
+	 * @param assignment
+	 *        The assignment of the submission.
+	 * @param columns
+	 *        SUBMISSION_ID and the structured submission columns but CONTEXT.
+	 * @param xml
+	 *        The submission XML.
+	 * @return The submission.
+	 */
+	protected AssignmentSubmission readStructuredSubmission(DbCachedAssignmentSubmissionStorage storage, Assignment assignment, String[] columns,
+			String xml)
+	{
+		if (!isStructuredColumnsCurrent(columns[columns.length - 1], xml))
+		{
+			return storage.readSubmission(xml);
+		}
+		return new LazyAssignmentSubmission(storage, assignment, columns, xml);
+	}
+
+	/**
+	 * Check the MODIFIED_TIME column against the lastmod attribute of the submission element, without parsing the XML.
+	 * 
+	 * @param modifiedTime
+	 *        The MODIFIED_TIME column.
+	 * @param xml
+	 *        The submission XML.
+	 * @return true if both are the same time.
+	 */
+	protected boolean isStructuredColumnsCurrent(String modifiedTime, String xml)
+	{
+		if (modifiedTime == null || xml == null) return false;
+
+		int tag = xml.indexOf("<submission ");
+		if (tag < 0) return false;
+		int end = xml.indexOf('>', tag);
+		int start = xml.indexOf(" lastmod=\"", tag);
+		if (end < 0 || start < 0 || start > end) return false;
+		start += " lastmod=\"".length();
+		int close = xml.indexOf('"', start);
+		if (close < 0) return false;
+
+		Time columnTime = getColumnTime(modifiedTime);
+		Time xmlTime = getColumnTime(xml.substring(start, close));
+		return columnTime != null && xmlTime != null && columnTime.getTime() == xmlTime.getTime();
+	}
+
+	/**
+	 * AssignmentSubmissionStorageUser that also stores the submission status, grade and dates in the structured submission columns.
+	 */
+	protected class StructuredSubmissionStorageUser extends AssignmentSubmissionStorageUser
+	{
+		/**
+		 * Collect the fields that need to be stored outside the XML (for the resource).
+		 * 
+		 * @return An array of field values to store in the record outside the XML (for the resource).
+		 */
+		public Object[] storageFields(Entity r)
+		{
+			/*"context", "SUBMITTER_ID", "SUBMIT_TIME", "SUBMITTED", "GRADED", "GRADE", "GRADE_RELEASED", "RETURNED", "RETURN_TIME", "MODIFIED_TIME"*/
+			Object rv[] = new Object[STRUCTURED_SUBMISSION_FIELDS.length];
+			Object fields[] = super.storageFields(r);
+			System.arraycopy(fields, 0, rv, 0, fields.length);
+
+			AssignmentSubmission submission = (AssignmentSubmission) r;
+			rv[5] = submission.getGrade(false);
+			rv[6] = Boolean.valueOf(submission.getGradeReleased()).toString();
+			rv[7] = Boolean.valueOf(submission.getReturned()).toString();
+			Time returnTime = submission.getTimeReturned();
+			rv[8] = (returnTime != null)?String.valueOf(returnTime.getTime()):null;
+			Time modifiedTime = submission.getTimeLastModified();
+			rv[9] = (modifiedTime != null)?String.valueOf(modifiedTime.getTime()):null;
+
+			return rv;
+		}
+	}
+
+	/**
+	 * A submission read from the structured submission columns. The status, grade and dates come from the columns; the rest of the
+	 * submission (text, attachments, feedback, properties...) is parsed from the XML the first time any of it is asked for.
+	 */
+	protected class LazyAssignmentSubmission extends BaseAssignmentSubmission
+	{
+		/** The storage to parse the XML with. */
+		protected DbCachedAssignmentSubmissionStorage m_storage;
+
+		/** The submission XML, until it has been parsed. */
+		protected String m_xml;
+
+		/**
+		 * Construct.
+		 * 
+		 * @param storage
+		 *        The storage to parse the XML with.
+		 * @param assignment
+		 *        The assignment of the submission.
+		 * @param columns
+		 *        SUBMISSION_ID and the structured submission columns but CONTEXT.
+		 * @param xml
+		 *        The submission XML.
+		 */
+		public LazyAssignmentSubmission(DbCachedAssignmentSubmissionStorage storage, Assignment assignment, String[] columns, String xml)
+		{
+			super();
+			m_storage = storage;
+			m_xml = xml;
+
+			m_id = columns[0];
+			m_assignment = assignment.getId();
+			m_asn = assignment;
+			m_context = assignment.getContext();
+			m_submitterId = columns[1];
+			if (!assignment.isGroup())
+			{
+				// individual submissions have their submitter as the only one
+				m_submitters = new ArrayList<String>();
+				m_submitters.add(m_submitterId);
+			}
+			m_timeSubmitted = getColumnTime(columns[2]);
+			m_submitted = getBool(columns[3]);
+			m_graded = getBool(columns[4]);
+			m_grade = columns[5];
+			m_gradeReleased = getBool(columns[6]);
+			m_returned = getBool(columns[7]);
+			m_timeReturned = getColumnTime(columns[8]);
+			m_timeLastModified = getColumnTime(columns[9]);
+		}
+
+		/**
+		 * Parse the XML, if not done yet, and take the rest of the submission from it.
+		 */
+		protected synchronized void load()
+		{
+			if (m_xml == null) return;
+
+			BaseAssignmentSubmission submission = m_storage.readSubmission(m_xml);
+			m_xml = null;
+			if (submission == null)
+			{
+				M_log.warn("LazyAssignmentSubmission.load(): could not parse submission " + m_id);
+				return;
+			}
+
+			m_submitters = submission.m_submitters;
+			m_submissionLog = submission.m_submissionLog;
+			m_grades = submission.m_grades;
+			m_factor = submission.m_factor;
+			m_submittedAttachments = submission.m_submittedAttachments;
+			m_feedbackAttachments = submission.m_feedbackAttachments;
+			m_submittedText = submission.m_submittedText;
+			m_feedbackComment = submission.m_feedbackComment;
+			m_feedbackText = submission.m_feedbackText;
+			m_gradedBy = submission.m_gradedBy;
+			m_honorPledgeFlag = submission.m_honorPledgeFlag;
+			m_hideDueDate = submission.m_hideDueDate;
+			m_anonymousSubmissionId = submission.m_anonymousSubmissionId;
+			m_reviewScore = submission.m_reviewScore;
+			m_reviewReport = submission.m_reviewReport;
+			m_reviewStatus = submission.m_reviewStatus;
+			m_reviewIconUrl = submission.m_reviewIconUrl;
+			m_reviewError = submission.m_reviewError;
+			m_isUserSubmission = submission.m_isUserSubmission;
+			m_properties = submission.m_properties;
+		}
+
+		public Element toXml(Document doc, Stack stack)
+		{
+			load();
+			return super.toXml(doc, stack);
+		}
+
+		public ResourceProperties getProperties()
+		{
+			load();
+			return super.getProperties();
+		}
+
+		public List getSubmissionLog()
+		{
+			load();
+			return super.getSubmissionLog();
+		}
+
+		public List getGrades()
+		{
+			load();
+			return super.getGrades();
+		}
+
+		public String getGradeForUser(String id)
+		{
+			load();
+			return super.getGradeForUser(id);
+		}
+
+		public List<String> getSubmitterIds()
+		{
+			if (m_submitters == null) load();
+			return super.getSubmitterIds();
+		}
+
+		public String getSubmitterIdString()
+		{
+			if (m_submitters == null) load();
+			return super.getSubmitterIdString();
+		}
+
+		public String getSubmittedText()
+		{
+			load();
+			return super.getSubmittedText();
+		}
+
+		public List getSubmittedAttachments()
+		{
+			load();
+			return super.getSubmittedAttachments();
+		}
+
+		public List getVisibleSubmittedAttachments()
+		{
+			load();
+			return super.getVisibleSubmittedAttachments();
+		}
+
+		public String getFeedbackComment()
+		{
+			load();
+			return super.getFeedbackComment();
+		}
+
+		public String getFeedbackText()
+		{
+			load();
+			return super.getFeedbackText();
+		}
+
+		public String getFeedbackFormattedText()
+		{
+			load();
+			return super.getFeedbackFormattedText();
+		}
+
+		public List getFeedbackAttachments()
+		{
+			load();
+			return super.getFeedbackAttachments();
+		}
+
+		public String getGradedBy()
+		{
+			load();
+			return super.getGradedBy();
+		}
+
+		public boolean getHonorPledgeFlag()
+		{
+			load();
+			return super.getHonorPledgeFlag();
+		}
+
+		public int getResubmissionNum()
+		{
+			load();
+			return super.getResubmissionNum();
+		}
+
+		public Time getCloseTime()
+		{
+			load();
+			return super.getCloseTime();
+		}
+
+		public boolean isUserSubmission()
+		{
+			load();
+			return super.isUserSubmission();
+		}
+
+		public int getReviewScore()
+		{
+			load();
+			return super.getReviewScore();
+		}
+
+		public String getReviewReport()
+		{
+			load();
+			return super.getReviewReport();
+		}
+
+		public String getReviewStatus()
+		{
+			load();
+			return super.getReviewStatus();
+		}
+
+		public String getReviewIconUrl()
+		{
+			load();
+			return super.getReviewIconUrl();
+		}
+
+		public String getReviewError()
+		{
+			load();
+			return super.getReviewError();
+		}
+
+		public List<ContentReviewResult> getContentReviewResults()
+		{
+			load();
+			return super.getContentReviewResults();
+		}
+
+		public String getContentReviewSubmitterId(ContentResource cr)
+		{
+			load();
+			return super.getContentReviewSubmitterId(cr);
+		}
+
+	} // LazyAssignmentSubmission
+
+	/**
+	 * Read a time from a structured submission column: ms since the epoch, or the XML time format found in SUBMIT_TIME values set by
+	 * the SubmitterIdAssignmentsConversion.
+	 */
+	protected Time getColumnTime(String value)
+	{
+		value = StringUtils.trimToNull(value);
+		if (value == null) return null;
+		if (value.length() == 17) return getTimeObject(value);
+		try
+		{
+			return TimeService.newTime(Long.parseLong(value));
+		}
+		catch (NumberFormatException e)
+		{
+			return getTimeObject(value);
+		}
+	}
+
 	/**
 	 * fill in the context field for any record missing it
 	 */
@@ -0,0 +1,334 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2016 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.assignment.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Submissions zips built into files, so that repeated downloads of the same zip are served from disk.
+ * <p>
+ * A zip is built on the build pool rather than on the request thread, so it is completed even when the client gives up,
+ * and the request streams the file while it is being written. Each artifact carries the version of the submissions it
+ * was built from; a download asking for another version builds a new one. The least recently used artifacts beyond
+ * maxArtifacts are deleted, each once the downloads still reading it are done.
+ */
+public class SubmissionsZipCache {
+
+    private static final Logger log = LoggerFactory.getLogger(SubmissionsZipCache.class);
+
+    /** How long a reader waits for the builder before looking again, in ms. */
+    private static final long WAIT = 1000;
+
+    /** The artifact file names are PREFIX + something + SUFFIX. */
+    private static final String PREFIX = "submissions";
+    private static final String SUFFIX = ".zip";
+
+    /**
+     * Writes a submissions zip.
+     */
+    public interface Builder {
+        void build(OutputStream out) throws Exception;
+    }
+
+    private final File directory;
+    private final ExecutorService executor;
+    private final int maxArtifacts;
+    private final Map<String, Artifact> artifacts = new LinkedHashMap<String, Artifact>(16, 0.75f, true);
+
+    /**
+     * @param directory
+     *        Where the artifacts are written; it is created when missing, and the artifacts left there by a previous run are
+     *        deleted.
+     * @param executor
+     *        The pool the zips are built on.
+     * @param maxArtifacts
+     *        The most artifacts kept.
+     */
+    public SubmissionsZipCache(File directory, ExecutorService executor, int maxArtifacts) {
+        this.directory = directory;
+        this.executor = executor;
+        this.maxArtifacts = maxArtifacts;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            log.warn("Unable to create the submissions zip directory " + directory);
+        }
+        // nothing refers to the artifacts of a previous run, which may have ended without clearing them
+        File[] leftovers = directory.listFiles();
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                if (leftover.isFile() && leftover.getName().startsWith(PREFIX) && leftover.getName().endsWith(SUFFIX) && !leftover.delete()) {
+                    log.warn("Unable to delete the old submissions zip " + leftover);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stream a zip to the client, building it first unless an artifact of this version exists or is being built.
+     *
+     * @param key
+     *        What identifies the zip: the assignment, the user and the download options.
+     * @param version
+     *        The version of the submissions the zip is built from.
+     * @param builder
+     *        Builds the zip when needed.
+     * @param out
+     *        The client stream.
+     */
+    public void download(String key, String version, Builder builder, OutputStream out) throws IOException {
+        Artifact artifact = getArtifact(key, version, builder);
+        try {
+            artifact.copyTo(out);
+        } finally {
+            artifact.unpin();
+        }
+    }
+
+    /**
+     * Get the artifact of this version, pinned so that its file is kept until the download unpins it.
+     */
+
+    private Artifact getArtifact(String key, String version, Builder builder) throws IOException {
+        Artifact stale = null;
+        Artifact artifact;
+        synchronized (artifacts) {
+            artifact = artifacts.get(key);
+            if (artifact != null && (artifact.failed || !artifact.version.equals(version))) {
+                stale = artifacts.remove(key);
+                artifact = null;
+            }
+            if (artifact == null) {
+                artifact = new Artifact(File.createTempFile(PREFIX, SUFFIX, directory), version);
+                artifacts.put(key, artifact);
+                try {
+                    executor.execute(new Build(artifact, builder));
+                } catch (RejectedExecutionException e) {
+                    artifacts.remove(key);
+                    artifact.done(false);
+                    artifact.delete();
+                    throw new IOException("Unable to build the submissions zip", e);
+                }
+            }
+            for (Iterator<Artifact> i = artifacts.values().iterator(); artifacts.size() > maxArtifacts && i.hasNext();) {
+                Artifact eldest = i.next();
+                if (eldest != artifact) {
+                    i.remove();
+                    eldest.delete();
+                }
+            }
+            // pinned under the lock, before an eviction can delete the file
+            artifact.pin();
+        }
+        if (stale != null) {
+            stale.delete();
+        }
+        return artifact;
+    }
+
+    /**
+     * Delete all the artifacts.
+     */
+    public void clear() {
+        synchronized (artifacts) {
+            for (Artifact artifact : artifacts.values()) {
+                artifact.delete();
+            }
+            artifacts.clear();
+        }
+    }
+
+    private static class Build implements Runnable {
+        private final Artifact artifact;
+        private final Builder builder;
+
+        Build(Artifact artifact, Builder builder) {
+            this.artifact = artifact;
+            this.builder = builder;
+        }
+
+        public void run() {
+            boolean built = false;
+            OutputStream out = null;
+            try {
+                out = new BufferedOutputStream(new FileOutputStream(artifact.file) {
+                    public void write(int b) throws IOException {
+                        super.write(b);
+                        artifact.written(1);
+                    }
+
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        super.write(b, off, len);
+                        artifact.written(len);
+                    }
+                }, 64 * 1024);
+                final IOException[] failure = new IOException[1];
+                builder.build(new FilterOutputStream(out) {
+                    public void write(int b) throws IOException {
+                        try {
+                            out.write(b);
+                        } catch (IOException e) {
+                            failure[0] = e;
+                            throw e;
+                        }
+                    }
+
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        try {
+                            out.write(b, off, len);
+                        } catch (IOException e) {
+                            failure[0] = e;
+                            throw e;
+                        }
+                    }
+
+                    public void close() throws IOException {
+                        // the builder closes its zip stream; the file is closed once it is complete
+                        flush();
+                    }
+                });
+                if (failure[0] != null) {
+                    // the zip writers log and swallow their stream errors; never keep a truncated zip
+                    throw failure[0];
+                }
+                out.close();
+                out = null;
+                built = true;
+            } catch (Throwable t) {
+                log.warn("Failed to build the submissions zip " + artifact.file, t);
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        // tried
+                    }
+                }
+                artifact.done(built);
+            }
+        }
+    }
+
+    private static class Artifact {
+        private final File file;
+        private final String version;
+        private long length = 0;
+        private boolean done = false;
+        private volatile boolean failed = false;
+        private boolean deleted = false;
+        private int readers = 0;
+
+        Artifact(File file, String version) {
+            this.file = file;
+            this.version = version;
+        }
+
+        synchronized void written(int len) {
+            length += len;
+            notifyAll();
+        }
+
+        synchronized void done(boolean built) {
+            done = true;
+            failed = !built;
+            notifyAll();
+            deleteIfUnused();
+        }
+
+        synchronized void delete() {
+            // a build still writing, or the last download still reading, deletes the file when it ends
+            deleted = true;
+            deleteIfUnused();
+        }
+
+        synchronized void pin() {
+            readers++;
+        }
+
+        synchronized void unpin() {
+            readers--;
+            deleteIfUnused();
+        }
+
+        private void deleteIfUnused() {
+            if (deleted && done && readers == 0) {
+                file.delete();
+            }
+        }
+
+        /**
+         * Copy the file to the client, following it while it is being built.
+         */
+        void copyTo(OutputStream out) throws IOException {
+            InputStream in = new FileInputStream(file);
+            try {
+                byte data[] = new byte[1024 * 64];
+                long copied = 0;
+                while (true) {
+                    long available;
+                    synchronized (this) {
+                        while (length == copied && !done) {
+                            try {
+                                wait(WAIT);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                throw new IOException("Interrupted waiting for " + file, e);
+                            }
+                        }
+                        if (failed) {
+                            throw new IOException("Failed to build " + file);
+                        }
+                        available = length - copied;
+                    }
+                    if (available == 0) {
+                        break;
+                    }
+                    while (available > 0) {
+                        int n = in.read(data, 0, (int) Math.min(data.length, available));
+                        if (n == -1) {
+                            throw new IOException("Unexpected end of " + file);
+                        }
+                        out.write(data, 0, n);
+                        copied += n;
+                        available -= n;
+                    }
+                    out.flush();
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+}
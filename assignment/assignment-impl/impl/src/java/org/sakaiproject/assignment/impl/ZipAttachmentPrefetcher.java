@@ -0,0 +1,304 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2016 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.assignment.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FilenameUtils;
+import org.sakaiproject.content.api.ContentHostingService;
+import org.sakaiproject.content.api.ContentResource;
+import org.sakaiproject.entity.api.Reference;
+import org.sakaiproject.exception.IdUnusedException;
+import org.sakaiproject.exception.PermissionException;
+import org.sakaiproject.exception.ServerOverloadException;
+import org.sakaiproject.exception.TypeException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the attachments going into a submissions zip ahead of the zip writer.
+ * <p>
+ * The attachments are given up front in the order the writer will ask for them. Their resources are looked up on the
+ * calling thread, so the content permission checks still see the requesting user, and only the body reads run on the
+ * shared pool. At most maxBufferedBytes of bodies are held at a time; a body larger than that is not prefetched and is
+ * streamed by the writer when it gets there.
+ */
+public class ZipAttachmentPrefetcher {
+
+    private static final Logger log = LoggerFactory.getLogger(ZipAttachmentPrefetcher.class);
+
+    /** How many attachments may be looked up ahead of the writer. */
+    private static final int MAX_AHEAD = 100;
+
+    /** File extensions of formats whose content is already compressed. */
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<String>(Arrays.asList(
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "jar", "war",
+            "jpg", "jpeg", "png", "gif", "webp",
+            "mp3", "m4a", "aac", "ogg", "oga", "wma",
+            "mp4", "m4v", "mov", "avi", "wmv", "webm", "mkv", "flv",
+            "docx", "xlsx", "pptx", "odt", "ods", "odp", "epub"));
+
+    private final ContentHostingService contentHostingService;
+    private final ExecutorService executor;
+    private final long maxBufferedBytes;
+
+    private final List<Reference> plan;
+    private int next = 0;
+    private Attachment waiting;
+    private final LinkedList<Attachment> ahead = new LinkedList<Attachment>();
+    private long bufferedBytes = 0;
+
+    /**
+     * @param contentHostingService
+     *        The service to read the attachments from.
+     * @param executor
+     *        The pool reading the bodies, null to read them on the writer's thread.
+     * @param maxBufferedBytes
+     *        The most body bytes held ahead of the writer.
+     * @param plan
+     *        The attachment references, in the order they will be written.
+     */
+    public ZipAttachmentPrefetcher(ContentHostingService contentHostingService, ExecutorService executor, long maxBufferedBytes, List<Reference> plan) {
+        this.contentHostingService = contentHostingService;
+        this.executor = executor;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.plan = plan == null ? new ArrayList<Reference>() : plan;
+        fill();
+    }
+
+    /**
+     * Get the next attachment for the writer. The planned attachments before it were skipped by the writer and are
+     * dropped; an attachment that was not in the plan is looked up now.
+     *
+     * @param reference
+     *        The attachment reference.
+     * @return The attachment, with its body when it was prefetched.
+     */
+    public Attachment get(Reference reference) throws PermissionException, IdUnusedException, TypeException {
+        Attachment a = null;
+        for (Attachment queued : ahead) {
+            if (queued.reference.getId().equals(reference.getId())) {
+                a = queued;
+                break;
+            }
+        }
+        if (a != null) {
+            Attachment skipped;
+            while ((skipped = ahead.removeFirst()) != a) {
+                drop(skipped);
+            }
+            bufferedBytes -= a.buffered;
+        }
+        fill();
+
+        if (a == null) {
+            a = new Attachment(reference);
+            a.lookup(contentHostingService);
+        }
+        a.rethrow();
+        return a;
+    }
+
+    /**
+     * Drop whatever is still held ahead of the writer.
+     */
+    public void close() {
+        while (!ahead.isEmpty()) {
+            drop(ahead.removeFirst());
+        }
+        waiting = null;
+        next = plan.size();
+    }
+
+    private void drop(Attachment a) {
+        if (a.body != null) {
+            a.body.cancel(true);
+        }
+        bufferedBytes -= a.buffered;
+    }
+
+    private void fill() {
+        while (next < plan.size() && ahead.size() < MAX_AHEAD) {
+            Reference r = plan.get(next);
+            Attachment a = waiting;
+            waiting = null;
+            if (a == null) {
+                a = new Attachment(r);
+                a.lookup(contentHostingService);
+            }
+            long size = a.resource == null ? 0 : a.resource.getContentLength();
+            if (executor != null && a.resource != null && size <= maxBufferedBytes) {
+                if (bufferedBytes > 0 && bufferedBytes + size > maxBufferedBytes) {
+                    // the writer has to catch up first
+                    waiting = a;
+                    break;
+                }
+                final ContentResource resource = a.resource;
+                a.body = executor.submit(new Callable<byte[]>() {
+                    public byte[] call() throws ServerOverloadException {
+                        return resource.getContent();
+                    }
+                });
+                a.buffered = size;
+                bufferedBytes += size;
+            }
+            ahead.add(a);
+            next++;
+        }
+    }
+
+    /**
+     * Is the file's content already compressed, so that deflating it again would only cost time?
+     *
+     * @param name
+     *        The file name.
+     * @param contentType
+     *        The content type, may be null.
+     */
+    public static boolean isCompressed(String name, String contentType) {
+        if (name != null && COMPRESSED_EXTENSIONS.contains(FilenameUtils.getExtension(name).toLowerCase())) {
+            return true;
+        }
+        if (contentType == null) {
+            return false;
+        }
+        contentType = contentType.toLowerCase();
+        return contentType.startsWith("video/")
+                || (contentType.startsWith("audio/") && !contentType.contains("wav"))
+                || contentType.equals("image/jpeg") || contentType.equals("image/png") || contentType.equals("image/gif")
+                || contentType.equals("application/zip") || contentType.equals("application/x-zip-compressed")
+                || contentType.equals("application/gzip") || contentType.equals("application/x-gzip")
+                || contentType.startsWith("application/vnd.openxmlformats-officedocument.");
+    }
+
+    /**
+     * Write a whole file as the next entry. Already compressed content is stored as it is.
+     */
+    public static void putEntry(ZipOutputStream out, String name, byte[] body, boolean compressed) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        if (compressed) {
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(body.length);
+            entry.setCompressedSize(body.length);
+            entry.setCrc(crc.getValue());
+        }
+        out.putNextEntry(entry);
+        out.write(body);
+        out.closeEntry();
+    }
+
+    /**
+     * Stream a file as the next entry. The size and CRC of a stored entry have to be known before its data, so already
+     * compressed content is deflated at level 0 instead, which copies it in stored blocks.
+     */
+    public static void putEntry(ZipOutputStream out, String name, InputStream content, boolean compressed) throws IOException {
+        byte data[] = new byte[1024 * 10];
+        if (compressed) {
+            out.setLevel(Deflater.NO_COMPRESSION);
+        }
+        try {
+            out.putNextEntry(new ZipEntry(name));
+            int bCount = -1;
+            while ((bCount = content.read(data, 0, data.length)) != -1) {
+                out.write(data, 0, bCount);
+            }
+            out.closeEntry();
+        } finally {
+            if (compressed) {
+                out.setLevel(Deflater.DEFAULT_COMPRESSION);
+            }
+        }
+    }
+
+    /**
+     * An attachment resource and, when prefetched, its body.
+     */
+    public static class Attachment {
+        private final Reference reference;
+        private ContentResource resource;
+        private Exception failure;
+        private Future<byte[]> body;
+        private long buffered;
+
+        Attachment(Reference reference) {
+            this.reference = reference;
+        }
+
+        private void lookup(ContentHostingService contentHostingService) {
+            try {
+                resource = contentHostingService.getResource(reference.getId());
+            } catch (PermissionException | IdUnusedException | TypeException e) {
+                failure = e;
+            }
+        }
+
+        private void rethrow() throws PermissionException, IdUnusedException, TypeException {
+            if (failure instanceof PermissionException) throw (PermissionException) failure;
+            if (failure instanceof IdUnusedException) throw (IdUnusedException) failure;
+            if (failure instanceof TypeException) throw (TypeException) failure;
+        }
+
+        public ContentResource getResource() {
+            return resource;
+        }
+
+        /**
+         * @return The prefetched body, null when the writer should stream it.
+         */
+        public byte[] getBody() throws ServerOverloadException, IOException {
+            if (body == null) {
+                return null;
+            }
+            try {
+                byte[] rv = body.get();
+                // a resource without a length may have been stored without a body
+                return rv == null ? new byte[0] : rv;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted reading " + reference.getId(), e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof ServerOverloadException) {
+                    throw (ServerOverloadException) e.getCause();
+                }
+                log.warn("Failed to prefetch " + reference.getId(), e.getCause());
+                throw new IOException("Failed to read " + reference.getId(), e.getCause());
+            }
+        }
+    }
+}
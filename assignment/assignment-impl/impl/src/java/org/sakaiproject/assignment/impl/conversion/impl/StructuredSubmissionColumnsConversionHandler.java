@@ -0,0 +1,160 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2016 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.assignment.impl.conversion.impl;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sakaiproject.util.conversion.SchemaConversionHandler;
+
+/**
+ * Fills in the structured submission columns (GRADE, GRADE_RELEASED, RETURNED, RETURN_TIME, MODIFIED_TIME) of
+ * ASSIGNMENT_SUBMISSION from the submission XML, for DbAssignmentService's structuredSubmissionColumns mode.
+ */
+public class StructuredSubmissionColumnsConversionHandler implements SchemaConversionHandler
+{
+
+	private static final Logger log = LoggerFactory.getLogger(StructuredSubmissionColumnsConversionHandler.class);
+
+	// db driver
+	private String m_dbDriver = null;
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getDbDriver()
+	{
+		return m_dbDriver;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void setDbDriver(String dbDriver)
+	{
+		m_dbDriver = dbDriver;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.sakaiproject.content.impl.serialize.impl.SchemaConversionHandler#getSource(java.lang.String,
+	 *      java.sql.ResultSet)
+	 */
+	public Object getSource(String id, ResultSet rs) throws SQLException
+	{
+		return rs.next()?rs.getString(1):null;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.sakaiproject.content.impl.serialize.impl.SchemaConversionHandler#convertSource(java.lang.String,
+	 *      java.lang.Object, java.sql.PreparedStatement)
+	 */
+	public boolean convertSource(String id, Object source, PreparedStatement updateRecord)
+			throws SQLException
+	{
+
+		String xml = (String) source;
+
+		AssignmentSubmissionAccess sax = new AssignmentSubmissionAccess();
+		try
+		{
+			sax.parse(xml);
+		}
+		catch (Exception e1)
+		{
+			log.warn(this + ":convertSource Failed to parse " + id + "[" + xml + "]", e1);
+			return false;
+		}
+
+		try
+		{
+			updateRecord.setString(1, sax.getGrade());
+			updateRecord.setString(2, Boolean.valueOf(sax.getGradereleased()).toString());
+			updateRecord.setString(3, Boolean.valueOf(sax.getReturned()).toString());
+			updateRecord.setString(4, toColumnTime(sax.getDatereturned()));
+			updateRecord.setString(5, toColumnTime(sax.getLastmod()));
+			updateRecord.setString(6, id);
+			return true;
+		}
+		catch (Exception e)
+		{
+			log.warn(this + ":convertSource Failed to process record " + id, e);
+		}
+		return false;
+
+	}
+
+	/**
+	 * Convert a time from the submission XML (GMT yyyyMMddHHmmssSSS) to the ms since the epoch stored in the columns.
+	 *
+	 * @param xmlTime
+	 *        The time attribute value, may be null.
+	 * @return The column value, null if there is no time.
+	 * @throws ParseException
+	 *         if the value is neither an XML time nor a number of ms.
+	 */
+	protected String toColumnTime(String xmlTime) throws ParseException
+	{
+		xmlTime = StringUtils.trimToNull(xmlTime);
+		if (xmlTime == null)
+		{
+			return null;
+		}
+		if (xmlTime.length() != 17)
+		{
+			return String.valueOf(Long.parseLong(xmlTime));
+		}
+		SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmssSSS");
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		format.setLenient(false);
+		return String.valueOf(format.parse(xmlTime).getTime());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.sakaiproject.content.impl.serialize.impl.conversion.SchemaConversionHandler#validate(java.lang.String,
+	 *      java.lang.Object, java.lang.Object)
+	 */
+	public void validate(String id, Object source, Object result) throws Exception
+	{
+		// this conversion did not modify source data.
+	}
+	/* (non-Javadoc)
+	 * @see org.sakaiproject.content.impl.serialize.impl.conversion.SchemaConversionHandler#getValidateSource(java.lang.String, java.sql.ResultSet)
+	 */
+	public Object getValidateSource(String id, ResultSet rs) throws SQLException
+	{
+		return rs.getString(1);
+	}
+
+
+}
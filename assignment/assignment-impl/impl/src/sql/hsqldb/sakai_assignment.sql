@@ -44,6 +44,11 @@ CREATE TABLE ASSIGNMENT_SUBMISSION
 	SUBMIT_TIME VARCHAR(99),
 	SUBMITTED VARCHAR(6),
 	GRADED VARCHAR(6),
+	GRADE VARCHAR(99),
+	GRADE_RELEASED VARCHAR(6),
+	RETURNED VARCHAR(6),
+	RETURN_TIME VARCHAR(99),
+	MODIFIED_TIME VARCHAR(99),
 	XML LONGVARCHAR,
     CONSTRAINT ASSIGNMENT_SUBMISSION_INDEX UNIQUE (SUBMISSION_ID),
 	CONSTRAINT ASSIGNMENT_SUBMISSION_SUBMITTER_INDEX UNIQUE (CONTEXT,SUBMITTER_ID)
@@ -53,3 +58,8 @@ CREATE INDEX ASSIGNMENT_SUBMISSION_CONTEXT ON ASSIGNMENT_SUBMISSION
 (
 	CONTEXT
 );
+
+CREATE INDEX ASSIGNMENT_SUBMISSION_STATUS ON ASSIGNMENT_SUBMISSION
+(
+	CONTEXT,SUBMITTED,GRADED
+);
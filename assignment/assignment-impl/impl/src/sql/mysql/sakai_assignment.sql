@@ -52,6 +52,11 @@ CREATE TABLE ASSIGNMENT_SUBMISSION
 	SUBMIT_TIME VARCHAR(99),
 	SUBMITTED VARCHAR(6),
 	GRADED VARCHAR(6),
+	GRADE VARCHAR(99),
+	GRADE_RELEASED VARCHAR(6),
+	RETURNED VARCHAR(6),
+	RETURN_TIME VARCHAR(99),
+	MODIFIED_TIME VARCHAR(99),
     XML LONGTEXT
 );
 
@@ -65,6 +70,11 @@ CREATE INDEX ASSIGNMENT_SUBMISSION_CONTEXT ON ASSIGNMENT_SUBMISSION
 	CONTEXT
 );
 
+CREATE INDEX ASSIGNMENT_SUBMISSION_STATUS ON ASSIGNMENT_SUBMISSION
+(
+	CONTEXT,SUBMITTED,GRADED
+);
+
 CREATE UNIQUE INDEX ASSIGNMENT_SUBMISSION_SUBMITTER_INDEX ON ASSIGNMENT_SUBMISSION
 (
 	CONTEXT,SUBMITTER_ID
@@ -52,6 +52,11 @@ CREATE TABLE ASSIGNMENT_SUBMISSION
 	SUBMIT_TIME VARCHAR2 (99),
 	SUBMITTED VARCHAR2 (6),
 	GRADED VARCHAR2 (6),
+	GRADE VARCHAR2 (99),
+	GRADE_RELEASED VARCHAR2 (6),
+	RETURNED VARCHAR2 (6),
+	RETURN_TIME VARCHAR2 (99),
+	MODIFIED_TIME VARCHAR2 (99),
     XML LONG
 );
 
@@ -65,6 +70,11 @@ CREATE INDEX ASN_SUB_CONTEXT_INDEX ON ASSIGNMENT_SUBMISSION
 	CONTEXT
 );
 
+CREATE INDEX ASN_SUB_STATUS_INDEX ON ASSIGNMENT_SUBMISSION
+(
+	CONTEXT,SUBMITTED,GRADED
+);
+
 CREATE UNIQUE INDEX ASN_SUB_SUB_INDEX ON ASSIGNMENT_SUBMISSION
 (
 	CONTEXT,SUBMITTER_ID
@@ -0,0 +1,298 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2016 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.assignment.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import junit.framework.TestCase;
+
+import org.junit.runner.RunWith;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.sakaiproject.assignment.api.Assignment;
+import org.sakaiproject.assignment.api.AssignmentContent;
+import org.sakaiproject.assignment.api.AssignmentSubmission;
+import org.sakaiproject.entity.api.EntityManager;
+import org.sakaiproject.time.api.Time;
+import org.sakaiproject.time.cover.TimeService;
+import org.sakaiproject.util.DefaultEntityHandler;
+import org.sakaiproject.util.FormattedText;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+/**
+ * A submission read from the structured submission columns has to answer like the same submission parsed from its XML.
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({TimeService.class, FormattedText.class})
+public class LazyAssignmentSubmissionTest extends TestCase {
+
+	private static final Logger log = LoggerFactory.getLogger(LazyAssignmentSubmissionTest.class);
+
+	// number of submissions of the benchmark assignment
+	private static final int SUBMISSIONS = 800;
+
+	private DbAssignmentService service;
+	private DbAssignmentService.DbCachedAssignmentSubmissionStorage storage;
+	private Assignment assignment;
+
+	protected void setUp() throws Exception {
+		PowerMockito.mockStatic(TimeService.class);
+		PowerMockito.when(TimeService.newTime(Matchers.anyLong())).thenAnswer(new Answer<Time>() {
+			public Time answer(InvocationOnMock invocation) {
+				return time((Long) invocation.getArguments()[0]);
+			}
+		});
+		PowerMockito.when(TimeService.newTimeGmt(Matchers.anyString())).thenAnswer(new Answer<Time>() {
+			public Time answer(InvocationOnMock invocation) throws Exception {
+				SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmssSSS");
+				format.setTimeZone(TimeZone.getTimeZone("GMT"));
+				return time(format.parse((String) invocation.getArguments()[0]).getTime());
+			}
+		});
+		PowerMockito.mockStatic(FormattedText.class);
+		PowerMockito.when(FormattedText.decodeFormattedTextAttribute(Matchers.any(Element.class), Matchers.anyString())).thenAnswer(new Answer<String>() {
+			public String answer(InvocationOnMock invocation) {
+				return ((Element) invocation.getArguments()[0]).getAttribute((String) invocation.getArguments()[1]);
+			}
+		});
+
+		service = new DbAssignmentService();
+		EntityManager entityManager = Mockito.mock(EntityManager.class);
+		Mockito.when(entityManager.newReferenceList()).thenReturn(new ArrayList());
+		service.setEntityManager(entityManager);
+
+		assignment = Mockito.mock(Assignment.class);
+		Mockito.when(assignment.getId()).thenReturn("a1");
+		Mockito.when(assignment.getContext()).thenReturn("site");
+		Mockito.when(assignment.isGroup()).thenReturn(false);
+		AssignmentContent content = Mockito.mock(AssignmentContent.class);
+		Mockito.when(content.getTypeOfSubmission()).thenReturn(Assignment.TEXT_ONLY_ASSIGNMENT_SUBMISSION);
+		Mockito.when(assignment.getContent()).thenReturn(content);
+
+		storage = Mockito.mock(DbAssignmentService.DbCachedAssignmentSubmissionStorage.class);
+	}
+
+	private Time time(long ms) {
+		Time t = Mockito.mock(Time.class);
+		Mockito.when(t.getTime()).thenReturn(ms);
+		return t;
+	}
+
+	private String submissionXml(String id, boolean returned, boolean gradeReleased) {
+		return submissionXml(id, returned, gradeReleased, "20160305133000500");
+	}
+
+	private String submissionXml(String id, boolean returned, boolean gradeReleased, String lastmod) {
+		return "<?xml version=\"1.0\" encoding=\"UTF-8\"?><submission id=\"" + id + "\" context=\"site\" assignment=\"a1\" scaled_grade=\"850\" scaled_factor=\"100\""
+				+ " datesubmitted=\"20160301120000000\"" + (returned ? " datereturned=\"20160305133000500\"" : "") + " lastmod=\"" + lastmod + "\""
+				+ " submitted=\"true\" returned=\"" + returned + "\" graded=\"true\" gradedBy=\"i1\" gradereleased=\"" + gradeReleased + "\""
+				+ " pledgeflag=\"false\" hideduedate=\"false\" isUserSubmission=\"true\" submitterid=\"u1\" submitter0=\"u1\""
+				+ " submittedtext=\"my essay\" feedbackcomment=\"well done\" log0=\"submitted by u1\">"
+				+ "<properties><property name=\"CHEF:creator\" value=\"u1\"/><property name=\"CHEF:modifiedby\" value=\"i1\"/></properties>"
+				+ "</submission>";
+	}
+
+	private BaseAssignmentService.BaseAssignmentSubmission parse(String xml) throws Exception {
+		Element el = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+				.parse(new ByteArrayInputStream(xml.getBytes("UTF-8"))).getDocumentElement();
+		BaseAssignmentService.BaseAssignmentSubmission submission = service.new BaseAssignmentSubmission(el);
+		submission.setAssignment(assignment);
+		return submission;
+	}
+
+	/**
+	 * Parse the submission the way the storage does, with the SAX handler of its StorageUser.
+	 */
+	private BaseAssignmentService.BaseAssignmentSubmission saxParse(SAXParser parser, String xml) throws Exception {
+		BaseAssignmentService.AssignmentSubmissionStorageUser user = service.new AssignmentSubmissionStorageUser();
+		DefaultEntityHandler handler = user.getDefaultHandler(user.getServices());
+		parser.reset();
+		parser.parse(new InputSource(new StringReader(xml)), handler);
+		return (BaseAssignmentService.BaseAssignmentSubmission) handler.getEntity();
+	}
+
+	/**
+	 * The columns StructuredSubmissionStorageUser writes for a submission: SUBMISSION_ID and the structured fields but CONTEXT.
+	 */
+	private String[] columns(BaseAssignmentService.BaseAssignmentSubmission parsed) {
+		Object[] fields = service.new StructuredSubmissionStorageUser().storageFields(parsed);
+		String[] columns = new String[fields.length];
+		columns[0] = parsed.getId();
+		for (int i = 1; i < fields.length; i++) {
+			columns[i] = (String) fields[i];
+		}
+		return columns;
+	}
+
+	/**
+	 * Read the submission back the way readStructuredSubmissions does, from the columns written for it.
+	 */
+	private DbAssignmentService.LazyAssignmentSubmission readFromColumns(BaseAssignmentService.BaseAssignmentSubmission parsed, String xml) throws Exception {
+		BaseAssignmentService.BaseAssignmentSubmission reparsed = parse(xml);
+		Mockito.when(storage.readSubmission(xml)).thenReturn(reparsed);
+		AssignmentSubmission read = service.readStructuredSubmission(storage, assignment, columns(parsed), xml);
+		assertTrue(read instanceof DbAssignmentService.LazyAssignmentSubmission);
+		return (DbAssignmentService.LazyAssignmentSubmission) read;
+	}
+
+	private void assertSameTime(Time expected, Time actual) {
+		if (expected == null) {
+			assertNull(actual);
+		} else {
+			assertEquals(expected.getTime(), actual.getTime());
+		}
+	}
+
+	private void assertSameSubmission(BaseAssignmentService.BaseAssignmentSubmission parsed, DbAssignmentService.LazyAssignmentSubmission lazy) {
+		assertEquals(parsed.getId(), lazy.getId());
+		assertEquals(parsed.getAssignmentId(), lazy.getAssignmentId());
+		assertEquals(parsed.getSubmitted(), lazy.getSubmitted());
+		assertEquals(parsed.getGraded(), lazy.getGraded());
+		assertEquals(parsed.getGrade(false), lazy.getGrade(false));
+		assertEquals(parsed.getGradeReleased(), lazy.getGradeReleased());
+		assertEquals(parsed.getReturned(), lazy.getReturned());
+		assertSameTime(parsed.getTimeSubmitted(), lazy.getTimeSubmitted());
+		assertSameTime(parsed.getTimeReturned(), lazy.getTimeReturned());
+		assertSameTime(parsed.getTimeLastModified(), lazy.getTimeLastModified());
+		assertEquals(parsed.getSubmitterId(), lazy.getSubmitterId());
+		assertEquals(parsed.getSubmitterIds(), lazy.getSubmitterIds());
+		assertEquals(parsed.getSubmitterIdString(), lazy.getSubmitterIdString());
+	}
+
+	public void testSameAsParsed() throws Exception {
+		String xml = submissionXml("s1", true, true);
+		BaseAssignmentService.BaseAssignmentSubmission parsed = parse(xml);
+		DbAssignmentService.LazyAssignmentSubmission lazy = readFromColumns(parsed, xml);
+
+		assertSameSubmission(parsed, lazy);
+		// the status, grade, dates and submitters come from the columns alone
+		Mockito.verify(storage, Mockito.never()).readSubmission(Matchers.anyString());
+
+		assertEquals("u1", parsed.getProperties().getProperty("CHEF:creator"));
+		assertEquals(parsed.getProperties().getProperty("CHEF:creator"), lazy.getProperties().getProperty("CHEF:creator"));
+		assertEquals(parsed.getProperties().getProperty("CHEF:modifiedby"), lazy.getProperties().getProperty("CHEF:modifiedby"));
+		assertEquals(parsed.getSubmittedText(), lazy.getSubmittedText());
+		assertEquals(parsed.getFeedbackComment(), lazy.getFeedbackComment());
+		assertEquals(parsed.getSubmissionLog(), lazy.getSubmissionLog());
+		assertEquals(parsed.getGradedBy(), lazy.getGradedBy());
+		Mockito.verify(storage, Mockito.times(1)).readSubmission(xml);
+
+		// still the same once the rest has been parsed
+		assertSameSubmission(parsed, lazy);
+	}
+
+	public void testSameAsParsedNotReturned() throws Exception {
+		String xml = submissionXml("s2", false, false);
+		BaseAssignmentService.BaseAssignmentSubmission parsed = parse(xml);
+		DbAssignmentService.LazyAssignmentSubmission lazy = readFromColumns(parsed, xml);
+
+		assertNull(parsed.getTimeReturned());
+		assertSameSubmission(parsed, lazy);
+		assertEquals(parsed.getProperties().getProperty("CHEF:creator"), lazy.getProperties().getProperty("CHEF:creator"));
+	}
+
+	/**
+	 * Columns that no longer match the XML, as when the submission was saved while the structured columns were switched off, or
+	 * that were never filled in, are not trusted: the submission is parsed from the XML.
+	 */
+	public void testStaleColumnsAreParsed() throws Exception {
+		String xml = submissionXml("s3", true, true);
+		BaseAssignmentService.BaseAssignmentSubmission parsed = parse(xml);
+		String[] columns = columns(parsed);
+		assertTrue(service.isStructuredColumnsCurrent(columns[columns.length - 1], xml));
+
+		// saved again without the structured columns: returned since, and a later lastmod in the XML only
+		String newer = submissionXml("s3", false, true, "20160306090000000");
+		BaseAssignmentService.BaseAssignmentSubmission newerParsed = parse(newer);
+		Mockito.when(storage.readSubmission(newer)).thenReturn(newerParsed);
+		assertFalse(service.isStructuredColumnsCurrent(columns[columns.length - 1], newer));
+		assertSame(newerParsed, service.readStructuredSubmission(storage, assignment, columns, newer));
+
+		// never converted
+		columns[columns.length - 1] = null;
+		Mockito.when(storage.readSubmission(xml)).thenReturn(parsed);
+		assertSame(parsed, service.readStructuredSubmission(storage, assignment, columns, xml));
+	}
+
+	/**
+	 * Compare what getSubmissions and getUserSubmissionMap cost for the status and grade of every submission of an assignment:
+	 * parsing each submission's XML with the storage's SAX handler, against reading each row through readStructuredSubmission,
+	 * which checks the columns against the XML lastmod and builds a LazyAssignmentSubmission.
+	 */
+	public void testReadBenchmark() throws Exception {
+		SAXParser parser = SAXParserFactory.newInstance().newSAXParser();
+		List<String> xmls = new ArrayList<String>();
+		List<String[]> rows = new ArrayList<String[]>();
+		for (int i = 0; i < SUBMISSIONS; i++) {
+			String xml = submissionXml("s" + i, i % 2 == 0, i % 3 == 0);
+			xmls.add(xml);
+			rows.add(columns(parse(xml)));
+		}
+
+		int xmlReleased = 0;
+		int columnsReleased = 0;
+		long xmlTime = Long.MAX_VALUE;
+		long columnsTime = Long.MAX_VALUE;
+		// best of a few rounds, the first ones warm up
+		for (int round = 0; round < 5; round++) {
+			xmlReleased = 0;
+			long start = System.nanoTime();
+			for (String xml : xmls) {
+				AssignmentSubmission s = saxParse(parser, xml);
+				if (s.getGraded() && s.getGradeReleased() && s.getReturned() && s.getTimeSubmitted() != null) xmlReleased++;
+			}
+			xmlTime = Math.min(xmlTime, System.nanoTime() - start);
+
+			columnsReleased = 0;
+			start = System.nanoTime();
+			for (int i = 0; i < SUBMISSIONS; i++) {
+				AssignmentSubmission s = service.readStructuredSubmission(storage, assignment, rows.get(i), xmls.get(i));
+				if (s.getGraded() && s.getGradeReleased() && s.getReturned() && s.getTimeSubmitted() != null) columnsReleased++;
+			}
+			columnsTime = Math.min(columnsTime, System.nanoTime() - start);
+		}
+
+		log.info("Status of " + SUBMISSIONS + " submissions: parsing the XML took " + (xmlTime / 1000) + " us, the structured columns took "
+				+ (columnsTime / 1000) + " us");
+		assertEquals(xmlReleased, columnsReleased);
+		assertEquals((SUBMISSIONS + 5) / 6, columnsReleased);
+		// the columns never needed the XML
+		Mockito.verify(storage, Mockito.never()).readSubmission(Matchers.anyString());
+	}
+}
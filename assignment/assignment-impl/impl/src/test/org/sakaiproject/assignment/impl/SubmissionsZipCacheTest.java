@@ -0,0 +1,146 @@
+package org.sakaiproject.assignment.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests of the built submissions zips.
+ */
+public class SubmissionsZipCacheTest {
+
+    private ExecutorService executor;
+    private File directory;
+    private SubmissionsZipCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        executor = Executors.newFixedThreadPool(2);
+        directory = Files.createTempDirectory("submissions-zip-cache").toFile();
+        cache = new SubmissionsZipCache(directory, executor, 2);
+    }
+
+    @After
+    public void tearDown() {
+        cache.clear();
+        executor.shutdownNow();
+        directory.delete();
+    }
+
+    private SubmissionsZipCache.Builder builder(final String content, final AtomicInteger builds) {
+        return new SubmissionsZipCache.Builder() {
+            public void build(OutputStream out) throws Exception {
+                builds.incrementAndGet();
+                for (char c : content.toCharArray()) {
+                    out.write(c);
+                    out.flush();
+                }
+                out.close();
+            }
+        };
+    }
+
+    private String download(String key, String version, SubmissionsZipCache.Builder builder) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cache.download(key, version, builder, out);
+        return out.toString();
+    }
+
+    @Test
+    public void testReuse() throws IOException {
+        AtomicInteger builds = new AtomicInteger();
+        assertEquals("zip v1", download("u1 a1", "1", builder("zip v1", builds)));
+        assertEquals("zip v1", download("u1 a1", "1", builder("zip v1", builds)));
+        assertEquals(1, builds.get());
+
+        // a submission changed
+        assertEquals("zip v2", download("u1 a1", "2", builder("zip v2", builds)));
+        assertEquals(2, builds.get());
+    }
+
+    @Test
+    public void testFailedBuild() throws IOException {
+        SubmissionsZipCache.Builder failing = new SubmissionsZipCache.Builder() {
+            public void build(OutputStream out) throws Exception {
+                out.write('x');
+                throw new IllegalStateException("test");
+            }
+        };
+        try {
+            download("u1 a1", "1", failing);
+            fail("a failed build is not served");
+        } catch (IOException e) {
+            // expected
+        }
+
+        AtomicInteger builds = new AtomicInteger();
+        assertEquals("zip", download("u1 a1", "1", builder("zip", builds)));
+        assertEquals(1, builds.get());
+    }
+
+    @Test
+    public void testEviction() throws IOException {
+        AtomicInteger builds = new AtomicInteger();
+        download("u1 a1", "1", builder("a1", builds));
+        download("u1 a2", "1", builder("a2", builds));
+        download("u1 a3", "1", builder("a3", builds));
+        assertEquals(2, directory.list().length);
+
+        download("u1 a1", "1", builder("a1", builds));
+        assertEquals(4, builds.get());
+    }
+
+    @Test
+    public void testEvictionWhileDownloading() throws IOException {
+        final AtomicInteger builds = new AtomicInteger();
+        download("u1 a1", "1", builder("a1", builds));
+
+        final int[] during = new int[1];
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            public synchronized void write(byte[] b, int off, int len) {
+                if (size() == 0) {
+                    try {
+                        // evicts u1 a1 while it is being read
+                        download("u1 a2", "1", builder("a2", builds));
+                        download("u1 a3", "1", builder("a3", builds));
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    during[0] = directory.list().length;
+                }
+                super.write(b, off, len);
+            }
+        };
+        cache.download("u1 a1", "1", builder("a1", builds), out);
+        assertEquals("a1", out.toString());
+        assertEquals(3, during[0]);
+        assertEquals(2, directory.list().length);
+    }
+
+    @Test
+    public void testLeftoversDeleted() throws IOException {
+        File leftover = File.createTempFile("submissions", ".zip", directory);
+        File other = new File(directory, "notes.txt");
+        assertTrue(other.createNewFile());
+
+        new SubmissionsZipCache(directory, executor, 2);
+        assertFalse(leftover.exists());
+        assertTrue(other.exists());
+        other.delete();
+    }
+
+}
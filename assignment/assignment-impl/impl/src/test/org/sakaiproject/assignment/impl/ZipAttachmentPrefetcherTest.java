@@ -0,0 +1,145 @@
+package org.sakaiproject.assignment.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.sakaiproject.content.api.ContentHostingService;
+import org.sakaiproject.content.api.ContentResource;
+import org.sakaiproject.entity.api.Reference;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests of the submissions zip attachment prefetcher.
+ */
+public class ZipAttachmentPrefetcherTest {
+
+    private ExecutorService executor;
+    private ContentHostingService contentHostingService;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(2);
+        contentHostingService = Mockito.mock(ContentHostingService.class);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private Reference attachment(String id, byte[] body) throws Exception {
+        Reference r = Mockito.mock(Reference.class);
+        Mockito.when(r.getId()).thenReturn(id);
+        ContentResource resource = Mockito.mock(ContentResource.class);
+        Mockito.when(resource.getContentLength()).thenReturn((long) body.length);
+        Mockito.when(resource.getContent()).thenReturn(body);
+        Mockito.when(resource.streamContent()).thenReturn(new ByteArrayInputStream(body));
+        Mockito.when(contentHostingService.getResource(id)).thenReturn(resource);
+        return r;
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        Reference a = attachment("/a.txt", "a".getBytes());
+        Reference b = attachment("/b.txt", "bb".getBytes());
+        Reference c = attachment("/c.txt", "ccc".getBytes());
+        ZipAttachmentPrefetcher prefetcher = new ZipAttachmentPrefetcher(contentHostingService, executor, 1024, Arrays.asList(a, b, c));
+
+        assertArrayEquals("a".getBytes(), prefetcher.get(a).getBody());
+        // b is skipped by the writer
+        assertArrayEquals("ccc".getBytes(), prefetcher.get(c).getBody());
+        prefetcher.close();
+
+        Mockito.verify(contentHostingService, Mockito.times(1)).getResource("/c.txt");
+    }
+
+    @Test
+    public void testLargeAttachmentIsStreamed() throws Exception {
+        Reference small = attachment("/small.txt", new byte[10]);
+        Reference large = attachment("/large.txt", new byte[100]);
+        ZipAttachmentPrefetcher prefetcher = new ZipAttachmentPrefetcher(contentHostingService, executor, 50, Arrays.asList(small, large));
+
+        assertNotNull(prefetcher.get(small).getBody());
+        ZipAttachmentPrefetcher.Attachment attachment = prefetcher.get(large);
+        assertNull(attachment.getBody());
+        assertNotNull(attachment.getResource());
+        prefetcher.close();
+    }
+
+    @Test
+    public void testUnplannedAttachment() throws Exception {
+        Reference planned = attachment("/planned.txt", new byte[1]);
+        Reference unplanned = attachment("/unplanned.txt", new byte[1]);
+        ZipAttachmentPrefetcher prefetcher = new ZipAttachmentPrefetcher(contentHostingService, null, 1024, Arrays.asList(planned));
+
+        ZipAttachmentPrefetcher.Attachment attachment = prefetcher.get(unplanned);
+        assertNull(attachment.getBody());
+        assertSame(contentHostingService.getResource("/unplanned.txt"), attachment.getResource());
+        prefetcher.close();
+    }
+
+    @Test
+    public void testIsCompressed() {
+        assertTrue(ZipAttachmentPrefetcher.isCompressed("essay.DOCX", null));
+        assertTrue(ZipAttachmentPrefetcher.isCompressed("photo", "image/jpeg"));
+        assertTrue(ZipAttachmentPrefetcher.isCompressed("clip", "video/mp4"));
+        assertFalse(ZipAttachmentPrefetcher.isCompressed("essay.txt", "text/plain"));
+        assertFalse(ZipAttachmentPrefetcher.isCompressed("recording", "audio/wav"));
+    }
+
+    @Test
+    public void testPutEntry() throws Exception {
+        byte[] stored = "already compressed".getBytes();
+        byte[] streamed = "streamed, already compressed".getBytes();
+        byte[] deflated = "plain text plain text plain text".getBytes();
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        ZipOutputStream out = new ZipOutputStream(zip);
+        ZipAttachmentPrefetcher.putEntry(out, "a.zip", stored, true);
+        ZipAttachmentPrefetcher.putEntry(out, "b.zip", new ByteArrayInputStream(streamed), true);
+        ZipAttachmentPrefetcher.putEntry(out, "c.txt", deflated, false);
+        out.close();
+
+        List<String> names = new ArrayList<String>();
+        ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip.toByteArray()));
+        ZipEntry entry;
+        while ((entry = in.getNextEntry()) != null) {
+            names.add(entry.getName());
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] data = new byte[1024];
+            int n;
+            while ((n = in.read(data)) != -1) {
+                body.write(data, 0, n);
+            }
+            if ("a.zip".equals(entry.getName())) {
+                assertEquals(ZipEntry.STORED, entry.getMethod());
+                assertArrayEquals(stored, body.toByteArray());
+            } else if ("b.zip".equals(entry.getName())) {
+                assertArrayEquals(streamed, body.toByteArray());
+            } else {
+                assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+                assertArrayEquals(deflated, body.toByteArray());
+            }
+        }
+        assertEquals(Arrays.asList("a.zip", "b.zip", "c.txt"), names);
+    }
+
+}
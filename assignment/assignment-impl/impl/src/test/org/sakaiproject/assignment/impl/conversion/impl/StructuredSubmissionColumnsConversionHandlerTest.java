@@ -0,0 +1,86 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2016 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.assignment.impl.conversion.impl;
+
+import java.sql.PreparedStatement;
+
+import junit.framework.TestCase;
+
+import org.mockito.Mockito;
+
+public class StructuredSubmissionColumnsConversionHandlerTest extends TestCase
+{
+	private StructuredSubmissionColumnsConversionHandler handler;
+
+	protected void setUp() throws Exception
+	{
+		handler = new StructuredSubmissionColumnsConversionHandler();
+	}
+
+	private String submissionXml(int i)
+	{
+		StringBuilder text = new StringBuilder();
+		for (int j = 0; j < 200; j++)
+		{
+			text.append("submitted text ");
+		}
+		return "<submission id=\"s" + i + "\" context=\"site\" assignment=\"a1\" scaled_grade=\"" + (800 + i % 200) + "\" scaled_factor=\"100\""
+				+ " datesubmitted=\"20160301120000000\" datereturned=\"20160305133000500\" lastmod=\"20160305133000500\""
+				+ " submitted=\"true\" submitterid=\"u" + i + "\" submitter0=\"u" + i + "\" returned=\"true\" graded=\"true\" gradedBy=\"i1\""
+				+ " gradereleased=\"" + (i % 2 == 0) + "\" pledgeflag=\"false\" submittedtext=\"" + text + "\" feedbackcomment=\"" + text + "\""
+				+ " submittedattachment0=\"/content/attachment/site/Assignments/s" + i + "/essay.docx\" log0=\"submitted by u" + i + "\">"
+				+ "<properties><property name=\"CHEF:creator\" value=\"u" + i + "\"/><property name=\"CHEF:modifiedby\" value=\"i1\"/></properties>"
+				+ "</submission>";
+	}
+
+	public void testConvertSource() throws Exception
+	{
+		PreparedStatement updateRecord = Mockito.mock(PreparedStatement.class);
+		assertTrue(handler.convertSource("s1", submissionXml(1), updateRecord));
+
+		Mockito.verify(updateRecord).setString(1, "801");
+		Mockito.verify(updateRecord).setString(2, "false");
+		Mockito.verify(updateRecord).setString(3, "true");
+		// 2016-03-05 13:30:00.500 GMT
+		Mockito.verify(updateRecord).setString(4, "1457184600500");
+		Mockito.verify(updateRecord).setString(5, "1457184600500");
+		Mockito.verify(updateRecord).setString(6, "s1");
+	}
+
+	public void testConvertSourceWithoutDates() throws Exception
+	{
+		PreparedStatement updateRecord = Mockito.mock(PreparedStatement.class);
+		assertTrue(handler.convertSource("s2", "<submission id=\"s2\" assignment=\"a1\" submitted=\"false\"/>", updateRecord));
+
+		Mockito.verify(updateRecord).setString(1, null);
+		Mockito.verify(updateRecord).setString(2, "false");
+		Mockito.verify(updateRecord).setString(3, "false");
+		Mockito.verify(updateRecord).setString(4, null);
+		Mockito.verify(updateRecord).setString(5, null);
+	}
+
+	public void testConvertSourceBadXml() throws Exception
+	{
+		PreparedStatement updateRecord = Mockito.mock(PreparedStatement.class);
+		assertFalse(handler.convertSource("s3", "<submission", updateRecord));
+	}
+}
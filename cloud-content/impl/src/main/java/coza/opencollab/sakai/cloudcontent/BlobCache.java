@@ -0,0 +1,341 @@
+package coza.opencollab.sakai.cloudcontent;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A size bounded, least recently used, read-through cache of blobs on local disk.
+ * <p/>
+ * Entries are named after the blob path and its ETag and size, so a blob that is
+ * replaced in the store is never served from a stale entry. A download is written
+ * to a partial file, checked against the expected size and, when the ETag is a
+ * plain MD5, against the content digest, and only then renamed into place.
+ * Concurrent requests for a blob that is being downloaded wait for that download
+ * rather than starting their own.
+ */
+public class BlobCache {
+
+    private static final Logger log = LoggerFactory.getLogger(BlobCache.class);
+
+    /**
+     * The suffix of downloads that have not been verified yet.
+     */
+    private static final String PARTIAL = ".part";
+
+    /**
+     * Opens the remote blob when it is not in the cache.
+     */
+    public interface Loader {
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * The directory holding the cache entries.
+     */
+    private final File directory;
+
+    /**
+     * The most bytes the cache may hold.
+     */
+    private final long maxBytes;
+
+    /**
+     * Entry file names to their length, in least recently used order.
+     */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    /**
+     * The total length of all entries, guarded by entries.
+     */
+    private long totalBytes = 0;
+
+    /**
+     * Bytes reserved for downloads in progress, guarded by entries.
+     */
+    private long reservedBytes = 0;
+
+    /**
+     * Downloads in progress, by entry file name.
+     */
+    private final ConcurrentMap<String, FutureTask<File>> downloads = new ConcurrentHashMap<String, FutureTask<File>>();
+
+    /**
+     * Create the cache, adopting entries left in the directory by an earlier run.
+     */
+    public BlobCache(File directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create blob cache directory " + directory);
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            Arrays.sort(files, new Comparator<File>() {
+                public int compare(File a, File b) {
+                    return Long.compare(a.lastModified(), b.lastModified());
+                }
+            });
+            synchronized (entries) {
+                for (File file : files) {
+                    if (file.getName().endsWith(PARTIAL)) {
+                        file.delete();
+                    } else if (file.isFile()) {
+                        entries.put(file.getName(), file.length());
+                        totalBytes += file.length();
+                    }
+                }
+                evict();
+            }
+        }
+    }
+
+    /**
+     * Whether a blob of this size can be held by the cache at all.
+     */
+    public boolean accepts(long size) {
+        return size >= 0 && size <= maxBytes;
+    }
+
+    /**
+     * Open a blob, reading it from the cache or downloading it into the cache.
+     *
+     * @param path   The container and name of the blob.
+     * @param etag   The ETag of the blob, may be null.
+     * @param size   The size of the blob.
+     * @param loader Opens the remote blob on a miss.
+     */
+    public InputStream open(String path, String etag, long size, Loader loader) throws IOException {
+        String name = entryName(path, etag, size);
+        InputStream in = openEntry(name, size);
+        // a busy cache may evict the entry between its download and our open, so download it once more
+        for (int attempt = 0; in == null && attempt < 2; attempt++) {
+            download(name, etag, size, loader);
+            in = openEntry(name, size);
+        }
+        if (in == null) {
+            log.debug("Blob cache entry {} was evicted before it could be read, reading it directly", name);
+            return loader.open();
+        }
+        return in;
+    }
+
+    /**
+     * Drop every entry for a blob path, e.g., when the blob is deleted.
+     */
+    public void invalidate(String path) {
+        String prefix = DigestUtils.md5Hex(path) + "-";
+        synchronized (entries) {
+            for (Iterator<Map.Entry<String, Long>> i = entries.entrySet().iterator(); i.hasNext();) {
+                Map.Entry<String, Long> entry = i.next();
+                if (entry.getKey().startsWith(prefix)) {
+                    i.remove();
+                    totalBytes -= entry.getValue();
+                    new File(directory, entry.getKey()).delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * The number of bytes currently held.
+     */
+    public long getSize() {
+        synchronized (entries) {
+            return totalBytes;
+        }
+    }
+
+    /**
+     * Open a cached, intact entry, or return null. Eviction deletes entries under the
+     * same lock, so the entry cannot go away while it is being opened.
+     */
+    private InputStream openEntry(String name, long size) throws IOException {
+        synchronized (entries) {
+            File file = lookup(name, size);
+            if (file == null) {
+                return null;
+            }
+            try {
+                return new FileInputStream(file);
+            } catch (FileNotFoundException e) {
+                // removed behind our back since the lookup
+                totalBytes -= entries.remove(name);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * The file of a cached, intact entry, or null.
+     */
+    private File lookup(String name, long size) {
+        synchronized (entries) {
+            if (entries.get(name) == null) {
+                return null;
+            }
+            File file = new File(directory, name);
+            if (file.length() == size) {
+                return file;
+            }
+            // removed or truncated behind our back
+            log.warn("Dropping damaged blob cache entry {}", file);
+            totalBytes -= entries.remove(name);
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Download an entry, or wait for the download already in progress.
+     */
+    private File download(final String name, final String etag, final long size, final Loader loader) throws IOException {
+        FutureTask<File> task = new FutureTask<File>(() -> fetch(name, etag, size, loader));
+        FutureTask<File> running = downloads.putIfAbsent(name, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                downloads.remove(name, task);
+            }
+        }
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for blob download", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Blob download failed", cause);
+        }
+    }
+
+    private File fetch(String name, String etag, long size, Loader loader) throws IOException {
+        // another request may have finished this entry between our lookup and now
+        File file = lookup(name, size);
+        if (file != null) {
+            return file;
+        }
+
+        reserve(size);
+        File partial = new File(directory, name + PARTIAL);
+        boolean stored = false;
+        try {
+            MessageDigest md5 = DigestUtils.getMd5Digest();
+            long length = 0;
+            try (InputStream in = new DigestInputStream(loader.open(), md5);
+                    OutputStream out = new FileOutputStream(partial)) {
+                byte[] buffer = new byte[64 * 1024];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                    length += n;
+                }
+            }
+            if (length != size) {
+                throw new IOException("Blob download of " + name + " was " + length + " bytes, expected " + size);
+            }
+            String digest = Hex.encodeHexString(md5.digest());
+            String expected = plainMd5(etag);
+            if (expected != null && !expected.equals(digest)) {
+                throw new IOException("Blob download of " + name + " has MD5 " + digest + ", expected " + expected);
+            }
+
+            file = new File(directory, name);
+            if (!partial.renameTo(file)) {
+                throw new IOException("Cannot move " + partial + " to " + file);
+            }
+            synchronized (entries) {
+                entries.put(name, size);
+                totalBytes += size;
+            }
+            stored = true;
+            return file;
+        } finally {
+            release(size);
+            if (!stored) {
+                partial.delete();
+            }
+        }
+    }
+
+    /**
+     * Make room for a download before it starts.
+     */
+    private void reserve(long size) {
+        synchronized (entries) {
+            reservedBytes += size;
+            evict();
+        }
+    }
+
+    private void release(long size) {
+        synchronized (entries) {
+            reservedBytes -= size;
+        }
+    }
+
+    /**
+     * Remove least recently used entries until the cache and the downloads in
+     * progress fit. Must hold the entries lock.
+     */
+    private void evict() {
+        List<String> removed = new ArrayList<String>();
+        for (Iterator<Map.Entry<String, Long>> i = entries.entrySet().iterator(); i.hasNext()
+                && totalBytes + reservedBytes > maxBytes;) {
+            Map.Entry<String, Long> entry = i.next();
+            i.remove();
+            totalBytes -= entry.getValue();
+            removed.add(entry.getKey());
+        }
+        // open readers keep their content until they close the stream
+        for (String name : removed) {
+            new File(directory, name).delete();
+        }
+    }
+
+    /**
+     * The entry file name for a version of a blob.
+     */
+    private String entryName(String path, String etag, long size) {
+        return DigestUtils.md5Hex(path) + "-" + DigestUtils.md5Hex((etag == null ? "" : etag) + "-" + size);
+    }
+
+    /**
+     * The MD5 hex an ETag stands for, or null when it is not a plain MD5 (e.g.,
+     * the ETag of a multipart upload).
+     */
+    private String plainMd5(String etag) {
+        if (etag == null) {
+            return null;
+        }
+        String md5 = etag.replace("\"", "").toLowerCase();
+        return md5.matches("[0-9a-f]{32}") ? md5 : null;
+    }
+}
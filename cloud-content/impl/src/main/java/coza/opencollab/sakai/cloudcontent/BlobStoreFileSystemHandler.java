@@ -1,18 +1,22 @@
 package coza.opencollab.sakai.cloudcontent;
 
-import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.Date;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
 import com.google.common.io.Closeables;
 import com.google.inject.Module;
 
@@ -23,6 +27,7 @@ import org.jclouds.apis.ApiMetadata;
 import org.jclouds.blobstore.BlobStore;
 import org.jclouds.blobstore.BlobStoreContext;
 import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobMetadata;
 import org.jclouds.blobstore.domain.StorageMetadata;
 import org.jclouds.blobstore.options.PutOptions;
 import org.jclouds.http.HttpRequest;
@@ -35,6 +40,8 @@ import org.jclouds.osgi.ApiRegistry;
 import org.jclouds.osgi.ProviderRegistry;
 import org.sakaiproject.component.api.ServerConfigurationService;
 import org.sakaiproject.content.api.FileSystemHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.util.FileCopyUtils;
 
 /**
@@ -47,6 +54,8 @@ import org.springframework.util.FileCopyUtils;
  */
 public class BlobStoreFileSystemHandler implements FileSystemHandler {
 
+    private static final Logger log = LoggerFactory.getLogger(BlobStoreFileSystemHandler.class);
+
     /**
      * The BlobStore context (connection).
      */
@@ -87,15 +96,15 @@ public class BlobStoreFileSystemHandler implements FileSystemHandler {
      */
     private String invalidCharactersRegex = "[:*?<|>]";
     /**
-     * The maximum buffer size, which dictates the maximum file upload.
+     * The largest upload held in memory.
      *
      * Because services like S3 require a known size at the beginning of an
-     * upload, we buffer the InputStream to get its size. This is not
-     * the default size of the buffer, but the maximum. The
-     * content.upload.ceiling property is almost certainly lower than the 1GB
-     * set here, meaning that the buffer should be bounded on it instead.
+     * upload, the InputStream is read ahead to learn its size. Uploads up to
+     * this size are held in memory and sent in one request; larger uploads
+     * are spooled to a temp file and sent as a multipart upload where the
+     * provider supports it.
      */
-    private static final int MAX_UPLOAD_BYTES = 1024 * 1024 * 1024;
+    private static int maxUploadMemorySize = 5 * 1024 * 1024;
 
     /**
      * This is how long we want the signed URL to be valid for.
@@ -112,6 +121,11 @@ public class BlobStoreFileSystemHandler implements FileSystemHandler {
      */
     private static String temporaryBlobDirectory;
 
+    /**
+     * The local disk cache of blobs, null if disabled.
+     */
+    private BlobCache blobCache;
+
     /**
      * Default constructor.
      */
@@ -205,6 +219,7 @@ public class BlobStoreFileSystemHandler implements FileSystemHandler {
         // so download to a temp file first. For now, call 100MB the threshold.
         maxBlobStreamSize = (long) serverConfigurationService.getInt("cloud.content.maxblobstream.size", 1024 * 1024 * 100);
         temporaryBlobDirectory = serverConfigurationService.getString("cloud.content.temporary.directory", null);
+        maxUploadMemorySize = serverConfigurationService.getInt("cloud.content.upload.maxmemory.size", 5 * 1024 * 1024);
         
         if (temporaryBlobDirectory != null) {
             File baseDir = new File(temporaryBlobDirectory);
@@ -221,6 +236,19 @@ public class BlobStoreFileSystemHandler implements FileSystemHandler {
                 }
             }
         }
+
+        // Read-through cache of blobs on local disk, bounded in MB; 0 disables it.
+        long cacheSize = serverConfigurationService.getInt("cloud.content.cache.size", 1024) * 1024L * 1024L;
+        if (cacheSize > 0) {
+            String cacheDirectory = serverConfigurationService.getString("cloud.content.cache.directory", null);
+            File cacheDir = (cacheDirectory != null) ? new File(cacheDirectory) : new File(getTemporaryDirectory(), "sakai-blob-cache");
+            try {
+                blobCache = new BlobCache(cacheDir, cacheSize);
+            } catch (IOException e) {
+                log.warn("Blob cache disabled: {}", e.getMessage());
+                blobCache = null;
+            }
+        }
     }
     
     /**
@@ -249,7 +277,20 @@ public class BlobStoreFileSystemHandler implements FileSystemHandler {
      */
     @Override
     public InputStream getInputStream(String id, String root, String filePath) throws IOException {
-        ContainerAndName can = getContainerAndName(id, root, filePath);
+        final ContainerAndName can = getContainerAndName(id, root, filePath);
+        if (blobCache != null) {
+            // only ask for the metadata, so a cache hit never downloads the blob
+            BlobMetadata metadata = getBlobStore().blobMetadata(can.container, can.name);
+            if (metadata == null) {
+                throw new IOException("No object found for " + id);
+            }
+            Long size = metadata.getSize();
+            if (size != null && blobCache.accepts(size.longValue())) {
+                return blobCache.open(can.container + "/" + can.name, metadata.getETag(), size.longValue(),
+                        () -> openBlob(can, id));
+            }
+        }
+
         Blob blob = getBlobStore().getBlob(can.container, can.name);
         if (blob == null){
             throw new IOException("No object found for " + id);
@@ -267,105 +308,133 @@ public class BlobStoreFileSystemHandler implements FileSystemHandler {
         }
     }
 
-    // Hacky implementation of downloading Blobs to temp files...
-    // This should probably happen in a specified location and use
-    // hashing to be sure of contents before reusing.
-    private InputStream streamFromTempFile(Blob blob, Long filesize) {
-        StorageMetadata metadata = blob.getMetadata();
-        String name = metadata.getName();
-        String filename = name + "-" + filesize;
-        filename = DigestUtils.md5Hex(filename);
-        FileInputStream stream = null;
+    /**
+     * Open the payload of a blob for reading.
+     */
+    private InputStream openBlob(ContainerAndName can, String id) throws IOException {
+        Blob blob = getBlobStore().getBlob(can.container, can.name);
+        if (blob == null) {
+            throw new IOException("No object found for " + id);
+        }
+        return blob.getPayload().openStream();
+    }
 
-        // See if the temp file already exists
-        File check;
-        if (temporaryBlobDirectory != null) {
-            check = new File(temporaryBlobDirectory, filename);
+    /**
+     * Download a blob too large to hold in memory or in the cache to a temp
+     * file that is removed when the returned stream is closed.
+     */
+    private InputStream streamFromTempFile(Blob blob, Long filesize) throws IOException {
+        File temp = File.createTempFile("blob-", ".tmp", getTemporaryDirectory());
+        try {
+            FileCopyUtils.copy(blob.getPayload().openStream(), new FileOutputStream(temp));
+            if (temp.length() != filesize.longValue()) {
+                throw new IOException("Download of " + blob.getMetadata().getName() + " was " + temp.length()
+                        + " bytes, expected " + filesize);
+            }
+            return new TempFileInputStream(temp);
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
         }
-        else {
-            check = new File(System.getProperty("java.io.tmpdir"), filename);
+    }
+
+    /**
+     * A stream over a temp file, deleting the file when closed.
+     */
+    private static class TempFileInputStream extends FileInputStream {
+        private final File file;
+
+        TempFileInputStream(File file) throws IOException {
+            super(file);
+            this.file = file;
         }
 
-        if (check.exists()) {
+        @Override
+        public void close() throws IOException {
             try {
-                stream = new FileInputStream(check);
-            } catch (FileNotFoundException e) {
-                stream = null;
-            }
-        } else {
-            try {
-                FileOutputStream fos = new FileOutputStream(check);
-                FileCopyUtils.copy(blob.getPayload().openStream(), fos);
-                stream = new FileInputStream(check);
-            } catch (IOException e) {
-                stream = null;
+                super.close();
+            } finally {
+                file.delete();
             }
         }
-
-        return stream;
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-        public long saveInputStream(String id, String root, String filePath, InputStream stream) throws IOException {
-            if(stream == null){
-                return 0L;
-            }
-            ContainerAndName can = getContainerAndName(id, root, filePath);
-            createContainerIfNotExist(can.container);
-
-            InputStream in = markableInputStream(stream);
-            long size = markableStreamLength(in);
-
-            Payload payload = Payloads.newInputStreamPayload(in);
-
+    public long saveInputStream(String id, String root, String filePath, InputStream stream) throws IOException {
+        if(stream == null){
+            return 0L;
+        }
+        ContainerAndName can = getContainerAndName(id, root, filePath);
+        createContainerIfNotExist(can.container);
+
+        File spool = null;
+        Payload payload = null;
+        try {
+            // Read the upload in chunks to learn its size and MD5, keeping small
+            // uploads in memory and spilling larger ones to a temp file as we go.
+            MessageDigest md5 = DigestUtils.getMd5Digest();
+            InputStream in = new DigestInputStream(stream, md5);
+            ByteArrayOutputStream memory = new ByteArrayOutputStream();
+            OutputStream out = memory;
+            long size = 0;
             try {
-                BlobStore store = getBlobStore();
-                String asciiID = Base64.encodeBase64String(id.getBytes("UTF8"));
-
-                Blob blob = store.blobBuilder(can.name)
-                    .payload(payload)
-                    .contentLength(size)
-                    .userMetadata(ImmutableMap.of("id", asciiID, "path", filePath))
-                    .build();
-                store.putBlob(can.container, blob);
+                byte[] buffer = new byte[64 * 1024];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    if (spool == null && size + n > maxUploadMemorySize) {
+                        spool = File.createTempFile("upload-", ".tmp", getTemporaryDirectory());
+                        out = new BufferedOutputStream(new FileOutputStream(spool));
+                        memory.writeTo(out);
+                        memory = null;
+                    }
+                    out.write(buffer, 0, n);
+                    size += n;
+                }
             } finally {
-                payload.release();
-                Closeables.close(stream, true);
-                Closeables.close(in, true);
+                out.close();
             }
 
+            BlobStore store = getBlobStore();
+            String asciiID = Base64.encodeBase64String(id.getBytes("UTF8"));
+            PutOptions options;
+            if (spool == null) {
+                payload = Payloads.newByteArrayPayload(memory.toByteArray());
+                options = PutOptions.NONE;
+            } else {
+                payload = Payloads.newFilePayload(spool);
+                options = PutOptions.Builder.multipart();
+            }
+            // let the store verify what it received
+            Blob blob = store.blobBuilder(can.name)
+                .payload(payload)
+                .contentLength(size)
+                .contentMD5(HashCode.fromBytes(md5.digest()))
+                .userMetadata(ImmutableMap.of("id", asciiID, "path", filePath))
+                .build();
+            store.putBlob(can.container, blob, options);
+            if (blobCache != null) {
+                blobCache.invalidate(can.container + "/" + can.name);
+            }
             return size;
-        }
-
-    /**
-     * Get a markable version of an InputStream, wrapping it if necessary.
-     *
-     * This method will return the passed stream if it is already markable,
-     * otherwise wrapping it in a BufferedInputStream to support mark/reset
-     * for computing length and rereading.
-     */
-    private InputStream markableInputStream(InputStream stream) {
-        if (stream.markSupported()) {
-            return stream;
-        } else {
-            return new BufferedInputStream(stream);
+        } finally {
+            if (payload != null) {
+                payload.release();
+            }
+            Closeables.close(stream, true);
+            if (spool != null) {
+                spool.delete();
+            }
         }
     }
 
     /**
-     * Get the length of a markable InputStream.
+     * The directory for temp files, the preferred one if usable.
      */
-    private long markableStreamLength(InputStream stream) throws IOException {
-        long size = 0;
-        stream.mark(MAX_UPLOAD_BYTES);
-        while (stream.read() != -1) {
-            size += 1;
-        }
-        stream.reset();
-        return size;
+    private File getTemporaryDirectory() {
+        return new File(temporaryBlobDirectory != null ? temporaryBlobDirectory : System.getProperty("java.io.tmpdir"));
     }
 
     /**
@@ -380,6 +449,9 @@ public class BlobStoreFileSystemHandler implements FileSystemHandler {
             return false;
         } else {
             store.removeBlob(can.container, can.name);
+            if (blobCache != null) {
+                blobCache.invalidate(can.container + "/" + can.name);
+            }
             deleteContainerIfEmpty(can.container);
             return true;
         }
@@ -0,0 +1,193 @@
+package coza.opencollab.sakai.cloudcontent;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.springframework.util.FileCopyUtils;
+
+/**
+ * Tests the local disk blob cache without a BlobStore.
+ */
+public class BlobCacheTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("blobcache", "");
+        dir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * A loader counting how often the remote blob is opened.
+     */
+    private static class CountingLoader implements BlobCache.Loader {
+        final byte[] content;
+        final AtomicInteger opened = new AtomicInteger();
+        final long delay;
+
+        CountingLoader(byte[] content, long delay) {
+            this.content = content;
+            this.delay = delay;
+        }
+
+        public InputStream open() throws IOException {
+            opened.incrementAndGet();
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return new ByteArrayInputStream(content);
+        }
+    }
+
+    private byte[] read(InputStream in) throws IOException {
+        return FileCopyUtils.copyToByteArray(in);
+    }
+
+    @Test
+    public void testReadThrough() throws IOException {
+        BlobCache cache = new BlobCache(dir, 1000);
+        byte[] content = "Hello World".getBytes();
+        CountingLoader loader = new CountingLoader(content, 0);
+        assertArrayEquals(content, read(cache.open("c/a", DigestUtils.md5Hex(content), content.length, loader)));
+        assertArrayEquals(content, read(cache.open("c/a", DigestUtils.md5Hex(content), content.length, loader)));
+        assertEquals(1, loader.opened.get());
+        assertEquals(content.length, cache.getSize());
+
+        // a new version of the blob is a new entry
+        assertArrayEquals(content, read(cache.open("c/a", "other-etag", content.length, loader)));
+        assertEquals(2, loader.opened.get());
+
+        cache.invalidate("c/a");
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testConcurrentDownloadsAreCoalesced() throws Exception {
+        final BlobCache cache = new BlobCache(dir, 1000);
+        final byte[] content = new byte[500];
+        final CountingLoader loader = new CountingLoader(content, 200);
+        ExecutorService executor = Executors.newFixedThreadPool(10);
+        try {
+            List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+            for (int i = 0; i < 10; i++) {
+                results.add(executor.submit(new Callable<byte[]>() {
+                    public byte[] call() throws IOException {
+                        return read(cache.open("c/video", null, content.length, loader));
+                    }
+                }));
+            }
+            for (Future<byte[]> result : results) {
+                assertArrayEquals(content, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, loader.opened.get());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() throws IOException {
+        BlobCache cache = new BlobCache(dir, 100);
+        CountingLoader a = new CountingLoader(new byte[40], 0);
+        CountingLoader b = new CountingLoader(new byte[40], 0);
+        CountingLoader c = new CountingLoader(new byte[40], 0);
+        read(cache.open("c/a", null, 40, a));
+        read(cache.open("c/b", null, 40, b));
+        read(cache.open("c/a", null, 40, a));
+        read(cache.open("c/c", null, 40, c));
+        assertEquals(80, cache.getSize());
+
+        // b was least recently used
+        read(cache.open("c/a", null, 40, a));
+        read(cache.open("c/b", null, 40, b));
+        assertEquals(1, a.opened.get());
+        assertEquals(2, b.opened.get());
+
+        // entries survive a restart
+        BlobCache reopened = new BlobCache(dir, 100);
+        assertEquals(80, reopened.getSize());
+        assertFalse(reopened.accepts(101));
+    }
+
+    @Test
+    public void testEvictionWhileOpeningIsRetried() throws Exception {
+        // every download evicts the entry another thread just downloaded
+        final BlobCache cache = new BlobCache(dir, 100);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int t = 0; t < 8; t++) {
+                final byte[] content = new byte[60];
+                Arrays.fill(content, (byte) t);
+                final String path = "c/" + t;
+                final CountingLoader loader = new CountingLoader(content, 0);
+                results.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        for (int i = 0; i < 2000; i++) {
+                            assertArrayEquals(content, read(cache.open(path, null, content.length, loader)));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testDamagedDownloadsAreNotCached() throws IOException {
+        BlobCache cache = new BlobCache(dir, 1000);
+        byte[] content = "Hello World".getBytes();
+        CountingLoader loader = new CountingLoader(content, 0);
+        try {
+            cache.open("c/short", null, content.length + 1, loader);
+            fail("Accepted a short download");
+        } catch (IOException e) {
+        }
+        try {
+            cache.open("c/corrupt", DigestUtils.md5Hex("Goodbye World"), content.length, loader);
+            fail("Accepted a download not matching its ETag");
+        } catch (IOException e) {
+        }
+        assertEquals(0, cache.getSize());
+        assertEquals(0, dir.listFiles().length);
+
+        // damage to an entry on disk is noticed on the next read
+        read(cache.open("c/ok", null, content.length, loader));
+        dir.listFiles()[0].delete();
+        assertArrayEquals(content, read(cache.open("c/ok", null, content.length, loader)));
+        assertEquals(4, loader.opened.get());
+    }
+}
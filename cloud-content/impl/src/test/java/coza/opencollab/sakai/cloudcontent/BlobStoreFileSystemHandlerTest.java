@@ -0,0 +1,116 @@
+package coza.opencollab.sakai.cloudcontent;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.springframework.util.FileCopyUtils;
+
+/**
+ * Tests the BlobStore handler against the jclouds in-memory "transient" provider.
+ */
+public class BlobStoreFileSystemHandlerTest {
+    private static final BlobStoreFileSystemHandler blobstore = new BlobStoreFileSystemHandler();
+    private static final String BASE_CONTAINER = "unit-tests";
+    private static final byte[] BINARY = new byte[136548];
+    private static final Map<String, Object> config = new HashMap<String, Object>();
+    private static File cacheDir;
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        cacheDir = File.createTempFile("blobstore-cache", "");
+        cacheDir.delete();
+        config.put("cloud.content.cache.size", 1);
+        // send BINARY as a spooled, multipart upload
+        config.put("cloud.content.upload.maxmemory.size", 64 * 1024);
+        config.put("cloud.content.cache.directory", cacheDir.getPath());
+
+        blobstore.setServerConfigurationService(serverConfigurationService());
+        blobstore.setProvider("transient");
+        blobstore.setBaseContainer(BASE_CONTAINER);
+        blobstore.init();
+
+        new Random(System.currentTimeMillis()).nextBytes(BINARY);
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws IOException {
+        blobstore.destroy();
+        File[] files = cacheDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        cacheDir.delete();
+    }
+
+    /**
+     * A ServerConfigurationService answering from the config map or the default.
+     */
+    private static ServerConfigurationService serverConfigurationService() {
+        return (ServerConfigurationService) Proxy.newProxyInstance(
+                ServerConfigurationService.class.getClassLoader(),
+                new Class<?>[] { ServerConfigurationService.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (args != null && args.length == 2 && config.containsKey(args[0])) {
+                            return config.get(args[0]);
+                        }
+                        return (args != null && args.length == 2) ? args[1] : null;
+                    }
+                });
+    }
+
+    @Test
+    public void testReadThroughCache() throws IOException {
+        long size = blobstore.saveInputStream("id/binary", null, "path/binary", new ByteArrayInputStream(BINARY));
+        assertEquals(BINARY.length, size);
+        assertArrayEquals(BINARY, FileCopyUtils.copyToByteArray(blobstore.getInputStream("id/binary", null, "path/binary")));
+        int cached = cacheDir.list().length;
+        assertArrayEquals(BINARY, FileCopyUtils.copyToByteArray(blobstore.getInputStream("id/binary", null, "path/binary")));
+        assertEquals(cached, cacheDir.list().length);
+
+        // replacing the blob must not serve the old content
+        byte[] changed = BINARY.clone();
+        changed[0]++;
+        blobstore.saveInputStream("id/binary", null, "path/binary", new ByteArrayInputStream(changed));
+        assertArrayEquals(changed, FileCopyUtils.copyToByteArray(blobstore.getInputStream("id/binary", null, "path/binary")));
+
+        assertTrue(blobstore.delete("id/binary", null, "path/binary"));
+        try {
+            blobstore.getInputStream("id/binary", null, "path/binary");
+            fail("Read a deleted blob");
+        } catch (IOException e) {
+        }
+    }
+
+    @Test
+    public void testSaveInMemory() throws IOException {
+        byte[] message = "Hello World".getBytes();
+        assertEquals(message.length, blobstore.saveInputStream("id/message", null, "path/message", new ByteArrayInputStream(message)));
+        assertArrayEquals(message, FileCopyUtils.copyToByteArray(blobstore.getInputStream("id/message", null, "path/message")));
+        assertEquals(0L, blobstore.saveInputStream("id/null", null, "path/null", null));
+        blobstore.delete("id/message", null, "path/message");
+    }
+
+    @Test
+    public void testBlobLargerThanCache() throws IOException {
+        byte[] large = new byte[2 * 1024 * 1024];
+        new Random().nextBytes(large);
+        blobstore.saveInputStream("id/large", null, "path/large", new ByteArrayInputStream(large));
+        assertArrayEquals(large, FileCopyUtils.copyToByteArray(blobstore.getInputStream("id/large", null, "path/large")));
+        blobstore.delete("id/large", null, "path/large");
+    }
+}
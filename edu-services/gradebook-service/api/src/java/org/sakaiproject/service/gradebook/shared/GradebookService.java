@@ -617,6 +617,22 @@ public interface GradebookService {
 	 */
 	public List<GradeDefinition> getGradesForStudentsForItem(String gradebookUid, Long assignmentId, List<String> studentIds);
 
+	/**
+	 * Get the grade records, including comments, for the given list of students and the given assignments.
+	 * Equivalent to calling {@link #getGradesForStudentsForItem} for each assignment, but loads the
+	 * records for all assignments in a fixed number of queries. Useful for building a whole grade matrix.
+	 * This can only be called by an instructor or TA that has access, not student.
+	 *
+	 * @param gradebookUid
+	 * @param assignmentIds
+	 * @param studentIds
+	 * @return a Map of assignment ids to a List of GradeDefinitions with the grade information for the given
+	 * students. Students the current user may not grade for an assignment are omitted, as are assignments
+	 * that are not in the gradebook. The passed list of students is not modified.
+	 * @throws SecurityException if the current user is not authorized to grade in this gradebook
+	 */
+	public Map<Long, List<GradeDefinition>> getGradesForStudentsForItems(String gradebookUid, List<Long> assignmentIds, List<String> studentIds);
+
 	/**
 	 * This method gets grades for multiple gradebook items with emphasis on performance. This is particularly useful for reporting tools
 	 * @param gradebookUid
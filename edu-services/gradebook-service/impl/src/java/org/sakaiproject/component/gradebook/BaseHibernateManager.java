@@ -1462,7 +1462,34 @@ public abstract class BaseHibernateManager extends HibernateDaoSupport {
             }
         });
     }
-    
+
+    /**
+     * Get the comments on any of the given assignments for the given students,
+     * querying the assignments in chunks rather than one at a time.
+     */
+    public List<Comment> getComments(final List<Long> assignmentIds, final Collection<String> studentIds) {
+    	if (assignmentIds.isEmpty() || studentIds.isEmpty()) {
+    		return new ArrayList<Comment>();
+    	}
+        return (List<Comment>)getHibernateTemplate().execute(new HibernateCallback() {
+            public Object doInHibernate(Session session) throws HibernateException {
+            	List<Comment> comments = new ArrayList<Comment>();
+            	Set<String> students = new HashSet<String>(studentIds);
+            	for (int i = 0; i < assignmentIds.size(); i += MAX_NUMBER_OF_SQL_PARAMETERS_IN_LIST) {
+            		Query q = session.createQuery("from Comment as c where c.gradableObject.id in (:ids)");
+            		q.setParameterList("ids", assignmentIds.subList(i, Math.min(assignmentIds.size(), i + MAX_NUMBER_OF_SQL_PARAMETERS_IN_LIST)));
+            		for (Iterator iter = q.list().iterator(); iter.hasNext(); ) {
+            			Comment comment = (Comment)iter.next();
+            			if (students.contains(comment.getStudentId())) {
+            				comments.add(comment);
+            			}
+            		}
+            	}
+                return comments;
+            }
+        });
+    }
+
     // Student ID -> Assignments
     protected Map<String, Set<Assignment>> getVisibleExternalAssignments(
             Gradebook gradebook, Collection<String> studentIds, List<Assignment> assignments)
@@ -0,0 +1,72 @@
+/**********************************************************************************
+*
+* $Id$
+*
+***********************************************************************************
+*
+ * Copyright (c) 2016 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*
+**********************************************************************************/
+package org.sakaiproject.component.gradebook;
+
+import java.io.Serializable;
+
+/**
+ * The calculated course grade totals of one student, as used to initialize the
+ * non-persistent fields of a CourseGradeRecord.
+ *
+ * The totals are only valid for the inputs they were calculated from, so they carry
+ * a fingerprint of the gradebook setup (gradebook, items and categories, which hold
+ * the drop lowest and weighting rules) and of the student's own grade records.
+ * Every change to those rows bumps their Hibernate version, so a grade saved, excused
+ * or rescaled gives a new fingerprint and only that student is calculated again.
+ */
+public class CourseGradeTotals implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final String setupFingerprint;
+	private final String studentFingerprint;
+	private final double totalPointsPossible;
+	private final double totalPointsEarned;
+	private final double literalTotalPointsEarned;
+
+	public CourseGradeTotals(String setupFingerprint, String studentFingerprint,
+			double totalPointsPossible, double totalPointsEarned, double literalTotalPointsEarned) {
+		this.setupFingerprint = setupFingerprint;
+		this.studentFingerprint = studentFingerprint;
+		this.totalPointsPossible = totalPointsPossible;
+		this.totalPointsEarned = totalPointsEarned;
+		this.literalTotalPointsEarned = literalTotalPointsEarned;
+	}
+
+	/**
+	 * @return true if these totals were calculated from the same gradebook setup and grade records
+	 */
+	public boolean isCurrent(String setupFingerprint, String studentFingerprint) {
+		return this.setupFingerprint.equals(setupFingerprint) && this.studentFingerprint.equals(studentFingerprint);
+	}
+
+	public double getTotalPointsPossible() {
+		return totalPointsPossible;
+	}
+
+	public double getTotalPointsEarned() {
+		return totalPointsEarned;
+	}
+
+	public double getLiteralTotalPointsEarned() {
+		return literalTotalPointsEarned;
+	}
+}
@@ -58,6 +58,8 @@ import org.hibernate.Session;
 import org.hibernate.StaleObjectStateException;
 import org.sakaiproject.component.api.ServerConfigurationService;
 import org.sakaiproject.event.api.Event;
+import org.sakaiproject.memory.api.Cache;
+import org.sakaiproject.memory.api.MemoryService;
 import org.sakaiproject.section.api.coursemanagement.CourseSection;
 import org.sakaiproject.section.api.coursemanagement.EnrollmentRecord;
 import org.sakaiproject.section.api.coursemanagement.User;
@@ -110,6 +112,12 @@ public class GradebookServiceHibernateImpl extends BaseHibernateManager implemen
     private GradebookPermissionService gradebookPermissionService;
     protected SiteService siteService;
 	private ServerConfigurationService configService;
+	private MemoryService memoryService;
+
+	/**
+	 * gradebookId/studentUid -> course grade totals, see {@link CourseGradeTotals}
+	 */
+	private Cache<String, CourseGradeTotals> courseGradeTotalsCache;
 
 	public static final String S_CATEGORY="category";
 	public static final String S_ITEM="item";
@@ -1055,10 +1063,38 @@ public class GradebookServiceHibernateImpl extends BaseHibernateManager implemen
 
 				Long gradebookId = courseGrade.getGradebook().getId();
 				Gradebook gradebook = getGradebook(gradebookId);
+
+				// reuse the totals of students whose grade records and gradebook setup have not changed
+				String setupFingerprint = null;
+				Map<String, String> studentFingerprints = null;
+				List<CourseGradeRecord> staleRecords = new ArrayList<CourseGradeRecord>();
+				if (courseGradeTotalsCache != null) {
+					setupFingerprint = getSetupFingerprint(session, gradebook);
+					studentFingerprints = getStudentFingerprints(session, gradebookId);
+					for (Iterator iter = records.iterator(); iter.hasNext();) {
+						CourseGradeRecord cgr = (CourseGradeRecord)iter.next();
+						CourseGradeTotals totals = courseGradeTotalsCache.get(gradebookId + "/" + cgr.getStudentId());
+						if (totals != null && totals.isCurrent(setupFingerprint, getStudentFingerprint(studentFingerprints, cgr.getStudentId()))) {
+							cgr.initNonpersistentFields(totals.getTotalPointsPossible(), totals.getTotalPointsEarned(), totals.getLiteralTotalPointsEarned());
+						} else {
+							staleRecords.add(cgr);
+						}
+					}
+					if (staleRecords.isEmpty()) {
+						return records;
+					}
+				} else {
+					staleRecords.addAll(records);
+				}
+				Set<String> staleStudentUids = new HashSet<String>();
+				for (CourseGradeRecord cgr : staleRecords) {
+					staleStudentUids.add(cgr.getStudentId());
+				}
+
 				List cates = getCategories(gradebookId);
 				
 				// get all of the AssignmentGradeRecords here to avoid repeated db calls
-    			Map<String, List<AssignmentGradeRecord>> gradeRecMap = getGradeRecordMapForStudents(session, gradebookId, studentUids);
+    			Map<String, List<AssignmentGradeRecord>> gradeRecMap = getGradeRecordMapForStudents(session, gradebookId, staleStudentUids);
     			
     			// get all of the counted assignments
     			List<Assignment> assignments = getCountedAssignments(session, gradebookId);
@@ -1074,8 +1110,7 @@ public class GradebookServiceHibernateImpl extends BaseHibernateManager implemen
 				//double totalPointsPossible = getTotalPointsInternal(gradebookId, session);
 				//if(log.isDebugEnabled()) log.debug("Total points = " + totalPointsPossible);
 
-				for(Iterator iter = records.iterator(); iter.hasNext();) {
-					CourseGradeRecord cgr = (CourseGradeRecord)iter.next();
+				for (CourseGradeRecord cgr : staleRecords) {
 					//double totalPointsEarned = getTotalPointsEarnedInternal(gradebookId, cgr.getStudentId(), session);
 					List<AssignmentGradeRecord> studentGradeRecs = gradeRecMap.get(cgr.getStudentId());
     				
@@ -1087,7 +1122,12 @@ public class GradebookServiceHibernateImpl extends BaseHibernateManager implemen
 					cgr.initNonpersistentFields(totalPointsPossible, totalPointsEarned, literalTotalPointsEarned);
 					if(log.isDebugEnabled()) log.debug("Points earned = " + cgr.getPointsEarned());
 					if(log.isDebugEnabled()) log.debug("Points possible = " + cgr.getTotalPointsPossible());
+					if (courseGradeTotalsCache != null) {
+						courseGradeTotalsCache.put(gradebookId + "/" + cgr.getStudentId(), new CourseGradeTotals(setupFingerprint,
+								getStudentFingerprint(studentFingerprints, cgr.getStudentId()), totalPointsPossible, totalPointsEarned, literalTotalPointsEarned));
+					}
 				}
+				if(log.isDebugEnabled()) log.debug("Calculated course grade totals for " + staleRecords.size() + " of " + records.size() + " students");
 
 				return records;
 			}
@@ -1096,6 +1136,47 @@ public class GradebookServiceHibernateImpl extends BaseHibernateManager implemen
 	}
 
 
+	/**
+	 * Fingerprint everything in the gradebook setup that course grade totals depend on:
+	 * the gradebook itself, its items and its categories.
+	 */
+	private String getSetupFingerprint(Session session, Gradebook gradebook) throws HibernateException {
+		Object[] items = (Object[])session.createQuery(
+			"select count(go.id), sum(go.version), max(go.id) from GradableObject as go where go.gradebook.id=:gradebookId")
+			.setLong("gradebookId", gradebook.getId())
+			.uniqueResult();
+		Object[] categories = (Object[])session.createQuery(
+			"select count(cat.id), sum(cat.version), max(cat.id) from Category as cat where cat.gradebook.id=:gradebookId")
+			.setLong("gradebookId", gradebook.getId())
+			.uniqueResult();
+		return gradebook.getVersion() + "/" + StringUtils.join(items, ",") + "/" + StringUtils.join(categories, ",");
+	}
+
+	/**
+	 * Fingerprint the assignment grade records of every student in the gradebook, in a
+	 * single aggregate query rather than loading the records.
+	 *
+	 * @return map of studentUid to fingerprint, students without grade records are omitted
+	 */
+	private Map<String, String> getStudentFingerprints(Session session, Long gradebookId) throws HibernateException {
+		List<Object[]> rows = session.createQuery(
+			"select agr.studentId, count(agr.id), sum(agr.version), max(agr.id), max(agr.dateRecorded) from AssignmentGradeRecord as agr " +
+			"where agr.gradableObject.gradebook.id=:gradebookId group by agr.studentId")
+			.setLong("gradebookId", gradebookId)
+			.list();
+		Map<String, String> fingerprints = new HashMap<String, String>();
+		for (Object[] row : rows) {
+			Date lastRecorded = (Date)row[4];
+			fingerprints.put((String)row[0], row[1] + "," + row[2] + "," + row[3] + "," + (lastRecorded != null ? lastRecorded.getTime() : 0));
+		}
+		return fingerprints;
+	}
+
+	private String getStudentFingerprint(Map<String, String> studentFingerprints, String studentUid) {
+		String fingerprint = studentFingerprints.get(studentUid);
+		return fingerprint != null ? fingerprint : "";
+	}
+
 	@SuppressWarnings({ "unchecked", "rawtypes" })
 	private List filterAndPopulateCourseGradeRecordsByStudents(CourseGrade courseGrade, Collection gradeRecords, Collection studentUids) {
 		List filteredRecords = new ArrayList();
@@ -2047,6 +2128,144 @@ public class GradebookServiceHibernateImpl extends BaseHibernateManager implemen
 	  return studentGrades;
   }
 
+	@Override
+	public Map<Long, List<GradeDefinition>> getGradesForStudentsForItems(final String gradebookUid, final List<Long> gradableObjectIds, final List<String> studentIds)
+	{
+		if (gradableObjectIds == null)
+		{
+			throw new IllegalArgumentException("null gradableObjectIds passed to getGradesForStudentsForItems");
+		}
+
+		Map<Long, List<GradeDefinition>> gradesMap = new HashMap<Long, List<GradeDefinition>>();
+		if (studentIds == null || studentIds.isEmpty() || gradableObjectIds.isEmpty())
+		{
+			return gradesMap;
+		}
+
+		// load every item of the gradebook at once and keep the ones asked for
+		final Set<Long> requestedIds = new HashSet<Long>(gradableObjectIds);
+		List<Assignment> gbItems = (List<Assignment>)getHibernateTemplate().execute(new HibernateCallback() {
+			@Override
+			public Object doInHibernate(Session session) throws HibernateException {
+				return session.createQuery("from Assignment as asn where asn.gradebook.uid=:gradebookUid and asn.removed=false")
+					.setString("gradebookUid", gradebookUid)
+					.list();
+			}
+		});
+		gbItems.removeIf(gbItem -> !requestedIds.contains(gbItem.getId()));
+		if (gbItems.isEmpty())
+		{
+			return gradesMap;
+		}
+
+		Gradebook gradebook = gbItems.get(0).getGradebook();
+		if (!authz.isUserAbleToGrade(gradebook.getUid()))
+		{
+			throw new SecurityException("User " + authn.getUserUid() +
+					" attempted to access grade information without permission in gb " +
+					gradebook.getUid() + " using gradebookService.getGradesForStudentsForItems");
+		}
+
+		// the students the current user may grade depend only on the item's category,
+		// so look them up once per category rather than once per item
+		Map<Long, Set<String>> gradableStudentsByCategory = new HashMap<Long, Set<String>>();
+		Map<Long, Set<String>> gradableStudentsByItem = new HashMap<Long, Set<String>>();
+		Set<String> requestedStudents = new HashSet<String>(studentIds);
+		Set<String> gradableStudents = new HashSet<String>();
+		for (Assignment gbItem : gbItems)
+		{
+			Long categoryId = gbItem.getCategory() != null ? gbItem.getCategory().getId() : null;
+			Set<String> students = gradableStudentsByCategory.get(categoryId);
+			if (students == null)
+			{
+				students = new HashSet<String>();
+				Map enrRecFunctionMap = authz.findMatchingEnrollmentsForItem(gradebook.getUid(), categoryId, gradebook.getCategory_type(), null, null);
+				for (Iterator enrIter = enrRecFunctionMap.keySet().iterator(); enrIter.hasNext();)
+				{
+					EnrollmentRecord enr = (EnrollmentRecord) enrIter.next();
+					if (enr != null && requestedStudents.contains(enr.getUser().getUserUid()))
+					{
+						students.add(enr.getUser().getUserUid());
+					}
+				}
+				gradableStudentsByCategory.put(categoryId, students);
+				gradableStudents.addAll(students);
+			}
+			gradableStudentsByItem.put(gbItem.getId(), students);
+		}
+		if (gradableStudents.isEmpty())
+		{
+			return gradesMap;
+		}
+
+		List<Long> itemIds = new ArrayList<Long>(gradableStudentsByItem.keySet());
+		List<String> studentUids = new ArrayList<String>(gradableStudents);
+
+		// item id -> student id -> comment text
+		Map<Long, Map<String, String>> commentTextMap = new HashMap<Long, Map<String, String>>();
+		for (Comment comment : getComments(itemIds, studentUids))
+		{
+			Long itemId = comment.getGradableObject().getId();
+			if (gradableStudentsByItem.get(itemId).contains(comment.getStudentId()))
+			{
+				Map<String, String> itemComments = commentTextMap.get(itemId);
+				if (itemComments == null)
+				{
+					itemComments = new HashMap<String, String>();
+					commentTextMap.put(itemId, itemComments);
+				}
+				itemComments.put(comment.getStudentId(), comment.getCommentText());
+			}
+		}
+
+		List<AssignmentGradeRecord> gradeRecords = getAllAssignmentGradeRecordsForGbItems(itemIds, studentUids);
+		gradeRecords.removeIf(agr -> !gradableStudentsByItem.get(agr.getAssignment().getId()).contains(agr.getStudentId()));
+		if (gradebook.getGrade_type() == GradebookService.GRADE_TYPE_LETTER)
+		{
+			convertPointsToLetterGrade(gradebook, gradeRecords);
+		}
+		else if (gradebook.getGrade_type() == GradebookService.GRADE_TYPE_PERCENTAGE)
+		{
+			convertPointsToPercentage(gradebook, gradeRecords);
+		}
+
+		for (AssignmentGradeRecord gradeRecord : gradeRecords)
+		{
+			Assignment gbItem = gradeRecord.getAssignment();
+			Map<String, String> itemComments = commentTextMap.get(gbItem.getId());
+			// whatever comment is left over belongs to a student with no grade record
+			String commentText = itemComments != null ? itemComments.remove(gradeRecord.getStudentId()) : null;
+			addGradeDefinition(gradesMap, gbItem.getId(), convertGradeRecordToGradeDefinition(gradeRecord, gbItem, gradebook, commentText));
+		}
+
+		// if student has a comment but no grade add an empty grade definition with the comment
+		for (Assignment gbItem : gbItems)
+		{
+			Map<String, String> itemComments = commentTextMap.get(gbItem.getId());
+			if (itemComments != null)
+			{
+				for (Map.Entry<String, String> comment : itemComments.entrySet())
+				{
+					AssignmentGradeRecord emptyGradeRecord = new AssignmentGradeRecord(gbItem, comment.getKey(), null);
+					addGradeDefinition(gradesMap, gbItem.getId(), convertGradeRecordToGradeDefinition(emptyGradeRecord, gbItem, gradebook, comment.getValue()));
+				}
+			}
+		}
+
+		return gradesMap;
+	}
+
+	private void addGradeDefinition(Map<Long, List<GradeDefinition>> gradesMap, Long gradableObjectId, GradeDefinition gradeDef)
+	{
+		List<GradeDefinition> gradeList = gradesMap.get(gradableObjectId);
+		if (gradeList == null)
+		{
+			gradeList = new ArrayList<GradeDefinition>();
+			gradesMap.put(gradableObjectId, gradeList);
+		}
+		gradeList.add(gradeDef);
+	}
+
 	@Override
 	public Map<Long, List<GradeDefinition>> getGradesWithoutCommentsForStudentsForItems(final String gradebookUid, final List<Long> gradableObjectIds, List<String> studentIds)
 	{
@@ -3836,6 +4055,16 @@ public class GradebookServiceHibernateImpl extends BaseHibernateManager implemen
 		this.configService = configService;
 	}
 
+	public void setMemoryService(MemoryService memoryService) {
+		this.memoryService = memoryService;
+	}
+
+	public void init() {
+		if (memoryService != null) {
+			courseGradeTotalsCache = memoryService.getCache("org.sakaiproject.component.gradebook.GradebookServiceHibernateImpl.courseGradeTotalsCache");
+		}
+	}
+
 	@Override
 	public Set getGradebookGradeMappings(final Long gradebookId) {
 		return (Set)getHibernateTemplate().execute(new HibernateCallback() {
@@ -0,0 +1,178 @@
+package org.sakaiproject.gradebookng.business;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.event.api.EventTrackingService;
+import org.sakaiproject.service.gradebook.shared.GradeDefinition;
+
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Short lived cache of the grades loaded for the grade matrix, so that paging, sorting and filtering the gradebook page does not go back to
+ * the database for every grade on every request.
+ *
+ * Entries are per gradebook and viewer, since what a TA may see depends on their grader permissions, and only match a request for exactly
+ * the same items and students. A gradebook's entries are dropped whenever a gradebook event is seen for it, on this or any other server,
+ * and whenever GradebookNG itself changes grades. Not every way of changing a grade posts an event (e.g. scores pushed from other tools), so
+ * entries also expire after a short time.
+ */
+@Slf4j
+public class GbGradeMatrixCache implements Observer {
+
+	// covers both gradebook.* and gradebookng.* events
+	private static final String EVENT_PREFIX = "gradebook";
+	private static final String REFERENCE_PREFIX = "/gradebook/";
+
+	@Setter
+	private EventTrackingService eventTrackingService;
+
+	@Setter
+	private ServerConfigurationService configService;
+
+	/**
+	 * How long an entry may be used, in milliseconds. 0 disables the cache.
+	 */
+	private long timeToLive;
+
+	/**
+	 * gradebookUid + viewer -> entry, in least recently used order
+	 */
+	private Map<String, Entry> entries;
+
+	/**
+	 * gradebookUid -> when its entries were last dropped, so that a load that started earlier is not cached
+	 */
+	private final Map<String, Long> invalidations = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, Long> eldest) {
+			return System.currentTimeMillis() - eldest.getValue() > GbGradeMatrixCache.this.timeToLive;
+		}
+	};
+
+	public void init() {
+		this.timeToLive = this.configService.getInt("gradebookng.gradeMatrixCache.ttl", 30) * 1000L;
+		final int maxEntries = this.configService.getInt("gradebookng.gradeMatrixCache.maxEntries", 500);
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+				return size() > maxEntries;
+			}
+		};
+		if (this.timeToLive > 0) {
+			this.eventTrackingService.addObserver(this);
+		}
+		log.info("Grade matrix cache time to live: " + this.timeToLive + "ms, max entries: " + maxEntries);
+	}
+
+	public void destroy() {
+		if (this.timeToLive > 0) {
+			this.eventTrackingService.deleteObserver(this);
+		}
+	}
+
+	/**
+	 * Get the cached grades for these items and students as seen by the viewer
+	 *
+	 * @return map of assignment id to grades, or null if there is no current entry
+	 */
+	public Map<Long, List<GradeDefinition>> get(final String gradebookUid, final String viewerUuid, final List<Long> assignmentIds,
+			final List<String> studentUuids) {
+		if (this.timeToLive <= 0) {
+			return null;
+		}
+		final Entry entry;
+		synchronized (this.entries) {
+			entry = this.entries.get(key(gradebookUid, viewerUuid));
+		}
+		if (entry == null || System.currentTimeMillis() - entry.created > this.timeToLive
+				|| !entry.assignmentIds.equals(new HashSet<>(assignmentIds)) || !entry.studentUuids.equals(new HashSet<>(studentUuids))) {
+			return null;
+		}
+		return entry.grades;
+	}
+
+	/**
+	 * Cache the grades for these items and students as seen by the viewer, replacing any earlier entry for the viewer in this gradebook.
+	 *
+	 * @param created when the grades were read, taken before loading them so that an invalidation during the load is not lost
+	 */
+	public void put(final String gradebookUid, final String viewerUuid, final List<Long> assignmentIds, final List<String> studentUuids,
+			final Map<Long, List<GradeDefinition>> grades, final long created) {
+		if (this.timeToLive <= 0) {
+			return;
+		}
+		final Entry entry = new Entry(new HashSet<>(assignmentIds), new HashSet<>(studentUuids), grades, created);
+		synchronized (this.entries) {
+			final Long invalidated = this.invalidations.get(gradebookUid);
+			if (invalidated != null && invalidated >= created) {
+				return;
+			}
+			this.entries.put(key(gradebookUid, viewerUuid), entry);
+		}
+	}
+
+	/**
+	 * Drop every entry for a gradebook
+	 */
+	public void invalidate(final String gradebookUid) {
+		if (this.timeToLive <= 0) {
+			return;
+		}
+		final String prefix = key(gradebookUid, "");
+		synchronized (this.entries) {
+			this.entries.keySet().removeIf(key -> key.startsWith(prefix));
+			this.invalidations.put(gradebookUid, System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Drop a gradebook's entries when an event is posted against it. Grade events reference /gradebook/{gradebookUid}/...
+	 */
+	@Override
+	public void update(final Observable o, final Object arg) {
+		if (!(arg instanceof Event)) {
+			return;
+		}
+		final Event event = (Event) arg;
+		final String resource = event.getResource();
+		if (event.getEvent() != null && event.getEvent().startsWith(EVENT_PREFIX) && resource != null
+				&& resource.startsWith(REFERENCE_PREFIX)) {
+			final String gradebookUid = StringUtils.substringBefore(resource.substring(REFERENCE_PREFIX.length()), "/");
+			log.debug("Dropping cached grades for " + gradebookUid + " on " + event.getEvent());
+			invalidate(gradebookUid);
+		}
+	}
+
+	private String key(final String gradebookUid, final String viewerUuid) {
+		return gradebookUid + "/" + viewerUuid;
+	}
+
+	private static class Entry {
+		private final Set<Long> assignmentIds;
+		private final Set<String> studentUuids;
+		private final Map<Long, List<GradeDefinition>> grades;
+		private final long created;
+
+		Entry(final Set<Long> assignmentIds, final Set<String> studentUuids, final Map<Long, List<GradeDefinition>> grades,
+				final long created) {
+			this.assignmentIds = assignmentIds;
+			this.studentUuids = studentUuids;
+			this.grades = grades;
+			this.created = created;
+		}
+	}
+}
@@ -146,6 +146,9 @@ public class GradebookNgBusinessService {
 	@Setter
 	private EventTrackingService eventTrackingService;
 
+	@Setter
+	private GbGradeMatrixCache gradeMatrixCache;
+
 	public static final String ASSIGNMENT_ORDER_PROP = "gbng_assignment_order";
 
 	public static final String S_ITEM = "item";
@@ -523,7 +526,7 @@ public class GradebookNgBusinessService {
 
 		final Gradebook gradebook = this.getGradebook();
 		if (gradebook != null) {
-			rval = this.gradebookService.getCourseGradeForStudents(gradebook.getUid(), this.getGradeableUsers());
+			rval = this.gradebookService.getCourseGradeForStudents(gradebook.getUid(), studentUuids);
 		}
 		return rval;
 	}
@@ -706,6 +709,7 @@ public class GradebookNgBusinessService {
 			// also, must pass in the raw grade as the service does conversions between percentage etc
 			this.gradebookService.saveGradeAndCommentForStudent(gradebook.getUid(), assignmentId, studentUuid,
 					newGrade, comment);
+			invalidateGradeMatrix();
 			if (rval == null) {
 				// if we don't have some other warning, it was all OK
 				rval = GradeSaveResponse.OK;
@@ -903,8 +907,6 @@ public class GradebookNgBusinessService {
 		else
 			realmId = "/site/" + getCurrentSiteId();
 
-		boolean active = true;
-
 		// get role for current user
 		final GbRole role = this.getUserRole();
 
@@ -931,6 +933,15 @@ public class GradebookNgBusinessService {
 
 		stopwatch.timeWithContext("buildGradeMatrix", "getSiteCourseGrades", stopwatch.getTime());
 
+		// get the realm once for the member status of every student
+		AuthzGroup realm = null;
+		try {
+			realm = this.authzGroupService.getAuthzGroup(realmId);
+		} catch (final GroupNotDefinedException e) {
+			log.info("Group " + realmId + " does not exist.");
+		}
+		stopwatch.timeWithContext("buildGradeMatrix", "getAuthzGroup", stopwatch.getTime());
+
 		// setup a map because we progressively build this up by adding grades
 		// to a student's entry
 		final Map<String, GbStudentGradeInfo> matrix = new LinkedHashMap<>();
@@ -957,15 +968,8 @@ public class GradebookNgBusinessService {
 			final GbCourseGrade gbCourseGrade = new GbCourseGrade(courseGrades.get(student.getId()));
 			gbCourseGrade.setDisplayString(courseGradeFormatter.format(courseGrade));
 			sg.setCourseGrade(gbCourseGrade);
-			try {
-				Member member = authzGroupService.getAuthzGroup(realmId).getMember(student.getId());
-				if(member != null) {
-					active = member.isActive();
-				}
-			} catch (GroupNotDefinedException e) {
-				log.info("Group " + realmId + "does not exist.");
-			}
-			sg.setActive(active);
+			final Member member = (realm != null) ? realm.getMember(student.getId()) : null;
+			sg.setActive(member == null || member.isActive());
 
 			// add to map so we can build on it later
 			matrix.put(student.getId(), sg);
@@ -992,17 +996,11 @@ public class GradebookNgBusinessService {
 		// building the category list
 		final Map<Long, Set<Long>> categoryAssignments = new TreeMap<>();
 
-		// iterate over assignments and get the grades for each
-		// note, the returned list only includes entries where there is a grade
-		// for the user
-		// we also build the category lookup map here
+		// TA permission check. If there are categories and they don't have
+		// access to an assignment's category, skip it
+		final List<Assignment> visibleAssignments = new ArrayList<>();
 		for (final Assignment assignment : assignments) {
-
 			final Long categoryId = assignment.getCategoryId();
-			final Long assignmentId = assignment.getId();
-
-			// TA permission check. If there are categories and they don't have
-			// access to this one, skip it
 			if (role == GbRole.TA) {
 
 				log.debug("TA processing category: " + categoryId);
@@ -1011,6 +1009,22 @@ public class GradebookNgBusinessService {
 					continue;
 				}
 			}
+			visibleAssignments.add(assignment);
+		}
+
+		// get the grades for all of the assignments at once
+		// note, the returned lists only include entries where there is a grade
+		// for the user
+		final Map<Long, List<GradeDefinition>> grades = getGradesForStudents(gradebook.getUid(), currentUserUuid,
+				visibleAssignments.stream().map(Assignment::getId).collect(Collectors.toList()), studentUuids);
+		stopwatch.timeWithContext("buildGradeMatrix", "getGradesForStudentsForItems", stopwatch.getTime());
+
+		// iterate over assignments and add the grades for each
+		// we also build the category lookup map here
+		for (final Assignment assignment : visibleAssignments) {
+
+			final Long categoryId = assignment.getCategoryId();
+			final Long assignmentId = assignment.getId();
 
 			// TA stub out. So that we can support 'per grade' permissions for a
 			// TA, we need a stub record for every student
@@ -1039,14 +1053,9 @@ public class GradebookNgBusinessService {
 				categoryAssignments.put(categoryId, values);
 			}
 
-			// get grades
-			final List<GradeDefinition> defs = this.gradebookService.getGradesForStudentsForItem(gradebook.getUid(),
-					assignment.getId(), studentUuids);
-			stopwatch.timeWithContext("buildGradeMatrix", "getGradesForStudentsForItem: " + assignment.getId(),
-					stopwatch.getTime());
-
 			// iterate the definitions returned and update the record for each
 			// student with the grades
+			final List<GradeDefinition> defs = grades.getOrDefault(assignmentId, Collections.emptyList());
 			for (final GradeDefinition def : defs) {
 				final GbStudentGradeInfo sg = matrix.get(def.getStudentUid());
 
@@ -1290,6 +1299,37 @@ public class GradebookNgBusinessService {
 		return items;
 	}
 
+	/**
+	 * Get the grades of the given students for the given assignments, from the grade matrix cache if the viewer has loaded the same grades
+	 * recently
+	 *
+	 * @return map of assignment id to the grades for that assignment
+	 */
+	private Map<Long, List<GradeDefinition>> getGradesForStudents(final String gradebookUid, final String viewerUuid,
+			final List<Long> assignmentIds, final List<String> studentUuids) {
+
+		if (this.gradeMatrixCache == null) {
+			return this.gradebookService.getGradesForStudentsForItems(gradebookUid, assignmentIds, studentUuids);
+		}
+
+		Map<Long, List<GradeDefinition>> grades = this.gradeMatrixCache.get(gradebookUid, viewerUuid, assignmentIds, studentUuids);
+		if (grades == null) {
+			final long loaded = System.currentTimeMillis();
+			grades = this.gradebookService.getGradesForStudentsForItems(gradebookUid, assignmentIds, studentUuids);
+			this.gradeMatrixCache.put(gradebookUid, viewerUuid, assignmentIds, studentUuids, grades, loaded);
+		}
+		return grades;
+	}
+
+	/**
+	 * Drop the cached grades of the current gradebook after changing them
+	 */
+	private void invalidateGradeMatrix() {
+		if (this.gradeMatrixCache != null) {
+			this.gradeMatrixCache.invalidate(getCurrentSiteId());
+		}
+	}
+
 	/**
 	 * Get a list of sections and groups in a site
 	 *
@@ -1695,6 +1735,7 @@ public class GradebookNgBusinessService {
 
         try {
             this.gradebookService.updateIsExcludedFromGradeForStudent(gradebook.getUid(), studentUuid, assignmentId, excludeFromGrade);
+            invalidateGradeMatrix();
             if (excludeFromGrade)
                 postEvent("gradebookng.excuseGrade", gradebook.getUid(), String.valueOf(gradebook.getId()), S_ITEM, String.valueOf(assignmentId), getAssignment(assignmentId).getName(), "studentUuid", studentUuid);
             return true;
@@ -1711,6 +1752,7 @@ public class GradebookNgBusinessService {
 		try {
 			this.gradebookService.saveGradeAndCommentForStudent(gradebook.getUid(), assignmentId, studentUuid, "", oldComment);
 			this.gradebookService.updateIsExcludedFromGradeForStudent(gradebook.getUid(), studentUuid, assignmentId, excludeFromGrade);
+			invalidateGradeMatrix();
 			if (excludeFromGrade)
 				postEvent("gradebookng.saveBlankThenExcuseGrade", gradebook.getUid(), String.valueOf(gradebook.getId()), S_ITEM, String.valueOf(assignmentId), getAssignment(assignmentId).getName(), "studentUuid", studentUuid);
 			return true;
@@ -1919,6 +1961,7 @@ public class GradebookNgBusinessService {
 				this.gradebookService.saveGradeAndCommentForStudent(gradebook.getUid(), assignmentId, studentUuid,
 						String.valueOf(grade), null);
 			}
+			invalidateGradeMatrix();
 			return true;
 		} catch (final Exception e) {
 			log.error("An error occurred updating the assignment", e);
@@ -0,0 +1,143 @@
+package org.sakaiproject.gradebookng.business;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.event.api.EventTrackingService;
+import org.sakaiproject.service.gradebook.shared.GradeDefinition;
+
+/**
+ * Tests for the GbGradeMatrixCache class, using a synthetic large gradebook.
+ */
+public class TestGbGradeMatrixCache {
+
+	private static final String SITE = "site1";
+	private static final String INSTRUCTOR = "instructor1";
+
+	private GbGradeMatrixCache cache;
+	private EventTrackingService eventTrackingService;
+
+	private List<Long> assignmentIds;
+	private List<String> studentUuids;
+	private Map<Long, List<GradeDefinition>> grades;
+
+	@Before
+	public void setUp() {
+		this.eventTrackingService = Mockito.mock(EventTrackingService.class);
+		this.cache = newCache(30);
+
+		// 2000 students by 100 items, every cell graded
+		this.assignmentIds = new ArrayList<>();
+		for (long i = 1; i <= 100; i++) {
+			this.assignmentIds.add(i);
+		}
+		this.studentUuids = new ArrayList<>();
+		for (int i = 1; i <= 2000; i++) {
+			this.studentUuids.add("student" + i);
+		}
+		this.grades = new HashMap<>();
+		for (final Long assignmentId : this.assignmentIds) {
+			final List<GradeDefinition> defs = new ArrayList<>();
+			for (final String studentUuid : this.studentUuids) {
+				final GradeDefinition def = new GradeDefinition();
+				def.setStudentUid(studentUuid);
+				def.setGrade(String.valueOf(assignmentId % 10));
+				defs.add(def);
+			}
+			this.grades.put(assignmentId, defs);
+		}
+	}
+
+	@Test
+	public void when_sameItemsAndStudents_thenHit() {
+		this.cache.put(SITE, INSTRUCTOR, this.assignmentIds, this.studentUuids, this.grades, System.currentTimeMillis());
+
+		// order does not matter
+		final List<String> shuffled = new ArrayList<>(this.studentUuids);
+		Collections.reverse(shuffled);
+		Assert.assertSame(this.grades, this.cache.get(SITE, INSTRUCTOR, this.assignmentIds, shuffled));
+	}
+
+	@Test
+	public void when_otherViewerOrStudents_thenMiss() {
+		this.cache.put(SITE, INSTRUCTOR, this.assignmentIds, this.studentUuids, this.grades, System.currentTimeMillis());
+
+		Assert.assertNull(this.cache.get(SITE, "ta1", this.assignmentIds, this.studentUuids));
+		Assert.assertNull(this.cache.get(SITE, INSTRUCTOR, this.assignmentIds, this.studentUuids.subList(0, 100)));
+		Assert.assertNull(this.cache.get(SITE, INSTRUCTOR, this.assignmentIds.subList(0, 10), this.studentUuids));
+		Assert.assertNull(this.cache.get("site2", INSTRUCTOR, this.assignmentIds, this.studentUuids));
+	}
+
+	@Test
+	public void when_gradebookEvent_thenSiteInvalidated() {
+		this.cache.put(SITE, INSTRUCTOR, this.assignmentIds, this.studentUuids, this.grades, System.currentTimeMillis());
+		this.cache.put("site2", INSTRUCTOR, this.assignmentIds, this.studentUuids, this.grades, System.currentTimeMillis());
+
+		this.cache.update(null, event("gradebook.updateItemScore", "/gradebook/" + SITE + "/1/student1/10/student"));
+
+		Assert.assertNull(this.cache.get(SITE, INSTRUCTOR, this.assignmentIds, this.studentUuids));
+		Assert.assertNotNull(this.cache.get("site2", INSTRUCTOR, this.assignmentIds, this.studentUuids));
+	}
+
+	@Test
+	public void when_otherEvent_thenNotInvalidated() {
+		this.cache.put(SITE, INSTRUCTOR, this.assignmentIds, this.studentUuids, this.grades, System.currentTimeMillis());
+
+		this.cache.update(null, event("content.read", "/content/group/" + SITE + "/file.txt"));
+
+		Assert.assertNotNull(this.cache.get(SITE, INSTRUCTOR, this.assignmentIds, this.studentUuids));
+	}
+
+	@Test
+	public void when_loadStartedBeforeInvalidation_thenNotCached() {
+		final long loaded = System.currentTimeMillis();
+		this.cache.invalidate(SITE);
+		this.cache.put(SITE, INSTRUCTOR, this.assignmentIds, this.studentUuids, this.grades, loaded);
+
+		Assert.assertNull(this.cache.get(SITE, INSTRUCTOR, this.assignmentIds, this.studentUuids));
+	}
+
+	@Test
+	public void when_expired_thenMiss() {
+		this.cache.put(SITE, INSTRUCTOR, this.assignmentIds, this.studentUuids, this.grades, System.currentTimeMillis() - 31000);
+
+		Assert.assertNull(this.cache.get(SITE, INSTRUCTOR, this.assignmentIds, this.studentUuids));
+	}
+
+	@Test
+	public void when_disabled_thenNothingCached() {
+		this.cache = newCache(0);
+		this.cache.put(SITE, INSTRUCTOR, this.assignmentIds, this.studentUuids, this.grades, System.currentTimeMillis());
+
+		Assert.assertNull(this.cache.get(SITE, INSTRUCTOR, this.assignmentIds, this.studentUuids));
+		Mockito.verify(this.eventTrackingService, Mockito.never()).addObserver(this.cache);
+	}
+
+	private GbGradeMatrixCache newCache(final int ttl) {
+		final ServerConfigurationService configService = Mockito.mock(ServerConfigurationService.class);
+		Mockito.when(configService.getInt("gradebookng.gradeMatrixCache.ttl", 30)).thenReturn(ttl);
+		Mockito.when(configService.getInt("gradebookng.gradeMatrixCache.maxEntries", 500)).thenReturn(500);
+
+		final GbGradeMatrixCache newCache = new GbGradeMatrixCache();
+		newCache.setConfigService(configService);
+		newCache.setEventTrackingService(this.eventTrackingService);
+		newCache.init();
+		return newCache;
+	}
+
+	private Event event(final String name, final String resource) {
+		final Event event = Mockito.mock(Event.class);
+		Mockito.when(event.getEvent()).thenReturn(name);
+		Mockito.when(event.getResource()).thenReturn(resource);
+		return event;
+	}
+}
@@ -354,6 +354,20 @@ public interface AuthzGroupService extends EntityProducer
 	 */
 	Set<String> getUsersIsAllowed(String function, Collection<String> azGroups);
 
+	/**
+	 * Get the subset of these users who are allowed to perform the function in the named AuthzGroups, either through a role they
+	 * are granted or a role they hold without membership (such as .auth).
+	 * 
+	 * @param userIds
+	 *        The user ids to check.
+	 * @param function
+	 *        The function to check.
+	 * @param azGroups
+	 *        A collection of the ids of AuthzGroups to consult.
+	 * @return the Set (String) of those user ids who are allowed to perform the function in any of the named AuthzGroups.
+	 */
+	Set<String> getUsersIsAllowed(Collection<String> userIds, String function, Collection<String> azGroups);
+
 	/**
 	 * Get the set of user ids per group of users who are allowed to perform the function in the named AuthzGroups.
 	 * Use this method to get permission-related membership information from a set of groups efficiently, 
@@ -395,6 +409,21 @@ public interface AuthzGroupService extends EntityProducer
 	 */
 	Set<String> getAuthzGroupsIsAllowed(String userId, String function, Collection<String> azGroups);
 
+	/**
+	 * Check many collections of AuthzGroups at once, answering for each as isAllowed(userId, function, azGroups) would: the
+	 * function may be given to the role the user has in one AuthzGroup of the collection, or a role held without membership
+	 * (such as .auth), in any AuthzGroup of the same collection.
+	 * 
+	 * @param userId
+	 *        The user id.
+	 * @param function
+	 *        The function to check.
+	 * @param azGroupSets
+	 *        The collections of AuthzGroup ids to check, by key (such as the entity reference they are for).
+	 * @return the Set (String) of the keys of azGroupSets whose AuthzGroups allow this user to perform this function.
+	 */
+	Set<String> getAuthzGroupSetsIsAllowed(String userId, String function, Map<String, Collection<String>> azGroupSets);
+
 	/**
 	 * Get the set of functions that users with this role in these AuthzGroups are allowed to perform.
 	 * 
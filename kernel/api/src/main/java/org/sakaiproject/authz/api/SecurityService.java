@@ -23,6 +23,7 @@ package org.sakaiproject.authz.api;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import org.sakaiproject.user.api.User;
 
@@ -99,6 +100,34 @@ public interface SecurityService
 	 */
 	List<User> unlockUsers(String lock, String reference);
 
+	/**
+	 * Which of these users can unlock the lock for use with this resource?
+	 * Checks that are not already cached are resolved together rather than one user at a time.
+	 * 
+	 * @param userIds
+	 *        The user ids.
+	 * @param lock
+	 *        The lock id string.
+	 * @param reference
+	 *        The resource reference string.
+	 * @return A Map (user id -> Boolean) with an entry for every (non null) user id given.
+	 */
+	Map<String, Boolean> unlockForUsers(Collection<String> userIds, String lock, String reference);
+
+	/**
+	 * Can the specified user id unlock the lock for use with each of these resources?
+	 * Checks that are not already cached are resolved together rather than one resource at a time.
+	 * 
+	 * @param userId
+	 *        The user id.
+	 * @param lock
+	 *        The lock id string.
+	 * @param references
+	 *        The resource reference strings.
+	 * @return A Map (reference -> Boolean) with an entry for every (non null) reference given.
+	 */
+	Map<String, Boolean> unlockForReferences(String userId, String lock, Collection<String> references);
+
 	/**
 	 * Is this a super special super (admin) user?
 	 * 
@@ -89,6 +89,24 @@ public class SimpleEvent implements Event {
     /** Event server ID */
     protected String serverId = null;
 
+    /**
+     * Access the event sequence number (the EVENT_ID it was stored under)
+     * 
+     * @return The event sequence number, 0 if not yet stored.
+     */
+    public long getSeq() {
+        return seq;
+    }
+
+    /**
+     * Set the event sequence number
+     * 
+     * @param seq the EVENT_ID this event was stored under
+     */
+    public void setSeq(long seq) {
+        this.seq = seq;
+    }
+
     /**
      * Access the event id string
      * 
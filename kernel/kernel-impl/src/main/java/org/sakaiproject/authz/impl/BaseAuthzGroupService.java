@@ -953,6 +953,14 @@ public abstract class BaseAuthzGroupService implements AuthzGroupService
 	{
 		return m_storage.getUsersIsAllowed(function, azGroups);
 	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Set<String> getUsersIsAllowed(Collection<String> userIds, String function, Collection<String> azGroups)
+	{
+		return m_storage.getUsersIsAllowed(userIds, function, azGroups);
+	}
 	
 	/**
 	 * {@inheritDoc}
@@ -986,6 +994,14 @@ public abstract class BaseAuthzGroupService implements AuthzGroupService
 		return m_storage.getAuthzGroupsIsAllowed(userId, function, azGroups);
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	public Set<String> getAuthzGroupSetsIsAllowed(String userId, String function, Map<String, Collection<String>> azGroupSets)
+	{
+		return m_storage.getAuthzGroupSetsIsAllowed(userId, function, azGroupSets);
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -1465,6 +1481,20 @@ public abstract class BaseAuthzGroupService implements AuthzGroupService
 		 */
 		Set getUsersIsAllowed(String function, Collection azGroups);
 
+		/**
+		 * Get the subset of these users who are allowed to perform the function in the named AuthzGroups, through granted roles or
+		 * roles held without membership (.auth, .anon and provided roles).
+		 * 
+		 * @param userIds
+		 *        The user ids to check.
+		 * @param function
+		 *        The function to check.
+		 * @param azGroups
+		 *        A collection of the ids of AuthzGroups to consult.
+		 * @return the Set (String) of those user ids who are allowed to perform the function in any of the named AuthzGroups.
+		 */
+		Set<String> getUsersIsAllowed(Collection<String> userIds, String function, Collection<String> azGroups);
+
 		/**
 		 * Get the set of user ids per group of users who are allowed to perform the function in the named AuthzGroups.
 		 * 
@@ -1513,6 +1543,20 @@ public abstract class BaseAuthzGroupService implements AuthzGroupService
 		 */
 		Set getAuthzGroupsIsAllowed(String userId, String function, Collection azGroups);
 
+		/**
+		 * Check many collections of AuthzGroups at once, each the way isAllowed(userId, function, azGroups) does: a role
+		 * granted in, or held without membership by, one AuthzGroup of a collection may be allowed the function in another.
+		 * 
+		 * @param userId
+		 *        The user id.
+		 * @param function
+		 *        The function to check.
+		 * @param azGroupSets
+		 *        The collections of AuthzGroup ids to check, by key.
+		 * @return the Set (String) of the keys of azGroupSets whose AuthzGroups allow this user to perform this function.
+		 */
+		Set<String> getAuthzGroupSetsIsAllowed(String userId, String function, Map<String, Collection<String>> azGroupSets);
+
 		/**
 		 * Get the role name for this user in this AuthzGroup.
 		 * 
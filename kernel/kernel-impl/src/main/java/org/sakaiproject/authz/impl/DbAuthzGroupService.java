@@ -50,6 +50,7 @@ import java.util.*;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * <p>
@@ -106,6 +107,11 @@ public abstract class DbAuthzGroupService extends BaseAuthzGroupService implemen
 	// KNL-600 CACHING for the realm role groups
 	private Cache m_realmRoleGRCache;
 	
+	/** The permissions of each realm, to answer isAllowed from memory (null if disabled) */
+	private Cache m_realmPermissionsCache;
+	/** Bumped on every realm change, so a permissions read that raced with one is not cached */
+	private final AtomicLong m_realmPermissionsVersion = new AtomicLong();
+
 	private Cache authzUserGroupIdsCache;
 
     private Cache maintainRolesCache;
@@ -237,7 +243,12 @@ public abstract class DbAuthzGroupService extends BaseAuthzGroupService implemen
 			cacheRoleNames();
 			cacheFunctionNames();
 			m_realmRoleGRCache = m_memoryService.newCache("org.sakaiproject.authz.impl.DbAuthzGroupService.realmRoleGroupCache");
-			M_log.info("init(): table: " + m_realmTableName + " external locks: " + m_useExternalLocks);
+			if (serverConfigurationService().getBoolean("authzgroup.permissions.memory", true))
+			{
+				m_realmPermissionsCache = m_memoryService.newCache("org.sakaiproject.authz.impl.DbAuthzGroupService.realmPermissionsCache");
+			}
+			M_log.info("init(): table: " + m_realmTableName + " external locks: " + m_useExternalLocks
+					+ " permissions in memory: " + (m_realmPermissionsCache != null));
 
 			authzUserGroupIdsCache = m_memoryService.newCache("org.sakaiproject.authz.impl.DbAuthzGroupService.authzUserGroupIdsCache");
 
@@ -295,6 +306,8 @@ public abstract class DbAuthzGroupService extends BaseAuthzGroupService implemen
 
         maintainRolesCache.close();
 
+		if (m_realmPermissionsCache != null) m_realmPermissionsCache.close();
+
 		M_log.info(this +".destroy()");
 	}
 
@@ -612,6 +625,11 @@ public abstract class DbAuthzGroupService extends BaseAuthzGroupService implemen
 					M_log.debug("DbAuthzGroupService update(): clear realm role cache for " + realmId);
 				}
 				m_realmRoleGRCache.remove(realmId);
+				if (m_realmPermissionsCache != null)
+				{
+					m_realmPermissionsVersion.incrementAndGet();
+					m_realmPermissionsCache.remove(realmId);
+				}
 			} else {
 				// This should never happen as the events we generate should always have
 				// a /realm/ prefix on the resource.
@@ -2072,6 +2090,11 @@ public abstract class DbAuthzGroupService extends BaseAuthzGroupService implemen
 
 			// Regular lookup (not roleswap)
 
+			if (m_realmPermissionsCache != null)
+			{
+				return RealmPermissions.isAllowed(getRealmPermissions(realms).values(), userId, roleIds, lock);
+			}
+
 			results = m_sql.dbRead(statement, fields, new SqlReader()
 			{
 				public Object readSqlResultRecord(ResultSet result)
@@ -2099,6 +2122,108 @@ public abstract class DbAuthzGroupService extends BaseAuthzGroupService implemen
 			return rv;
 		}
 
+		/**
+		 * Get the permissions of these realms from the cache, reading the ones missing together.
+		 * 
+		 * @param realms
+		 *        The realm ids.
+		 * @return A Map (realm id -> RealmPermissions), realms that do not exist have no role functions or users.
+		 */
+		protected Map<String, RealmPermissions> getRealmPermissions(Collection<String> realms)
+		{
+			Map<String, RealmPermissions> rv = new HashMap<String, RealmPermissions>();
+			List<String> missing = new ArrayList<String>();
+			for (String realmId : realms)
+			{
+				RealmPermissions permissions = (RealmPermissions) m_realmPermissionsCache.get(realmId);
+				if (permissions != null)
+				{
+					rv.put(realmId, permissions);
+				}
+				else if (!missing.contains(realmId))
+				{
+					missing.add(realmId);
+				}
+			}
+
+			if (!missing.isEmpty())
+			{
+				long version = m_realmPermissionsVersion.get();
+				Map<String, RealmPermissions> read = readRealmPermissions(missing);
+				// a realm changed while reading, the read may be stale so use it only this once
+				if (version == m_realmPermissionsVersion.get())
+				{
+					for (Map.Entry<String, RealmPermissions> entry : read.entrySet())
+					{
+						m_realmPermissionsCache.put(entry.getKey(), entry.getValue());
+					}
+				}
+				rv.putAll(read);
+			}
+
+			return rv;
+		}
+
+		/**
+		 * Read the role functions and active grants of these realms.
+		 * 
+		 * @param realms
+		 *        The realm ids.
+		 * @return A Map (realm id -> RealmPermissions) with an entry for each realm.
+		 */
+		protected Map<String, RealmPermissions> readRealmPermissions(List<String> realms)
+		{
+			final Map<String, RealmPermissions.Builder> builders = new HashMap<String, RealmPermissions.Builder>();
+			for (String realmId : realms)
+			{
+				builders.put(realmId, new RealmPermissions.Builder());
+			}
+			Object[] fields = realms.toArray();
+
+			String sql = dbAuthzGroupSql.getSelectRealmRoleFunctionNameSql(orInClause(realms.size(), "SR.REALM_ID"));
+			m_sql.dbRead(sql, fields, new SqlReader()
+			{
+				public Object readSqlResultRecord(ResultSet result)
+				{
+					try
+					{
+						RealmPermissions.Builder builder = builders.get(result.getString(1));
+						if (builder != null) builder.addFunction(result.getInt(2), result.getString(3));
+					}
+					catch (SQLException e)
+					{
+						M_log.warn("readRealmPermissions: " + e);
+					}
+					return null;
+				}
+			});
+
+			sql = dbAuthzGroupSql.getSelectRealmActiveGrantRoleKeySql(orInClause(realms.size(), "SR.REALM_ID"));
+			m_sql.dbRead(sql, fields, new SqlReader()
+			{
+				public Object readSqlResultRecord(ResultSet result)
+				{
+					try
+					{
+						RealmPermissions.Builder builder = builders.get(result.getString(1));
+						if (builder != null) builder.addUser(result.getString(2), result.getInt(3));
+					}
+					catch (SQLException e)
+					{
+						M_log.warn("readRealmPermissions: " + e);
+					}
+					return null;
+				}
+			});
+
+			Map<String, RealmPermissions> rv = new HashMap<String, RealmPermissions>();
+			for (Map.Entry<String, RealmPermissions.Builder> entry : builders.entrySet())
+			{
+				rv.put(entry.getKey(), entry.getValue().build());
+			}
+			return rv;
+		}
+
 		/**
 		 * Delegated access essentially behaves like roleswap except instead of just specifying which role, you can also specify
 		 * the realm as well.  The access map is populated by an Event Listener that listens for dac.checkaccess and is stored in the session
@@ -2191,6 +2316,210 @@ public abstract class DbAuthzGroupService extends BaseAuthzGroupService implemen
 			return rv;
 		}
 
+		/**
+		 * {@inheritDoc}
+		 */
+		public Set<String> getUsersIsAllowed(Collection<String> userIds, String lock, Collection<String> realms)
+		{
+			Set<String> rv = new HashSet<String>();
+			if ((userIds == null) || userIds.isEmpty() || (lock == null) || (realms == null) || realms.isEmpty()) return rv;
+
+			if (m_realmPermissionsCache != null)
+			{
+				Collection<RealmPermissions> permissions = getRealmPermissions(realms).values();
+				Map<Set<String>, Set<Integer>> roleKeys = new HashMap<Set<String>, Set<Integer>>();
+				for (String userId : userIds)
+				{
+					if (userId == null) continue;
+					Set<String> roles = getEmptyRoles(userId);
+					Set<Integer> keys = roleKeys.get(roles);
+					if (keys == null)
+					{
+						keys = getRealmRoleKeys(roles);
+						roleKeys.put(roles, keys);
+					}
+					if (RealmPermissions.isAllowed(permissions, userId, keys, lock)) rv.add(userId);
+				}
+				return rv;
+			}
+
+			// one read for everyone with a granted role that allows it
+			Set<String> granted = getUsersIsAllowed(lock, realms);
+
+			// the rest may still be allowed by the roles they hold without membership, which only depend on the set of those
+			// roles, so check each distinct set once (usually there is just .auth + .anon)
+			Map<Set<String>, Boolean> allowedByRoles = new HashMap<Set<String>, Boolean>();
+			for (String userId : userIds)
+			{
+				if (userId == null) continue;
+				if (granted.contains(userId))
+				{
+					rv.add(userId);
+					continue;
+				}
+				Set<String> roles = getEmptyRoles(userId);
+				Boolean allowed = allowedByRoles.get(roles);
+				if (allowed == null)
+				{
+					allowed = !getRealmsIsAllowedByRoles(roles, lock, realms).isEmpty();
+					allowedByRoles.put(roles, allowed);
+				}
+				if (allowed) rv.add(userId);
+			}
+
+			if (M_log.isDebugEnabled())
+				M_log.debug("getUsersIsAllowed: lock=" + lock + " realms=" + realms + " users=" + userIds.size() + " allowed=" + rv.size()
+						+ " role sets=" + allowedByRoles.size());
+
+			return rv;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public Set<String> getAuthzGroupSetsIsAllowed(String userId, String lock, Map<String, Collection<String>> realmSets)
+		{
+			Set<String> rv = new HashSet<String>();
+			if ((lock == null) || (realmSets == null) || realmSets.isEmpty()) return rv;
+
+			Set<String> realms = new HashSet<String>();
+			for (Collection<String> realmSet : realmSets.values())
+			{
+				realms.addAll(realmSet);
+			}
+			if (realms.isEmpty()) return rv;
+
+			Set<Integer> emptyRoleKeys = getRealmRoleKeys(getEmptyRoles(userId));
+
+			if (m_realmPermissionsCache != null)
+			{
+				Map<String, RealmPermissions> permissions = getRealmPermissions(realms);
+				for (Map.Entry<String, Collection<String>> realmSet : realmSets.entrySet())
+				{
+					List<RealmPermissions> setPermissions = new ArrayList<RealmPermissions>();
+					for (String realmId : realmSet.getValue())
+					{
+						RealmPermissions realm = permissions.get(realmId);
+						if (realm != null) setPermissions.add(realm);
+					}
+					if (RealmPermissions.isAllowed(setPermissions, userId, emptyRoleKeys, lock)) rv.add(realmSet.getKey());
+				}
+				return rv;
+			}
+
+			// as getCountRealmRoleFunctionSql, but for every set from two reads: the roles the user is granted in each realm,
+			// and the roles allowed the lock in each realm
+			String inClause = orInClause(realms.size(), "SR.REALM_ID");
+			Map<String, Set<Integer>> granted = (userId == null) ? new HashMap<String, Set<Integer>>()
+					: readRealmRoleKeys(dbAuthzGroupSql.getSelectRealmUserRoleKeySql(inClause), userId, realms);
+			Map<String, Set<Integer>> allowed = readRealmRoleKeys(dbAuthzGroupSql.getSelectRealmFunctionRoleKeySql(inClause), lock, realms);
+
+			for (Map.Entry<String, Collection<String>> realmSet : realmSets.entrySet())
+			{
+				Set<Integer> roleKeys = new HashSet<Integer>(emptyRoleKeys);
+				for (String realmId : realmSet.getValue())
+				{
+					Set<Integer> keys = granted.get(realmId);
+					if (keys != null) roleKeys.addAll(keys);
+				}
+				for (String realmId : realmSet.getValue())
+				{
+					Set<Integer> keys = allowed.get(realmId);
+					if (keys != null && !Collections.disjoint(keys, roleKeys))
+					{
+						rv.add(realmSet.getKey());
+						break;
+					}
+				}
+			}
+
+			if (M_log.isDebugEnabled())
+				M_log.debug("getAuthzGroupSetsIsAllowed: userId=" + userId + " lock=" + lock + " sets=" + realmSets.size() + " realms=" + realms.size()
+						+ " allowed=" + rv.size());
+
+			return rv;
+		}
+
+		/**
+		 * Read the role keys of each realm from a select of (REALM_ID, ROLE_KEY) with one parameter before the realm ids.
+		 * 
+		 * @param sql
+		 *        The select.
+		 * @param param
+		 *        The first parameter.
+		 * @param realms
+		 *        The realm ids of the in clause.
+		 * @return A Map (realm id -> Set of role keys) for the realms with any.
+		 */
+		protected Map<String, Set<Integer>> readRealmRoleKeys(String sql, String param, Collection<String> realms)
+		{
+			Object[] fields = new Object[1 + realms.size()];
+			int pos = 0;
+			fields[pos++] = param;
+			for (String realmId : realms)
+			{
+				fields[pos++] = realmId;
+			}
+
+			final Map<String, Set<Integer>> rv = new HashMap<String, Set<Integer>>();
+			m_sql.dbRead(sql, fields, new SqlReader()
+			{
+				public Object readSqlResultRecord(ResultSet result)
+				{
+					try
+					{
+						String realmId = result.getString(1);
+						Set<Integer> keys = rv.get(realmId);
+						if (keys == null)
+						{
+							keys = new HashSet<Integer>();
+							rv.put(realmId, keys);
+						}
+						keys.add(result.getInt(2));
+					}
+					catch (SQLException e)
+					{
+						M_log.warn("readRealmRoleKeys: " + e);
+					}
+					return null;
+				}
+			});
+			return rv;
+		}
+
+		/**
+		 * Find the realms in which any of these roles (held without membership, such as .auth) allow the lock.
+		 * 
+		 * @param roles
+		 *        The role names.
+		 * @param lock
+		 *        The function to check.
+		 * @param realms
+		 *        The realm ids to search.
+		 * @return The Set (String) of realm ids from realms where the lock is allowed to one of the roles.
+		 */
+		protected Set<String> getRealmsIsAllowedByRoles(Set<String> roles, String lock, Collection<String> realms)
+		{
+			Set<Integer> roleIds = getRealmRoleKeys(roles);
+			if (roleIds.isEmpty()) return new HashSet<String>();
+
+			String sql = dbAuthzGroupSql.getSelectRealmIdRoleFunctionSql(roleIds, orInClause(realms.size(), "SR.REALM_ID"));
+			Object[] fields = new Object[1 + realms.size() + roleIds.size()];
+			int pos = 0;
+			fields[pos++] = lock;
+			for (String realmId : realms)
+			{
+				fields[pos++] = realmId;
+			}
+			for (Integer roleId : roleIds)
+			{
+				fields[pos++] = roleId;
+			}
+
+			List<String> results = m_sql.dbRead(sql, fields, null);
+			return new HashSet<String>(results);
+		}
+
 		/**
 		 * {@inheritDoc}
 		 */
@@ -2512,6 +2841,36 @@ public abstract class DbAuthzGroupService extends BaseAuthzGroupService implemen
 
 					m_sql.dbWrite(sql, fields);
 				}
+
+				// the cached permissions of the realms whose grants changed are stale
+				if (m_realmPermissionsCache != null)
+				{
+					Set<Integer> changed = new HashSet<Integer>(toDelete);
+					for (RealmAndRole rar : toInsert)
+					{
+						changed.add(rar.realmId);
+					}
+					List<String> realmIds = m_sql.dbRead(dbAuthzGroupSql.getSelectRealmIdByKeySql(orInClause(changed.size(), "REALM_KEY")),
+							changed.toArray(), new SqlReader()
+					{
+						public Object readSqlResultRecord(ResultSet result)
+						{
+							try
+							{
+								return result.getString(2);
+							}
+							catch (SQLException ignore)
+							{
+								return null;
+							}
+						}
+					});
+					m_realmPermissionsVersion.incrementAndGet();
+					for (String realmId : realmIds)
+					{
+						if (realmId != null) m_realmPermissionsCache.remove(realmId);
+					}
+				}
 			}
 		}
 
@@ -109,6 +109,18 @@ public interface DbAuthzGroupSql
 	
 	String getSelectRealmIdRoleSwapSql(Collection azGroups);
 
+	String getSelectRealmIdRoleFunctionSql(Set<Integer> roleIds, String inClause);
+
+	String getSelectRealmRoleFunctionNameSql(String inClause);
+
+	String getSelectRealmActiveGrantRoleKeySql(String inClause);
+
+	String getSelectRealmUserRoleKeySql(String inClause);
+
+	String getSelectRealmFunctionRoleKeySql(String inClause);
+
+	String getSelectRealmIdByKeySql(String inClause);
+
 	String getSelectRealmProvider2Sql();
 
 	String getSelectRealmProviderId1Sql();
@@ -339,6 +339,53 @@ public class DbAuthzGroupSqlDefault implements DbAuthzGroupSql
 		return sqlBuilder.toString();
 	}
 	
+	public String getSelectRealmIdRoleFunctionSql(Set<Integer> roleIds, String inClause)
+	{
+		StringBuilder sql = new StringBuilder();
+		sql.append("select distinct SR.REALM_ID ");
+		sql.append("from SAKAI_REALM_RL_FN SRRF ");
+		sql.append("inner join SAKAI_REALM_FUNCTION SRF on SRRF.FUNCTION_KEY = SRF.FUNCTION_KEY ");
+		sql.append("inner join SAKAI_REALM SR on SRRF.REALM_KEY = SR.REALM_KEY ");
+		sql.append("where SRF.FUNCTION_NAME = ? and " + inClause + " and SRRF.ROLE_KEY in (");
+		for (int i = 0; i < roleIds.size(); i++)
+		{
+			sql.append(i == 0 ? "?" : ", ?");
+		}
+		sql.append(")");
+		return sql.toString();
+	}
+
+	public String getSelectRealmRoleFunctionNameSql(String inClause)
+	{
+		return "select SR.REALM_ID, SRRF.ROLE_KEY, SRF.FUNCTION_NAME from SAKAI_REALM_RL_FN SRRF "
+				+ "inner join SAKAI_REALM SR on SRRF.REALM_KEY = SR.REALM_KEY "
+				+ "inner join SAKAI_REALM_FUNCTION SRF on SRRF.FUNCTION_KEY = SRF.FUNCTION_KEY where " + inClause;
+	}
+
+	public String getSelectRealmActiveGrantRoleKeySql(String inClause)
+	{
+		return "select SR.REALM_ID, SRRG.USER_ID, SRRG.ROLE_KEY from SAKAI_REALM_RL_GR SRRG "
+				+ "inner join SAKAI_REALM SR on SRRG.REALM_KEY = SR.REALM_KEY where SRRG.ACTIVE = '1' and " + inClause;
+	}
+
+	public String getSelectRealmUserRoleKeySql(String inClause)
+	{
+		return "select SR.REALM_ID, SRRG.ROLE_KEY from SAKAI_REALM_RL_GR SRRG "
+				+ "inner join SAKAI_REALM SR on SRRG.REALM_KEY = SR.REALM_KEY where SRRG.USER_ID = ? and SRRG.ACTIVE = '1' and " + inClause;
+	}
+
+	public String getSelectRealmFunctionRoleKeySql(String inClause)
+	{
+		return "select SR.REALM_ID, SRRF.ROLE_KEY from SAKAI_REALM_RL_FN SRRF "
+				+ "inner join SAKAI_REALM SR on SRRF.REALM_KEY = SR.REALM_KEY "
+				+ "inner join SAKAI_REALM_FUNCTION SRF on SRRF.FUNCTION_KEY = SRF.FUNCTION_KEY where SRF.FUNCTION_NAME = ? and " + inClause;
+	}
+
+	public String getSelectRealmIdByKeySql(String inClause)
+	{
+		return "select REALM_KEY, REALM_ID from SAKAI_REALM where " + inClause;
+	}
+
 	public String getSelectRealmIdRoleSwapSql(Collection azGroups)
 	{
 		StringBuilder sqlBuilder = new StringBuilder();
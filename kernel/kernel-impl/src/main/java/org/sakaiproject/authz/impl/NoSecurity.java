@@ -21,7 +21,10 @@
 
 package org.sakaiproject.authz.impl;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 
 import org.slf4j.Logger;
@@ -164,6 +167,34 @@ public abstract class NoSecurity implements SecurityService
 		return new Vector<User>();
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	public Map<String, Boolean> unlockForUsers(Collection<String> userIds, String lock, String reference)
+	{
+		Map<String, Boolean> rv = new HashMap<String, Boolean>();
+		if (userIds == null) return rv;
+		for (String userId : userIds)
+		{
+			if (userId != null) rv.put(userId, Boolean.TRUE);
+		}
+		return rv;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Map<String, Boolean> unlockForReferences(String userId, String lock, Collection<String> references)
+	{
+		Map<String, Boolean> rv = new HashMap<String, Boolean>();
+		if (references == null) return rv;
+		for (String reference : references)
+		{
+			if (reference != null) rv.put(reference, Boolean.TRUE);
+		}
+		return rv;
+	}
+
 	protected String getUserId(User u)
 	{
 		User user = getUser(u);
@@ -0,0 +1,237 @@
+/******************************************************************************
+ * $URL$
+ * $Id$
+ ******************************************************************************
+ *
+ * Copyright (c) 2003-2016 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *       http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *****************************************************************************/
+
+
+package org.sakaiproject.authz.impl;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The permissions of one realm, held compactly so isAllowed can be answered from memory: for each role the functions it
+ * is allowed as a bitset over the realm's (sorted) function names, and the role of each user with an active grant.
+ * <p>
+ * Roles are identified by their SAKAI_REALM_ROLE key, which is shared by all realms, so a role granted in one realm is
+ * checked against the functions of every realm of a check (see {@link #isAllowed(Collection, String, Collection, String)}).
+ * The function names are kept in the realm itself rather than as
+ * server wide ordinals, so instances stay valid when the cache holding them is distributed. Instances are immutable.
+ * </p>
+ */
+public class RealmPermissions implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	/** The functions allowed to any role in the realm, sorted. */
+	private final String[] functions;
+
+	/** The keys of the roles with any function, sorted. */
+	private final int[] roleKeys;
+
+	/** For each role (same order as roleKeys), the bitset of its functions (indexed like functions). */
+	private final long[][] grants;
+
+	/** The users with an active grant, sorted. */
+	private final String[] userIds;
+
+	/** For each user (same order as userIds), the key of the role granted. */
+	private final int[] userRoleKeys;
+
+	private RealmPermissions(String[] functions, int[] roleKeys, long[][] grants, String[] userIds, int[] userRoleKeys)
+	{
+		this.functions = functions;
+		this.roleKeys = roleKeys;
+		this.grants = grants;
+		this.userIds = userIds;
+		this.userRoleKeys = userRoleKeys;
+	}
+
+	/**
+	 * Is the function allowed in this realm to the user's granted role, or to any of the roles the user holds without
+	 * membership (.auth, .anon, provided roles)?
+	 *
+	 * @param userId
+	 *        The user id (may be null).
+	 * @param emptyRoleKeys
+	 *        The keys of the roles the user holds without membership.
+	 * @param function
+	 *        The function.
+	 * @return true if allowed, false if not.
+	 */
+	public boolean isAllowed(String userId, Collection<Integer> emptyRoleKeys, String function)
+	{
+		if (function == null) return false;
+		int f = Arrays.binarySearch(functions, function);
+		if (f < 0) return false;
+
+		if (userId != null)
+		{
+			int u = Arrays.binarySearch(userIds, userId);
+			if (u >= 0 && isAllowed(userRoleKeys[u], f)) return true;
+		}
+
+		if (emptyRoleKeys != null)
+		{
+			for (Integer roleKey : emptyRoleKeys)
+			{
+				if (roleKey != null && isAllowed(roleKey, f)) return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Is the function allowed in any of these realms to any role the user holds in any of them, or to any of the roles
+	 * the user holds without membership? This is the cross realm match of getCountRealmRoleFunctionSql: a role granted in
+	 * a site realm is allowed the functions given to that role in !site.helper or a group realm of the same check.
+	 *
+	 * @param realms
+	 *        The permissions of the realms of the check.
+	 * @param userId
+	 *        The user id (may be null).
+	 * @param emptyRoleKeys
+	 *        The keys of the roles the user holds without membership.
+	 * @param function
+	 *        The function.
+	 * @return true if allowed, false if not.
+	 */
+	public static boolean isAllowed(Collection<RealmPermissions> realms, String userId, Collection<Integer> emptyRoleKeys, String function)
+	{
+		if (function == null) return false;
+
+		Set<Integer> roleKeys = new HashSet<Integer>();
+		if (emptyRoleKeys != null) roleKeys.addAll(emptyRoleKeys);
+		for (RealmPermissions realm : realms)
+		{
+			Integer roleKey = realm.getUserRoleKey(userId);
+			if (roleKey != null) roleKeys.add(roleKey);
+		}
+		if (roleKeys.isEmpty()) return false;
+
+		for (RealmPermissions realm : realms)
+		{
+			if (realm.isAllowed(null, roleKeys, function)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return The key of the role granted to this user (if active), or null if none.
+	 */
+	public Integer getUserRoleKey(String userId)
+	{
+		if (userId == null) return null;
+		int u = Arrays.binarySearch(userIds, userId);
+		return (u < 0) ? null : userRoleKeys[u];
+	}
+
+	/**
+	 * @return The number of users with an active grant.
+	 */
+	public int getUserCount()
+	{
+		return userIds.length;
+	}
+
+	private boolean isAllowed(int roleKey, int function)
+	{
+		int r = Arrays.binarySearch(roleKeys, roleKey);
+		return (r >= 0) && ((grants[r][function >>> 6] & (1L << function)) != 0);
+	}
+
+	/**
+	 * Collects a realm's role functions and active grants (in any order) to build its RealmPermissions.
+	 */
+	public static class Builder
+	{
+		private final Map<Integer, List<String>> roleFunctions = new TreeMap<Integer, List<String>>();
+
+		private final Map<String, Integer> users = new TreeMap<String, Integer>();
+
+		/**
+		 * Record that a role is allowed a function.
+		 */
+		public Builder addFunction(int roleKey, String function)
+		{
+			if (function == null) return this;
+			List<String> functions = roleFunctions.get(roleKey);
+			if (functions == null)
+			{
+				functions = new ArrayList<String>();
+				roleFunctions.put(roleKey, functions);
+			}
+			functions.add(function.intern());
+			return this;
+		}
+
+		/**
+		 * Record a user's active grant of a role.
+		 */
+		public Builder addUser(String userId, int roleKey)
+		{
+			if (userId != null) users.put(userId, roleKey);
+			return this;
+		}
+
+		public RealmPermissions build()
+		{
+			TreeSet<String> allFunctions = new TreeSet<String>();
+			for (List<String> functions : roleFunctions.values())
+			{
+				allFunctions.addAll(functions);
+			}
+			String[] functions = allFunctions.toArray(new String[allFunctions.size()]);
+
+			int[] roleKeys = new int[roleFunctions.size()];
+			long[][] grants = new long[roleFunctions.size()][];
+			int r = 0;
+			for (Map.Entry<Integer, List<String>> role : roleFunctions.entrySet())
+			{
+				roleKeys[r] = role.getKey();
+				grants[r] = new long[(functions.length + 63) >>> 6];
+				for (String function : role.getValue())
+				{
+					int f = Arrays.binarySearch(functions, function);
+					grants[r][f >>> 6] |= (1L << f);
+				}
+				r++;
+			}
+
+			String[] userIds = users.keySet().toArray(new String[users.size()]);
+			int[] userRoleKeys = new int[userIds.length];
+			int u = 0;
+			for (Integer roleKey : users.values())
+			{
+				userRoleKeys[u++] = roleKey;
+			}
+
+			return new RealmPermissions(functions, roleKeys, grants, userIds, userRoleKeys);
+		}
+	}
+}
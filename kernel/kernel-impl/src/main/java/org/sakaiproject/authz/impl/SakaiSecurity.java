@@ -170,6 +170,17 @@ public abstract class SakaiSecurity implements SecurityService, Observer
 			m_callCache = memoryService().getCache("org.sakaiproject.authz.api.SecurityService.cache");
 			m_superCache = memoryService().getCache("org.sakaiproject.authz.api.SecurityService.superCache");
 			m_contentCache = memoryService().getCache("org.sakaiproject.authz.api.SecurityService.contentCache");
+
+			// the index only sees the entries added here, other servers' entries in a distributed cache would be missed
+			if (m_callCache != null && !m_callCache.isDistributed()
+					&& serverConfigurationService.getBoolean("memory.SecurityService.index", false)) {
+				m_cacheIndex = new SecurityCacheIndex();
+				m_callCache.registerCacheEventListener(m_cacheIndex);
+				if (m_contentCache != null && !m_contentCache.isDistributed()) {
+					m_contentCache.registerCacheEventListener(m_cacheIndex);
+					m_contentIndexed = true;
+				}
+			}
 		}
         eventTrackingService().addObserver(this);
 	}
@@ -184,6 +195,15 @@ public abstract class SakaiSecurity implements SecurityService, Observer
      * Only used in the new caching system
      */
     Cache m_contentCache;
+    /**
+     * Index of the unlock cache keys by realm and user, for precise invalidation
+     * null unless memory.SecurityService.index=true and the cache is not distributed
+     */
+    SecurityCacheIndex m_cacheIndex;
+    /**
+     * true if the content cache entries are in the index as well
+     */
+    boolean m_contentIndexed = false;
 
     /**
      * KNL-1230
@@ -246,6 +266,62 @@ public abstract class SakaiSecurity implements SecurityService, Observer
         }
     }
 
+    /**
+     * Add a permission check to the cache, and to the index of keys by realm and user
+     *
+     * @param key the cache key (generated using makeCacheKey)
+     * @param payload true if the permission is granted, false if not
+     * @param userId the user the check was made for
+     * @param function the permission checked
+     * @param realmRef the reference at the end of the key
+     */
+    void addToCache(String key, Boolean payload, String userId, String function, String realmRef) {
+        addToCache(key, payload, false);
+        if (m_cacheIndex != null && key != null && (m_contentIndexed || !key.contains("@/content"))) {
+            m_cacheIndex.add(key, userId, realmRef, function);
+        }
+    }
+
+    /**
+     * Get an unlock check from the cache, counting the hit or miss for the realm when the cache is indexed
+     *
+     * @param key the cache key (generated using makeCacheKey)
+     * @param keyRef the reference at the end of the key (see cacheKeyRef)
+     * @return boolean value if found, null if not found in the cache
+     */
+    Boolean getFromCache(String key, String keyRef) {
+        final Boolean value = getFromCache(key, false);
+        if (m_cacheIndex != null && keyRef != null) {
+            if (value != null) m_cacheIndex.hit(keyRef); else m_cacheIndex.miss(keyRef);
+        }
+        return value;
+    }
+
+    /**
+     * @return the reference an unlock cache key ended up with (see makeCacheKey), or null if there is no key
+     */
+    String cacheKeyRef(String key, String userId, String role, String function) {
+        if (key == null) return null;
+        return key.substring(("unlock@" + userId + "@" + (role == null ? "" : role) + "@" + function + "@").length());
+    }
+
+    /**
+     * Clear the unlock cache entirely (and its index)
+     */
+    void clearCallCache() {
+        m_callCache.clear();
+        if (m_cacheIndex != null) m_cacheIndex.clear();
+    }
+
+    /**
+     * Statistics of the unlock cache for a realm, only when the cache is indexed
+     * @param realmRef the realm reference (e.g. /site/123)
+     * @return { hits, misses, invalidations, cached entries } or null if not known
+     */
+    public long[] getCacheStatistics(String realmRef) {
+        return (m_cacheIndex == null) ? null : m_cacheIndex.getRealmStatistics(realmRef);
+    }
+
     /* KNL-1230: expiration happens based on the following plan:
     if (user.template, site.helper, etc. change) then clear entire security cache
     else if the perms in a site changes we loop through all possible site users and the changed permissions and remove all those entries from the cache (including the entry for the anon user - e.g. unlock@@...)
@@ -253,6 +329,8 @@ public abstract class SakaiSecurity implements SecurityService, Observer
     else if a user is added/removed from super user status then update the cache entry (easiest to simply make sure we update the cache when this happens rather than invalidating)
     NOTES:
     Cache keys are: unlock@{userId}@{perm}@{realm} AND super@{userId}
+    UPDATE: unless the cache is distributed, the keys are now also indexed by realm and user (SecurityCacheIndex),
+    so the keys to remove come from the index rather than from looping through the site users and permissions
     This strategy eliminates the need to store the invalidation keys and is much simpler to code
     There is a very good chance many of those would not be in the cache but that should not cause a problem (however if it proves to be problematic we could do key checks to cut those down, but I don't think that is actually more efficient)
     Getting all possible perms is cheap, that's in memory already
@@ -278,7 +356,7 @@ public abstract class SakaiSecurity implements SecurityService, Observer
             ) {
                 if (permissions != null && !permissions.isEmpty()) {
                     // when the !site.helper or !user.template change then we need to just wipe the entire cache, this is a rare event
-                    m_callCache.clear();
+                    clearCallCache();
                     if (cacheDebug) M_log.info("SScache:changed template:CLEAR:"+ref);
                     return true;
                 }
@@ -292,9 +370,8 @@ public abstract class SakaiSecurity implements SecurityService, Observer
                 return true;
 
             } else if (ref.startsWith("/content")) {
-                // content realms require special handling
-                // WARNING: this is handled in a simple but not very efficient way, should be improved later
-                m_contentCache.clear();
+                // content realms require special handling, a realm covers everything below it
+                cacheContentRealmChanged(ref);
                 if (cacheDebug) M_log.info("SScache:changed content:CLEAR CONTENT:"+ref);
                 return true;
 
@@ -321,14 +398,14 @@ public abstract class SakaiSecurity implements SecurityService, Observer
             String ref = convertRealmRefToRef(azgReference); // strip off /realm/ from start
             if (ref.startsWith("/content")) {
                 // content realms require special handling
-                // WARNING: this is handled in a simple but not very efficient way, should be improved later
-                m_contentCache.clear();
+                cacheContentRealmChanged(ref);
                 if (cacheDebug) M_log.info("SScache:removed content:CLEAR CONTENT:"+ref);
                 return true;
 
             } else {
                 // we only process the event change when there are changed permissions
                 cacheRealmPermsChanged(ref, null, null);
+                if (m_cacheIndex != null) m_cacheIndex.removeRealm(ref);
                 return true;
             }
         }
@@ -359,6 +436,36 @@ public abstract class SakaiSecurity implements SecurityService, Observer
     }
     */
 
+    /**
+     * Flush out the content unlock checks for a content realm and everything below it
+     * (the whole content cache when it is not indexed)
+     * @param contentRef the content reference of the realm (e.g. /content/group/123/folder/)
+     */
+    void cacheContentRealmChanged(String contentRef) {
+        if (m_contentIndexed) {
+            Set<String> keysToInvalidate = m_cacheIndex.keysForRealmPrefix(contentRef);
+            m_contentCache.removeAll(keysToInvalidate);
+            m_cacheIndex.removeAll(keysToInvalidate);
+        } else {
+            m_contentCache.clear();
+        }
+    }
+
+    /**
+     * Flush out all the unlock checks cached for a user, only possible when the cache is indexed
+     * @param userId the internal sakai user ID
+     * @return true if the entries were flushed, false if the cache is not indexed
+     */
+    public boolean notifyUserChanged(String userId) {
+        if (m_cacheIndex == null || userId == null) return false;
+        Set<String> keysToInvalidate = m_cacheIndex.keysForUser(userId);
+        m_callCache.removeAll(keysToInvalidate);
+        if (m_contentIndexed) m_contentCache.removeAll(keysToInvalidate);
+        m_cacheIndex.removeAll(keysToInvalidate);
+        if (cacheDebug) M_log.info("SScache:changed user "+userId+":keys="+keysToInvalidate);
+        return true;
+    }
+
     /**
      * KNL-1230
      * Flush out unlock check caches based on changes to the permissions in an AuthzGroup
@@ -369,6 +476,14 @@ public abstract class SakaiSecurity implements SecurityService, Observer
     void cacheRealmPermsChanged(String realmRef, Set<String> roles, Set<String> permissions) {
         if (m_callCache == null) return; // do nothing if no cache in use
         String azgRef = convertRealmRefToRef(realmRef);
+        if (m_cacheIndex != null) {
+            // the index knows exactly which checks were cached for this realm, whatever the role (.auth and .anon included)
+            Set<String> keysToInvalidate = m_cacheIndex.keysForRealm(azgRef, permissions);
+            m_callCache.removeAll(keysToInvalidate);
+            m_cacheIndex.removeAll(keysToInvalidate);
+            if (cacheDebug) M_log.info("SScache:changed "+azgRef+":indexed keys="+keysToInvalidate);
+            return; // SHORT CIRCUIT
+        }
         if (permissions == null || permissions.isEmpty()) {
             List<String> allPerms = functionManager().getRegisteredFunctions();
             permissions = new HashSet<String>(allPerms);
@@ -396,7 +511,7 @@ public abstract class SakaiSecurity implements SecurityService, Observer
              * it could mean any possible user in the system so we cannot know which keys to invalidate.
              * We have to just flush the entire cache
              */
-            m_callCache.clear();
+            clearCallCache();
             if (cacheDebug) M_log.info("SScache:changed .auth:CLEAR and DONE");
             return; // SHORT CIRCUIT
         }
@@ -771,10 +886,11 @@ public abstract class SakaiSecurity implements SecurityService, Observer
 
 		// check the cache
 		String command = makeCacheKey(userId, roleswap, function, entityRef, false);
-		
+		String keyRef = cacheKeyRef(command, userId, roleswap, function);
+
 		if (m_callCache != null)
 		{
-			final Boolean value = getFromCache(command, false);
+			final Boolean value = getFromCache(command, keyRef);
 			if(value != null) return value.booleanValue();
 		}
 
@@ -782,7 +898,7 @@ public abstract class SakaiSecurity implements SecurityService, Observer
 		boolean rv = authzGroupService().isAllowed(userId, function, azgs);
 
 		// cache
-		addToCache(command, rv, false);
+		addToCache(command, rv, userId, function, keyRef);
 
 		return rv;
 	}
@@ -822,6 +938,205 @@ public abstract class SakaiSecurity implements SecurityService, Observer
 		return users;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	public Map<String, Boolean> unlockForUsers(Collection<String> userIds, String function, String entityRef)
+	{
+		Map<String, Boolean> rv = new HashMap<String, Boolean>();
+		if (userIds == null) return rv;
+		if (function == null || entityRef == null)
+		{
+			M_log.warn("unlockForUsers(): null: " + function + " " + entityRef);
+			for (String userId : userIds)
+			{
+				if (userId != null) rv.put(userId, Boolean.FALSE);
+			}
+			return rv;
+		}
+
+		String currentUserId = sessionManager().getCurrentSessionUserId();
+		boolean advisors = hasAdvisors();
+		Reference ref = entityManager().newReference(entityRef);
+
+		// the users not answered by the cache, grouped by the AuthzGroups to check (the same for everyone unless the
+		// entity has per user AuthzGroups), and their cache keys
+		Map<Set<String>, List<String>> misses = new HashMap<Set<String>, List<String>>();
+		Map<String, String> keys = new HashMap<String, String>();
+
+		for (String userId : userIds)
+		{
+			if (userId == null || rv.containsKey(userId)) continue;
+
+			if (isSuperUser(userId))
+			{
+				rv.put(userId, Boolean.TRUE);
+				continue;
+			}
+
+			if (advisors)
+			{
+				SecurityAdvisor.SecurityAdvice advice = adviseIsAllowed(userId, function, entityRef);
+				if (advice != SecurityAdvisor.SecurityAdvice.PASS)
+				{
+					rv.put(userId, advice == SecurityAdvisor.SecurityAdvice.ALLOWED);
+					continue;
+				}
+			}
+
+			// the current user may have a role swap in effect, which only the single check knows about
+			if (userId.equals(currentUserId))
+			{
+				rv.put(userId, checkAuthzGroups(userId, function, entityRef, null));
+				continue;
+			}
+
+			String command = makeCacheKey(userId, null, function, entityRef, false);
+			if (m_callCache != null)
+			{
+				final Boolean value = getFromCache(command, cacheKeyRef(command, userId, null, function));
+				if (value != null)
+				{
+					rv.put(userId, value);
+					continue;
+				}
+			}
+
+			Set<String> azgs = new HashSet<String>(ref.getAuthzGroups(userId));
+			List<String> users = misses.get(azgs);
+			if (users == null)
+			{
+				users = new ArrayList<String>();
+				misses.put(azgs, users);
+			}
+			users.add(userId);
+			keys.put(userId, command);
+		}
+
+		// resolve the misses together, and cache the answers
+		for (Map.Entry<Set<String>, List<String>> miss : misses.entrySet())
+		{
+			Set<String> allowed = authzGroupService().getUsersIsAllowed(miss.getValue(), function, miss.getKey());
+			for (String userId : miss.getValue())
+			{
+				boolean isAllowed = allowed.contains(userId);
+				rv.put(userId, isAllowed);
+				String command = keys.get(userId);
+				addToCache(command, isAllowed, userId, function, cacheKeyRef(command, userId, null, function));
+			}
+		}
+
+		if (M_log.isDebugEnabled())
+			M_log.debug("unlockForUsers(): " + function + " " + entityRef + " users=" + rv.size() + " misses=" + keys.size());
+
+		return rv;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Map<String, Boolean> unlockForReferences(String userId, String function, Collection<String> entityRefs)
+	{
+		Map<String, Boolean> rv = new HashMap<String, Boolean>();
+		if (entityRefs == null) return rv;
+		if (userId == null || function == null)
+		{
+			M_log.warn("unlockForReferences(): null: " + userId + " " + function);
+			for (String entityRef : entityRefs)
+			{
+				if (entityRef != null) rv.put(entityRef, Boolean.FALSE);
+			}
+			return rv;
+		}
+
+		boolean isSuper = isSuperUser(userId);
+		boolean advisors = hasAdvisors();
+		// role swap and delegated access only apply to the current user, and only the single check knows about them
+		boolean roleAdjusted = userId.equals(sessionManager().getCurrentSessionUserId()) && isSessionRoleAdjusted();
+
+		// the references not answered by the cache, with their AuthzGroups and cache keys
+		Map<String, Collection<String>> misses = new HashMap<String, Collection<String>>();
+		Map<String, String> keys = new HashMap<String, String>();
+		Set<String> allAzgs = new HashSet<String>();
+
+		for (String entityRef : entityRefs)
+		{
+			if (entityRef == null || rv.containsKey(entityRef)) continue;
+
+			if (isSuper)
+			{
+				rv.put(entityRef, Boolean.TRUE);
+				continue;
+			}
+
+			if (advisors)
+			{
+				SecurityAdvisor.SecurityAdvice advice = adviseIsAllowed(userId, function, entityRef);
+				if (advice != SecurityAdvisor.SecurityAdvice.PASS)
+				{
+					rv.put(entityRef, advice == SecurityAdvisor.SecurityAdvice.ALLOWED);
+					continue;
+				}
+			}
+
+			if (roleAdjusted)
+			{
+				rv.put(entityRef, checkAuthzGroups(userId, function, entityRef, null));
+				continue;
+			}
+
+			String command = makeCacheKey(userId, null, function, entityRef, false);
+			if (m_callCache != null)
+			{
+				final Boolean value = getFromCache(command, cacheKeyRef(command, userId, null, function));
+				if (value != null)
+				{
+					rv.put(entityRef, value);
+					continue;
+				}
+			}
+
+			Collection<String> azgs = entityManager().newReference(entityRef).getAuthzGroups(userId);
+			misses.put(entityRef, azgs);
+			keys.put(entityRef, command);
+			allAzgs.addAll(azgs);
+		}
+
+		// resolve the misses together, each reference against its own AuthzGroups as a single unlock would
+		if (!misses.isEmpty())
+		{
+			Set<String> allowed = allAzgs.isEmpty() ? Collections.<String>emptySet()
+					: authzGroupService().getAuthzGroupSetsIsAllowed(userId, function, misses);
+			for (Map.Entry<String, Collection<String>> miss : misses.entrySet())
+			{
+				boolean isAllowed = allowed.contains(miss.getKey());
+				rv.put(miss.getKey(), isAllowed);
+				String command = keys.get(miss.getKey());
+				addToCache(command, isAllowed, userId, function, cacheKeyRef(command, userId, null, function));
+			}
+		}
+
+		if (M_log.isDebugEnabled())
+			M_log.debug("unlockForReferences(): " + userId + " " + function + " refs=" + rv.size() + " misses=" + misses.size());
+
+		return rv;
+	}
+
+	/**
+	 * @return true if the current session has a role swap or delegated access in effect
+	 */
+	protected boolean isSessionRoleAdjusted()
+	{
+		Session session = sessionManager().getCurrentSession();
+		if (session == null) return false;
+		if (session.getAttribute("delegatedaccess.accessmapflag") != null) return true;
+		for (Enumeration<String> e = session.getAttributeNames(); e.hasMoreElements();)
+		{
+			if (e.nextElement().startsWith(ROLESWAP_PREFIX)) return true;
+		}
+		return false;
+	}
+
 	/**********************************************************************************************************************************************************************************************************************************************************
 	 * SecurityAdvisor Support
 	 *********************************************************************************************************************************************************************************************************************************************************/
@@ -1037,7 +1352,12 @@ public abstract class SakaiSecurity implements SecurityService, Observer
 
 		Event event = (Event) obj;
 		
-		if (SiteService.EVENT_SITE_USER_INVALIDATE.equals(event.getEvent()))
+		if (UserDirectoryService.SECURE_REMOVE_USER.equals(event.getEvent()) && event.getResource() != null)
+		{
+			// the resource is /user/{id}
+			notifyUserChanged(event.getResource().substring(event.getResource().lastIndexOf(Entity.SEPARATOR) + 1));
+		}
+		else if (SiteService.EVENT_SITE_USER_INVALIDATE.equals(event.getEvent()))
 		{
 			Site site = null;
 			try {
@@ -0,0 +1,314 @@
+/******************************************************************************
+ * $URL$
+ * $Id$
+ ******************************************************************************
+ *
+ * Copyright (c) 2003-2016 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *       http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *****************************************************************************/
+
+package org.sakaiproject.authz.impl;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.sakaiproject.memory.api.CacheEventListener;
+
+/**
+ * Secondary index of the SakaiSecurity unlock cache keys, by realm and by user, so a realm or user change only removes the
+ * entries it affects instead of computing every member x permission key (or clearing the whole cache).
+ * <p>
+ * Entries are indexed when SakaiSecurity caches them and forgotten when the cache reports them expired, evicted or removed.
+ * The index only knows about the entries added by this server, so it must not be used to invalidate a distributed cache.
+ * A realm is only known while it has indexed keys, so its statistics go with its last key.
+ * </p>
+ */
+public class SecurityCacheIndex implements CacheEventListener<String, Object>
+{
+	/** Realm and user of each indexed key. */
+	private final Map<String, IndexedKey> keys = new ConcurrentHashMap<String, IndexedKey>();
+
+	/** Keys and statistics, by realm reference. */
+	private final Map<String, RealmEntry> realms = new ConcurrentHashMap<String, RealmEntry>();
+
+	/** Keys, by user id. */
+	private final Map<String, Set<String>> users = new ConcurrentHashMap<String, Set<String>>();
+
+	/**
+	 * Index a cache key.
+	 *
+	 * @param key
+	 *        The cache key.
+	 * @param userId
+	 *        The user it was computed for (may be null for the anonymous user).
+	 * @param realmRef
+	 *        The realm reference in the key.
+	 * @param function
+	 *        The function in the key.
+	 */
+	public void add(String key, String userId, String realmRef, String function)
+	{
+		if (key == null || realmRef == null) return;
+
+		IndexedKey indexed = new IndexedKey(userId, realmRef, function);
+		if (keys.put(key, indexed) != null) return;
+
+		// added and removed under the map's lock for the realm (and user), so a key never goes to an entry being dropped
+		realms.compute(realmRef, (ref, realm) -> {
+			if (realm == null) realm = new RealmEntry();
+			realm.keys.add(key);
+			return realm;
+		});
+		if (userId != null)
+		{
+			users.compute(userId, (id, userKeys) -> {
+				if (userKeys == null) userKeys = ConcurrentHashMap.newKeySet();
+				userKeys.add(key);
+				return userKeys;
+			});
+		}
+	}
+
+	/**
+	 * Forget a cache key.
+	 */
+	public void remove(String key)
+	{
+		IndexedKey indexed = keys.remove(key);
+		if (indexed == null) return;
+
+		realms.computeIfPresent(indexed.realmRef, (ref, realm) -> {
+			realm.keys.remove(key);
+			return realm.keys.isEmpty() ? null : realm;
+		});
+		if (indexed.userId != null)
+		{
+			users.computeIfPresent(indexed.userId, (id, userKeys) -> {
+				userKeys.remove(key);
+				return userKeys.isEmpty() ? null : userKeys;
+			});
+		}
+	}
+
+	/**
+	 * Forget these cache keys.
+	 */
+	public void removeAll(Collection<String> keysToRemove)
+	{
+		for (String key : keysToRemove)
+		{
+			remove(key);
+		}
+	}
+
+	/**
+	 * Forget everything (the cache was cleared), statistics included.
+	 */
+	public void clear()
+	{
+		keys.clear();
+		realms.clear();
+		users.clear();
+	}
+
+	/**
+	 * The cached keys for a realm.
+	 *
+	 * @param realmRef
+	 *        The realm reference.
+	 * @param functions
+	 *        Only the keys for these functions, null or empty for all.
+	 * @return The keys, counted as invalidated for the realm.
+	 */
+	public Set<String> keysForRealm(String realmRef, Set<String> functions)
+	{
+		Set<String> rv = new HashSet<String>();
+		RealmEntry realm = realms.get(realmRef);
+		if (realm == null) return rv;
+
+		boolean allFunctions = (functions == null || functions.isEmpty());
+		for (String key : realm.keys)
+		{
+			IndexedKey indexed = keys.get(key);
+			if (indexed != null && (allFunctions || functions.contains(indexed.function)))
+			{
+				rv.add(key);
+			}
+		}
+		realm.invalidations.addAndGet(rv.size());
+		return rv;
+	}
+
+	/**
+	 * The cached keys for all the realms starting with this prefix (a content collection covers everything below it).
+	 *
+	 * @param realmRefPrefix
+	 *        The start of the realm references.
+	 * @return The keys, counted as invalidated for their realms.
+	 */
+	public Set<String> keysForRealmPrefix(String realmRefPrefix)
+	{
+		Set<String> rv = new HashSet<String>();
+		for (Map.Entry<String, RealmEntry> realm : realms.entrySet())
+		{
+			if (realm.getKey().startsWith(realmRefPrefix))
+			{
+				rv.addAll(keysForRealm(realm.getKey(), null));
+			}
+		}
+		return rv;
+	}
+
+	/**
+	 * The cached keys for a user.
+	 *
+	 * @param userId
+	 *        The user id.
+	 * @return The keys, counted as invalidated for their realms.
+	 */
+	public Set<String> keysForUser(String userId)
+	{
+		Set<String> rv = new HashSet<String>();
+		Set<String> userKeys = (userId == null) ? null : users.get(userId);
+		if (userKeys == null) return rv;
+
+		for (String key : userKeys)
+		{
+			IndexedKey indexed = keys.get(key);
+			if (indexed != null)
+			{
+				rv.add(key);
+				RealmEntry realm = realms.get(indexed.realmRef);
+				if (realm != null) realm.invalidations.incrementAndGet();
+			}
+		}
+		return rv;
+	}
+
+	/**
+	 * Forget a realm altogether (the realm was removed), statistics included.
+	 *
+	 * @return The keys that were indexed for it.
+	 */
+	public Set<String> removeRealm(String realmRef)
+	{
+		Set<String> rv = keysForRealm(realmRef, null);
+		removeAll(rv);
+		realms.remove(realmRef);
+		return rv;
+	}
+
+	/**
+	 * Count a cache hit on a realm, if it has indexed keys.
+	 */
+	public void hit(String realmRef)
+	{
+		RealmEntry realm = realms.get(realmRef);
+		if (realm != null) realm.hits.incrementAndGet();
+	}
+
+	/**
+	 * Count a cache miss on a realm, if it has indexed keys (checks that are never cached are not tracked).
+	 */
+	public void miss(String realmRef)
+	{
+		RealmEntry realm = realms.get(realmRef);
+		if (realm != null) realm.misses.incrementAndGet();
+	}
+
+	/**
+	 * @return the statistics for a realm: { hits, misses, invalidations, cached entries }, null if it is not known.
+	 */
+	public long[] getRealmStatistics(String realmRef)
+	{
+		RealmEntry realm = (realmRef == null) ? null : realms.get(realmRef);
+		if (realm == null) return null;
+		return new long[] { realm.hits.get(), realm.misses.get(), realm.invalidations.get(), realm.keys.size() };
+	}
+
+	/**
+	 * @return the number of realms with indexed keys.
+	 */
+	public int realmCount()
+	{
+		return realms.size();
+	}
+
+	/**
+	 * @return the number of keys indexed.
+	 */
+	public int size()
+	{
+		return keys.size();
+	}
+
+	/*
+	 * CacheEventListener: keep the index in line with what the cache drops on its own
+	 */
+
+	public boolean evaluate(CacheEntryEvent<? extends String, ? extends Object> event)
+	{
+		return true;
+	}
+
+	public void onCreated(Iterable<CacheEntryEvent<? extends String, ? extends Object>> events)
+	{
+		// indexed by add()
+	}
+
+	public void onUpdated(Iterable<CacheEntryEvent<? extends String, ? extends Object>> events)
+	{
+		// same key, nothing to do
+	}
+
+	public void onExpired(Iterable<CacheEntryEvent<? extends String, ? extends Object>> events)
+	{
+		onRemoved(events);
+	}
+
+	public void onRemoved(Iterable<CacheEntryEvent<? extends String, ? extends Object>> events)
+	{
+		for (CacheEntryEvent<? extends String, ? extends Object> event : events)
+		{
+			remove(event.getKey());
+		}
+	}
+
+	private static class IndexedKey
+	{
+		final String userId;
+		final String realmRef;
+		final String function;
+
+		IndexedKey(String userId, String realmRef, String function)
+		{
+			this.userId = userId;
+			this.realmRef = realmRef;
+			this.function = function;
+		}
+	}
+
+	private static class RealmEntry
+	{
+		final Set<String> keys = ConcurrentHashMap.newKeySet();
+		final AtomicLong hits = new AtomicLong(0);
+		final AtomicLong misses = new AtomicLong(0);
+		final AtomicLong invalidations = new AtomicLong(0);
+	}
+}
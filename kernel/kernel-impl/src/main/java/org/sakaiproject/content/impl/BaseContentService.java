@@ -21,7 +21,6 @@
 
 package org.sakaiproject.content.impl;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -32,10 +31,14 @@ import java.io.UnsupportedEncodingException;
 import java.net.SocketException;
 import java.net.URI;
 import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
@@ -5587,6 +5590,20 @@ SiteContentAdvisorProvider, SiteContentAdvisorTypeRegistry, EntityTransferrerRef
 	    return copyResource(resource, new_id, false);
 	}
 
+	/**
+	 * Give a new resource the body of another without reading it, where the storage can share bodies.
+	 * 
+	 * @param source
+	 *        The resource whose body is copied.
+	 * @param edit
+	 *        The new resource.
+	 * @return true if the edit now shares the source's body, false if the caller must copy the content.
+	 */
+	protected boolean shareResourceBody(ContentResource source, ContentResourceEdit edit)
+	{
+		return false;
+	}
+
 	/**
 	 * Copy a resource with an option to do a reference copy
 	 * 
@@ -5668,6 +5685,8 @@ SiteContentAdvisorProvider, SiteContentAdvisorTypeRegistry, EntityTransferrerRef
 				    // do a reference copy so the actual content is not duplicated
 				    ((BaseResourceEdit)edit).setReferenceCopy(resource.getId());
                     if (M_log.isDebugEnabled()) M_log.debug("copyResource doing a reference copy of "+resource.getId());
+				} else if (shareResourceBody(resource, edit)) {
+                    if (M_log.isDebugEnabled()) M_log.debug("copyResource sharing the stored content of "+resource.getId());
 				} else {
 	                // use stream instead of byte array
 	                // edit.setContent(resource.getContent());
@@ -7051,21 +7070,41 @@ SiteContentAdvisorProvider, SiteContentAdvisorTypeRegistry, EntityTransferrerRef
 					contentType = contentType + "; charset=" + encoding;
 				}
 
-				// KNL-1316 let's see if the user already has a cached copy. Code copied and modified from Tomcat DefaultServlet.java
-				long headerValue = req.getDateHeader("If-Modified-Since");
-				if (headerValue != -1 && (lastModTime < headerValue + 1000)) {
-					// The entity has not been modified since the date specified by the client. This is not an error case.
-					res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
-					return; 
+				// the version of the file the browser gets, so it can revalidate (If-None-Match) or resume (If-Range) with it
+				String eTag = null;
+				if (lastModTime > 0) {
+					eTag = getETag(len, lastModTime);
+					res.addHeader("ETag", eTag);
+				}
+
+				String ifNoneMatch = req.getHeader("If-None-Match");
+				if (ifNoneMatch != null) {
+					// If-None-Match takes precedence over If-Modified-Since
+					if (eTag != null && eTagMatches(ifNoneMatch, eTag)) {
+						res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+						return;
+					}
+				} else {
+					// KNL-1316 let's see if the user already has a cached copy. Code copied and modified from Tomcat DefaultServlet.java
+					long headerValue = req.getDateHeader("If-Modified-Since");
+					if (headerValue != -1 && (lastModTime < headerValue + 1000)) {
+						// The entity has not been modified since the date specified by the client. This is not an error case.
+						res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+						return; 
+					}
 				}
 
 				// If there is a direct link to the asset, no sense streaming it.
 				// Send the asset directly to the load-balancer or to the client
 				URI directLinkUri = m_storage.getDirectLink(resource);
 
-				ArrayList<Range> ranges = parseRange(req, res, len);
+				ArrayList<Range> ranges = parseRange(req, res, len, eTag, lastModTime);
+				if (res.isCommitted()) {
+					// the range could not be satisfied, and the error has been sent
+					return;
+				}
 				if (directLinkUri != null || req.getHeader("Range") == null || (ranges == null) || (ranges.isEmpty())) {
-					res.addHeader("Accept-Ranges", "none");
+					res.addHeader("Accept-Ranges", (directLinkUri == null) ? "bytes" : "none");
 					res.setContentType(contentType);
 					res.addHeader("Content-Disposition", disposition);
 					// http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=4187336
@@ -8318,7 +8357,10 @@ SiteContentAdvisorProvider, SiteContentAdvisorTypeRegistry, EntityTransferrerRef
 								ContentResourceEdit edit = addResource(nId);
 								edit.setContentType(((ContentResource) oResource).getContentType());
 								edit.setResourceType(((ContentResource) oResource).getResourceType());
-								edit.setContent(((ContentResource) oResource).streamContent());
+								if (!shareResourceBody((ContentResource) oResource, edit))
+								{
+									edit.setContent(((ContentResource) oResource).streamContent());
+								}
 								edit.setAvailability(((ContentResource) oResource).isHidden(), ((ContentResource) oResource).getReleaseDate(), ((ContentResource) oResource).getRetractDate());
 								//edit.setContent(((ContentResource) oResource).getContent());
 								// import properties
@@ -13942,47 +13984,57 @@ SiteContentAdvisorProvider, SiteContentAdvisorTypeRegistry, EntityTransferrerRef
                                 HttpServletResponse response,
                                 long fileLength)
         throws IOException {
+        return parseRange(request, response, fileLength, null, 0);
+    }
+
+    /**
+     * Parse the range header, honouring If-Range.
+     *
+     * @param request The servlet request we are processing
+     * @param response The servlet response we are creating
+     * @param fileLength The length of the entity
+     * @param eTag The entity tag of the entity (null if it has none)
+     * @param lastModified The last modification time of the entity (0 if not known)
+     * @return The ranges, sorted and with overlapping or adjacent ranges merged, null if the whole entity should be returned
+     */
+    protected ArrayList<Range> parseRange(HttpServletRequest request,
+                                HttpServletResponse response,
+                                long fileLength, String eTag, long lastModified)
+        throws IOException {
 
-    	/* Commented out pending implementation of last-modified / if-modified.
-    	 * See http://jira.sakaiproject.org/jira/browse/SAK-3916
-    	
         // Checking If-Range
 
-    	String headerValue = request.getHeader("If-Range");
+        String headerValue = request.getHeader("If-Range");
 
         if (headerValue != null) {
 
-            long headerValueTime = (-1L);
-            try {
-                headerValueTime = request.getDateHeader("If-Range");
-            } catch (Exception e) {
-                ;
-            }
-
-            String eTag = getETag(resourceAttributes);
-            long lastModified = resourceAttributes.getLastModified();
+            headerValue = headerValue.trim();
 
-            if (headerValueTime == (-1L)) {
+            if (headerValue.startsWith("\"") || headerValue.startsWith("W/")) {
 
                 // If the ETag the client gave does not match the entity
-                // etag, then the entire entity is returned.
-                if (!eTag.equals(headerValue.trim()))
-                    return FULL;
+                // etag (strong comparison), then the entire entity is returned.
+                if (eTag == null || !eTag.equals(headerValue))
+                    return null;
 
             } else {
 
                 // If the timestamp of the entity the client got is older than
                 // the last modification date of the entity, the entire entity
                 // is returned.
-                if (lastModified > (headerValueTime + 1000))
-                    return FULL;
+                long headerValueTime = (-1L);
+                try {
+                    headerValueTime = request.getDateHeader("If-Range");
+                } catch (IllegalArgumentException e) {
+                    ;
+                }
+                if (headerValueTime == (-1L) || lastModified <= 0 || lastModified > (headerValueTime + 1000))
+                    return null;
 
             }
 
         }
-        
-    	*/
-    	
+
         if (fileLength == 0)
             return null;
 
@@ -14070,12 +14122,73 @@ SiteContentAdvisorProvider, SiteContentAdvisorTypeRegistry, EntityTransferrerRef
             result.add(currentRange);
         }
 
+        return coalesceRanges(result);
+    }
+
+    /**
+     * Sort the ranges and merge the ones that overlap or are adjacent, so each byte is sent at most once
+     * and a request for many small ranges can not turn into a much larger response.
+     *
+     * @param ranges The ranges as requested
+     * @return The merged ranges, in order
+     */
+    protected ArrayList<Range> coalesceRanges(ArrayList<Range> ranges) {
+        if (ranges.size() < 2)
+            return ranges;
+
+        ArrayList<Range> sorted = new ArrayList<Range>(ranges);
+        Collections.sort(sorted, new Comparator<Range>() {
+            public int compare(Range r1, Range r2) {
+                return Long.compare(r1.start, r2.start);
+            }
+        });
+
+        ArrayList<Range> result = new ArrayList<Range>();
+        Range last = null;
+        for (Range range : sorted) {
+            if (last != null && range.start <= last.end + 1) {
+                last.end = Math.max(last.end, range.end);
+            } else {
+                last = range;
+                result.add(last);
+            }
+        }
         return result;
     }
 
+    /**
+     * @return The (strong) entity tag for a resource body of this length and modification time.
+     */
+    protected String getETag(long length, long lastModified) {
+        return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    /**
+     * Does an If-None-Match header match the entity tag? Uses the weak comparison, as If-None-Match does.
+     *
+     * @param headerValue The If-None-Match header value (* or a comma separated list of entity tags)
+     * @param eTag The entity tag of the resource
+     * @return true if the header matches
+     */
+    protected boolean eTagMatches(String headerValue, String eTag) {
+        if ("*".equals(headerValue.trim()))
+            return true;
+        String opaque = eTag.startsWith("W/") ? eTag.substring(2) : eTag;
+        StringTokenizer commaTokenizer = new StringTokenizer(headerValue, ",");
+        while (commaTokenizer.hasMoreTokens()) {
+            String tag = commaTokenizer.nextToken().trim();
+            if (tag.startsWith("W/"))
+                tag = tag.substring(2);
+            if (tag.equals(opaque))
+                return true;
+        }
+        return false;
+    }
+
     /**
      * Copy the partial contents of the specified input stream to the specified
-     * output stream.
+     * output stream. A file backed body is transferred from its file channel,
+     * with no skipping and no copy buffer on the heap.
      * 
      * @param istream The input stream to read from
      * @param ostream The output stream to write to
@@ -14087,8 +14200,22 @@ SiteContentAdvisorProvider, SiteContentAdvisorTypeRegistry, EntityTransferrerRef
                                   OutputStream ostream,
                                   long start, long end) {
 
-    	try {
-            istream.skip(start);
+        if (istream instanceof FileInputStream) {
+            return copyRange(((FileInputStream) istream).getChannel(), ostream, start, end);
+        }
+
+        // skip may skip less than asked for
+        try {
+            long skipped = 0;
+            while (skipped < start) {
+                long n = istream.skip(start - skipped);
+                if (n <= 0) {
+                    if (istream.read() == -1)
+                        return new IOException("Range start " + start + " is after the end of the content");
+                    n = 1;
+                }
+                skipped += n;
+            }
         } catch (IOException e) {
             return e;
         }
@@ -14096,29 +14223,56 @@ SiteContentAdvisorProvider, SiteContentAdvisorTypeRegistry, EntityTransferrerRef
         IOException exception = null;
         long bytesToRead = end - start + 1;
 
-        byte buffer[] = new byte[STREAM_BUFFER_SIZE];
-        int len = buffer.length;
-        while ( (bytesToRead > 0) && (len >= buffer.length)) {
-            try {
-                len = istream.read(buffer);
-                if (bytesToRead >= len) {
-                    ostream.write(buffer, 0, len);
-                    bytesToRead -= len;
-                } else {
-                    ostream.write(buffer, 0, (int) bytesToRead);
-                    bytesToRead = 0;
-                }
-            } catch (IOException e) {
-                exception = e;
-                len = -1;
+        byte buffer[] = new byte[(int) Math.max(0, Math.min(STREAM_BUFFER_SIZE, bytesToRead))];
+        try {
+            while (bytesToRead > 0) {
+                // read may return less than a full buffer before the end of the stream
+                int len = istream.read(buffer, 0, (int) Math.min(buffer.length, bytesToRead));
+                if (len == -1)
+                    break;
+                ostream.write(buffer, 0, len);
+                bytesToRead -= len;
             }
-            if (len < buffer.length)
-                break;
+        } catch (IOException e) {
+            exception = e;
         }
 
         return exception;
     }
 
+    /**
+     * Copy part of a file to the specified output stream with FileChannel.transferTo,
+     * reading at an absolute position so the channel can be used for several ranges.
+     * 
+     * @param channel The file channel to read from
+     * @param ostream The output stream to write to
+     * @param start Start of the range which will be copied
+     * @param end End of the range which will be copied
+     * @return Exception which occurred during processing
+     */
+    protected IOException copyRange(FileChannel channel,
+                                  OutputStream ostream,
+                                  long start, long end) {
+
+        // not closed, that would close the output stream
+        WritableByteChannel target = Channels.newChannel(ostream);
+        long position = start;
+        long bytesToWrite = end - start + 1;
+        try {
+            while (bytesToWrite > 0) {
+                long written = channel.transferTo(position, bytesToWrite, target);
+                if (written <= 0)
+                    break; // the file is shorter than expected
+                position += written;
+                bytesToWrite -= written;
+            }
+        } catch (IOException e) {
+            return e;
+        }
+
+        return null;
+    }
+
   
     /**
      * Copy the contents of the specified input stream to the specified
@@ -14135,39 +14289,43 @@ SiteContentAdvisorProvider, SiteContentAdvisorTypeRegistry, EntityTransferrerRef
         throws IOException {
 
         IOException exception = null;
-                        
-        while ( (exception == null) && (ranges.hasNext()) ) {
-
-            Range currentRange = (Range) ranges.next();
-                  
-            // Writing MIME header.
-            IOUtils.write("\r\n--" + MIME_SEPARATOR + "\r\n", out);
-            if (contentType != null)
-                IOUtils.write("Content-Type: " + contentType + "\r\n", out);
-            IOUtils.write("Content-Range: bytes " + currentRange.start
-                           + "-" + currentRange.end + "/"
-                           + currentRange.length + "\r\n", out);
-            IOUtils.write("\r\n", out);
-
-            // Printing content
-			InputStream in = null;
-			try {
-				in = content.streamContent();
-			} catch (ServerOverloadException se) {
-				exception = new IOException("ServerOverloadException reported getting inputstream");
-				throw exception;
-			}
-			
-            InputStream istream =
-                new BufferedInputStream(in, STREAM_BUFFER_SIZE);
-          
-            exception = copyRange(istream, out, currentRange.start, currentRange.end);
+        InputStream in = null;
+
+        try {
+            while ( (exception == null) && (ranges.hasNext()) ) {
+
+                Range currentRange = (Range) ranges.next();
+
+                // Writing MIME header.
+                IOUtils.write("\r\n--" + MIME_SEPARATOR + "\r\n", out);
+                if (contentType != null)
+                    IOUtils.write("Content-Type: " + contentType + "\r\n", out);
+                IOUtils.write("Content-Range: bytes " + currentRange.start
+                               + "-" + currentRange.end + "/"
+                               + currentRange.length + "\r\n", out);
+                IOUtils.write("\r\n", out);
+
+                // Printing content: a file channel serves every range, a stream is read again for each
+                if (in != null && !(in instanceof FileInputStream)) {
+                    IOUtils.closeQuietly(in);
+                    in = null;
+                }
+                if (in == null) {
+                    try {
+                        in = content.streamContent();
+                    } catch (ServerOverloadException se) {
+                        exception = new IOException("ServerOverloadException reported getting inputstream");
+                        throw exception;
+                    }
+                    if (in == null) {
+                        throw new IOException("No content for " + content.getId());
+                    }
+                }
 
-            try {
-                istream.close();
-            } catch (IOException e) {
-            	// ignore
+                exception = copyRange(in, out, currentRange.start, currentRange.end);
             }
+        } finally {
+            IOUtils.closeQuietly(in);
         }
 
         IOUtils.write("\r\n--" + MIME_SEPARATOR + "--\r\n", out);
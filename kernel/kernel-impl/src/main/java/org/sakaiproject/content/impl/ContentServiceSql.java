@@ -66,6 +66,26 @@ public interface ContentServiceSql
 	 */
 	String getNumContentResources4Sql();
 
+	/**
+	 * returns the sql statement which retrieves the number of resources in the specified table whose body is stored at a file path.
+	 */
+	String getNumFilePathReferencesSql(String table);
+
+	/**
+	 * returns the sql statement which records that no resource refers to a shared body any more.
+	 */
+	String getInsertReleasedBodySql();
+
+	/**
+	 * returns the sql statement which takes a shared body off the list of bodies waiting to be swept.
+	 */
+	String getDeleteReleasedBodySql();
+
+	/**
+	 * returns the sql statement which retrieves the shared bodies released before a time.
+	 */
+	String getReleasedBodiesSql();
+
 	/**
 	 * returns the sql statement which retrieves resource id from the content_resource table.
 	 */
@@ -91,6 +91,38 @@ public class ContentServiceSqlDefault implements ContentServiceSql
 		return "select count(IN_COLLECTION) from CONTENT_COLLECTION where IN_COLLECTION = ?";
 	}
 
+	/**
+	 * returns the sql statement which retrieves the number of resources in the specified table whose body is stored at a file path.
+	 */
+	public String getNumFilePathReferencesSql(String table)
+	{
+		return "select count(RESOURCE_ID) from " + table + " where FILE_PATH = ?";
+	}
+
+	/**
+	 * returns the sql statement which records that no resource refers to a shared body any more.
+	 */
+	public String getInsertReleasedBodySql()
+	{
+		return "insert into CONTENT_BODY_RELEASED (FILE_PATH, RESOURCE_ID, RELEASED_AT) values (?, ?, ?)";
+	}
+
+	/**
+	 * returns the sql statement which takes a shared body off the list of bodies waiting to be swept.
+	 */
+	public String getDeleteReleasedBodySql()
+	{
+		return "delete from CONTENT_BODY_RELEASED where FILE_PATH = ?";
+	}
+
+	/**
+	 * returns the sql statement which retrieves the shared bodies released before a time.
+	 */
+	public String getReleasedBodiesSql()
+	{
+		return "select FILE_PATH, RESOURCE_ID from CONTENT_BODY_RELEASED where RELEASED_AT < ?";
+	}
+
 	/**
 	 * returns the sql statement which retrieves the resource id from the content_resource table.
 	 */
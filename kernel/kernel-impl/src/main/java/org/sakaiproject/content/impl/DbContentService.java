@@ -24,11 +24,19 @@ package org.sakaiproject.content.impl;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Blob;
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
@@ -42,9 +50,14 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sakaiproject.component.cover.ComponentManager;
@@ -166,6 +179,25 @@ public class DbContentService extends BaseContentService
     /** Property name used in sakai.properties to turn on/off Content Hosting Handler support */
     private static final String CHH_ENABLE_FLAG = "content.useCHH";
 
+    /** Property name used in sakai.properties to store file bodies under the hash of their content */
+    private static final String BODY_DEDUP_FLAG = "content.body.dedup";
+
+    /** File paths of bodies stored under their hash start with this, which sets them apart from the dated paths of unshared bodies. */
+    protected static final String CONTENT_ADDRESSED_PATH = "/sha256/";
+
+    /** If true, identical file bodies are stored once and shared by every resource with that content. */
+    protected boolean m_contentAddressedBodies = false;
+
+    /** Property names used in sakai.properties for how long a released shared body is kept, and how often they are swept, in seconds */
+    private static final String BODY_SWEEP_GRACE = "content.body.dedup.sweep.grace";
+    private static final String BODY_SWEEP_PERIOD = "content.body.dedup.sweep.period";
+
+    /** How long a shared body no resource refers to is kept before it is deleted, in ms. */
+    protected long m_releasedBodyGrace = 3600000L;
+
+    /** Deletes the released shared bodies. */
+    private Timer releasedBodySweepTimer = null;
+
     /*************************************************************************************************************************************************
      * Constructors, Dependencies and their setter methods
      ************************************************************************************************************************************************/
@@ -470,8 +502,25 @@ public class DbContentService extends BaseContentService
                 throw new IllegalStateException("There is no FileSystemHandler set for the ContentService!");
             }
 
+            m_contentAddressedBodies = m_bodyPath != null && m_serverConfigurationService.getBoolean(BODY_DEDUP_FLAG, false);
+
+            // shared bodies may remain from when the flag was on, so they are swept while the table to track them is there
+            if (m_contentAddressedBodies || (m_bodyPath != null && releasedBodyTableExists()))
+            {
+                m_releasedBodyGrace = m_serverConfigurationService.getInt(BODY_SWEEP_GRACE, 3600) * 1000L;
+                long period = m_serverConfigurationService.getInt(BODY_SWEEP_PERIOD, 3600) * 1000L;
+                releasedBodySweepTimer = new Timer("content-body-sweep", true);
+                releasedBodySweepTimer.schedule(new TimerTask()
+                {
+                    public void run()
+                    {
+                        sweepReleasedBodies();
+                    }
+                }, period, period);
+            }
+
             M_log.info("init(): tables: " + m_collectionTableName + " " + m_resourceTableName + " " + m_resourceBodyTableName + " "
-                    + m_groupTableName + " locks-in-db: " + m_locksInDb + " bodyPath: " + m_bodyPath + " storage: " + m_storage);
+                    + m_groupTableName + " locks-in-db: " + m_locksInDb + " bodyPath: " + m_bodyPath + " dedup: " + m_contentAddressedBodies + " storage: " + m_storage);
 
         }
         catch (Exception t)
@@ -482,6 +531,19 @@ public class DbContentService extends BaseContentService
         //testResourceByTypePaging();
     }
 
+    /**
+     * Returns to uninitialized state.
+     */
+    public void destroy()
+    {
+        if (releasedBodySweepTimer != null)
+        {
+            releasedBodySweepTimer.cancel();
+            releasedBodySweepTimer = null;
+        }
+        super.destroy();
+    }
+
     /**
      * Runs tests of the getResourcesOfType() method. Steps are:<br/>
      * 1) Add 26 site-level resource collections ("/group/site_A/" through "/group/site_Z/")
@@ -1790,6 +1852,7 @@ public class DbContentService extends BaseContentService
                             }
                         }
                     }
+                    String previousFilePath = redit.m_filePath;
                     if (referenceResourceId == null) {
                         // normal handling (write the resource content data)
                         if (M_log.isDebugEnabled()) M_log.debug("Normal resource ("+redit.getId()+") body/contentStream storage");
@@ -1859,6 +1922,20 @@ public class DbContentService extends BaseContentService
                         insertIndividualDropboxRecord(getIndividualDropboxId(edit.getId()));
                     }
                     m_resourceStore.commitResource(edit);
+
+                    if (previousFilePath != null && !previousFilePath.equals(redit.m_filePath))
+                    {
+                        if (isContentAddressed(previousFilePath))
+                        {
+                            // a new body leaves the shared one it replaced with one less reference
+                            releaseContentAddressedBody(edit.getId(), previousFilePath);
+                        }
+                        else if (m_bodyPath != null && isContentAddressed(redit.m_filePath) && countFilePathReferences(previousFilePath) == 0)
+                        {
+                            // the body moved to its hash path, so the unshared file it had before is not needed
+                            fileSystemHandler.delete(edit.getId(), m_bodyPath, previousFilePath);
+                        }
+                    }
                 }
 
             }
@@ -2116,10 +2193,15 @@ public class DbContentService extends BaseContentService
 			   else
 			   {
 
+				   String filePath = ((BaseResourceEdit) edit).m_filePath;
+				   boolean sharedBody = isContentAddressed(filePath);
 				   if (m_bodyPath != null)
 				   {
 					   // if we have been configured to use an external file system
-					   if (removeContent) {
+					   if (removeContent && sharedBody) {
+						   // other resources may share this body, so it goes once the record is gone and nothing else refers to it
+						   M_log.debug("Releasing resource ("+edit.getId()+") shared content: "+filePath);
+					   } else if (removeContent) {
 						   M_log.info("Removing resource ("+edit.getId()+") content: "+m_bodyPath);
 						   delResourceBodyFilesystem(m_bodyPath, edit);
 					   } else {
@@ -2146,6 +2228,10 @@ public class DbContentService extends BaseContentService
 				   }
 				   m_resourceStore.removeResource(edit);
 
+				   if (removeContent && sharedBody)
+				   {
+					   releaseContentAddressedBody(edit.getId(), filePath);
+				   }
 			   }
 		   }
 		   finally
@@ -2497,7 +2583,20 @@ public class DbContentService extends BaseContentService
         {
             try
             {
-                long byteCount = fileSystemHandler.saveInputStream(((BaseResourceEdit) resource).m_id, rootFolder, ((BaseResourceEdit) resource).m_filePath, stream);
+                long byteCount;
+                if (m_contentAddressedBodies && m_bodyPath.equals(rootFolder))
+                {
+                    byteCount = putContentAddressedBody((BaseResourceEdit) resource, stream);
+                }
+                else
+                {
+                    if (m_bodyPath.equals(rootFolder) && isContentAddressed(((BaseResourceEdit) resource).m_filePath))
+                    {
+                        // never write over a body other resources may share
+                        ((BaseResourceEdit) resource).setFilePath(timeService.newTime());
+                    }
+                    byteCount = fileSystemHandler.saveInputStream(((BaseResourceEdit) resource).m_id, rootFolder, ((BaseResourceEdit) resource).m_filePath, stream);
+                }
                 resource.setContentLength(byteCount);
                 ResourcePropertiesEdit props = resource.getPropertiesEdit();
                 props.addProperty(ResourceProperties.PROP_CONTENT_LENGTH, Long.toString(byteCount));
@@ -2532,6 +2631,68 @@ public class DbContentService extends BaseContentService
 
         }
 
+        /**
+         * Write a body under the hash of its content, unless a body with that hash is already stored, and point the
+         * resource at it. The body is hashed on its way to a local spool file, since the FileSystemHandler can only
+         * write to a path known up front; a body already in memory is hashed in place.
+         * 
+         * @return the length of the body
+         */
+        private long putContentAddressedBody(BaseResourceEdit resource, InputStream stream) throws IOException
+        {
+            MessageDigest digest = newBodyDigest();
+            File spool = null;
+            try
+            {
+                long byteCount;
+                InputStream body;
+                if (stream instanceof ByteArrayInputStream)
+                {
+                    byteCount = IOUtils.copyLarge(new DigestInputStream(stream, digest), NullOutputStream.NULL_OUTPUT_STREAM);
+                    stream.reset();
+                    body = stream;
+                }
+                else
+                {
+                    spool = File.createTempFile("sakai_content-", ".tmp");
+                    OutputStream out = new FileOutputStream(spool);
+                    try
+                    {
+                        byteCount = IOUtils.copyLarge(new DigestInputStream(stream, digest), out);
+                    }
+                    finally
+                    {
+                        out.close();
+                    }
+                    body = new FileInputStream(spool);
+                }
+
+                try
+                {
+                    byte[] hash = digest.digest();
+                    String filePath = getContentAddressedPath(hash);
+                    // zero length bodies are never stored, as elsewhere
+                    if (byteCount > 0)
+                    {
+                        storeContentAddressedBody(resource.m_id, filePath, hash, body);
+                    }
+                    resource.m_filePath = filePath;
+                }
+                finally
+                {
+                    body.close();
+                }
+                return byteCount;
+            }
+            finally
+            {
+                if (spool != null && !spool.delete())
+                {
+                    M_log.warn("Failed to remove spool file: " + spool);
+                }
+            }
+        }
+
         /*
          * Delete the resource body from the database table.
          * 
@@ -2804,6 +2965,350 @@ public class DbContentService extends BaseContentService
     static protected final String VALID_CHARS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789.";
 
 
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * A body stored under its hash is shared by pointing the copy at the same file, so copying it reads and writes
+     * nothing; the first copy of any other body stores it under its hash.
+     */
+    @Override
+    protected boolean shareResourceBody(ContentResource source, ContentResourceEdit edit)
+    {
+        if (!m_contentAddressedBodies || !(source instanceof BaseResourceEdit) || !(edit instanceof BaseResourceEdit))
+        {
+            return false;
+        }
+        String filePath = ((BaseResourceEdit) source).m_filePath;
+        if (!isContentAddressed(filePath))
+        {
+            return false;
+        }
+
+        reclaimContentAddressedBody(filePath);
+        BaseResourceEdit redit = (BaseResourceEdit) edit;
+        redit.m_body = null;
+        redit.m_contentStream = null;
+        redit.m_filePath = filePath;
+        redit.setContentLength(source.getContentLength());
+        redit.getPropertiesEdit().addProperty(ResourceProperties.PROP_CONTENT_LENGTH, Long.toString(source.getContentLength()));
+        return true;
+    }
+
+    /**
+     * @return true if the file path is that of a body stored under its hash, which other resources may share
+     */
+    protected boolean isContentAddressed(String filePath)
+    {
+        return filePath != null && filePath.contains(CONTENT_ADDRESSED_PATH);
+    }
+
+    /**
+     * Form the file path of a body from its hash, e.g. /sha256/3f/a9/3fa9...; the first bytes fan the files out
+     * over directories and pick the volume when several are configured.
+     */
+    protected String getContentAddressedPath(byte[] hash)
+    {
+        String hex = Hex.encodeHexString(hash);
+        String volume = "";
+        if ((m_bodyVolumes != null) && (m_bodyVolumes.length > 0))
+        {
+            volume = "/" + m_bodyVolumes[(hash[0] & 0xff) % m_bodyVolumes.length];
+        }
+        return volume + CONTENT_ADDRESSED_PATH + hex.substring(0, 2) + "/" + hex.substring(2, 4) + "/" + hex;
+    }
+
+    protected MessageDigest newBodyDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the number of resources whose body is at the file path, or -1 if they could not be counted
+     */
+    protected int countFilePathReferences(String filePath)
+    {
+        // dbRead logs and swallows a failure, leaving no row where a count always has one
+        List<Integer> counts = m_sqlService.dbRead(contentServiceSql.getNumFilePathReferencesSql(m_resourceTableName), new Object[] { filePath },
+                new SqlReader()
+        {
+            public Object readSqlResultRecord(ResultSet result)
+            {
+                try
+                {
+                    return Integer.valueOf(result.getInt(1));
+                }
+                catch (SQLException e)
+                {
+                    M_log.warn("countFilePathReferences: " + e);
+                    return null;
+                }
+            }
+        });
+        if (counts.size() != 1)
+        {
+            M_log.warn("Could not count the resources sharing content: " + filePath);
+            return -1;
+        }
+        return counts.get(0).intValue();
+    }
+
+    /**
+     * Store a body under its hash unless it is already there. Writers of the same body take turns, on any node: each
+     * takes the body off the released list and adds it back in one transaction that stays open until the body is
+     * written, so the next one finds it stored and only checks it. The released row left behind is swept as usual:
+     * once the resource refers to the body only the row goes, and if the resource is never saved the body goes too.
+     * 
+     * @param id
+     *        the id of the resource being written
+     * @param filePath
+     *        the file path of the body
+     * @param hash
+     *        the hash of the body
+     * @param body
+     *        the body
+     * @throws IOException
+     *         if the body could not be stored, or it could not be told whether it already is
+     */
+    protected void storeContentAddressedBody(String id, String filePath, byte[] hash, InputStream body) throws IOException
+    {
+        Connection connection = null;
+        boolean wasCommit = true;
+        boolean committed = false;
+        try
+        {
+            connection = m_sqlService.borrowConnection();
+            wasCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            // this waits for a sweep deleting the body, or another writer of it
+            m_sqlService.dbWriteCount(contentServiceSql.getDeleteReleasedBodySql(), new Object[] { filePath }, null, connection, false);
+            m_sqlService.dbWriteCount(contentServiceSql.getInsertReleasedBodySql(), new Object[] { filePath, id, Long.valueOf(System.currentTimeMillis()) },
+                    null, connection, false);
+
+            int references = countFilePathReferences(filePath);
+            if (references < 0)
+            {
+                throw new IOException("Could not count the resources sharing content: " + filePath);
+            }
+            if (references == 0 && !isStoredBody(id, filePath, hash))
+            {
+                fileSystemHandler.saveInputStream(id, m_bodyPath, filePath, body);
+            }
+            else if (M_log.isDebugEnabled())
+            {
+                M_log.debug("Resource (" + id + ") shares stored content: " + filePath);
+            }
+            connection.commit();
+            committed = true;
+        }
+        catch (SQLException e)
+        {
+            throw new IOException("Could not store content: " + filePath, e);
+        }
+        finally
+        {
+            if (connection != null)
+            {
+                try
+                {
+                    if (!committed) connection.rollback();
+                    connection.setAutoCommit(wasCommit);
+                }
+                catch (SQLException e)
+                {
+                    M_log.warn("storeContentAddressedBody: " + e);
+                }
+                m_sqlService.returnConnection(connection);
+            }
+        }
+    }
+
+    /**
+     * @return true if a complete body with this hash is stored at the file path, as left by an earlier writer or a
+     *         release not yet swept
+     */
+    protected boolean isStoredBody(String id, String filePath, byte[] hash)
+    {
+        InputStream in = null;
+        try
+        {
+            in = fileSystemHandler.getInputStream(id, m_bodyPath, filePath);
+            if (in == null) return false;
+            MessageDigest digest = newBodyDigest();
+            IOUtils.copyLarge(new DigestInputStream(in, digest), NullOutputStream.NULL_OUTPUT_STREAM);
+            return Arrays.equals(hash, digest.digest());
+        }
+        catch (IOException e)
+        {
+            // not there
+            return false;
+        }
+        finally
+        {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Record that a shared body may no longer be referred to. It is not deleted here: a resource being saved or
+     * copied may be about to refer to it again. sweepReleasedBodies deletes it once it has stayed unreferenced for
+     * the grace period.
+     * 
+     * @param id
+     *        the id of the resource that last referred to the body
+     * @param filePath
+     *        the file path of the body
+     */
+    protected void releaseContentAddressedBody(String id, String filePath)
+    {
+        if (m_bodyPath == null || !isContentAddressed(filePath)) return;
+
+        // the sweep counts again, so a body whose references could not be counted is released too
+        if (countFilePathReferences(filePath) <= 0)
+        {
+            if (M_log.isDebugEnabled()) M_log.debug("Releasing unreferenced content (" + filePath + ") last used by resource: " + id);
+            // already released by another resource
+            m_sqlService.dbWriteFailQuiet(null, contentServiceSql.getInsertReleasedBodySql(), new Object[] { filePath, id, Long.valueOf(System.currentTimeMillis()) });
+        }
+    }
+
+    /**
+     * Take a shared body off the released list before a resource refers to it again. This waits for a sweep that is
+     * deleting the body, so the caller then finds it gone and writes it again.
+     * 
+     * @param filePath
+     *        the file path of the body
+     */
+    protected void reclaimContentAddressedBody(String filePath)
+    {
+        m_sqlService.dbWrite(contentServiceSql.getDeleteReleasedBodySql(), new Object[] { filePath });
+    }
+
+    /**
+     * Delete the shared bodies released more than the grace period ago that are still unreferenced. Each is claimed
+     * by deleting its released row in a transaction that stays open until the file is gone, which holds off
+     * reclaimContentAddressedBody for the same body on any node.
+     */
+    protected void sweepReleasedBodies()
+    {
+        List<String[]> released = m_sqlService.dbRead(contentServiceSql.getReleasedBodiesSql(),
+                new Object[] { Long.valueOf(System.currentTimeMillis() - m_releasedBodyGrace) }, new SqlReader()
+        {
+            public Object readSqlResultRecord(ResultSet result)
+            {
+                try
+                {
+                    return new String[] { result.getString(1), result.getString(2) };
+                }
+                catch (SQLException e)
+                {
+                    M_log.warn("sweepReleasedBodies: " + e);
+                    return null;
+                }
+            }
+        });
+        if (released.isEmpty()) return;
+
+        Connection connection = null;
+        boolean wasCommit = true;
+        try
+        {
+            connection = m_sqlService.borrowConnection();
+            wasCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            int removed = 0;
+            for (String[] body : released)
+            {
+                if (body == null) continue;
+                try
+                {
+                    int claimed = m_sqlService.dbWriteCount(contentServiceSql.getDeleteReleasedBodySql(), new Object[] { body[0] }, null, connection, false);
+                    int references = (claimed == 1) ? countFilePathReferences(body[0]) : 1;
+                    if (references < 0)
+                    {
+                        // never delete what may still be referred to; it stays released for the next sweep
+                        connection.rollback();
+                        continue;
+                    }
+                    if (references == 0)
+                    {
+                        fileSystemHandler.delete(body[1], m_bodyPath, body[0]);
+                        removed++;
+                    }
+                    connection.commit();
+                }
+                catch (Exception e)
+                {
+                    M_log.warn("sweepReleasedBodies: failed to remove " + body[0], e);
+                    connection.rollback();
+                }
+            }
+            M_log.info("sweepReleasedBodies: removed " + removed + " unreferenced content bodies");
+        }
+        catch (SQLException e)
+        {
+            M_log.warn("sweepReleasedBodies: " + e);
+        }
+        finally
+        {
+            if (connection != null)
+            {
+                try
+                {
+                    connection.setAutoCommit(wasCommit);
+                }
+                catch (SQLException e)
+                {
+                    M_log.warn("sweepReleasedBodies: " + e);
+                }
+                m_sqlService.returnConnection(connection);
+            }
+        }
+    }
+
+    /**
+     * @return true if the CONTENT_BODY_RELEASED table has been created, by the conversion scripts or auto ddl
+     */
+    protected boolean releasedBodyTableExists()
+    {
+        Connection connection = null;
+        try
+        {
+            connection = m_sqlService.borrowConnection();
+            DatabaseMetaData meta = connection.getMetaData();
+            // the case the name is stored in depends on the database
+            for (String name : new String[] { "CONTENT_BODY_RELEASED", "content_body_released" })
+            {
+                ResultSet tables = meta.getTables(null, null, name, null);
+                try
+                {
+                    if (tables.next()) return true;
+                }
+                finally
+                {
+                    tables.close();
+                }
+            }
+            return false;
+        }
+        catch (SQLException e)
+        {
+            M_log.warn("releasedBodyTableExists: " + e);
+            return false;
+        }
+        finally
+        {
+            if (connection != null) m_sqlService.returnConnection(connection);
+        }
+    }
+
     /**
      * Return file system safe escaped name, that's also unique if the initial id is unique. * Use only the name, not the path part of the id
      * 
@@ -33,6 +33,7 @@ import org.sakaiproject.content.api.ResourceType;
 import org.sakaiproject.content.api.ResourceTypeRegistry;
 import org.sakaiproject.content.api.GroupAwareEntity.AccessMode;
 import org.sakaiproject.content.impl.serialize.api.SerializableResourceAccess;
+import org.sakaiproject.entity.api.serialize.DataStreamEntitySerializer;
 import org.sakaiproject.entity.api.serialize.EntityParseException;
 import org.sakaiproject.entity.api.serialize.EntitySerializer;
 import org.sakaiproject.entity.api.serialize.SerializableEntity;
@@ -309,6 +310,27 @@ public class Type1BaseContentResourceSerializer implements EntitySerializer
 		this.timeService = timeService;
 	}
 
+	/**
+	 * @return the record type written by serialize.
+	 */
+	protected int getRecordType()
+	{
+		return TYPE1;
+	}
+
+	/**
+	 * @param type the record type read from the blob.
+	 * @return the serializer for the properties block of that record type, or null if the type is not recognised.
+	 */
+	protected DataStreamEntitySerializer getPropertiesSerializer(int type)
+	{
+		if (type == TYPE1)
+		{
+			return baseResourcePropertiesSerializer;
+		}
+		return null;
+	}
+
 	
 	private void doParse(SerializableResourceAccess sc, DataInputStream ds)
 			throws EntityParseException
@@ -331,7 +353,8 @@ public class Type1BaseContentResourceSerializer implements EntitySerializer
 			byte[] body = null;
 
 			int type = ds.readInt();
-			if (type == TYPE1)
+			DataStreamEntitySerializer propertiesSerializer = getPropertiesSerializer(type);
+			if (propertiesSerializer != null)
 			{
 				boolean finished = false;
 				while (!finished)
@@ -391,7 +414,7 @@ public class Type1BaseContentResourceSerializer implements EntitySerializer
 							}
 							break;
 						case BLOCK4:
-							baseResourcePropertiesSerializer.parse(sc
+							propertiesSerializer.parse(sc
 									.getSerializableProperties(), ds);
 							break;
 						case BLOCK5:
@@ -490,7 +513,8 @@ public class Type1BaseContentResourceSerializer implements EntitySerializer
 				access = AccessMode.INHERITED;
 			}
 
-			ds.writeInt(TYPE1);
+			int type = getRecordType();
+			ds.writeInt(type);
 			ds.writeInt(BLOCK1);
 			ds.writeUTF(id);
 			ds.writeUTF(resourceType);
@@ -525,7 +549,7 @@ public class Type1BaseContentResourceSerializer implements EntitySerializer
 			}
 
 			ds.writeInt(BLOCK4);
-			baseResourcePropertiesSerializer
+			getPropertiesSerializer(type)
 					.serialize(sc.getSerializableProperties(), ds);
 			ds.writeInt(BLOCK5);
 			ds.writeUTF(contentType);
@@ -0,0 +1,86 @@
+/******************************************************************************
+ * $URL$
+ * $Id$
+ ******************************************************************************
+ *
+ * Copyright (c) 2003-2016 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *       http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *****************************************************************************/
+
+
+package org.sakaiproject.content.impl.serialize.impl;
+
+import org.sakaiproject.entity.api.serialize.DataStreamEntitySerializer;
+import org.sakaiproject.util.serialize.Type2BaseResourcePropertiesSerializer;
+
+/**
+ * <pre>
+ * Serializes ContentResources with the same blocks as the Type1 serializer, but writes the
+ * properties block (BLOCK4) with the Type2 properties serializer so property values are only
+ * decoded when they are read.
+ * 
+ * Both TYPE1 and TYPE2 records are parsed. Records are written as TYPE1 unless writeType2 is set,
+ * so every node can read TYPE2 rows before any node writes them, and turning writeType2 off again
+ * rolls back: TYPE2 rows keep working and are rewritten as TYPE1 the next time they are saved
+ * (or all at once with Type2ToType1BlobResourcesConversionHandler).
+ * </pre>
+ */
+public class Type2BaseContentResourceSerializer extends Type1BaseContentResourceSerializer
+{
+	private static final int TYPE2 = 2;
+
+	private Type2BaseResourcePropertiesSerializer type2ResourcePropertiesSerializer = new Type2BaseResourcePropertiesSerializer();
+
+	private boolean writeType2 = false;
+
+	/**
+	 * @return true if records are written as TYPE2.
+	 */
+	public boolean isWriteType2()
+	{
+		return writeType2;
+	}
+
+	/**
+	 * @param writeType2
+	 *        true to write records as TYPE2, false to write TYPE1.
+	 */
+	public void setWriteType2(boolean writeType2)
+	{
+		this.writeType2 = writeType2;
+	}
+
+	/**
+	 * @see org.sakaiproject.content.impl.serialize.impl.Type1BaseContentResourceSerializer#getRecordType()
+	 */
+	@Override
+	protected int getRecordType()
+	{
+		return writeType2 ? TYPE2 : super.getRecordType();
+	}
+
+	/**
+	 * @see org.sakaiproject.content.impl.serialize.impl.Type1BaseContentResourceSerializer#getPropertiesSerializer(int)
+	 */
+	@Override
+	protected DataStreamEntitySerializer getPropertiesSerializer(int type)
+	{
+		if (type == TYPE2)
+		{
+			return type2ResourcePropertiesSerializer;
+		}
+		return super.getPropertiesSerializer(type);
+	}
+}
@@ -0,0 +1,150 @@
+/******************************************************************************
+ * $URL$
+ * $Id$
+ ******************************************************************************
+ *
+ * Copyright (c) 2003-2016 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *       http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *****************************************************************************/
+
+
+package org.sakaiproject.content.impl.serialize.impl.conversion;
+
+import java.sql.Blob;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+
+import org.sakaiproject.content.impl.serialize.impl.Type2BaseContentResourceSerializer;
+import org.sakaiproject.util.conversion.SchemaConversionHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Rewrites the Type1 binary entity of CONTENT_RESOURCE rows as Type2, so that their properties
+ * are decoded lazily when read. Rows already written as Type2 are rewritten unchanged.
+ * Only run this once every node has writeType2 set on the resource serializer.
+ */
+public class Type2BlobResourcesConversionHandler implements SchemaConversionHandler
+{
+
+	private static final Logger log = LoggerFactory.getLogger(Type2BlobResourcesConversionHandler.class);
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.sakaiproject.util.conversion.SchemaConversionHandler#getSource(java.lang.String,
+	 *      java.sql.ResultSet)
+	 */
+	public Object getSource(String id, ResultSet rs) throws SQLException
+	{
+		return getBytes(rs);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see org.sakaiproject.util.conversion.SchemaConversionHandler#convertSource(java.lang.String,
+	 *      java.lang.Object, java.sql.PreparedStatement)
+	 */
+	public boolean convertSource(String id, Object source, PreparedStatement updateRecord)
+			throws SQLException
+	{
+		byte[] buffer = (byte[]) source;
+		if (buffer == null)
+		{
+			log.warn("No binary entity for " + id);
+			return false;
+		}
+
+		Type2BaseContentResourceSerializer t2b = new Type2BaseContentResourceSerializer();
+		t2b.setTimeService(new ConversionTimeService());
+		t2b.setWriteType2(isWriteType2());
+		SAXSerializableResourceAccess sourceResource = new SAXSerializableResourceAccess();
+		SAXSerializableResourceAccess resultResource = new SAXSerializableResourceAccess();
+		try
+		{
+			t2b.parse(sourceResource, buffer);
+			byte[] result = t2b.serialize(sourceResource);
+			t2b.parse(resultResource, result);
+			sourceResource.check(resultResource);
+
+			updateRecord.setBytes(1, result);
+			updateRecord.setString(2, id);
+			return true;
+		}
+		catch (Exception e)
+		{
+			log.warn("Failed to process record " + id, e);
+		}
+		return false;
+	}
+
+	/**
+	 * @return true to write the converted rows as Type2, false to write them as Type1.
+	 */
+	protected boolean isWriteType2()
+	{
+		return true;
+	}
+
+	/**
+	 * @see org.sakaiproject.util.conversion.SchemaConversionHandler#validate(java.lang.String, java.lang.Object, java.lang.Object)
+	 */
+	public void validate(String id, Object source, Object result) throws Exception
+	{
+		Type2BaseContentResourceSerializer t2b = new Type2BaseContentResourceSerializer();
+		t2b.setTimeService(new ConversionTimeService());
+		SAXSerializableResourceAccess sourceResource = new SAXSerializableResourceAccess();
+		SAXSerializableResourceAccess resultResource = new SAXSerializableResourceAccess();
+		t2b.parse(sourceResource, (byte[]) source);
+		t2b.parse(resultResource, (byte[]) result);
+
+		sourceResource.check(resultResource);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.sakaiproject.util.conversion.SchemaConversionHandler#getValidateSource(java.lang.String, java.sql.ResultSet)
+	 */
+	public Object getValidateSource(String id, ResultSet rs) throws SQLException
+	{
+		return getBytes(rs);
+	}
+
+	private byte[] getBytes(ResultSet rs) throws SQLException
+	{
+		ResultSetMetaData metadata = rs.getMetaData();
+		byte[] rv = null;
+		switch(metadata.getColumnType(1))
+		{
+		case Types.BLOB:
+			Blob blob = rs.getBlob(1);
+			if(blob != null)
+			{
+				rv = blob.getBytes(1L, (int) blob.length());
+			}
+			break;
+		case Types.BINARY:
+		case Types.VARBINARY:
+		case Types.LONGVARBINARY:
+			rv = rs.getBytes(1);
+			break;
+		}
+		return rv;
+	}
+
+}
@@ -0,0 +1,41 @@
+/******************************************************************************
+ * $URL$
+ * $Id$
+ ******************************************************************************
+ *
+ * Copyright (c) 2003-2016 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *       http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *****************************************************************************/
+
+
+
+package org.sakaiproject.content.impl.serialize.impl.conversion;
+
+/**
+ * Rewrites the Type2 binary entity of CONTENT_RESOURCE rows as Type1, to roll back
+ * Type2BlobResourcesConversionHandler before moving to a release that cannot parse Type2 rows.
+ * Only run this once writeType2 is off on every node. Rows already written as Type1 are rewritten unchanged.
+ */
+public class Type2ToType1BlobResourcesConversionHandler extends Type2BlobResourcesConversionHandler
+{
+	/**
+	 * @see org.sakaiproject.content.impl.serialize.impl.conversion.Type2BlobResourcesConversionHandler#isWriteType2()
+	 */
+	@Override
+	protected boolean isWriteType2()
+	{
+		return false;
+	}
+}
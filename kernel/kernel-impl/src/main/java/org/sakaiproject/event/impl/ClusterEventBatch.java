@@ -0,0 +1,72 @@
+/******************************************************************************
+ * $URL$
+ * $Id$
+ ******************************************************************************
+ *
+ * Copyright (c) 2003-2016 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *       http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *****************************************************************************/
+
+package org.sakaiproject.event.impl;
+
+import java.io.Serializable;
+import java.util.List;
+
+import org.sakaiproject.event.api.SimpleEvent;
+
+/**
+ * The unit of distribution for a {@link ClusterEventTransport}: the events written by one
+ * server in one batch, each carrying the EVENT_ID it was stored under.
+ */
+public class ClusterEventBatch implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	/** The serverIdInstance of the sender. */
+	private final String serverIdInstance;
+
+	/** Per sender sequence number, incremented by one for each batch published. */
+	private final long batchSeq;
+
+	/** The events, in EVENT_ID order. */
+	private final List<SimpleEvent> events;
+
+	public ClusterEventBatch(String serverIdInstance, long batchSeq, List<SimpleEvent> events)
+	{
+		this.serverIdInstance = serverIdInstance;
+		this.batchSeq = batchSeq;
+		this.events = events;
+	}
+
+	public String getServerIdInstance()
+	{
+		return serverIdInstance;
+	}
+
+	public long getBatchSeq()
+	{
+		return batchSeq;
+	}
+
+	public List<SimpleEvent> getEvents()
+	{
+		return events;
+	}
+
+	public String toString()
+	{
+		return serverIdInstance + "#" + batchSeq + "(" + events.size() + " events)";
+	}
+}
@@ -0,0 +1,329 @@
+/******************************************************************************
+ * $URL$
+ * $Id$
+ ******************************************************************************
+ *
+ * Copyright (c) 2003-2016 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *       http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *****************************************************************************/
+
+package org.sakaiproject.event.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.event.api.SimpleEvent;
+import org.sakaiproject.memory.api.Cache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A fixed capacity ring of events laid over a (distributed) cache, used for KNL-1184 cluster event distribution.
+ * <p>
+ * Event N lives in slot N % capacity, so the cache never holds more than capacity + 1 entries, and a range of events is read
+ * or written with a single getAll() / putAll(). Each slot holds the compact binary encoding of a {@link SimpleEvent} including
+ * its EVENT_ID, which lets a reader tell a slot that has already been overwritten by a later lap of the ring.
+ * </p>
+ */
+public class ClusterEventRingBuffer
+{
+	private static final Logger M_log = LoggerFactory.getLogger(ClusterEventRingBuffer.class);
+
+	/** The key holding the highest EVENT_ID written. */
+	static final String HEAD_KEY = "head";
+
+	/** Encoding version, the first byte of each slot. */
+	private static final byte VERSION = 1;
+
+	private final Cache cache;
+
+	private final int capacity;
+
+	/**
+	 * @param cache
+	 *        The cache holding the slots.
+	 * @param capacity
+	 *        The number of events kept, older ones are overwritten.
+	 */
+	public ClusterEventRingBuffer(Cache cache, int capacity)
+	{
+		if (cache == null)
+		{
+			throw new IllegalArgumentException("The ring buffer cache cannot be null");
+		}
+		if (capacity < 1)
+		{
+			throw new IllegalArgumentException("The ring buffer capacity must be positive: " + capacity);
+		}
+		this.cache = cache;
+		this.capacity = capacity;
+	}
+
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * Store a batch of events (each with its EVENT_ID as seq) in one operation, and move the head forward.
+	 *
+	 * @param events
+	 *        The events, in EVENT_ID order.
+	 */
+	public void write(List<SimpleEvent> events)
+	{
+		if (events.isEmpty()) return;
+
+		Map<String, byte[]> slots = new HashMap<String, byte[]>(events.size());
+		long last = 0;
+		for (SimpleEvent event : events)
+		{
+			slots.put(slotKey(event.getSeq()), encode(event));
+			last = Math.max(last, event.getSeq());
+		}
+		cache.putAll(slots);
+
+		// not atomic, another node may move the head concurrently; a head left behind is moved forward by the next write
+		Long head = (Long) cache.get(HEAD_KEY);
+		if (head == null || head < last)
+		{
+			cache.put(HEAD_KEY, last);
+		}
+	}
+
+	/**
+	 * @return the highest EVENT_ID written, or 0 if nothing was written yet.
+	 */
+	public long getHead()
+	{
+		Long head = (Long) cache.get(HEAD_KEY);
+		return (head == null) ? 0 : head;
+	}
+
+	/**
+	 * Read the events in a range with a single cache operation. Events that were never written (rolled back inserts), or that have
+	 * already been overwritten, are missing from the result.
+	 *
+	 * @param from
+	 *        The first EVENT_ID to read.
+	 * @param to
+	 *        The last EVENT_ID to read.
+	 * @return The events found, in EVENT_ID order.
+	 */
+	public List<SimpleEvent> read(long from, long to)
+	{
+		if (to < from) return new ArrayList<SimpleEvent>(0);
+
+		if (to - from >= capacity)
+		{
+			M_log.warn("read: " + (to - from + 1 - capacity) + " events before #" + (to - capacity + 1) + " were overwritten, capacity is " + capacity);
+			from = to - capacity + 1;
+		}
+
+		Set<String> keys = new LinkedHashSet<String>((int) (to - from + 1));
+		for (long id = from; id <= to; id++)
+		{
+			keys.add(slotKey(id));
+		}
+		Map<String, Object> slots = cache.getAll(keys);
+
+		List<SimpleEvent> events = new ArrayList<SimpleEvent>(slots.size());
+		for (long id = from; id <= to; id++)
+		{
+			byte[] data = (byte[]) slots.get(slotKey(id));
+			if (data == null) continue;
+
+			SimpleEvent event = decode(data);
+			// the slot may hold an event of another lap
+			if (event != null && event.getSeq() == id)
+			{
+				events.add(event);
+			}
+		}
+		return events;
+	}
+
+	private String slotKey(long eventId)
+	{
+		return String.valueOf(eventId % capacity);
+	}
+
+	/**
+	 * Encode an event in the slot format: version, seq, modify, priority, time and the nullable strings.
+	 */
+	static byte[] encode(SimpleEvent event)
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try
+		{
+			out.writeByte(VERSION);
+			out.writeLong(event.getSeq());
+			out.writeBoolean(event.getModify());
+			out.writeInt(event.getPriority());
+			out.writeLong(event.getEventTime() == null ? -1 : event.getEventTime().getTime());
+			writeString(out, event.getEvent());
+			writeString(out, event.getResource());
+			writeString(out, event.getContext());
+			writeString(out, event.getSessionId());
+			writeString(out, event.getUserId());
+			writeString(out, event.getServerId());
+			out.flush();
+		}
+		catch (IOException e)
+		{
+			// cannot happen writing to memory
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decode an event encoded by {@link #encode(SimpleEvent)}.
+	 *
+	 * @return the event, or null if the data is not in a known format.
+	 */
+	static SimpleEvent decode(byte[] data)
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		try
+		{
+			if (in.readByte() != VERSION) return null;
+
+			long seq = in.readLong();
+			boolean modify = in.readBoolean();
+			int priority = in.readInt();
+			long time = in.readLong();
+			String function = readString(in);
+			String resource = readString(in);
+			String context = readString(in);
+			String session = readString(in);
+			String user = readString(in);
+			String serverId = readString(in);
+
+			SimpleEvent event = new SimpleEvent(new DecodedEvent(function, resource, context, session, user, modify, priority, time < 0 ? null : new Date(time)), serverId == null ? "" : serverId);
+			event.setServerId(serverId);
+			event.setSeq(seq);
+			return event;
+		}
+		catch (IOException e)
+		{
+			M_log.warn("decode: unreadable event slot: " + e);
+			return null;
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException
+	{
+		if (value == null)
+		{
+			out.writeInt(-1);
+		}
+		else
+		{
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException
+	{
+		int length = in.readInt();
+		if (length < 0) return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Carries the decoded values into the {@link SimpleEvent} constructor.
+	 */
+	private static class DecodedEvent implements Event
+	{
+		private final String event;
+		private final String resource;
+		private final String context;
+		private final String session;
+		private final String user;
+		private final boolean modify;
+		private final int priority;
+		private final Date time;
+
+		DecodedEvent(String event, String resource, String context, String session, String user, boolean modify, int priority, Date time)
+		{
+			this.event = event;
+			this.resource = resource;
+			this.context = context;
+			this.session = session;
+			this.user = user;
+			this.modify = modify;
+			this.priority = priority;
+			this.time = time;
+		}
+
+		public String getEvent()
+		{
+			return event;
+		}
+
+		public String getResource()
+		{
+			return resource;
+		}
+
+		public String getContext()
+		{
+			return context;
+		}
+
+		public String getSessionId()
+		{
+			return session;
+		}
+
+		public String getUserId()
+		{
+			return user;
+		}
+
+		public boolean getModify()
+		{
+			return modify;
+		}
+
+		public int getPriority()
+		{
+			return priority;
+		}
+
+		public Date getEventTime()
+		{
+			return time;
+		}
+	}
+}
@@ -35,19 +35,28 @@ import org.sakaiproject.event.api.SimpleEvent;
 import org.sakaiproject.memory.api.Cache;
 import org.sakaiproject.memory.api.MemoryService;
 
+import com.hazelcast.core.HazelcastInstance;
+
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * <p>
  * ClusterEventTracking is the implmentation for the EventTracking service for use in a clustered multi-app server configuration.<br />
  * Events are backed in the cluster database, and this database is polled to read and process locally events posted by the other cluster members.
  * </p>
+ * <p>
+ * When a {@link ClusterEventTransport} is configured (event.cluster.transport), the events written are also pushed to the other cluster members,
+ * and the database is only read to reconcile (every event.cluster.transport.reconcile seconds) or to catch up when a lost batch is detected.
+ * </p>
  */
 public abstract class ClusterEventTracking extends BaseEventTrackingService implements Runnable
 {
@@ -66,12 +75,12 @@ public abstract class ClusterEventTracking extends BaseEventTrackingService impl
 	protected boolean m_threadStop = false;
 
 	/** Last event code read from the db */
-	protected long m_lastEventSeq = 0;
+	protected volatile long m_lastEventSeq = 0;
 
     protected long m_totalEventsCount = 0;
 
-	/** Queue of events to write if we are batching. */
-	protected Collection<Event> m_eventQueue = null;
+	/** Queue of events to write if we are batching, written in group commits by its own thread. */
+	protected EventWriteQueue m_eventQueue = null;
 	/** Unless false, check the db for events from the other cluster servers. */
 	protected boolean m_checkDb = true;
 	/** If true, batch events for bulk write. */
@@ -83,6 +92,23 @@ public abstract class ClusterEventTracking extends BaseEventTrackingService impl
 	private String serverId;
 	private ScheduledExecutorService scheduler;
 
+	/** The transport pushing events to the other cluster members, null if we only poll the db. */
+	protected ClusterEventTransport m_transport = null;
+	/** With a transport, how long to wait in seconds between db reads reconciling the pushed events. */
+	protected int m_reconcilePeriod = 60;
+	/** Sequence number of the last batch we published. */
+	private final AtomicLong m_publishedBatchSeq = new AtomicLong(0);
+	/** Highest sequence number of the batches received, by sender. */
+	private final Map<String, Long> m_receivedBatchSeq = new ConcurrentHashMap<String, Long>();
+	/** Ids of the events already notified, above m_lastEventSeq. */
+	private final ConcurrentSkipListSet<Long> m_notifiedEventIds = new ConcurrentSkipListSet<Long>();
+	/** Set when a lost batch is detected, forces a db read on the next run. */
+	private volatile boolean m_catchUpRequested = false;
+	/** When we last read the db for new events. */
+	private long m_lastDbCheck = 0;
+	/** Serializes the notification of remote events (the observable helpers are not safe for concurrent notification). */
+	private final Object m_remoteNotifyLock = new Object();
+
 	/*************************************************************************************************************************************************
 	 * Dependencies
 	 ************************************************************************************************************************************************/
@@ -96,9 +122,8 @@ public abstract class ClusterEventTracking extends BaseEventTrackingService impl
 	/*************************************************************************************************************************************************
 	 * Configuration
 	 ************************************************************************************************************************************************/
-    /** The events caches (ONLY used if enabled) - KNL-1184 */
-    private Cache eventCache;
-    private Cache eventLastCache;
+    /** The events ring over the events cache (ONLY used if enabled) - KNL-1184 */
+    private ClusterEventRingBuffer eventRing;
     /** is caching enabled? - KNL-1184 */
     private boolean cachingEnabled;
 
@@ -173,6 +198,17 @@ public abstract class ClusterEventTracking extends BaseEventTrackingService impl
 		m_period = Integer.parseInt(time);
 	}
 
+	/**
+	 * Configuration: use this transport to push events to the other cluster members (overrides event.cluster.transport).
+	 *
+	 * @param transport
+	 *        The transport.
+	 */
+	public void setClusterEventTransport(ClusterEventTransport transport)
+	{
+		m_transport = transport;
+	}
+
 	public void setDatabaseBeans(Map databaseBeans)
 	{
 		this.databaseBeans = databaseBeans;
@@ -217,13 +253,25 @@ public abstract class ClusterEventTracking extends BaseEventTrackingService impl
 
 			if (m_batchWrite)
 			{
-				m_eventQueue = new Vector<Event>();
+				m_eventQueue = new EventWriteQueue(new EventWriteQueue.BatchWriter()
+				{
+					public void write(List<Event> events)
+					{
+						if (M_log.isDebugEnabled()) M_log.debug("writing " + events.size() + " batched events");
+						writeBatchEvents(events);
+					}
+				},
+				serverConfigurationService().getInt("event.write.batchSize", 100),
+				serverConfigurationService().getInt("event.write.latency", 1000),
+				serverConfigurationService().getInt("event.write.maxQueueSize", 100000),
+				serverConfigurationService().getString("event.write.overflow", EventWriteQueue.OVERFLOW_BLOCK));
 			}
 
 			// startup the event checking
 			if (m_checkDb)
 			{
 				initLastEvent();
+				initTransport();
 
 				scheduler = Executors.newSingleThreadScheduledExecutor();
 				// schedule task for every pollDelaySeconds
@@ -260,6 +308,12 @@ public abstract class ClusterEventTracking extends BaseEventTrackingService impl
 
             // initialize the caching server, if enabled
             initCacheServer();
+
+			// start writing, now that we know where the written events go
+			if (m_eventQueue != null)
+			{
+				m_eventQueue.start(serverInstance);
+			}
 		}
 		catch (Exception e)
 		{
@@ -301,7 +355,19 @@ public abstract class ClusterEventTracking extends BaseEventTrackingService impl
 	 */
 	public void destroy()
 	{
-		scheduler.shutdown();
+		if (m_transport != null)
+		{
+			m_transport.stop();
+		}
+		if (scheduler != null)
+		{
+			scheduler.shutdown();
+		}
+		if (m_eventQueue != null)
+		{
+			// write what is still waiting
+			m_eventQueue.stop(30000);
+		}
 		super.destroy();
 	}
 
@@ -334,10 +400,7 @@ public abstract class ClusterEventTracking extends BaseEventTrackingService impl
 		// batch the event if we are batching
 		if (m_batchWrite)
 		{
-			synchronized (m_eventQueue)
-			{
-				m_eventQueue.add(event);
-			}
+			m_eventQueue.offer(event);
 		}
 
 		// if not batching, write out the individual event
@@ -365,12 +428,16 @@ public abstract class ClusterEventTracking extends BaseEventTrackingService impl
 		bindValues(event, fields);
 
         // process the insert
-        if (cachingEnabled) {
-            // if caching is enabled, get the last inserted id
+        if (cachingEnabled || m_transport != null) {
+            // if caching or pushing is enabled, get the last inserted id
             Long eventId = sqlService().dbInsert(conn, statement, fields, "EVENT_ID");
             if (eventId != null) {
-                // write event to cache
-                writeEventToCluster(event, eventId);
+                List<SimpleEvent> written = new ArrayList<SimpleEvent>(1);
+                written.add(toClusterEvent(event, eventId));
+                distributeEvents(written);
+            } else {
+                M_log.warn(this + ".writeEvent(): dbInsert failed: session: "
+                        + fields[3] + " event: " + event.toString());
             }
         } else {
             boolean ok = sqlService().dbWrite(conn, statement, fields);
@@ -407,6 +474,8 @@ public abstract class ClusterEventTracking extends BaseEventTrackingService impl
             // common preparation for each insert
             String statement = insertStatement();
             Object fields[] = new Object[6];
+            // the events to cache or push to the other cluster members, once committed
+            List<SimpleEvent> written = (cachingEnabled || m_transport != null) ? new ArrayList<SimpleEvent>(events.size()) : null;
 
 			// write all events
 			for (Iterator i = events.iterator(); i.hasNext();)
@@ -415,15 +484,14 @@ public abstract class ClusterEventTracking extends BaseEventTrackingService impl
 				bindValues(event, fields);
 
                 // process the insert
-                if (cachingEnabled) {
-                    conn = sqlService().borrowConnection();
-                    if (conn.getAutoCommit()) {
-                        conn.setAutoCommit(false);
-                    }
+                if (written != null) {
                     Long eventId = sqlService().dbInsert(conn, statement, fields, "EVENT_ID");
                     if (eventId != null) {
-                        // write event to cache
-                        writeEventToCluster(event, eventId);
+                        written.add(toClusterEvent(event, eventId));
+                    } else {
+                        M_log.warn(this
+                                + ".writeBatchEvents(): dbInsert failed: session: "
+                                + fields[3] + " event: " + event.toString());
                     }
                 } else {
                     boolean ok = sqlService().dbWrite(conn, statement, fields);
@@ -439,6 +507,11 @@ public abstract class ClusterEventTracking extends BaseEventTrackingService impl
 			if (!conn.isClosed()) {
 			    conn.commit();
 			}
+
+			// now they can be read back by the others, hand them out
+			if (written != null && !written.isEmpty()) {
+			    distributeEvents(written);
+			}
 		}
 		catch (Exception e)
 		{
@@ -519,36 +592,188 @@ public abstract class ClusterEventTracking extends BaseEventTrackingService impl
 	}
 
 	/*************************************************************************************************************************************************
-	 * Runnable
+	 * Cluster event transport
 	 ************************************************************************************************************************************************/
 
 	/**
-	 * Run the event checking thread.
+	 * Set up the configured transport (event.cluster.transport: db, hazelcast or loopback) and start receiving from the other cluster members.
 	 */
-	public void run()
+	protected void initTransport()
 	{
-		try
+		m_reconcilePeriod = serverConfigurationService().getInt("event.cluster.transport.reconcile", m_reconcilePeriod);
+		if (m_transport == null)
 		{
-			Thread.currentThread().setName(this.getClass().getName());
-			// write any batched events
-			Collection<Event> myEvents = new Vector<Event>();
-			if (m_batchWrite)
+			String type = serverConfigurationService().getString("event.cluster.transport", "db");
+			if ("hazelcast".equalsIgnoreCase(type))
 			{
-				synchronized (m_eventQueue)
+				Object instance = memoryService().unwrap(Object.class);
+				if (instance instanceof HazelcastInstance)
 				{
-					if (m_eventQueue.size() > 0)
-					{
-						myEvents.addAll(m_eventQueue);
-						m_eventQueue.clear();
-					}
+					m_transport = new HazelcastClusterEventTransport((HazelcastInstance) instance, "org.sakaiproject.event.impl.ClusterEventTracking.events");
+				}
+				else
+				{
+					M_log.warn(this + ".initTransport(): event.cluster.transport=hazelcast requires memory.cachemanager=hazelcast, polling the db instead");
+				}
+			}
+			else if ("loopback".equalsIgnoreCase(type))
+			{
+				m_transport = new LoopbackClusterEventTransport("org.sakaiproject.event.impl.ClusterEventTracking.events");
+			}
+		}
+
+		if (m_transport != null)
+		{
+			m_transport.start(new ClusterEventTransport.Listener()
+			{
+				public void batchReceived(ClusterEventBatch batch)
+				{
+					receiveBatch(batch);
 				}
+			});
+			M_log.info(this + ".initTransport(): pushing events with " + m_transport.getClass().getSimpleName() + ", reconciling with the db every " + m_reconcilePeriod + " seconds");
+		}
+	}
+
+	/**
+	 * Convert a written event for distribution.
+	 *
+	 * @param event
+	 *        The event.
+	 * @param eventId
+	 *        The EVENT_ID it was stored under.
+	 * @return The event to send to the other cluster members.
+	 */
+	protected SimpleEvent toClusterEvent(Event event, Long eventId)
+	{
+		SimpleEvent simpleEvent = new SimpleEvent((Event) ensureBaseEvent(event), serverInstance);
+		simpleEvent.setSeq(eventId);
+		return simpleEvent;
+	}
+
+	/**
+	 * Make committed events available to the other cluster members, through the events ring and / or the transport.
+	 *
+	 * @param events
+	 *        The events, in EVENT_ID order.
+	 */
+	protected void distributeEvents(List<SimpleEvent> events)
+	{
+		if (cachingEnabled)
+		{
+			try
+			{
+				eventRing.write(events);
+			}
+			catch (Exception e)
+			{
+				M_log.warn(this + ".distributeEvents(): failed to write " + events.size() + " events to the events cache: " + e);
+			}
+		}
+		if (m_transport != null)
+		{
+			publishEvents(events);
+		}
+	}
+
+	/**
+	 * Push committed events to the other cluster members.
+	 *
+	 * @param events
+	 *        The events, in EVENT_ID order.
+	 */
+	protected void publishEvents(List<SimpleEvent> events)
+	{
+		ClusterEventBatch batch = new ClusterEventBatch(serverInstance, m_publishedBatchSeq.incrementAndGet(), events);
+		try
+		{
+			m_transport.publish(batch);
+		}
+		catch (Exception e)
+		{
+			// the others will find them when reconciling with the db
+			M_log.warn(this + ".publishEvents(): failed to publish " + batch + ": " + e);
+		}
+	}
 
-				if (myEvents.size() > 0)
+	/**
+	 * Process a batch pushed by another cluster member: notify the events we have not seen yet, and request a db catch-up if a batch was lost.
+	 *
+	 * @param batch
+	 *        The batch received.
+	 */
+	protected void receiveBatch(ClusterEventBatch batch)
+	{
+		if (serverInstance.equals(batch.getServerIdInstance()))
+		{
+			return;
+		}
+
+		// a late or repeated batch does not move the sequence back, its gap was seen when the later batch arrived
+		final long[] previous = { 0 };
+		m_receivedBatchSeq.compute(batch.getServerIdInstance(), (sender, last) -> {
+			previous[0] = last == null ? 0 : last;
+			return last == null ? batch.getBatchSeq() : Math.max(last, batch.getBatchSeq());
+		});
+		if (previous[0] > 0 && batch.getBatchSeq() > previous[0] + 1)
+		{
+			M_log.info(this + ".receiveBatch(): expected batch #" + (previous[0] + 1) + " from " + batch.getServerIdInstance() + " but got #" + batch.getBatchSeq() + ", catching up from the db");
+			requestCatchUp();
+		}
+
+		synchronized (m_remoteNotifyLock)
+		{
+			for (SimpleEvent event : batch.getEvents())
+			{
+				// skip what was already read from the db
+				if (event.getSeq() <= m_lastEventSeq || !m_notifiedEventIds.add(event.getSeq())) continue;
+
+				try
+				{
+					notifyObservers(event, false);
+				}
+				catch (Exception e)
 				{
-						if (M_log.isDebugEnabled()) M_log.debug("writing " + myEvents.size() + " batched events");
-					writeBatchEvents(myEvents);
+					M_log.warn(this + ".receiveBatch(), notifyObservers(), event: " + event, e);
 				}
 			}
+		}
+	}
+
+	/**
+	 * Have the db read for new events as soon as possible.
+	 */
+	protected void requestCatchUp()
+	{
+		m_catchUpRequested = true;
+		if (scheduler != null)
+		{
+			scheduler.execute(this);
+		}
+	}
+
+	/*************************************************************************************************************************************************
+	 * Runnable
+	 ************************************************************************************************************************************************/
+
+	/**
+	 * Run the event checking thread.
+	 */
+	public void run()
+	{
+		try
+		{
+			Thread.currentThread().setName(this.getClass().getName());
+			// batched events are written by the event queue's own thread
+
+			// with a transport the events come pushed, only read the db to reconcile or catch up
+			long now = System.currentTimeMillis();
+			if (m_transport != null && !m_catchUpRequested && now - m_lastDbCheck < m_reconcilePeriod * 1000L)
+			{
+				return;
+			}
+			m_catchUpRequested = false;
+			m_lastDbCheck = now;
 
 				if (M_log.isDebugEnabled()) M_log.debug("checking for events > " + m_lastEventSeq);
 			// check the db for new events
@@ -560,43 +785,20 @@ public abstract class ClusterEventTracking extends BaseEventTrackingService impl
 			fields[0] = Long.valueOf(m_lastEventSeq);
 
 			List events = new ArrayList();
-			if (cachingEnabled) { // KNL-1184
+			// the ring only holds the latest events, when we are further behind catch up from the db instead
+			long head = cachingEnabled ? eventRing.getHead() : 0;
+			if (cachingEnabled && head - m_lastEventSeq <= eventRing.getCapacity()) { // KNL-1184
 				// set to last event id processed + 1 since we've already processed the last event id
 				long beginEventId = m_lastEventSeq + 1;
-				// set m_lastEventSeq to latest key value in event cache
-				initLastEventIdInEventCache();
-				// only process events if there are new ones
-				if (m_lastEventSeq >= beginEventId) {
-					for (long i = beginEventId; i <= m_lastEventSeq; i++) {
-						SimpleEvent event = (SimpleEvent) eventCache.get( String.valueOf(i) );
-						if (event != null) {
-							boolean nonSessionEvent = (event.getServerId() == null || StringUtils.startsWith(event.getSessionId(), "~"));
-							String userId = null;
-							boolean skipIt = false;
-
-							if (nonSessionEvent) {
-								String[] parts = StringUtils.split(event.getSessionId(), "~");
-								if (parts.length > 1) {
-									userId = parts[1];
-								}
-
-								// we skip this event if it came from our server
-								if (parts.length > 0) {
-									skipIt = serverId.equals(parts[0]);
-								}
-
-								event.setUserId(userId);
-							} else {
-								skipIt = serverInstance.equals(event.getServerId());
-								event.setSessionId(event.getSessionId());
-							}
-
-							// add event to list, only if it is not a local server event
-							if (!skipIt) {
-								events.add(event);
-							}
+				// only process events if there are new ones, reading them all in one go
+				if (head >= beginEventId) {
+					for (SimpleEvent event : eventRing.read(beginEventId, head)) {
+						// add event to list, only if it is not a local server event (nor already pushed to us)
+						if (!serverInstance.equals(event.getServerId()) && m_notifiedEventIds.add(event.getSeq())) {
+							events.add(event);
 						}
 					}
+					m_lastEventSeq = head;
 				}
 			} else {
 				events = sqlService().dbRead(statement, fields, new SqlReader() {
@@ -637,6 +839,11 @@ public abstract class ClusterEventTracking extends BaseEventTrackingService impl
 								return null;
 							}
 
+							// already pushed to us?
+							if (!m_notifiedEventIds.add(id)) {
+								return null;
+							}
+
 							// Note: events from outside the server don't need notification info, since notification is processed only on internal
 							// events -ggolden
 							BaseEvent event = new BaseEvent(id, function, ref, context, "m".equals(code), NotificationService.NOTI_NONE, date);
@@ -653,9 +860,14 @@ public abstract class ClusterEventTracking extends BaseEventTrackingService impl
 				});
 			}
 			// for each new event found, notify observers
-			for (int i = 0; i < events.size(); i++) {
-				Event event = (Event) events.get(i);
-				notifyObservers(event, false);
+			synchronized (m_remoteNotifyLock) {
+				for (int i = 0; i < events.size(); i++) {
+					Event event = (Event) events.get(i);
+					notifyObservers(event, false);
+				}
+
+				// everything up to m_lastEventSeq is now known, forget about those ids
+				m_notifiedEventIds.headSet(m_lastEventSeq, true).clear();
 			}
 		}
 		catch (Throwable t)
@@ -692,70 +904,23 @@ public abstract class ClusterEventTracking extends BaseEventTrackingService impl
 
 	/**
 	 * KNL-1184
-	 * Initializes the events cache, if enabled
+	 * Initializes the events ring, if enabled
 	 */
 	private void initCacheServer() {
 		// remove down to and including this line
 		cachingEnabled = serverConfigurationService().getBoolean("memory.cluster.enabled", false);
 		if (cachingEnabled) {
-			boolean eventsCacheUsed = false;
-			boolean eventLastCacheUsed = false;
 			String[] caches = serverConfigurationService().getStrings("memory.cluster.names");
 			if(ArrayUtils.isNotEmpty(caches)) {
 				for(String cacheName : caches) {
 					if("org.sakaiproject.event.impl.ClusterEventTracking.eventsCache".equals(cacheName)) {
-						eventCache = memoryService().newCache("org.sakaiproject.event.impl.ClusterEventTracking.eventsCache");
-						eventsCacheUsed = true;
-					} else if("org.sakaiproject.event.impl.ClusterEventTracking.eventLastCache".equals(cacheName)) {
-						/**
-						 * This cache only needs to hold a single value, the last updated event id
-						 */
-						eventLastCache = memoryService().newCache("org.sakaiproject.event.impl.ClusterEventTracking.eventLastCache");
-						eventLastCacheUsed = true;
+						Cache eventCache = memoryService().newCache("org.sakaiproject.event.impl.ClusterEventTracking.eventsCache");
+						eventRing = new ClusterEventRingBuffer(eventCache, serverConfigurationService().getInt("memory.cluster.events.capacity", 50000));
 					}
 				}
-				cachingEnabled = eventsCacheUsed && eventLastCacheUsed;
 			}
+			cachingEnabled = eventRing != null;
 		}
 	}
 
-    /**
-     * Finds the last event ID inserted into the event cache
-     * (tracked in another cache)
-     */
-    private void initLastEventIdInEventCache() {
-        if (cachingEnabled) {
-            if (eventLastCache != null) {
-                Long last = (Long) eventLastCache.get("lastEventId");
-                if (last != null) {
-                    m_lastEventSeq = last;
-                }
-            }
-        }
-    }
-
-    /**
-     * Writes an event to cache, if enabled
-     * 
-     * @param event the event object
-     * @param eventId the id of the event object
-     */
-    private void writeEventToCluster(Event event, Long eventId) {
-        if (cachingEnabled) {
-            if (eventCache != null) {
-                // store event as an element
-                BaseEvent baseEvent = ensureBaseEvent(event);
-                SimpleEvent simpleEvent = new SimpleEvent((Event) baseEvent, serverConfigurationService().getServerIdInstance());
-                // add item to cache store
-                eventCache.put(String.valueOf(eventId), simpleEvent);
-                // update the last event id each time
-                eventLastCache.put("lastEventId", eventId);
-            } else {
-				M_log.debug("Cannot store event to cache, event store not initialized.");
-            }
-        } else {
-			M_log.debug("Cluster caching not enabled.");
-        }
-    }
-
 }
@@ -0,0 +1,68 @@
+/******************************************************************************
+ * $URL$
+ * $Id$
+ ******************************************************************************
+ *
+ * Copyright (c) 2003-2016 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *       http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *****************************************************************************/
+
+package org.sakaiproject.event.impl;
+
+/**
+ * A transport used by {@link ClusterEventTracking} to push newly written events to the other
+ * cluster members, so they do not have to poll the SAKAI_EVENT table to learn about them.
+ * <p>
+ * Delivery is best effort: receivers detect lost batches through the per-sender sequence
+ * number carried by each {@link ClusterEventBatch} and fall back to a database catch-up read.
+ * </p>
+ */
+public interface ClusterEventTransport
+{
+	/**
+	 * Receives the batches published by the other cluster members.
+	 */
+	interface Listener
+	{
+		/**
+		 * Called (possibly on a transport owned thread) for each batch published by another node.
+		 *
+		 * @param batch
+		 *        The batch of events as published by the sender.
+		 */
+		void batchReceived(ClusterEventBatch batch);
+	}
+
+	/**
+	 * Start the transport, batches published by peers will be handed to the listener from now on.
+	 *
+	 * @param listener
+	 *        The listener to receive batches from the other cluster members.
+	 */
+	void start(Listener listener);
+
+	/**
+	 * Send a batch of events (already stored in the database) to the other cluster members.
+	 *
+	 * @param batch
+	 *        The batch to send.
+	 */
+	void publish(ClusterEventBatch batch);
+
+	/**
+	 * Stop the transport, no further batches will be received.
+	 */
+	void stop();
+}
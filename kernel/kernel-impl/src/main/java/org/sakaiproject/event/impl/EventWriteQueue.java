@@ -0,0 +1,424 @@
+/******************************************************************************
+ * $URL$
+ * $Id$
+ ******************************************************************************
+ *
+ * Copyright (c) 2003-2016 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *       http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *****************************************************************************/
+
+package org.sakaiproject.event.impl;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.sakaiproject.event.api.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Queue of posted events waiting to be stored, written by a dedicated thread in group commits.
+ * <p>
+ * Posting threads append to a lock-free queue and never wait on each other. The writer commits as soon as batchSize events are
+ * waiting, or when the oldest waiting event has waited latency milliseconds. When the database falls behind and maxQueueSize
+ * events are waiting, posting threads either wait for room (block) or the event is dropped (drop). Once stopped, the events
+ * still posted are written by the posting thread.
+ * </p>
+ */
+public class EventWriteQueue implements EventWriteQueueMBean
+{
+	private static final Logger M_log = LoggerFactory.getLogger(EventWriteQueue.class);
+
+	public static final String OVERFLOW_BLOCK = "block";
+	public static final String OVERFLOW_DROP = "drop";
+
+	/**
+	 * Writes a group of events in one transaction.
+	 */
+	public interface BatchWriter
+	{
+		void write(List<Event> events);
+	}
+
+	private final ConcurrentLinkedQueue<Event> queue = new ConcurrentLinkedQueue<Event>();
+
+	/** The queue size (ConcurrentLinkedQueue.size() walks the queue). */
+	private final AtomicInteger depth = new AtomicInteger(0);
+
+	private final BatchWriter batchWriter;
+	private final int batchSize;
+	private final long latencyNanos;
+	private final int maxQueueSize;
+	private final String overflowPolicy;
+
+	private volatile boolean running = false;
+	/** Set by stop, the writer thread then exits once the queue is empty. */
+	private volatile boolean stopped = false;
+	private Thread writer;
+	private ObjectName objectName;
+
+	// metrics
+	private volatile int maxDepth = 0;
+	private final AtomicLong enqueued = new AtomicLong(0);
+	private final AtomicLong dropped = new AtomicLong(0);
+	private volatile long written = 0;
+	private volatile long commits = 0;
+	private volatile int lastBatchSize = 0;
+	private volatile int maxBatchSize = 0;
+	private volatile long lastCommitNanos = 0;
+	private volatile long maxCommitNanos = 0;
+	private volatile long totalCommitNanos = 0;
+
+	/**
+	 * @param batchWriter
+	 *        Writes the group commits.
+	 * @param batchSize
+	 *        The number of events per group commit.
+	 * @param latencyMillis
+	 *        The longest an event waits for its group commit.
+	 * @param maxQueueSize
+	 *        The number of waiting events at which the overflow policy applies.
+	 * @param overflowPolicy
+	 *        {@link #OVERFLOW_BLOCK} or {@link #OVERFLOW_DROP}.
+	 */
+	public EventWriteQueue(BatchWriter batchWriter, int batchSize, long latencyMillis, int maxQueueSize, String overflowPolicy)
+	{
+		if (batchWriter == null)
+		{
+			throw new IllegalArgumentException("The batch writer cannot be null");
+		}
+		this.batchWriter = batchWriter;
+		this.batchSize = Math.max(1, batchSize);
+		this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, latencyMillis));
+		this.maxQueueSize = Math.max(this.batchSize, maxQueueSize);
+		this.overflowPolicy = OVERFLOW_DROP.equalsIgnoreCase(overflowPolicy) ? OVERFLOW_DROP : OVERFLOW_BLOCK;
+	}
+
+	/**
+	 * Start the writer thread, and expose the metrics over JMX under this name.
+	 *
+	 * @param jmxName
+	 *        The name used in the JMX ObjectName, null to not register.
+	 */
+	public synchronized void start(String jmxName)
+	{
+		if (running) return;
+
+		running = true;
+		writer = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				writeLoop();
+			}
+		}, "EventWriteQueue");
+		writer.setDaemon(true);
+		writer.start();
+
+		if (jmxName != null)
+		{
+			try
+			{
+				MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+				objectName = new ObjectName("org.sakaiproject:type=EventWriteQueue,name=" + ObjectName.quote(jmxName));
+				if (!mBeanServer.isRegistered(objectName))
+				{
+					mBeanServer.registerMBean(this, objectName);
+				}
+			}
+			catch (Exception e)
+			{
+				M_log.warn("start: could not register the JMX metrics: " + e);
+				objectName = null;
+			}
+		}
+		M_log.info("start: batchSize: " + batchSize + " latency: " + getLatencyMillis() + "ms maxQueueSize: " + maxQueueSize + " overflow: " + overflowPolicy);
+	}
+
+	/**
+	 * Stop the writer thread, once it wrote all the waiting events (waiting at most timeoutMillis).
+	 */
+	public void stop(long timeoutMillis)
+	{
+		Thread thread;
+		synchronized (this)
+		{
+			if (!running) return;
+			stopped = true;
+			running = false;
+			thread = writer;
+		}
+
+		LockSupport.unpark(thread);
+		try
+		{
+			thread.join(timeoutMillis);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		if (depth.get() > 0)
+		{
+			M_log.warn("stop: " + depth.get() + " events were not written");
+		}
+
+		if (objectName != null)
+		{
+			try
+			{
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			}
+			catch (Exception e)
+			{
+				M_log.debug("stop: " + e);
+			}
+			objectName = null;
+		}
+	}
+
+	/**
+	 * Queue an event for writing.
+	 *
+	 * @param event
+	 *        The event.
+	 * @return true if queued or written, false if dropped (queue full with the drop policy, or with the writer not started yet).
+	 */
+	public boolean offer(Event event)
+	{
+		if (stopped)
+		{
+			// nothing writes the queue any more
+			List<Event> batch = new ArrayList<Event>(1);
+			batch.add(event);
+			enqueued.incrementAndGet();
+			commit(batch);
+			return true;
+		}
+
+		while (depth.get() >= maxQueueSize)
+		{
+			if (stopped)
+			{
+				return offer(event);
+			}
+			if (!running || OVERFLOW_DROP.equals(overflowPolicy))
+			{
+				if (dropped.getAndIncrement() % 1000 == 0)
+				{
+					M_log.warn("offer: event queue full (" + maxQueueSize + "), dropped " + dropped.get() + " events so far, last: " + event);
+				}
+				return false;
+			}
+
+			// block: make sure the writer is busy and wait for room
+			LockSupport.unpark(writer);
+			LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+		}
+
+		queue.offer(event);
+		enqueued.incrementAndGet();
+		int size = depth.incrementAndGet();
+		if (size > maxDepth)
+		{
+			maxDepth = size;
+		}
+		if (size >= batchSize)
+		{
+			LockSupport.unpark(writer);
+		}
+		if (stopped)
+		{
+			// stopped while queuing, the writer may have exited before seeing this event
+			writeLeftOver();
+		}
+		return true;
+	}
+
+	/**
+	 * Write what is still queued after the writer thread stopped.
+	 */
+	private void writeLeftOver()
+	{
+		List<Event> batch = new ArrayList<Event>();
+		Event event;
+		while ((event = queue.poll()) != null)
+		{
+			batch.add(event);
+			depth.decrementAndGet();
+		}
+		if (!batch.isEmpty())
+		{
+			commit(batch);
+		}
+	}
+
+	/**
+	 * The writer thread: commit when a batch is full or its oldest event has waited long enough.
+	 */
+	private void writeLoop()
+	{
+		long batchStart = 0;
+		List<Event> batch = new ArrayList<Event>(batchSize);
+		while (running || depth.get() > 0)
+		{
+			int waiting = depth.get();
+			if (waiting <= 0)
+			{
+				batchStart = 0;
+				LockSupport.parkNanos(this, latencyNanos);
+				continue;
+			}
+
+			long now = System.nanoTime();
+			if (batchStart == 0)
+			{
+				batchStart = now;
+			}
+			long waited = now - batchStart;
+			if (running && waiting < batchSize && waited < latencyNanos)
+			{
+				LockSupport.parkNanos(this, latencyNanos - waited);
+				continue;
+			}
+
+			Event event;
+			while (batch.size() < batchSize && (event = queue.poll()) != null)
+			{
+				batch.add(event);
+			}
+			depth.addAndGet(-batch.size());
+			// what is left over starts its wait now
+			batchStart = (depth.get() > 0) ? System.nanoTime() : 0;
+
+			commit(batch);
+			batch = new ArrayList<Event>(batchSize);
+		}
+	}
+
+	private void commit(List<Event> batch)
+	{
+		long start = System.nanoTime();
+		try
+		{
+			batchWriter.write(batch);
+		}
+		catch (Throwable t)
+		{
+			M_log.error("commit: failed to write " + batch.size() + " events: " + t, t);
+		}
+		long elapsed = System.nanoTime() - start;
+
+		commits++;
+		written += batch.size();
+		lastBatchSize = batch.size();
+		if (batch.size() > maxBatchSize)
+		{
+			maxBatchSize = batch.size();
+		}
+		lastCommitNanos = elapsed;
+		totalCommitNanos += elapsed;
+		if (elapsed > maxCommitNanos)
+		{
+			maxCommitNanos = elapsed;
+		}
+	}
+
+	public int getQueueDepth()
+	{
+		return depth.get();
+	}
+
+	public int getMaxQueueDepth()
+	{
+		return maxDepth;
+	}
+
+	public long getEnqueuedCount()
+	{
+		return enqueued.get();
+	}
+
+	public long getDroppedCount()
+	{
+		return dropped.get();
+	}
+
+	public long getWrittenCount()
+	{
+		return written;
+	}
+
+	public long getCommitCount()
+	{
+		return commits;
+	}
+
+	public int getLastBatchSize()
+	{
+		return lastBatchSize;
+	}
+
+	public int getMaxBatchSize()
+	{
+		return maxBatchSize;
+	}
+
+	public double getAverageBatchSize()
+	{
+		long c = commits;
+		return (c == 0) ? 0 : (double) written / c;
+	}
+
+	public long getLastCommitMillis()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(lastCommitNanos);
+	}
+
+	public long getMaxCommitMillis()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(maxCommitNanos);
+	}
+
+	public double getAverageCommitMillis()
+	{
+		long c = commits;
+		return (c == 0) ? 0 : totalCommitNanos / 1000000d / c;
+	}
+
+	public int getBatchSize()
+	{
+		return batchSize;
+	}
+
+	public long getLatencyMillis()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(latencyNanos);
+	}
+
+	public String getOverflowPolicy()
+	{
+		return overflowPolicy;
+	}
+}
@@ -0,0 +1,73 @@
+/******************************************************************************
+ * $URL$
+ * $Id$
+ ******************************************************************************
+ *
+ * Copyright (c) 2003-2016 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *       http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *****************************************************************************/
+
+package org.sakaiproject.event.impl;
+
+/**
+ * JMX view of an {@link EventWriteQueue}.
+ */
+public interface EventWriteQueueMBean
+{
+	/** @return the number of events waiting to be written. */
+	int getQueueDepth();
+
+	/** @return the highest number of events seen waiting. */
+	int getMaxQueueDepth();
+
+	/** @return the number of events accepted since start. */
+	long getEnqueuedCount();
+
+	/** @return the number of events dropped because the queue was full. */
+	long getDroppedCount();
+
+	/** @return the number of events written since start. */
+	long getWrittenCount();
+
+	/** @return the number of group commits since start. */
+	long getCommitCount();
+
+	/** @return the size of the last group commit. */
+	int getLastBatchSize();
+
+	/** @return the largest group commit. */
+	int getMaxBatchSize();
+
+	/** @return the average number of events per group commit. */
+	double getAverageBatchSize();
+
+	/** @return the time taken by the last group commit, in milliseconds. */
+	long getLastCommitMillis();
+
+	/** @return the longest group commit, in milliseconds. */
+	long getMaxCommitMillis();
+
+	/** @return the average group commit time, in milliseconds. */
+	double getAverageCommitMillis();
+
+	/** @return the number of events per group commit the writer aims for. */
+	int getBatchSize();
+
+	/** @return how long (milliseconds) an event may wait for its group commit. */
+	long getLatencyMillis();
+
+	/** @return the overflow policy (block or drop) applied when the queue is full. */
+	String getOverflowPolicy();
+}
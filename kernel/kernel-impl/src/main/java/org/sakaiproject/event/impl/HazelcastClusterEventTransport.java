@@ -0,0 +1,95 @@
+/******************************************************************************
+ * $URL$
+ * $Id$
+ ******************************************************************************
+ *
+ * Copyright (c) 2003-2016 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *       http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *****************************************************************************/
+
+package org.sakaiproject.event.impl;
+
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.ITopic;
+import com.hazelcast.core.Message;
+import com.hazelcast.core.MessageListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link ClusterEventTransport} publishing batches on a Hazelcast topic, usable when the
+ * MemoryService runs on Hazelcast (memory.cachemanager=hazelcast).
+ */
+public class HazelcastClusterEventTransport implements ClusterEventTransport
+{
+	private static final Logger M_log = LoggerFactory.getLogger(HazelcastClusterEventTransport.class);
+
+	private final HazelcastInstance hcInstance;
+
+	private final String topicName;
+
+	private ITopic<ClusterEventBatch> topic;
+
+	private String registrationId;
+
+	public HazelcastClusterEventTransport(HazelcastInstance hcInstance, String topicName)
+	{
+		if (hcInstance == null)
+		{
+			throw new IllegalArgumentException("HazelcastInstance cannot be null");
+		}
+		this.hcInstance = hcInstance;
+		this.topicName = topicName;
+	}
+
+	public void start(final Listener listener)
+	{
+		topic = hcInstance.getTopic(topicName);
+		registrationId = topic.addMessageListener(new MessageListener<ClusterEventBatch>()
+		{
+			public void onMessage(Message<ClusterEventBatch> message)
+			{
+				listener.batchReceived(message.getMessageObject());
+			}
+		});
+		M_log.info("start: listening on topic " + topicName);
+	}
+
+	public void publish(ClusterEventBatch batch)
+	{
+		if (topic != null)
+		{
+			topic.publish(batch);
+		}
+	}
+
+	public void stop()
+	{
+		if (topic != null && registrationId != null)
+		{
+			try
+			{
+				topic.removeMessageListener(registrationId);
+			}
+			catch (Exception e)
+			{
+				// the instance may already be shut down
+				M_log.debug("stop: " + e);
+			}
+		}
+		topic = null;
+		registrationId = null;
+	}
+}
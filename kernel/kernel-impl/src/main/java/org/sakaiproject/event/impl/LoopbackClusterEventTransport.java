@@ -0,0 +1,94 @@
+/******************************************************************************
+ * $URL$
+ * $Id$
+ ******************************************************************************
+ *
+ * Copyright (c) 2003-2016 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *       http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *****************************************************************************/
+
+package org.sakaiproject.event.impl;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-JVM {@link ClusterEventTransport}: every instance started on the same channel receives
+ * (synchronously, on the publishing thread) the batches published by the other instances.
+ * Meant for tests and single JVM setups that run several logical nodes.
+ */
+public class LoopbackClusterEventTransport implements ClusterEventTransport
+{
+	private static final Logger M_log = LoggerFactory.getLogger(LoopbackClusterEventTransport.class);
+
+	/** The instances started, by channel. */
+	private static final Map<String, List<LoopbackClusterEventTransport>> CHANNELS = new ConcurrentHashMap<String, List<LoopbackClusterEventTransport>>();
+
+	private final String channel;
+
+	private volatile Listener listener;
+
+	public LoopbackClusterEventTransport(String channel)
+	{
+		this.channel = channel;
+	}
+
+	public void start(Listener listener)
+	{
+		this.listener = listener;
+		List<LoopbackClusterEventTransport> members = CHANNELS.get(channel);
+		if (members == null)
+		{
+			CHANNELS.putIfAbsent(channel, new CopyOnWriteArrayList<LoopbackClusterEventTransport>());
+			members = CHANNELS.get(channel);
+		}
+		members.add(this);
+	}
+
+	public void publish(ClusterEventBatch batch)
+	{
+		List<LoopbackClusterEventTransport> members = CHANNELS.get(channel);
+		if (members == null) return;
+
+		for (LoopbackClusterEventTransport member : members)
+		{
+			Listener target = member.listener;
+			if (member == this || target == null) continue;
+			try
+			{
+				target.batchReceived(batch);
+			}
+			catch (Exception e)
+			{
+				M_log.warn("publish: listener failed for batch " + batch + ": " + e, e);
+			}
+		}
+	}
+
+	public void stop()
+	{
+		List<LoopbackClusterEventTransport> members = CHANNELS.get(channel);
+		if (members != null)
+		{
+			members.remove(this);
+		}
+		listener = null;
+	}
+}
@@ -148,6 +148,24 @@ CREATE INDEX CONTENT_RESOURCE_CONTEXT_INDEX ON CONTENT_RESOURCE
 	CONTEXT
 );
 
+CREATE INDEX CONTENT_RESOURCE_FILE_PATH_I ON CONTENT_RESOURCE
+(
+	FILE_PATH
+);
+
+-----------------------------------------------------------------------------
+-- CONTENT_BODY_RELEASED
+-- shared bodies (content.body.dedup) no longer referred to, waiting to be swept
+-----------------------------------------------------------------------------
+
+CREATE TABLE CONTENT_BODY_RELEASED
+(
+	FILE_PATH VARCHAR (128) NOT NULL,
+	RESOURCE_ID VARCHAR (255),
+	RELEASED_AT BIGINT NOT NULL,
+	PRIMARY KEY (FILE_PATH)
+);
+
 -----------------------------------------------------------------------------
 -- CONTENT_RESOURCE_BODY_BINARY
 -----------------------------------------------------------------------------
@@ -162,6 +162,24 @@ CREATE INDEX CONTENT_RESOURCE_RTI ON CONTENT_RESOURCE
 	RESOURCE_TYPE_ID
 );
 
+CREATE INDEX CONTENT_RESOURCE_FILE_PATH_I ON CONTENT_RESOURCE
+(
+	FILE_PATH
+);
+
+-----------------------------------------------------------------------------
+-- CONTENT_BODY_RELEASED
+-- shared bodies (content.body.dedup) no longer referred to, waiting to be swept
+-----------------------------------------------------------------------------
+
+CREATE TABLE CONTENT_BODY_RELEASED
+(
+	FILE_PATH VARCHAR2 (128) NOT NULL,
+	RESOURCE_ID VARCHAR2 (255),
+	RELEASED_AT NUMBER(18) NOT NULL,
+	PRIMARY KEY (FILE_PATH)
+);
+
 -----------------------------------------------------------------------------
 -- CONTENT_RESOURCE_BODY_BINARY
 -----------------------------------------------------------------------------
@@ -99,6 +99,12 @@ public class MockAuthzGroupService implements AuthzGroupService {
 		return null;
 	}
 
+	public Set<String> getAuthzGroupSetsIsAllowed(String userId, String function,
+			Map<String, Collection<String>> azGroupSets) {
+		// TODO Auto-generated method stub
+		return null;
+	}
+
 	public List getAuthzUserGroupIds(ArrayList authzGroupIds, String userid) {
 		// TODO Auto-generated method stub
 		return null;
@@ -129,6 +135,12 @@ public class MockAuthzGroupService implements AuthzGroupService {
 		return null;
 	}
 
+	public Set<String> getUsersIsAllowed(Collection<String> userIds, String function,
+			Collection<String> azGroups) {
+		// TODO Auto-generated method stub
+		return null;
+	}
+
 	public Set<String[]> getUsersIsAllowedByGroup(String function,
 			Collection<String> azGroups) {
 		// TODO Auto-generated method stub
@@ -23,6 +23,7 @@ package org.sakai.memory.impl.test;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import org.sakaiproject.authz.api.SecurityAdvisor;
 import org.sakaiproject.authz.api.SecurityService;
@@ -126,6 +127,24 @@ public class MockSecurityService implements SecurityService
 		return null;
 	}
 
+	/* (non-Javadoc)
+	 * @see org.sakaiproject.authz.api.SecurityService#unlockForUsers(java.util.Collection, java.lang.String, java.lang.String)
+	 */
+	public Map<String, Boolean> unlockForUsers(Collection<String> userIds, String lock, String reference)
+	{
+		// TODO Auto-generated method stub
+		return null;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.sakaiproject.authz.api.SecurityService#unlockForReferences(java.lang.String, java.lang.String, java.util.Collection)
+	 */
+	public Map<String, Boolean> unlockForReferences(String userId, String lock, Collection<String> references)
+	{
+		// TODO Auto-generated method stub
+		return null;
+	}
+
 	/* (non-Javadoc)
 	 * @see org.sakaiproject.authz.api.SecurityService#unlock(org.sakaiproject.user.api.User, java.lang.String, java.lang.String)
 	 */
@@ -0,0 +1,118 @@
+package org.sakaiproject.authz.impl;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RealmPermissionsTest {
+
+    private static final int MAINTAIN = 1;
+    private static final int ACCESS = 2;
+    private static final int AUTH = 3;
+
+    private static final List<Integer> NO_ROLES = Collections.emptyList();
+
+    private RealmPermissions permissions;
+
+    @Before
+    public void setUp() {
+        RealmPermissions.Builder builder = new RealmPermissions.Builder()
+                .addFunction(MAINTAIN, "site.upd")
+                .addFunction(MAINTAIN, "site.visit")
+                .addFunction(ACCESS, "site.visit")
+                .addFunction(AUTH, "content.read")
+                .addUser("teacher", MAINTAIN)
+                .addUser("student", ACCESS);
+        // enough functions to need more than one word in the bitsets
+        for (int i = 0; i < 100; i++) {
+            builder.addFunction(MAINTAIN, "function." + i);
+        }
+        permissions = builder.build();
+    }
+
+    @Test
+    public void testGrantedRole() {
+        assertTrue(permissions.isAllowed("teacher", NO_ROLES, "site.upd"));
+        assertTrue(permissions.isAllowed("teacher", NO_ROLES, "function.99"));
+        assertTrue(permissions.isAllowed("student", NO_ROLES, "site.visit"));
+        assertFalse(permissions.isAllowed("student", NO_ROLES, "site.upd"));
+        assertFalse(permissions.isAllowed("student", NO_ROLES, "function.99"));
+        assertFalse(permissions.isAllowed("stranger", NO_ROLES, "site.visit"));
+        assertFalse(permissions.isAllowed("teacher", NO_ROLES, "unknown"));
+        assertEquals(Integer.valueOf(ACCESS), permissions.getUserRoleKey("student"));
+        assertNull(permissions.getUserRoleKey("stranger"));
+        assertEquals(2, permissions.getUserCount());
+    }
+
+    @Test
+    public void testEmptyRoles() {
+        assertTrue(permissions.isAllowed("stranger", Arrays.asList(AUTH), "content.read"));
+        assertTrue(permissions.isAllowed(null, Arrays.asList(4, AUTH), "content.read"));
+        assertFalse(permissions.isAllowed("stranger", Arrays.asList(AUTH), "site.visit"));
+        assertFalse(permissions.isAllowed(null, null, "content.read"));
+    }
+
+    @Test
+    public void testEmptyRealm() {
+        RealmPermissions empty = new RealmPermissions.Builder().build();
+        assertFalse(empty.isAllowed("teacher", Arrays.asList(AUTH), "site.visit"));
+        assertEquals(0, empty.getUserCount());
+    }
+
+    @Test
+    public void testAcrossRealms() {
+        // /site/X grants the roles, !site.helper and a group realm give them functions
+        RealmPermissions site = new RealmPermissions.Builder()
+                .addFunction(MAINTAIN, "site.upd")
+                .addUser("teacher", MAINTAIN)
+                .addUser("student", ACCESS)
+                .build();
+        RealmPermissions helper = new RealmPermissions.Builder()
+                .addFunction(MAINTAIN, "helper.edit")
+                .addFunction(AUTH, "helper.view")
+                .build();
+        RealmPermissions group = new RealmPermissions.Builder()
+                .addFunction(ACCESS, "group.read")
+                .addUser("grouped", ACCESS)
+                .build();
+        List<RealmPermissions> realms = Arrays.asList(site, helper, group);
+
+        assertFalse(helper.isAllowed("teacher", NO_ROLES, "helper.edit"));
+        assertTrue(RealmPermissions.isAllowed(realms, "teacher", NO_ROLES, "helper.edit"));
+        assertTrue(RealmPermissions.isAllowed(realms, "teacher", NO_ROLES, "site.upd"));
+        assertFalse(RealmPermissions.isAllowed(realms, "teacher", NO_ROLES, "group.read"));
+        assertTrue(RealmPermissions.isAllowed(realms, "student", NO_ROLES, "group.read"));
+        assertFalse(RealmPermissions.isAllowed(realms, "student", NO_ROLES, "helper.edit"));
+        assertTrue(RealmPermissions.isAllowed(realms, "grouped", NO_ROLES, "group.read"));
+        assertTrue(RealmPermissions.isAllowed(realms, "stranger", Arrays.asList(AUTH), "helper.view"));
+        assertFalse(RealmPermissions.isAllowed(realms, "stranger", NO_ROLES, "helper.view"));
+        assertFalse(RealmPermissions.isAllowed(realms, null, null, "site.upd"));
+        assertFalse(RealmPermissions.isAllowed(Arrays.asList(helper), "teacher", NO_ROLES, "helper.edit"));
+    }
+
+    @Test
+    public void testSerializable() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(permissions);
+        }
+        RealmPermissions copy;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            copy = (RealmPermissions) in.readObject();
+        }
+        assertTrue(copy.isAllowed("teacher", NO_ROLES, "function.42"));
+        assertFalse(copy.isAllowed("student", NO_ROLES, "site.upd"));
+    }
+}
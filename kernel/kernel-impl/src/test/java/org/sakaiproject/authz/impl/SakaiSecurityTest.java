@@ -14,16 +14,28 @@ import org.sakaiproject.authz.api.FunctionManager;
 import org.sakaiproject.authz.api.GroupNotDefinedException;
 import org.sakaiproject.component.api.ServerConfigurationService;
 import org.sakaiproject.entity.api.EntityManager;
+import org.sakaiproject.entity.api.Reference;
 import org.sakaiproject.event.api.EventTrackingService;
 import org.sakaiproject.memory.api.Cache;
 import org.sakaiproject.memory.api.MemoryService;
+import org.sakaiproject.memory.impl.BasicMapCache;
+import org.sakaiproject.thread_local.api.ThreadLocalManager;
+import org.sakaiproject.tool.api.SessionManager;
 
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import static java.util.Collections.singleton;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.hamcrest.collection.IsIterableContainingInAnyOrder.containsInAnyOrder;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
@@ -42,6 +54,8 @@ public class SakaiSecurityTest {
     @Mock private MemoryService memoryService;
     @Mock private ServerConfigurationService serverConfigurationService;
     @Mock private EventTrackingService eventTrackingService;
+    @Mock private ThreadLocalManager threadLocalManager;
+    @Mock private SessionManager sessionManager;
 
 
     private SakaiSecurity sakaiSecurity;
@@ -55,6 +69,8 @@ public class SakaiSecurityTest {
         sakaiSecurity.setMemoryService(memoryService);
         sakaiSecurity.setServerConfigurationService(serverConfigurationService);
         sakaiSecurity.setEventTrackingService(eventTrackingService);
+        sakaiSecurity.setThreadLocalManager(threadLocalManager);
+        sakaiSecurity.setSessionManager(sessionManager);
 
         // Always return default
         when(serverConfigurationService.getString(anyString(), anyString())).thenAnswer(invocation -> invocation.getArgument(1));
@@ -135,4 +151,142 @@ public class SakaiSecurityTest {
         assertThat(flushed, containsInAnyOrder("unlock@1@@function@/site/1", "unlock@2@@function@/site/1"));
     }
 
+    private void indexed() {
+        when(serverConfigurationService.getBoolean(eq("memory.SecurityService.index"), anyBoolean())).thenReturn(true);
+    }
+
+    @Test
+    public void testCacheRealmPermsChangedIndexed() {
+
+        indexed();
+        Cache cache = mock(Cache.class);
+        when(memoryService.getCache("org.sakaiproject.authz.api.SecurityService.cache")).thenReturn(cache);
+        sakaiSecurity.init();
+        assertNotNull(sakaiSecurity.m_cacheIndex);
+
+        sakaiSecurity.addToCache("unlock@user1@@function1@/site/1", true, "user1", "function1", "/site/1");
+        sakaiSecurity.addToCache("unlock@user1@@function2@/site/1", true, "user1", "function2", "/site/1");
+        sakaiSecurity.addToCache("unlock@user2@student@function1@/site/1", false, "user2", "function1", "/site/1");
+        sakaiSecurity.addToCache("unlock@user1@@function1@/site/2", true, "user1", "function1", "/site/2");
+
+        // This collects all the flushes
+        Set<String> flushed = new HashSet<>();
+        doAnswer(s -> flushed.addAll(s.getArgument(0))).when(cache).removeAll(any());
+
+        sakaiSecurity.cacheRealmPermsChanged("/realm//site/1", singleton("role"), singleton("function1"));
+
+        assertThat(flushed, containsInAnyOrder("unlock@user1@@function1@/site/1", "unlock@user2@student@function1@/site/1"));
+        // no need to look at the realm members
+        verifyZeroInteractions(authzGroupService);
+        assertEquals(2, sakaiSecurity.getCacheStatistics("/site/1")[2]);
+        assertEquals(1, sakaiSecurity.getCacheStatistics("/site/1")[3]);
+    }
+
+    @Test
+    public void testAuthRoleChangeIndexedDoesNotClear() {
+
+        indexed();
+        Cache cache = mock(Cache.class);
+        when(memoryService.getCache("org.sakaiproject.authz.api.SecurityService.cache")).thenReturn(cache);
+        sakaiSecurity.init();
+
+        sakaiSecurity.addToCache("unlock@user1@@function@/site/1", true, "user1", "function", "/site/1");
+        sakaiSecurity.addToCache("unlock@user1@@function@/site/2", true, "user1", "function", "/site/2");
+
+        Set<String> flushed = new HashSet<>();
+        doAnswer(s -> flushed.addAll(s.getArgument(0))).when(cache).removeAll(any());
+
+        sakaiSecurity.cacheRealmPermsChanged("/realm//site/1", singleton(AuthzGroupService.AUTH_ROLE), singleton("function"));
+
+        assertThat(flushed, containsInAnyOrder("unlock@user1@@function@/site/1"));
+        verify(cache, never()).clear();
+    }
+
+    @Test
+    public void testUserChangedIndexed() {
+
+        indexed();
+        Cache cache = mock(Cache.class);
+        when(memoryService.getCache("org.sakaiproject.authz.api.SecurityService.cache")).thenReturn(cache);
+        sakaiSecurity.init();
+
+        sakaiSecurity.addToCache("unlock@user1@@function@/site/1", true, "user1", "function", "/site/1");
+        sakaiSecurity.addToCache("unlock@user1@@function@/site/2", true, "user1", "function", "/site/2");
+        sakaiSecurity.addToCache("unlock@user2@@function@/site/1", true, "user2", "function", "/site/1");
+
+        Set<String> flushed = new HashSet<>();
+        doAnswer(s -> flushed.addAll(s.getArgument(0))).when(cache).removeAll(any());
+
+        assertTrue(sakaiSecurity.notifyUserChanged("user1"));
+
+        assertThat(flushed, containsInAnyOrder("unlock@user1@@function@/site/1", "unlock@user1@@function@/site/2"));
+        assertEquals(1, sakaiSecurity.m_cacheIndex.size());
+    }
+
+    @Test
+    public void testUnlockForUsers() {
+
+        indexed();
+        when(memoryService.getCache("org.sakaiproject.authz.api.SecurityService.cache")).thenReturn(new BasicMapCache<String, Object>("cache"));
+        when(memoryService.getCache("org.sakaiproject.authz.api.SecurityService.superCache")).thenReturn(new BasicMapCache<String, Object>("superCache"));
+        sakaiSecurity.init();
+
+        Reference ref = mock(Reference.class);
+        when(entityManager.newReference("/site/1")).thenReturn(ref);
+        when(ref.getAuthzGroups(anyString())).thenReturn(singleton("/site/1"));
+        when(authzGroupService.getUsersIsAllowed(any(Collection.class), eq("function"), any(Collection.class)))
+                .thenReturn(new HashSet<>(Arrays.asList("user1", "user3")));
+        sakaiSecurity.addToCache("unlock@user4@@function@/site/1", true, "user4", "function", "/site/1");
+
+        List<String> users = Arrays.asList("user1", "user2", "user3", "user4");
+        Map<String, Boolean> allowed = sakaiSecurity.unlockForUsers(users, "function", "/site/1");
+
+        assertEquals(4, allowed.size());
+        assertTrue(allowed.get("user1"));
+        assertFalse(allowed.get("user2"));
+        assertTrue(allowed.get("user3"));
+        assertTrue(allowed.get("user4"));
+        // the misses are resolved together, not one user at a time
+        verify(authzGroupService).getUsersIsAllowed(Arrays.asList("user1", "user2", "user3"), "function", singleton("/site/1"));
+        verify(authzGroupService, never()).isAllowed(anyString(), eq("function"), any(Collection.class));
+        assertEquals(4, sakaiSecurity.m_cacheIndex.size());
+
+        // and then cached
+        assertEquals(allowed, sakaiSecurity.unlockForUsers(users, "function", "/site/1"));
+        verify(authzGroupService, times(1)).getUsersIsAllowed(any(Collection.class), eq("function"), any(Collection.class));
+        assertEquals(users.size() + 1, sakaiSecurity.getCacheStatistics("/site/1")[0]);
+    }
+
+    @Test
+    public void testUnlockForReferences() {
+
+        when(memoryService.getCache("org.sakaiproject.authz.api.SecurityService.cache")).thenReturn(new BasicMapCache<String, Object>("cache"));
+        when(memoryService.getCache("org.sakaiproject.authz.api.SecurityService.superCache")).thenReturn(new BasicMapCache<String, Object>("superCache"));
+        sakaiSecurity.init();
+
+        for (String site : Arrays.asList("1", "2", "3")) {
+            Reference ref = mock(Reference.class);
+            when(entityManager.newReference("/site/" + site)).thenReturn(ref);
+            when(ref.getAuthzGroups("user1")).thenReturn(Arrays.asList("/site/" + site, "!site.helper"));
+        }
+        when(authzGroupService.getAuthzGroupSetsIsAllowed(eq("user1"), eq("function"), any(Map.class)))
+                .thenReturn(new HashSet<>(Arrays.asList("/site/1", "/site/3")));
+
+        Map<String, Boolean> allowed = sakaiSecurity.unlockForReferences("user1", "function", Arrays.asList("/site/1", "/site/2", "/site/3"));
+
+        assertEquals(3, allowed.size());
+        assertTrue(allowed.get("/site/1"));
+        assertFalse(allowed.get("/site/2"));
+        assertTrue(allowed.get("/site/3"));
+        Map<String, Collection<String>> azgs = new HashMap<>();
+        for (String site : Arrays.asList("1", "2", "3")) {
+            azgs.put("/site/" + site, Arrays.asList("/site/" + site, "!site.helper"));
+        }
+        verify(authzGroupService).getAuthzGroupSetsIsAllowed("user1", "function", azgs);
+        verify(authzGroupService, never()).isAllowed(anyString(), eq("function"), any(Collection.class));
+
+        assertEquals(allowed, sakaiSecurity.unlockForReferences("user1", "function", Arrays.asList("/site/1", "/site/2", "/site/3")));
+        verify(authzGroupService, times(1)).getAuthzGroupSetsIsAllowed(anyString(), anyString(), any(Map.class));
+    }
+
 }
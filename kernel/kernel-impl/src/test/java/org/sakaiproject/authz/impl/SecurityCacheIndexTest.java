@@ -0,0 +1,55 @@
+package org.sakaiproject.authz.impl;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SecurityCacheIndexTest {
+
+    private SecurityCacheIndex index;
+
+    @Before
+    public void setUp() {
+        index = new SecurityCacheIndex();
+    }
+
+    @Test
+    public void testChecksWithoutKeysAreNotTracked() {
+        // e.g. every content file checked but never cached
+        for (int i = 0; i < 1000; i++) {
+            index.miss("/content/group/site/file" + i);
+            index.hit("/content/group/site/file" + i);
+        }
+        assertEquals(0, index.realmCount());
+        assertNull(index.getRealmStatistics("/content/group/site/file1"));
+        assertTrue(index.keysForRealmPrefix("/content/").isEmpty());
+    }
+
+    @Test
+    public void testRealmDroppedWithItsLastKey() {
+        index.add("unlock@user1@@function1@/site/1", "user1", "/site/1", "function1");
+        index.add("unlock@user2@@function1@/site/1", "user2", "/site/1", "function1");
+        index.hit("/site/1");
+        index.miss("/site/1");
+        assertArrayEquals(new long[] { 1, 1, 0, 2 }, index.getRealmStatistics("/site/1"));
+
+        index.remove("unlock@user1@@function1@/site/1");
+        assertEquals(1, index.realmCount());
+        index.removeAll(Arrays.asList("unlock@user2@@function1@/site/1"));
+        assertEquals(0, index.realmCount());
+        assertEquals(0, index.size());
+        assertNull(index.getRealmStatistics("/site/1"));
+        assertTrue(index.keysForUser("user1").isEmpty());
+
+        // and comes back with a new key
+        index.add("unlock@user1@@function1@/site/1", "user1", "/site/1", "function1");
+        assertEquals(Collections.singleton("unlock@user1@@function1@/site/1"), index.keysForRealm("/site/1", null));
+    }
+}
@@ -0,0 +1,21 @@
+package org.sakaiproject.authz.impl;
+
+import org.junit.BeforeClass;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The same checks with the realm permissions read by SQL rather than held in memory.
+ */
+public class UnlockForReferencesSqlTest extends UnlockForReferencesTest {
+	private static Logger log = LoggerFactory.getLogger(UnlockForReferencesSqlTest.class);
+
+	@BeforeClass
+	public static void beforeClass() {
+		try {
+			oneTimeSetup("realm_permissions_sql");
+		} catch (Exception e) {
+			log.warn(e.getMessage(), e);
+		}
+	}
+}
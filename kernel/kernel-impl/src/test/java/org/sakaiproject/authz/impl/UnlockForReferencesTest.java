@@ -0,0 +1,103 @@
+package org.sakaiproject.authz.impl;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.sakaiproject.authz.api.AuthzGroup;
+import org.sakaiproject.authz.api.AuthzGroupService;
+import org.sakaiproject.authz.api.FunctionManager;
+import org.sakaiproject.authz.api.GroupNotDefinedException;
+import org.sakaiproject.authz.api.Role;
+import org.sakaiproject.authz.api.SecurityService;
+import org.sakaiproject.site.api.Site;
+import org.sakaiproject.site.api.SiteService;
+import org.sakaiproject.test.SakaiKernelTestBase;
+import org.sakaiproject.tool.api.Session;
+import org.sakaiproject.tool.api.SessionManager;
+import org.sakaiproject.user.api.UserDirectoryService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * unlockForReferences has to answer each reference as unlock does, including a role granted in a site that is given the
+ * function in !site.helper.
+ */
+public class UnlockForReferencesTest extends SakaiKernelTestBase {
+	private static Logger log = LoggerFactory.getLogger(UnlockForReferencesTest.class);
+
+	@BeforeClass
+	public static void beforeClass() {
+		try {
+			oneTimeSetup();
+		} catch (Exception e) {
+			log.warn(e.getMessage(), e);
+		}
+	}
+
+	@Test
+	public void testSameAsUnlock() throws Exception {
+		SiteService siteService = getService(SiteService.class);
+		AuthzGroupService authzGroupService = getService(AuthzGroupService.class);
+		SakaiSecurity securityService = (SakaiSecurity) getService(SecurityService.class);
+		FunctionManager functionManager = getService(FunctionManager.class);
+
+		SessionManager sessionManager = getService(SessionManager.class);
+		Session session = sessionManager.getCurrentSession();
+		session.setUserEid("admin");
+		session.setUserId("admin");
+
+		functionManager.registerFunction("bulk.site");
+		functionManager.registerFunction("bulk.helper");
+
+		UserDirectoryService userService = getService(UserDirectoryService.class);
+		userService.commitEdit(userService.addUser("bulkmaintain", "bulkmaintain"));
+		userService.commitEdit(userService.addUser("bulkaccess", "bulkaccess"));
+
+		Site siteA = siteService.addSite("bulkUnlockA", "test");
+		siteA.addMember("bulkmaintain", "maintain", true, false);
+		siteA.addMember("bulkaccess", "access", true, false);
+		siteA.getRole("maintain").allowFunction("bulk.site");
+		siteService.save(siteA);
+
+		Site siteB = siteService.addSite("bulkUnlockB", "test");
+		siteB.addMember("bulkaccess", "access", true, false);
+		siteB.getRole("access").allowFunction("bulk.site");
+		siteService.save(siteB);
+
+		// the maintain role is given a function only in !site.helper
+		AuthzGroup helper;
+		try {
+			helper = authzGroupService.getAuthzGroup("!site.helper");
+		} catch (GroupNotDefinedException e) {
+			helper = authzGroupService.addAuthzGroup("!site.helper");
+		}
+		Role maintain = helper.getRole("maintain");
+		if (maintain == null) {
+			maintain = helper.addRole("maintain");
+		}
+		maintain.allowFunction("bulk.helper");
+		authzGroupService.save(helper);
+
+		List<String> refs = Arrays.asList(siteA.getReference(), siteB.getReference(), "/site/bulkUnlockMissing");
+		for (String userId : Arrays.asList("bulkmaintain", "bulkaccess")) {
+			for (String function : Arrays.asList("bulk.site", "bulk.helper")) {
+				securityService.clearCallCache();
+				Map<String, Boolean> bulk = securityService.unlockForReferences(userId, function, refs);
+				securityService.clearCallCache();
+				for (String ref : refs) {
+					Assert.assertEquals(userId + " " + function + " " + ref, securityService.unlock(userId, function, ref), bulk.get(ref));
+				}
+			}
+		}
+
+		securityService.clearCallCache();
+		Map<String, Boolean> helped = securityService.unlockForReferences("bulkmaintain", "bulk.helper", refs);
+		Assert.assertTrue(helped.get(siteA.getReference()));
+		Assert.assertFalse(helped.get(siteB.getReference()));
+		Assert.assertFalse(securityService.unlockForReferences("bulkaccess", "bulk.helper", refs).get(siteA.getReference()));
+	}
+}
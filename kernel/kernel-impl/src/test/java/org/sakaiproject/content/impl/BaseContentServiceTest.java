@@ -1,16 +1,40 @@
 package org.sakaiproject.content.impl;
 
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 /**
  * Simple checks for BaseContentService
  */
 public class BaseContentServiceTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private BaseContentService baseContentService;
 
     @Before
@@ -48,4 +72,124 @@ public class BaseContentServiceTest {
         assertTrue(baseContentService.isSiteLevelCollection("/group/siteId"));
         assertTrue(baseContentService.isSiteLevelCollection("/group/siteId/"));
     }
+
+    @Test
+    public void testCopyRangeFromFile() throws IOException {
+        byte[] body = body(300000);
+        File file = folder.newFile();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(body);
+        }
+
+        try (FileInputStream in = new FileInputStream(file)) {
+            // the channel is read at absolute positions, so ranges can come in any order from the same stream
+            assertArrayEquals(Arrays.copyOfRange(body, 250000, 260001), copyRange(in, 250000, 260000));
+            assertArrayEquals(Arrays.copyOfRange(body, 10, 21), copyRange(in, 10, 20));
+            assertArrayEquals(body, copyRange(in, 0, body.length - 1));
+        }
+    }
+
+    @Test
+    public void testCopyRangeFromShortReads() throws IOException {
+        byte[] body = body(300000);
+        // a stream that never fills the buffer or skips as far as asked
+        InputStream in = new FilterInputStream(new ByteArrayInputStream(body)) {
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 1000));
+            }
+            public long skip(long n) throws IOException {
+                return super.skip(Math.min(n, 1000));
+            }
+        };
+        assertArrayEquals(Arrays.copyOfRange(body, 5000, 250001), copyRange(in, 5000, 250000));
+    }
+
+    @Test
+    public void testCoalesceRanges() {
+        ArrayList<BaseContentService.Range> ranges = new ArrayList<>(Arrays.asList(
+                range(500, 599), range(0, 99), range(100, 199), range(50, 150), range(700, 799)));
+
+        List<BaseContentService.Range> coalesced = baseContentService.coalesceRanges(ranges);
+
+        assertEquals(3, coalesced.size());
+        assertRange(0, 199, coalesced.get(0));
+        assertRange(500, 599, coalesced.get(1));
+        assertRange(700, 799, coalesced.get(2));
+    }
+
+    @Test
+    public void testETagMatches() {
+        String eTag = baseContentService.getETag(1234, 1500000000000L);
+        assertTrue(baseContentService.eTagMatches(eTag, eTag));
+        assertTrue(baseContentService.eTagMatches("*", eTag));
+        assertTrue(baseContentService.eTagMatches("\"other\", W/" + eTag, eTag));
+        assertFalse(baseContentService.eTagMatches("\"other\"", eTag));
+        assertFalse(baseContentService.eTagMatches(baseContentService.getETag(1234, 1500000001000L), eTag));
+    }
+
+    @Test
+    public void testParseRangeIfRange() throws IOException {
+        String eTag = baseContentService.getETag(1000, 1500000000000L);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getHeader("Range")).thenReturn("bytes=0-99,-100");
+        List<BaseContentService.Range> ranges = baseContentService.parseRange(request, response, 1000, eTag, 1500000000000L);
+        assertEquals(2, ranges.size());
+        assertRange(900, 999, ranges.get(1));
+
+        // the client has the current version
+        when(request.getHeader("If-Range")).thenReturn(eTag);
+        assertEquals(2, baseContentService.parseRange(request, response, 1000, eTag, 1500000000000L).size());
+
+        // the client has an older version, so gets all of it
+        when(request.getHeader("If-Range")).thenReturn(baseContentService.getETag(1000, 1400000000000L));
+        assertNull(baseContentService.parseRange(request, response, 1000, eTag, 1500000000000L));
+    }
+
+    private byte[] copyRange(InputStream in, long start, long end) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IOException e = baseContentService.copyRange(in, out, start, end);
+        if (e != null) throw e;
+        return out.toByteArray();
+    }
+
+    private BaseContentService.Range range(long start, long end) {
+        BaseContentService.Range range = baseContentService.new Range();
+        range.start = start;
+        range.end = end;
+        range.length = 1000;
+        return range;
+    }
+
+    private void assertRange(long start, long end, BaseContentService.Range range) {
+        assertEquals(start, range.start);
+        assertEquals(end, range.end);
+    }
+
+    @Test
+    public void testContentAddressedPath() {
+        DbContentService dbContentService = (DbContentService) baseContentService;
+        byte[] hash = dbContentService.newBodyDigest().digest("same body".getBytes());
+        String path = dbContentService.getContentAddressedPath(hash);
+        assertTrue(path.matches("/sha256/[0-9a-f]{2}/[0-9a-f]{2}/[0-9a-f]{64}"));
+        assertTrue(path.length() <= 128);
+        assertEquals(path, dbContentService.getContentAddressedPath(dbContentService.newBodyDigest().digest("same body".getBytes())));
+        assertTrue(dbContentService.isContentAddressed(path));
+        assertFalse(dbContentService.isContentAddressed("/2017/123/10/0a1b2c3d-uuid"));
+        assertFalse(dbContentService.isContentAddressed(null));
+
+        dbContentService.m_bodyVolumes = new String[] { "vol1", "vol2" };
+        String volumePath = dbContentService.getContentAddressedPath(hash);
+        assertTrue(volumePath.startsWith("/vol" + ((hash[0] & 0xff) % 2 + 1) + "/sha256/"));
+        assertTrue(dbContentService.isContentAddressed(volumePath));
+    }
+
+    private byte[] body(int length) {
+        byte[] body = new byte[length];
+        for (int i = 0; i < length; i++) {
+            body[i] = (byte) (i * 31);
+        }
+        return body;
+    }
 }
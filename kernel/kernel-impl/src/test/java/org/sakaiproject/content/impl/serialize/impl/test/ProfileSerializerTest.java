@@ -25,6 +25,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.junit.Test;
 import org.sakaiproject.content.impl.serialize.impl.Type1BaseContentCollectionSerializer;
+import org.sakaiproject.content.impl.serialize.impl.Type1BaseContentResourceSerializer;
+import org.sakaiproject.content.impl.serialize.impl.Type2BaseContentResourceSerializer;
+import org.sakaiproject.entity.api.serialize.EntitySerializer;
 
 public class ProfileSerializerTest
 {
@@ -82,4 +85,48 @@ public class ProfileSerializerTest
 		}
 		sc.check();
 	}
+
+	/**
+	 * Compare the cost of reading resources written as Type1 and Type2, reading a single property
+	 * from each as getResource followed by getProperties().getProperty() would.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public final void testResourceParse() throws Exception
+	{
+		Type1BaseContentResourceSerializer t1 = new Type1BaseContentResourceSerializer();
+		t1.setTimeService(new MockTimeService());
+		Type2BaseContentResourceSerializer t2 = new Type2BaseContentResourceSerializer();
+		t2.setTimeService(new MockTimeService());
+		t2.setWriteType2(true);
+		profileResourceParse("Type1", t1);
+		profileResourceParse("Type2", t2);
+	}
+
+	private void profileResourceParse(String name, EntitySerializer serializer) throws Exception
+	{
+		MockSerializableResourceAcccess sc = new MockSerializableResourceAcccess();
+		MockSerializablePropertiesAccess properties = (MockSerializablePropertiesAccess) sc.getSerializableProperties();
+		byte[] serialized = serializer.serialize(sc);
+		Runtime r = Runtime.getRuntime();
+		r.gc();
+		Thread.sleep(2000);
+		long start = System.currentTimeMillis();
+		long ms = r.freeMemory();
+		for (int i = 0; i < 16000; i++)
+		{
+			serializer.parse(sc, serialized);
+			properties.set_properties.get("testProperty1");
+		}
+		long me = r.freeMemory();
+		long m = ms - me;
+		long end = System.currentTimeMillis();
+		long t = (end - start);
+		log.info(name + " Read 16000 Resources took " + t + "ms ");
+		log.info(name + " Read 16000 Resources took " + (t * 1000) / 16000 + " us/entity ");
+		log.info(name + " Read 16000 Resources took " + m + " bytes overhead ");
+		log.info(name + " Read 16000 Resources took " + (m / 16000) + " bytes/entity overhead ");
+		sc.check();
+	}
 }
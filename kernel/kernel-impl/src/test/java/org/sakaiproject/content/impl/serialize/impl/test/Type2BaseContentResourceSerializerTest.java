@@ -0,0 +1,119 @@
+/******************************************************************************
+ * $URL$
+ * $Id$
+ ******************************************************************************
+ *
+ * Copyright (c) 2003-2016 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *       http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *****************************************************************************/
+
+
+package org.sakaiproject.content.impl.serialize.impl.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.content.impl.serialize.impl.Type1BaseContentResourceSerializer;
+import org.sakaiproject.content.impl.serialize.impl.Type2BaseContentResourceSerializer;
+import org.sakaiproject.util.LazyPropertiesTable;
+
+public class Type2BaseContentResourceSerializerTest
+{
+	@Test
+	public final void testParse() throws Exception
+	{
+		Type2BaseContentResourceSerializer t2 = new Type2BaseContentResourceSerializer();
+		t2.setTimeService(new MockTimeService());
+		t2.setWriteType2(true);
+		MockSerializableResourceAcccess sc = new MockSerializableResourceAcccess();
+		byte[] serialized = t2.serialize(sc);
+		t2.parse(sc, serialized);
+		sc.check();
+	}
+
+	/**
+	 * Rows written before the Type2 serializer was introduced must still parse.
+	 */
+	@Test
+	public final void testParseType1() throws Exception
+	{
+		Type1BaseContentResourceSerializer t1 = new Type1BaseContentResourceSerializer();
+		t1.setTimeService(new MockTimeService());
+		Type2BaseContentResourceSerializer t2 = new Type2BaseContentResourceSerializer();
+		t2.setTimeService(new MockTimeService());
+		t2.setWriteType2(true);
+		MockSerializableResourceAcccess sc = new MockSerializableResourceAcccess();
+		byte[] serialized = t1.serialize(sc);
+		Assert.assertTrue(t2.accept(serialized));
+		t2.parse(sc, serialized);
+		sc.check();
+
+		// and Type1 must refuse a Type2 record rather than misread it
+		try
+		{
+			t1.parse(sc, t2.serialize(sc));
+			Assert.fail("Type1 parsed a Type2 record");
+		}
+		catch (Exception e)
+		{
+		}
+	}
+
+	@Test
+	public final void testLazyProperties() throws Exception
+	{
+		Type2BaseContentResourceSerializer t2 = new Type2BaseContentResourceSerializer();
+		t2.setTimeService(new MockTimeService());
+		t2.setWriteType2(true);
+		MockSerializableResourceAcccess sc = new MockSerializableResourceAcccess();
+		MockSerializablePropertiesAccess properties = (MockSerializablePropertiesAccess) sc.getSerializableProperties();
+		properties.properties.put("DAV:displayname", "A display name \u00e9\u4e2d");
+		t2.parse(sc, t2.serialize(sc));
+
+		Assert.assertTrue(properties.set_properties instanceof LazyPropertiesTable);
+		LazyPropertiesTable lazy = (LazyPropertiesTable) properties.set_properties;
+		Assert.assertEquals(properties.properties.size(), lazy.getPendingCount());
+		Assert.assertEquals("A display name \u00e9\u4e2d", lazy.get("DAV:displayname"));
+		Assert.assertEquals(properties.properties.size() - 1, lazy.getPendingCount());
+		Assert.assertTrue(lazy.containsKey("testProperty1"));
+		Assert.assertEquals(properties.properties.size() - 1, lazy.getPendingCount());
+		Assert.assertEquals(properties.properties.get("testProperty5"), lazy.get("testProperty5"));
+		lazy.entrySet();
+		Assert.assertEquals(0, lazy.getPendingCount());
+		properties.check();
+	}
+
+	/**
+	 * Type2 is only written when enabled, and turning it off again writes Type1 records that
+	 * the Type1 serializer can read, whichever format the resource was read from.
+	 */
+	@Test
+	public final void testWriteType2OptIn() throws Exception
+	{
+		Type1BaseContentResourceSerializer t1 = new Type1BaseContentResourceSerializer();
+		t1.setTimeService(new MockTimeService());
+		Type2BaseContentResourceSerializer t2 = new Type2BaseContentResourceSerializer();
+		t2.setTimeService(new MockTimeService());
+		MockSerializableResourceAcccess sc = new MockSerializableResourceAcccess();
+		Assert.assertFalse(t2.isWriteType2());
+		Assert.assertArrayEquals(t1.serialize(sc), t2.serialize(sc));
+
+		t2.setWriteType2(true);
+		byte[] type2 = t2.serialize(sc);
+		t2.setWriteType2(false);
+		t2.parse(sc, type2);
+		t1.parse(sc, t2.serialize(sc));
+		sc.check();
+	}
+}
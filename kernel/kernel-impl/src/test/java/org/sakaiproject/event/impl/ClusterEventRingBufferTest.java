@@ -0,0 +1,100 @@
+package org.sakaiproject.event.impl;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.event.api.SimpleEvent;
+import org.sakaiproject.memory.impl.BasicMapCache;
+
+public class ClusterEventRingBufferTest {
+
+	private ClusterEventRingBuffer ring;
+
+	@Before
+	public void setUp() {
+		ring = new ClusterEventRingBuffer(new BasicMapCache<String, Object>("events"), 10);
+	}
+
+	@Test
+	public void testEncodeDecode() {
+		SimpleEvent event = newEvent(42, "content.read");
+		event.setSessionId(null);
+		SimpleEvent decoded = ClusterEventRingBuffer.decode(ClusterEventRingBuffer.encode(event));
+
+		assertEquals(42, decoded.getSeq());
+		assertEquals("content.read", decoded.getEvent());
+		assertEquals("/content/group/site1/file.txt", decoded.getResource());
+		assertEquals("site1", decoded.getContext());
+		assertNull(decoded.getSessionId());
+		assertEquals("user1", decoded.getUserId());
+		assertTrue(decoded.getModify());
+		assertEquals(2, decoded.getPriority());
+		assertEquals(new Date(1000L), decoded.getEventTime());
+		assertEquals("node1", decoded.getServerId());
+	}
+
+	@Test
+	public void testReadRange() {
+		assertEquals(0, ring.getHead());
+		ring.write(Arrays.asList(newEvent(1, "a"), newEvent(2, "b"), newEvent(4, "d")));
+
+		assertEquals(4, ring.getHead());
+		List<SimpleEvent> events = ring.read(1, 4);
+		assertEquals(3, events.size());
+		assertEquals(1, events.get(0).getSeq());
+		assertEquals(2, events.get(1).getSeq());
+		assertEquals(4, events.get(2).getSeq());
+
+		assertEquals(1, ring.read(4, 4).size());
+		assertTrue(ring.read(5, 4).isEmpty());
+	}
+
+	@Test
+	public void testOverwrittenSlotsAreSkipped() {
+		List<SimpleEvent> batch = new ArrayList<SimpleEvent>();
+		for (long id = 1; id <= 15; id++) {
+			batch.add(newEvent(id, "e" + id));
+		}
+		ring.write(batch);
+
+		// 1 to 5 were overwritten by 11 to 15
+		List<SimpleEvent> events = ring.read(1, 15);
+		assertEquals(10, events.size());
+		assertEquals(6, events.get(0).getSeq());
+		assertEquals(15, events.get(9).getSeq());
+
+		assertTrue(ring.read(3, 5).isEmpty());
+	}
+
+	@Test
+	public void testHeadNeverMovesBack() {
+		ring.write(Arrays.asList(newEvent(7, "g")));
+		ring.write(Arrays.asList(newEvent(5, "e")));
+
+		assertEquals(7, ring.getHead());
+	}
+
+	private SimpleEvent newEvent(long seq, String function) {
+		Event event = mock(Event.class);
+		when(event.getEvent()).thenReturn(function);
+		when(event.getResource()).thenReturn("/content/group/site1/file.txt");
+		when(event.getContext()).thenReturn("site1");
+		when(event.getSessionId()).thenReturn("session1");
+		when(event.getUserId()).thenReturn("user1");
+		when(event.getModify()).thenReturn(true);
+		when(event.getPriority()).thenReturn(2);
+		when(event.getEventTime()).thenReturn(new Date(1000L));
+		SimpleEvent simpleEvent = new SimpleEvent(event, "node1");
+		simpleEvent.setSeq(seq);
+		return simpleEvent;
+	}
+}
@@ -0,0 +1,165 @@
+package org.sakaiproject.event.impl;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Observable;
+import java.util.Observer;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.db.api.SqlService;
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.event.api.SimpleEvent;
+
+/**
+ * Checks the batches pushed by the other cluster members are notified once each, whatever order they arrive in, and that a lost batch has the
+ * db read to catch up.
+ */
+public class ClusterEventTrackingTest {
+
+	private static final String LOCAL = "app1-1";
+	private static final String REMOTE = "app2-1";
+
+	private TestEventTracking tracking;
+
+	private final List<Long> notified = new ArrayList<Long>();
+
+	@Before
+	public void setUp() {
+		ServerConfigurationService config = mock(ServerConfigurationService.class);
+		when(config.getServerIdInstance()).thenReturn(LOCAL);
+		when(config.getServerId()).thenReturn("app1");
+		SqlService sqlService = mock(SqlService.class);
+		when(sqlService.getVendor()).thenReturn("mysql");
+
+		tracking = new TestEventTracking(config, sqlService);
+		tracking.setDatabaseBeans(Collections.singletonMap("default", mock(ClusterEventTrackingServiceSql.class)));
+		tracking.setCheckDb("false");
+		tracking.setBatchWrite("false");
+		tracking.init();
+		tracking.addObserver(new Observer() {
+			public void update(Observable o, Object arg) {
+				notified.add(((SimpleEvent) arg).getSeq());
+			}
+		});
+	}
+
+	@Test
+	public void testBatchesInOrder() {
+		tracking.receiveBatch(batch(REMOTE, 1, 10, 11));
+		tracking.receiveBatch(batch(REMOTE, 2, 12));
+		tracking.receiveBatch(batch(REMOTE, 3, 13, 14));
+
+		assertEquals(seqs(10, 11, 12, 13, 14), notified);
+		assertEquals(0, tracking.catchUps);
+	}
+
+	@Test
+	public void testMissingBatchCatchesUp() {
+		tracking.receiveBatch(batch(REMOTE, 1, 10));
+		tracking.receiveBatch(batch(REMOTE, 3, 13));
+
+		assertEquals(seqs(10, 13), notified);
+		assertEquals(1, tracking.catchUps);
+
+		// the next batch follows the last one received
+		tracking.receiveBatch(batch(REMOTE, 4, 14));
+		assertEquals(1, tracking.catchUps);
+	}
+
+	@Test
+	public void testDuplicatedBatchIsNotifiedOnce() {
+		tracking.receiveBatch(batch(REMOTE, 1, 10, 11));
+		tracking.receiveBatch(batch(REMOTE, 1, 10, 11));
+		tracking.receiveBatch(batch(REMOTE, 2, 12));
+
+		assertEquals(seqs(10, 11, 12), notified);
+		assertEquals(0, tracking.catchUps);
+	}
+
+	@Test
+	public void testOutOfOrderBatches() {
+		tracking.receiveBatch(batch(REMOTE, 1, 10));
+		tracking.receiveBatch(batch(REMOTE, 3, 13));
+		// the late batch is still notified, its gap was already caught up
+		tracking.receiveBatch(batch(REMOTE, 2, 11, 12));
+		tracking.receiveBatch(batch(REMOTE, 4, 14));
+
+		assertEquals(seqs(10, 13, 11, 12, 14), notified);
+		assertEquals(1, tracking.catchUps);
+	}
+
+	@Test
+	public void testSendersAreTrackedSeparately() {
+		tracking.receiveBatch(batch(REMOTE, 5, 10));
+		tracking.receiveBatch(batch("app3-1", 1, 11));
+		tracking.receiveBatch(batch(REMOTE, 6, 12));
+		tracking.receiveBatch(batch("app3-1", 2, 13));
+
+		assertEquals(seqs(10, 11, 12, 13), notified);
+		assertEquals(0, tracking.catchUps);
+	}
+
+	@Test
+	public void testSkipsOwnAndAlreadyReadEvents() {
+		// read from the db up to 11
+		tracking.m_lastEventSeq = 11;
+		tracking.receiveBatch(batch(LOCAL, 1, 20));
+		tracking.receiveBatch(batch(REMOTE, 1, 10, 11, 12));
+
+		assertEquals(seqs(12), notified);
+	}
+
+	private ClusterEventBatch batch(String sender, long batchSeq, long... eventIds) {
+		List<SimpleEvent> events = new ArrayList<SimpleEvent>();
+		for (long eventId : eventIds) {
+			SimpleEvent event = new SimpleEvent(mock(Event.class), sender);
+			event.setSeq(eventId);
+			events.add(event);
+		}
+		return new ClusterEventBatch(sender, batchSeq, events);
+	}
+
+	private List<Long> seqs(long... eventIds) {
+		List<Long> seqs = new ArrayList<Long>();
+		for (long eventId : eventIds) {
+			seqs.add(eventId);
+		}
+		return seqs;
+	}
+
+	private static class TestEventTracking extends EventTrackingTest {
+
+		private final ServerConfigurationService config;
+		private final SqlService sqlService;
+
+		private int catchUps = 0;
+
+		TestEventTracking(ServerConfigurationService config, SqlService sqlService) {
+			this.config = config;
+			this.sqlService = sqlService;
+		}
+
+		@Override
+		protected ServerConfigurationService serverConfigurationService() {
+			return config;
+		}
+
+		@Override
+		protected SqlService sqlService() {
+			return sqlService;
+		}
+
+		@Override
+		protected void requestCatchUp() {
+			catchUps++;
+			super.requestCatchUp();
+		}
+	}
+}
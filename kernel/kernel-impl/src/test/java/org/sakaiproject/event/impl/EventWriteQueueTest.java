@@ -0,0 +1,126 @@
+package org.sakaiproject.event.impl;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.sakaiproject.event.api.Event;
+
+public class EventWriteQueueTest {
+
+	private EventWriteQueue queue;
+
+	private final List<List<Event>> commits = Collections.synchronizedList(new ArrayList<List<Event>>());
+
+	@After
+	public void tearDown() {
+		if (queue != null) {
+			queue.stop(1000);
+		}
+	}
+
+	@Test
+	public void testCommitsWhenBatchIsFull() throws Exception {
+		final CountDownLatch committed = new CountDownLatch(1);
+		queue = new EventWriteQueue(recorder(committed), 10, 60000, 1000, EventWriteQueue.OVERFLOW_BLOCK);
+		queue.start(null);
+
+		for (int i = 0; i < 10; i++) {
+			assertTrue(queue.offer(mock(Event.class)));
+		}
+
+		assertTrue(committed.await(5, TimeUnit.SECONDS));
+		assertEquals(10, commits.get(0).size());
+		assertEquals(1, queue.getCommitCount());
+		assertEquals(10, queue.getWrittenCount());
+	}
+
+	@Test
+	public void testCommitsPartialBatchAfterLatency() throws Exception {
+		final CountDownLatch committed = new CountDownLatch(1);
+		queue = new EventWriteQueue(recorder(committed), 100, 50, 1000, EventWriteQueue.OVERFLOW_BLOCK);
+		queue.start(null);
+
+		for (int i = 0; i < 3; i++) {
+			queue.offer(mock(Event.class));
+		}
+
+		assertTrue(committed.await(5, TimeUnit.SECONDS));
+		assertEquals(3, commits.get(0).size());
+		assertEquals(0, queue.getQueueDepth());
+	}
+
+	@Test
+	public void testDropsWhenFull() throws Exception {
+		final CountDownLatch writing = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		queue = new EventWriteQueue(new EventWriteQueue.BatchWriter() {
+			public void write(List<Event> events) {
+				writing.countDown();
+				try {
+					release.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, 1, 1, 2, EventWriteQueue.OVERFLOW_DROP);
+		queue.start(null);
+
+		// the writer takes the first and gets stuck on it
+		queue.offer(mock(Event.class));
+		assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+		assertTrue(queue.offer(mock(Event.class)));
+		assertTrue(queue.offer(mock(Event.class)));
+		assertFalse(queue.offer(mock(Event.class)));
+		assertEquals(1, queue.getDroppedCount());
+
+		release.countDown();
+	}
+
+	@Test
+	public void testStopWritesWaitingEvents() throws Exception {
+		queue = new EventWriteQueue(recorder(new CountDownLatch(1)), 100, 60000, 1000, EventWriteQueue.OVERFLOW_BLOCK);
+		queue.start(null);
+
+		for (int i = 0; i < 5; i++) {
+			queue.offer(mock(Event.class));
+		}
+		queue.stop(5000);
+
+		assertEquals(5, queue.getWrittenCount());
+		assertEquals(0, queue.getQueueDepth());
+	}
+
+	@Test
+	public void testOfferAfterStopWritesSynchronously() throws Exception {
+		queue = new EventWriteQueue(recorder(new CountDownLatch(1)), 100, 60000, 1000, EventWriteQueue.OVERFLOW_DROP);
+		queue.start(null);
+		queue.stop(5000);
+
+		Event event = mock(Event.class);
+		assertTrue(queue.offer(event));
+
+		assertEquals(1, commits.size());
+		assertSame(event, commits.get(0).get(0));
+		assertEquals(1, queue.getWrittenCount());
+		assertEquals(0, queue.getQueueDepth());
+		assertEquals(0, queue.getDroppedCount());
+	}
+
+	private EventWriteQueue.BatchWriter recorder(final CountDownLatch committed) {
+		return new EventWriteQueue.BatchWriter() {
+			public void write(List<Event> events) {
+				commits.add(events);
+				committed.countDown();
+			}
+		};
+	}
+}
@@ -0,0 +1,86 @@
+package org.sakaiproject.event.impl;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.event.api.SimpleEvent;
+
+/**
+ * Checks the in-JVM transport delivers published batches to the other members of a channel only.
+ */
+public class LoopbackClusterEventTransportTest {
+
+	private LoopbackClusterEventTransport node1;
+	private LoopbackClusterEventTransport node2;
+	private LoopbackClusterEventTransport other;
+
+	private List<ClusterEventBatch> received1;
+	private List<ClusterEventBatch> received2;
+	private List<ClusterEventBatch> receivedOther;
+
+	@Before
+	public void setUp() {
+		received1 = new ArrayList<ClusterEventBatch>();
+		received2 = new ArrayList<ClusterEventBatch>();
+		receivedOther = new ArrayList<ClusterEventBatch>();
+
+		node1 = new LoopbackClusterEventTransport("test");
+		node2 = new LoopbackClusterEventTransport("test");
+		other = new LoopbackClusterEventTransport("other");
+		node1.start(collector(received1));
+		node2.start(collector(received2));
+		other.start(collector(receivedOther));
+	}
+
+	@After
+	public void tearDown() {
+		node1.stop();
+		node2.stop();
+		other.stop();
+	}
+
+	@Test
+	public void testPublishReachesPeersOnly() {
+		ClusterEventBatch batch = new ClusterEventBatch("node1", 1, Collections.<SimpleEvent>emptyList());
+		node1.publish(batch);
+
+		assertTrue(received1.isEmpty());
+		assertEquals(1, received2.size());
+		assertSame(batch, received2.get(0));
+		assertTrue(receivedOther.isEmpty());
+	}
+
+	@Test
+	public void testStoppedMemberReceivesNothing() {
+		node2.stop();
+		node1.publish(new ClusterEventBatch("node1", 1, Collections.<SimpleEvent>emptyList()));
+
+		assertTrue(received2.isEmpty());
+	}
+
+	@Test
+	public void testBatchesKeepTheirOrder() {
+		for (long seq = 1; seq <= 5; seq++) {
+			node1.publish(new ClusterEventBatch("node1", seq, Collections.<SimpleEvent>emptyList()));
+		}
+
+		assertEquals(5, received2.size());
+		for (int i = 0; i < 5; i++) {
+			assertEquals(i + 1, received2.get(i).getBatchSeq());
+		}
+	}
+
+	private ClusterEventTransport.Listener collector(final List<ClusterEventBatch> received) {
+		return new ClusterEventTransport.Listener() {
+			public void batchReceived(ClusterEventBatch batch) {
+				received.add(batch);
+			}
+		};
+	}
+}
@@ -0,0 +1,348 @@
+/******************************************************************************
+ * $URL$
+ * $Id$
+ ******************************************************************************
+ *
+ * Copyright (c) 2003-2016 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *       http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *****************************************************************************/
+
+
+package org.sakaiproject.util.serialize;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Vector;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sakaiproject.entity.api.ResourceProperties;
+import org.sakaiproject.entity.api.serialize.DataStreamEntitySerializer;
+import org.sakaiproject.entity.api.serialize.EntityParseException;
+import org.sakaiproject.entity.api.serialize.SerializableEntity;
+import org.sakaiproject.entity.api.serialize.SerializablePropertiesAccess;
+import org.sakaiproject.util.LazyPropertiesTable;
+
+/**
+ * <pre>
+ * Serializes resource properties so that they can be parsed without decoding their values.
+ * 
+ * TYPE2 (int)
+ * BLOCK1 (int)
+ * number of properties (int)
+ * length of the property data (int)
+ * property data, for each property:
+ *   key (short) index into KEYS, or -1 followed by the key as UTF
+ *   value kind (byte) VALUE_STRING or VALUE_LIST
+ *   value length (int)
+ *   value: a STRING is the UTF-8 bytes, a LIST is the number of elements (int)
+ *          followed by length (int) and UTF-8 bytes for each element
+ * 
+ * Parsing reads the property data in one piece and hands the properties a LazyPropertiesTable
+ * holding the keys and slices of that data, a value is only turned into a String when it is read.
+ * 
+ * KEYS is part of the format, entries MAY be appended but MUST NOT be removed or reordered.
+ * </pre>
+ */
+public class Type2BaseResourcePropertiesSerializer implements DataStreamEntitySerializer
+{
+
+	private static final int TYPE2 = 2;
+
+	private static final int BLOCK1 = 110;
+
+	private static final byte VALUE_STRING = 1;
+
+	private static final byte VALUE_LIST = 2;
+
+	private static final short LITERAL_KEY = -1;
+
+	/** Property names common enough to be written as an index rather than a string. Append only. */
+	private static final String[] KEYS = new String[] {
+		ResourceProperties.PROP_CREATOR,
+		ResourceProperties.PROP_MODIFIED_BY,
+		ResourceProperties.PROP_CREATION_DATE,
+		ResourceProperties.PROP_MODIFIED_DATE,
+		ResourceProperties.PROP_DISPLAY_NAME,
+		ResourceProperties.PROP_DESCRIPTION,
+		ResourceProperties.PROP_CONTENT_LENGTH,
+		ResourceProperties.PROP_CONTENT_TYPE,
+		ResourceProperties.PROP_CONTENT_ENCODING,
+		ResourceProperties.PROP_IS_COLLECTION,
+		ResourceProperties.PROP_ORIGINAL_FILENAME,
+		ResourceProperties.PROP_COPYRIGHT,
+		ResourceProperties.PROP_COPYRIGHT_CHOICE,
+		ResourceProperties.PROP_COPYRIGHT_ALERT,
+		ResourceProperties.PROP_COLLECTION_BODY_QUOTA,
+		ResourceProperties.PROP_CONTENT_PRIORITY,
+		ResourceProperties.PROP_HAS_CUSTOM_SORT,
+		ResourceProperties.PROP_RESOURCE_TYPE,
+		ResourceProperties.PROP_HIDDEN_WITH_ACCESSIBLE_CONTENT,
+		ResourceProperties.PROP_ALLOW_INLINE,
+		ResourceProperties.PROP_ADD_HTML,
+		ResourceProperties.PROP_PUBVIEW,
+		ResourceProperties.PROP_STRUCTOBJ_TYPE
+	};
+
+	private static final Map<String, Short> KEY_INDEX = new HashMap<String, Short>();
+
+	static
+	{
+		for (short i = 0; i < KEYS.length; i++)
+		{
+			KEY_INDEX.put(KEYS[i], i);
+		}
+	}
+
+	private static final Logger log = LoggerFactory.getLogger(Type2BaseResourcePropertiesSerializer.class);
+
+	/**
+	 * @see org.sakaiproject.entity.api.serialize.DataStreamEntitySerializer#parse(org.sakaiproject.entity.api.serialize.SerializableEntity,
+	 *      java.io.DataInputStream)
+	 */
+	public void parse(SerializableEntity se, DataInputStream ds)
+			throws EntityParseException
+	{
+		if (!(se instanceof SerializablePropertiesAccess))
+		{
+			throw new EntityParseException("Cant serialize " + se
+					+ " as it is not a SerializableProperties ");
+		}
+		SerializablePropertiesAccess sp = (SerializablePropertiesAccess) se;
+
+		try
+		{
+			int type = ds.readInt();
+			if (type != TYPE2)
+			{
+				throw new EntityParseException(
+						"Cant Parse block, resource properties is not type 2 " + type);
+			}
+			int block = ds.readInt();
+			if (block != BLOCK1)
+			{
+				throw new EntityParseException(
+						"Failed to parse entity, unrecognised block " + block);
+			}
+			int nprops = ds.readInt();
+			byte[] data = new byte[ds.readInt()];
+			ds.readFully(data);
+
+			LazyPropertiesTable properties = new LazyPropertiesTable(nprops);
+			ByteArrayInputStream bais = new ByteArrayInputStream(data);
+			DataInputStream pds = new DataInputStream(bais);
+			for (int i = 0; i < nprops; i++)
+			{
+				short k = pds.readShort();
+				String key;
+				if (k == LITERAL_KEY)
+				{
+					key = pds.readUTF();
+				}
+				else if (k >= 0 && k < KEYS.length)
+				{
+					key = KEYS[k];
+				}
+				else
+				{
+					throw new EntityParseException("Unrecognised property key " + k);
+				}
+				byte kind = pds.readByte();
+				if (kind != VALUE_STRING && kind != VALUE_LIST)
+				{
+					throw new EntityParseException("Unrecognised property value kind " + kind);
+				}
+				int length = pds.readInt();
+				int offset = data.length - bais.available();
+				if (length < 0 || pds.skipBytes(length) != length)
+				{
+					throw new EntityParseException("Truncated value for property " + key);
+				}
+				properties.putLazy(key, new EncodedValue(Arrays.copyOfRange(data, offset, offset + length), kind == VALUE_LIST));
+			}
+			sp.setSerializableProperties(properties);
+		}
+		catch (EntityParseException ep)
+		{
+			throw ep;
+		}
+		catch (Exception ex)
+		{
+			throw new EntityParseException("Failed to parse entity ", ex);
+		}
+	}
+
+	/**
+	 * @see org.sakaiproject.entity.api.serialize.DataStreamEntitySerializer#serialize(org.sakaiproject.entity.api.serialize.SerializableEntity,
+	 *      java.io.DataOutputStream)
+	 */
+	public void serialize(SerializableEntity se, DataOutputStream ds)
+			throws EntityParseException
+	{
+		if (!(se instanceof SerializablePropertiesAccess))
+		{
+			throw new EntityParseException("Cant serialize " + se
+					+ " as it is not a SerializableProperties ");
+		}
+		SerializablePropertiesAccess sp = (SerializablePropertiesAccess) se;
+		Map<String, Object> properties = sp.getSerializableProperties();
+		try
+		{
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			DataOutputStream pds = new DataOutputStream(baos);
+			ByteArrayOutputStream vbaos = new ByteArrayOutputStream();
+			DataOutputStream vds = new DataOutputStream(vbaos);
+			int nprops = 0;
+			for (Entry<String, Object> entry : properties.entrySet())
+			{
+				String key = entry.getKey();
+				Object value = entry.getValue();
+				if (key == null || value == null)
+				{
+					continue;
+				}
+				vbaos.reset();
+				byte kind;
+				if (value instanceof String)
+				{
+					kind = VALUE_STRING;
+					vds.write(((String) value).getBytes(StandardCharsets.UTF_8));
+				}
+				else if (value instanceof List)
+				{
+					kind = VALUE_LIST;
+					List<?> l = (List<?>) value;
+					int s = 0;
+					for (Object v : l)
+					{
+						if (v instanceof String)
+						{
+							s++;
+						}
+						else if (v != null)
+						{
+							log.warn("Non String found in property list " + v);
+						}
+					}
+					vds.writeInt(s);
+					for (Object v : l)
+					{
+						if (v instanceof String)
+						{
+							byte[] b = ((String) v).getBytes(StandardCharsets.UTF_8);
+							vds.writeInt(b.length);
+							vds.write(b);
+						}
+					}
+				}
+				else
+				{
+					log.warn("Non String found in property " + value);
+					continue;
+				}
+				vds.flush();
+
+				Short k = KEY_INDEX.get(key);
+				if (k != null)
+				{
+					pds.writeShort(k);
+				}
+				else
+				{
+					pds.writeShort(LITERAL_KEY);
+					pds.writeUTF(key);
+				}
+				pds.writeByte(kind);
+				pds.writeInt(vbaos.size());
+				vbaos.writeTo(pds);
+				nprops++;
+			}
+			pds.flush();
+
+			ds.writeInt(TYPE2);
+			ds.writeInt(BLOCK1);
+			ds.writeInt(nprops);
+			ds.writeInt(baos.size());
+			baos.writeTo(ds);
+		}
+		catch (Exception ex)
+		{
+			throw new EntityParseException("Failed to serialize properties ", ex);
+		}
+	}
+
+	/**
+	 * A property value left in its encoded form until it is read. Each value holds only its own bytes, so the
+	 * properties block is not kept alive by the table, and the bytes are dropped once the value is decoded.
+	 */
+	private static class EncodedValue implements LazyPropertiesTable.LazyValue
+	{
+		private byte[] data;
+
+		private final boolean list;
+
+		EncodedValue(byte[] data, boolean list)
+		{
+			this.data = data;
+			this.list = list;
+		}
+
+		public Object decode()
+		{
+			if (data == null)
+			{
+				throw new IllegalStateException("Property value has already been decoded");
+			}
+			try
+			{
+				if (!list)
+				{
+					return new String(data, StandardCharsets.UTF_8);
+				}
+				int pos = 0;
+				int n = readInt(pos);
+				pos += 4;
+				List<String> l = new Vector<String>(n);
+				for (int i = 0; i < n; i++)
+				{
+					int len = readInt(pos);
+					pos += 4;
+					l.add(new String(data, pos, len, StandardCharsets.UTF_8));
+					pos += len;
+				}
+				return l;
+			}
+			finally
+			{
+				data = null;
+			}
+		}
+
+		private int readInt(int pos)
+		{
+			return ((data[pos] & 0xff) << 24) | ((data[pos + 1] & 0xff) << 16)
+					| ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+		}
+	}
+
+}
@@ -1,11 +1,16 @@
 package org.sakaiproject.content.util;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.SequenceInputStream;
 import java.nio.charset.Charset;
 import java.nio.charset.IllegalCharsetNameException;
 import java.nio.charset.UnsupportedCharsetException;
@@ -13,17 +18,32 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
+import java.util.zip.ZipInputStream;
 
 import javax.activation.MimetypesFileTypeMap;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.sakaiproject.authz.cover.SecurityService;
 import org.sakaiproject.component.cover.ServerConfigurationService;
 import org.sakaiproject.content.api.ContentCollection;
 import org.sakaiproject.content.api.ContentCollectionEdit;
@@ -39,6 +59,8 @@ import org.sakaiproject.exception.IdUsedException;
 import org.sakaiproject.exception.PermissionException;
 import org.sakaiproject.exception.ServerOverloadException;
 import org.sakaiproject.exception.TypeException;
+import org.sakaiproject.thread_local.cover.ThreadLocalManager;
+import org.sakaiproject.tool.api.Session;
 import org.sakaiproject.tool.api.ToolSession;
 import org.sakaiproject.tool.cover.SessionManager;
 import org.sakaiproject.util.Resource;
@@ -61,6 +83,22 @@ public class ZipContentUtil {
 	 */
     public static final int MAX_ZIP_EXTRACT_FILES_DEFAULT = 1000;
 	private static Integer MAX_ZIP_EXTRACT_FILES;
+
+	private static final String ZIP_THREADS = "content.zip.threads";
+	private static final int ZIP_THREADS_DEFAULT = 4;
+	private static final String ZIP_MEMORY = "content.zip.memory";
+	private static final int ZIP_MEMORY_DEFAULT = 32;
+	private static final String ZIP_STORED_TYPES = "content.zip.storedTypes";
+	/** MIME types that are already compressed, so deflating them again only costs CPU */
+	private static final String[] ZIP_STORED_TYPES_DEFAULT = { "image/jpeg", "image/png", "image/gif", "video/*",
+			"audio/mpeg", "audio/mp4", "audio/ogg", "application/zip", "application/x-zip-compressed",
+			"application/gzip", "application/x-gzip", "application/x-bzip2", "application/x-7z-compressed",
+			"application/x-rar-compressed", "application/java-archive", "application/epub+zip",
+			"application/vnd.openxmlformats-officedocument.*", "application/vnd.oasis.opendocument.*" };
+    
+	/** Reads bodies while compressing and creates resources while extracting, for every archive of this server */
+	private static ExecutorService zipExecutor;
+	private static final AtomicInteger ZIP_THREAD_COUNT = new AtomicInteger();
     
     private static final String DEFAULT_RESOURCECLASS = "org.sakaiproject.localization.util.ContentProperties";
     private static final String DEFAULT_RESOURCEBUNDLE = "org.sakaiproject.localization.bundle.content.content";
@@ -79,6 +117,50 @@ public class ZipContentUtil {
         return MAX_ZIP_EXTRACT_FILES;
     }
 
+	/**
+	 * @return the number of threads reading bodies while compressing, or creating resources while extracting
+	 */
+	private int getZipThreads() {
+		return ServerConfigurationService.getInt(ZIP_THREADS, ZIP_THREADS_DEFAULT);
+	}
+
+	/**
+	 * @return the most bytes of resource bodies buffered in memory by one compress or extract
+	 */
+	private long getZipMemoryBudget() {
+		return Math.max(1, ServerConfigurationService.getInt(ZIP_MEMORY, ZIP_MEMORY_DEFAULT)) * 1024L * 1024L;
+	}
+
+	/**
+	 * @return the executor shared by all archives, its threads are bounded by content.zip.threads
+	 * and stop when idle; null if the work is done on the calling thread
+	 */
+	private static synchronized ExecutorService getZipExecutor(int threads) {
+		if (threads <= 1) {
+			return null;
+		}
+		if (zipExecutor == null) {
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), r -> {
+						Thread t = new Thread(r, "ZipContent-" + ZIP_THREAD_COUNT.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					});
+			executor.allowCoreThreadTimeOut(true);
+			zipExecutor = executor;
+		}
+		return zipExecutor;
+	}
+
+	private ZipContentWriter newZipContentWriter() {
+		String[] storedTypes = ServerConfigurationService.getStrings(ZIP_STORED_TYPES);
+		if (storedTypes == null) {
+			storedTypes = ZIP_STORED_TYPES_DEFAULT;
+		}
+		int threads = getZipThreads();
+		return new ZipContentWriter(getZipExecutor(threads), threads, getZipMemoryBudget(), Arrays.asList(storedTypes));
+	}
+
 	/**
 	 * Compresses a ContentCollection to a new zip archive with the same folder name
 	 * 
@@ -86,26 +168,14 @@ public class ZipContentUtil {
 	 * @throws Exception on failure
 	 */
     public void compressFolder(Reference reference) { 
-		File temp = null;
-		FileInputStream fis = null;
 		ToolSession toolSession = SessionManager.getCurrentToolSession();
+		ContentResourceEdit resourceEdit = null;
+		ZipPipeInputStream pipeIn = null;
 		try {
-			// Create the compressed archive in the filesystem
-			ZipOutputStream out = null;
-			try {
-				temp = File.createTempFile("sakai_content-", ".tmp");
-				ContentCollection collection = ContentHostingService.getCollection(reference.getId());
-				out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(temp),BUFFER_SIZE));
-				storeContentCollection(reference.getId(),collection,out);
-			} finally {
-				if (out != null) {
-					try {
-						out.close();
-					} catch (IOException e) {
-					}
-				}
-			}
-			
+			// Resolve the members here, where the current user's permissions apply
+			ContentCollection collection = ContentHostingService.getCollection(reference.getId());
+			final List<ZipContentWriter.Member> members = new ArrayList<ZipContentWriter.Member>();
+			collectMembers(reference.getId(), collection, members);
 			
 			// Store the compressed archive in the repository
 			String resourceId = reference.getId().substring(0,reference.getId().lastIndexOf(Entity.SEPARATOR));
@@ -121,7 +191,6 @@ public class ZipContentUtil {
 				}				
 			}
 			int count = 0;
-			ContentResourceEdit resourceEdit = null;
 			String displayName="";
 			while(true){
 				try{
@@ -158,8 +227,27 @@ public class ZipContentUtil {
 					throw new Exception(e);
 				}
 			}
-			fis = new FileInputStream(temp);
-			resourceEdit.setContent(fis);
+
+			// Compress on another thread straight into the new resource's body
+			final PipedOutputStream pipeOut = new PipedOutputStream();
+			final ZipPipeInputStream archive = new ZipPipeInputStream(pipeOut);
+			pipeIn = archive;
+			final ZipContentWriter writer = newZipContentWriter();
+			Thread compressor = new Thread(() -> {
+				OutputStream out = new BufferedOutputStream(pipeOut, BUFFER_SIZE);
+				try {
+					writer.write(members, out);
+					out.flush();
+				} catch (Exception e) {
+					archive.fail(e);
+				} finally {
+					IOUtils.closeQuietly(pipeOut);
+				}
+			}, "ZipContentUtil-compress");
+			compressor.setDaemon(true);
+			compressor.start();
+
+			resourceEdit.setContent(archive);
 			resourceEdit.setContentType(mime.getContentType(resourceId));
 			ResourcePropertiesEdit props = resourceEdit.getPropertiesEdit();
 			props.addProperty(ResourcePropertiesEdit.PROP_DISPLAY_NAME, displayName);
@@ -174,19 +262,30 @@ public class ZipContentUtil {
 			LOG.error(e.getMessage(), e);
 		} 
 		finally {
-			if (fis != null) {
-				try {
-					fis.close();
-				} catch (IOException e) {
-				}
-			}
-			if (temp != null && temp.exists()) { 
-				if (!temp.delete()) {
-					LOG.warn("failed to remove temp file");
-				}
+			// closing the pipe also stops the compressor if the commit failed part way
+			IOUtils.closeQuietly(pipeIn);
+			if (resourceEdit != null && resourceEdit.isActiveEdit()) {
+				ContentHostingService.cancelResource(resourceEdit);
 			}
 		}
 	}
+
+	/**
+	 * Streams a zip archive of a ContentCollection to the given stream, such as a servlet
+	 * response, without staging it in a temporary file or a resource. The stream is not closed.
+	 * 
+	 * @param collectionId the id of the collection to compress
+	 * @param out where to write the archive
+	 * @throws Exception on failure
+	 */
+	public void compressFolder(String collectionId, OutputStream out) throws Exception {
+		ContentCollection collection = ContentHostingService.getCollection(collectionId);
+		List<ZipContentWriter.Member> members = new ArrayList<ZipContentWriter.Member>();
+		collectMembers(collectionId, collection, members);
+		BufferedOutputStream buffered = new BufferedOutputStream(out, BUFFER_SIZE);
+		newZipContentWriter().write(members, buffered);
+		buffered.flush();
+	}
 	
 	private void addAlert(ToolSession toolSession, String alert){
 		String errorMessage = (String) toolSession.getAttribute(STATE_MESSAGE);
@@ -228,11 +327,29 @@ public class ZipContentUtil {
 		prop.addProperty(ResourcePropertiesEdit.PROP_DISPLAY_NAME, extractZipCollectionName(resource));
 		ContentHostingService.commitCollection(rootCollection);			
 		
-		// Extract Zip File	
-		File temp = null;		
+		// Extract Zip File, streaming it from storage; ZipFile understands a few archives that
+		// ZipInputStream does not (stored entries with data descriptors), so fall back to a local copy
+		boolean extracted = extractArchive(resource, rootCollectionId, false)
+				|| extractArchive(resource, rootCollectionId, true);
+		if (!extracted) {
+			LOG.warn(String.format("Cannot extract archives %s with any charset %s.", referenceId, getZipCharsets()));
+		}
+	}
+
+	/**
+	 * Extracts the entries of a zip ContentResource into the collection, trying each configured charset
+	 * 
+	 * @param resource the zip resource
+	 * @param rootCollectionId the collection to extract into
+	 * @param fromFile true to read the archive from a temporary copy rather than streaming it
+	 * @return true if the archive was extracted
+	 */
+	private boolean extractArchive(ContentResource resource, String rootCollectionId, boolean fromFile) {
+		File temp = null;
 		try {
-			temp = exportResourceToFile(resource);
-			boolean extracted = false;
+			if (fromFile) {
+				temp = exportResourceToFile(resource);
+			}
 			for (String charsetName: getZipCharsets()) {
 				Charset charset;
 				try {
@@ -241,43 +358,44 @@ public class ZipContentUtil {
 					LOG.warn(String.format("%s is not a legal charset.", charsetName));
 					continue;
 				}
+				ArchiveExtractor extractor = new ArchiveExtractor(rootCollectionId);
 				ZipFile zipFile = null;
+				ZipInputStream zipStream = null;
 				try {
-					zipFile = new ZipFile(temp, charset);
-					Enumeration<? extends ZipEntry> entries = zipFile.entries();
-					while (entries.hasMoreElements()) {
-						ZipEntry nextElement = entries.nextElement();
-						if (!nextElement.getName().contains("__MACOSX")){
-							if (nextElement.isDirectory()) {
-								createContentCollection(rootCollectionId, nextElement);
-							}
-							else {
-								if(!nextElement.getName().contains(".DS_Store")){
-									createContentResource(rootCollectionId, nextElement, zipFile);
-								}
-							}
+					if (fromFile) {
+						zipFile = new ZipFile(temp, charset);
+						Enumeration<? extends ZipEntry> entries = zipFile.entries();
+						while (entries.hasMoreElements()) {
+							ZipEntry nextElement = entries.nextElement();
+							extractor.extract(nextElement, zipFile.getInputStream(nextElement));
+						}
+					} else {
+						zipStream = new ZipInputStream(resource.streamContent(), charset);
+						ZipEntry nextElement;
+						while ((nextElement = zipStream.getNextEntry()) != null) {
+							extractor.extract(nextElement, zipStream);
 						}
 					}
-					extracted = true;
-					break;
+					extractor.finish();
+					return true;
 				} catch (Exception e) {
-					e.printStackTrace();
-					LOG.warn(String.format("Cannot extract archive %s with charset %s.", referenceId, charset));
+					LOG.warn(String.format("Cannot extract archive %s with charset %s.", resource.getId(), charset), e);
 				} finally {
+					extractor.close();
+					IOUtils.closeQuietly(zipStream);
 					if (zipFile != null){
 						zipFile.close();
 					}
 				}
 			}
-			if (!extracted) {
-				LOG.warn(String.format("Cannot extract archives %s with any charset %s.", referenceId, getZipCharsets()));
-			}
 		} catch (Exception e) {
-			e.printStackTrace();
+			LOG.warn(String.format("Cannot extract archive %s.", resource.getId()), e);
 		} finally {
-			temp.delete();	
+			if (temp != null) {
+				temp.delete();
+			}
 		}
-		
+		return false;
 	}
 
    /**
@@ -367,17 +485,17 @@ public class ZipContentUtil {
 	
 
 	/**
-	 * Creates a new ContentResource extracted from ZipFile
+	 * Creates a new ContentResource extracted from a zip archive
 	 * 
 	 * @param rootCollectionId
-	 * @param nextElement
-	 * @param zipFile
+	 * @param entryName
+	 * @param content
 	 * @throws Exception
 	 */
 	private void createContentResource(String rootCollectionId,
-			ZipEntry nextElement, ZipFile zipFile) throws Exception {
-		String resourceId = rootCollectionId + nextElement.getName();
-		String resourceName = extractName(nextElement.getName());
+			String entryName, InputStream content) throws Exception {
+		String resourceId = rootCollectionId + entryName;
+		String resourceName = extractName(entryName);
 		ContentResourceEdit resourceEdit;
 		try {
 			resourceEdit = ContentHostingService.addResource(resourceId);
@@ -386,7 +504,7 @@ public class ZipContentUtil {
 			LOG.debug("Content resource with ID " + resourceId + " exists. Editing instead.");
 			resourceEdit = ContentHostingService.editResource(resourceId);
 		}
-		resourceEdit.setContent(zipFile.getInputStream(nextElement));
+		resourceEdit.setContent(content);
 		resourceEdit.setContentType(mime.getContentType(resourceName));
 		ResourcePropertiesEdit props = resourceEdit.getPropertiesEdit();
 		props.addProperty(ResourcePropertiesEdit.PROP_DISPLAY_NAME, resourceName);
@@ -394,16 +512,16 @@ public class ZipContentUtil {
 	}
 
 	/**
-	 * Creates a new ContentCollection in the rootCollectionId with the element.getName()
+	 * Creates a new ContentCollection in the rootCollectionId with the entryName
 	 * 
 	 * @param rootCollectionId
-	 * @param element
+	 * @param entryName
 	 * @throws Exception
 	 */
 	private void createContentCollection(String rootCollectionId,
-			ZipEntry element) throws Exception {
-		String resourceId = rootCollectionId + element.getName();
-		String resourceName = extractName(element.getName());
+			String entryName) throws Exception {
+		String resourceId = rootCollectionId + entryName;
+		String resourceName = extractName(entryName);
 		ContentCollectionEdit collection;
 		try {
 			collection = ContentHostingService.addCollection(resourceId);
@@ -454,36 +572,36 @@ public class ZipContentUtil {
 	}
     
 	/**
-	 * Iterates the collection.getMembers() and streams content resources recursively to the ZipOutputStream
+	 * Iterates the collection.getMembers() recursively and adds the content resources to the archive members
 	 * 
 	 * @param rootId
 	 * @param collection
-	 * @param out
+	 * @param members
 	 * @throws Exception
 	 */
-	private void storeContentCollection(String rootId, ContentCollection collection, ZipOutputStream out) throws Exception {
-		List<String> members = collection.getMembers();
-		for (String memberId: members) {
+	private void collectMembers(String rootId, ContentCollection collection, List<ZipContentWriter.Member> members) throws Exception {
+		List<String> memberIds = collection.getMembers();
+		for (String memberId: memberIds) {
 			if (memberId.endsWith(Entity.SEPARATOR)) {
 				ContentCollection memberCollection = ContentHostingService.getCollection(memberId);
-				storeContentCollection(rootId,memberCollection,out);
+				collectMembers(rootId,memberCollection,members);
 			} 
 			else {
 				ContentResource resource = ContentHostingService.getResource(memberId);
-				storeContentResource(rootId, resource, out);
+				collectMember(rootId, resource, members);
 			}
 		}
 	}
 
 	/**
-	 * Streams content resource to the ZipOutputStream
+	 * Adds a content resource to the archive members under its name relative to the root
 	 * 
 	 * @param rootId
 	 * @param resource
-	 * @param out
+	 * @param members
 	 * @throws Exception
 	 */
-	private void storeContentResource(String rootId, ContentResource resource, ZipOutputStream out) throws Exception {		
+	private void collectMember(String rootId, ContentResource resource, List<ZipContentWriter.Member> members) throws Exception {		
 		String filename = resource.getId().substring(rootId.length(),resource.getId().length());
 		//Inorder to have username as the folder name rather than having eids
 		if(ContentHostingService.isInDropbox(rootId) && ServerConfigurationService.getBoolean("dropbox.zip.haveDisplayname", true)) {
@@ -503,18 +621,7 @@ public class ZipContentUtil {
 				return;
 			}
 		}
-		ZipEntry zipEntry = new ZipEntry(filename);
-		zipEntry.setSize(resource.getContentLength());
-		out.putNextEntry(zipEntry);
-		InputStream contentStream = null;
-		try {
-			contentStream = resource.streamContent();
-			IOUtils.copy(contentStream, out);
-		} finally {
-			if (contentStream != null) {
-				contentStream.close();
-			}
-		}
+		members.add(new ZipContentWriter.Member(filename, resource));
 	}
 	
 	private String extractZipCollectionPrefix(ContentResource resource) {
@@ -569,4 +676,211 @@ public class ZipContentUtil {
 
 	}
 
+	/**
+	 * Creates the collections and resources of one pass over a zip archive. Entries are read in
+	 * archive order by the caller; bodies that fit the memory budget are buffered and committed
+	 * by worker threads acting as the current session, larger ones are committed in place.
+	 */
+	private class ArchiveExtractor {
+		private final String rootCollectionId;
+		private final Set<String> collections = new HashSet<String>();
+		private final Set<String> resources = new HashSet<String>();
+		private final List<Future<?>> pending = new ArrayList<Future<?>>();
+		private final ExecutorService executor;
+		private final Semaphore budget;
+		private final long maxBuffered;
+		private final Session session;
+
+		ArchiveExtractor(String rootCollectionId) {
+			this.rootCollectionId = rootCollectionId;
+			int threads = getZipThreads();
+			// security advisors belong to the calling thread, so with any in place stay on it
+			if (threads > 1 && !SecurityService.hasAdvisors()) {
+				long memory = getZipMemoryBudget();
+				executor = getZipExecutor(threads);
+				budget = new Semaphore((int) Math.min(Integer.MAX_VALUE, memory / 1024));
+				maxBuffered = memory / threads;
+				session = SessionManager.getCurrentSession();
+			} else {
+				executor = null;
+				budget = null;
+				maxBuffered = 0;
+				session = null;
+			}
+		}
+
+		void extract(ZipEntry entry, InputStream in) throws Exception {
+			final String name = entry.getName();
+			if (name.contains("__MACOSX")) {
+				return;
+			}
+			if (entry.isDirectory()) {
+				if (collections.add(name)) {
+					createContentCollection(rootCollectionId, name);
+				}
+				return;
+			}
+			if (name.contains(".DS_Store")) {
+				return;
+			}
+			if (executor == null) {
+				createContentResource(rootCollectionId, name, new CloseShieldInputStream(in));
+				return;
+			}
+
+			checkPending(false);
+			ensureParentCollections(name);
+			if (!resources.add(name)) {
+				// a repeated entry replaces the earlier one, so let that finish first
+				checkPending(true);
+			}
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			if (!readAtMost(in, buffer, maxBuffered)) {
+				createContentResource(rootCollectionId, name,
+						new SequenceInputStream(new ByteArrayInputStream(buffer.toByteArray()), new CloseShieldInputStream(in)));
+				return;
+			}
+			final byte[] body = buffer.toByteArray();
+			final int permits = (int) Math.max(1, (body.length + 1023L) / 1024);
+			budget.acquire(permits);
+			try {
+				pending.add(executor.submit(() -> {
+					SessionManager.setCurrentSession(session);
+					try {
+						createContentResource(rootCollectionId, name, new ByteArrayInputStream(body));
+					} finally {
+						ThreadLocalManager.clear();
+						budget.release(permits);
+					}
+					return null;
+				}));
+			} catch (RejectedExecutionException e) {
+				budget.release(permits);
+				throw e;
+			}
+		}
+
+		/**
+		 * Waits for every resource handed to a worker and rethrows the first failure
+		 */
+		void finish() throws Exception {
+			checkPending(true);
+		}
+
+		/**
+		 * Drops the resources still queued and waits for those being created, so that a retry
+		 * with another charset does not race with this pass
+		 */
+		void close() {
+			for (Future<?> future : pending) {
+				if (!future.cancel(false)) {
+					try {
+						future.get();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					} catch (ExecutionException | CancellationException e) {
+						// already reported by this pass
+					}
+				}
+			}
+			pending.clear();
+		}
+
+		private void checkPending(boolean wait) throws Exception {
+			for (Iterator<Future<?>> i = pending.iterator(); i.hasNext();) {
+				Future<?> future = i.next();
+				if (wait || future.isDone()) {
+					try {
+						future.get();
+					} catch (ExecutionException e) {
+						Throwable cause = e.getCause();
+						throw (cause instanceof Exception) ? (Exception) cause : e;
+					}
+					i.remove();
+				}
+			}
+		}
+
+		/**
+		 * Makes sure the folders above an entry exist before a worker adds it, so that
+		 * workers never race to create the same collection
+		 */
+		private void ensureParentCollections(String name) throws Exception {
+			int slash = name.indexOf(Entity.SEPARATOR);
+			while (slash > 0) {
+				String folder = name.substring(0, slash + 1);
+				if (collections.add(folder)) {
+					try {
+						ContentCollectionEdit collection = ContentHostingService.addCollection(rootCollectionId + folder);
+						collection.getPropertiesEdit().addProperty(ResourcePropertiesEdit.PROP_DISPLAY_NAME, extractName(folder));
+						ContentHostingService.commitCollection(collection);
+					} catch (IdUsedException e) {
+						// already there
+					}
+				}
+				slash = name.indexOf(Entity.SEPARATOR, slash + 1);
+			}
+		}
+	}
+
+	/**
+	 * Copies at most limit bytes
+	 * 
+	 * @return true if the stream ended within the limit
+	 */
+	private static boolean readAtMost(InputStream in, OutputStream out, long limit) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long total = 0;
+		while (total <= limit) {
+			int read = in.read(buffer, 0, (int) Math.min(buffer.length, limit + 1 - total));
+			if (read == -1) {
+				return true;
+			}
+			out.write(buffer, 0, read);
+			total += read;
+		}
+		return false;
+	}
+
+	/**
+	 * The reading end of the pipe a compressor writes an archive into. If the compressor
+	 * fails the reader sees an IOException rather than the end of a truncated archive.
+	 */
+	private static class ZipPipeInputStream extends PipedInputStream {
+		private volatile Exception failure;
+
+		ZipPipeInputStream(PipedOutputStream src) throws IOException {
+			super(src, BUFFER_SIZE);
+		}
+
+		void fail(Exception e) {
+			failure = e;
+		}
+
+		@Override
+		public synchronized int read() throws IOException {
+			int read = super.read();
+			if (read == -1) {
+				checkFailure();
+			}
+			return read;
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read == -1) {
+				checkFailure();
+			}
+			return read;
+		}
+
+		private void checkFailure() throws IOException {
+			if (failure != null) {
+				throw new IOException("Failed to compress the archive", failure);
+			}
+		}
+	}
+
 }
@@ -0,0 +1,312 @@
+/******************************************************************************
+ * $URL$
+ * $Id$
+ ******************************************************************************
+ *
+ * Copyright (c) 2003-2016 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *       http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *****************************************************************************/
+
+package org.sakaiproject.content.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.sakaiproject.content.api.ContentResource;
+import org.sakaiproject.exception.ServerOverloadException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes content resources into a zip archive. While one entry is being compressed the
+ * bodies of the next few members are read in parallel, holding no more than a fixed
+ * number of bytes in memory; bodies too large for that budget are streamed straight
+ * into the archive. Members whose MIME type is already compressed are stored rather
+ * than deflated again. The bodies are read by an executor shared with other archives,
+ * so the number of reading threads is bounded however many archives are written.
+ */
+public class ZipContentWriter
+{
+	private static final Logger LOG = LoggerFactory.getLogger(ZipContentWriter.class);
+
+	/**
+	 * A resource and the name of its entry in the archive.
+	 */
+	public static class Member
+	{
+		private final String name;
+		private final ContentResource resource;
+
+		public Member(String name, ContentResource resource)
+		{
+			this.name = name;
+			this.resource = resource;
+		}
+
+		public String getName()
+		{
+			return name;
+		}
+
+		public ContentResource getResource()
+		{
+			return resource;
+		}
+	}
+
+	private final ExecutorService executor;
+	private final int threads;
+	private final long memoryBudget;
+	private final Collection<String> storedTypes;
+
+	/**
+	 * @param executor
+	 *        reads the resource bodies, null reads them in turn; it is not shut down by the writer
+	 * @param threads
+	 *        the number of resource bodies read in parallel, 1 or less reads them in turn
+	 * @param memoryBudget
+	 *        the most bytes of read-ahead bodies held in memory at once
+	 * @param storedTypes
+	 *        MIME types written without compression, a trailing * matches any suffix
+	 */
+	public ZipContentWriter(ExecutorService executor, int threads, long memoryBudget, Collection<String> storedTypes)
+	{
+		this.executor = executor;
+		this.threads = threads;
+		this.memoryBudget = memoryBudget;
+		this.storedTypes = new ArrayList<String>();
+		for (String type : storedTypes)
+		{
+			this.storedTypes.add(type.trim().toLowerCase(Locale.ENGLISH));
+		}
+	}
+
+	/**
+	 * Write the members, in order, as a zip archive. The stream is finished and flushed
+	 * but not closed.
+	 *
+	 * @param members
+	 *        the archive entries
+	 * @param out
+	 *        where to write the archive
+	 * @throws IOException
+	 *         if a body cannot be read or the archive cannot be written
+	 * @throws ServerOverloadException
+	 *         if the content service cannot supply a body
+	 */
+	public void write(List<Member> members, OutputStream out) throws IOException, ServerOverloadException
+	{
+		ZipOutputStream zip = new ZipOutputStream(out);
+		boolean readAhead = executor != null && threads > 1 && members.size() > 1;
+		List<Future<byte[]>> bodies = new ArrayList<Future<byte[]>>(members.size());
+		long[] reserved = new long[members.size()];
+		try
+		{
+			int window = 0;
+			long maxBuffered = 0;
+			if (readAhead)
+			{
+				window = threads * 2;
+				maxBuffered = memoryBudget / threads;
+			}
+
+			long inFlight = 0;
+			int next = 0;
+			for (int i = 0; i < members.size(); i++)
+			{
+				// read ahead in archive order; the head member always fits because everything
+				// before it has been written and released
+				while (next < members.size() && next - i < window)
+				{
+					final ContentResource resource = members.get(next).getResource();
+					long length = resource.getContentLength();
+					if (length >= 0 && length <= maxBuffered)
+					{
+						if (inFlight + length > memoryBudget) break;
+						inFlight += length;
+						reserved[next] = length;
+						bodies.add(executor.submit(() -> readBody(resource)));
+					}
+					else
+					{
+						bodies.add(null);
+					}
+					next++;
+				}
+
+				Member member = members.get(i);
+				Future<byte[]> body = (i < bodies.size()) ? bodies.get(i) : null;
+				if (body != null)
+				{
+					writeEntry(zip, member, getBody(body));
+					bodies.set(i, null);
+					inFlight -= reserved[i];
+				}
+				else
+				{
+					streamEntry(zip, member);
+				}
+			}
+			zip.finish();
+			zip.flush();
+		}
+		finally
+		{
+			if (readAhead)
+			{
+				// the executor is shared, so only drop the reads of this archive
+				for (Future<byte[]> body : bodies)
+				{
+					if (body != null) body.cancel(true);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return true if a body of this MIME type is already compressed and should be stored as is
+	 */
+	public boolean isStoredType(String contentType)
+	{
+		if (contentType == null) return false;
+		String type = contentType.toLowerCase(Locale.ENGLISH);
+		int params = type.indexOf(';');
+		if (params >= 0)
+		{
+			type = type.substring(0, params);
+		}
+		type = type.trim();
+		for (String stored : storedTypes)
+		{
+			if (stored.endsWith("*") ? type.startsWith(stored.substring(0, stored.length() - 1)) : type.equals(stored))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private byte[] readBody(ContentResource resource) throws IOException, ServerOverloadException
+	{
+		long length = resource.getContentLength();
+		ByteArrayOutputStream body = new ByteArrayOutputStream((int) Math.max(length, 32));
+		InputStream in = resource.streamContent();
+		if (in == null)
+		{
+			LOG.warn("No content for " + resource.getId() + ", adding an empty entry to the archive");
+			return body.toByteArray();
+		}
+		try
+		{
+			IOUtils.copy(in, body);
+		}
+		finally
+		{
+			in.close();
+		}
+		return body.toByteArray();
+	}
+
+	private byte[] getBody(Future<byte[]> body) throws IOException, ServerOverloadException
+	{
+		try
+		{
+			return body.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading content for the archive", e);
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			if (cause instanceof ServerOverloadException) throw (ServerOverloadException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	private void writeEntry(ZipOutputStream zip, Member member, byte[] body) throws IOException
+	{
+		ZipEntry entry = new ZipEntry(member.getName());
+		entry.setSize(body.length);
+		if (isStoredType(member.getResource().getContentType()))
+		{
+			CRC32 crc = new CRC32();
+			crc.update(body);
+			entry.setMethod(ZipEntry.STORED);
+			entry.setCompressedSize(body.length);
+			entry.setCrc(crc.getValue());
+		}
+		zip.putNextEntry(entry);
+		zip.write(body);
+		zip.closeEntry();
+	}
+
+	private void streamEntry(ZipOutputStream zip, Member member) throws IOException, ServerOverloadException
+	{
+		// a stored entry needs its CRC up front, so a body too large to buffer is deflated
+		// at level 0 instead, which costs about as little
+		boolean stored = isStoredType(member.getResource().getContentType());
+		if (stored)
+		{
+			zip.setLevel(Deflater.NO_COMPRESSION);
+		}
+		try
+		{
+			zip.putNextEntry(new ZipEntry(member.getName()));
+			InputStream in = member.getResource().streamContent();
+			if (in != null)
+			{
+				try
+				{
+					IOUtils.copy(in, zip);
+				}
+				finally
+				{
+					in.close();
+				}
+			}
+			else
+			{
+				LOG.warn("No content for " + member.getResource().getId() + ", adding an empty entry to the archive");
+			}
+			zip.closeEntry();
+		}
+		finally
+		{
+			if (stored)
+			{
+				zip.setLevel(Deflater.DEFAULT_COMPRESSION);
+			}
+		}
+	}
+}
@@ -1019,6 +1019,12 @@ public class BaseResourceProperties implements ResourceProperties, SerializableP
 	 */
 	public void setSerializableProperties(Map<String, Object> properties)
 	{
+		// a lazy table was built for us by the serializer, adopt it so values are only decoded when read
+		if (properties instanceof LazyPropertiesTable)
+		{
+			m_props = (LazyPropertiesTable) properties;
+			return;
+		}
 		m_props.clear();
 		m_props.putAll(properties);
 		
@@ -0,0 +1,302 @@
+/******************************************************************************
+ * $URL$
+ * $Id$
+ ******************************************************************************
+ *
+ * Copyright (c) 2003-2016 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *       http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *****************************************************************************/
+
+
+package org.sakaiproject.util;
+
+import java.io.ObjectStreamException;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * <p>
+ * LazyPropertiesTable is the property table handed to {@link BaseResourceProperties} by serializers that can leave
+ * property values in their encoded form until they are read. Keys are always present; a value that has not been
+ * decoded is held as a {@link LazyValue} and replaced by its decoded form the first time it is read through any of
+ * the Hashtable methods. Bulk views (entrySet, values, elements, equals, clone, serialization) decode everything
+ * first, so callers never see a {@link LazyValue}.
+ * </p>
+ */
+public class LazyPropertiesTable extends Hashtable<String, Object>
+{
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * A property value that has not been decoded yet. Implementations must be side effect free, as decode is called
+	 * while holding the table lock.
+	 */
+	public interface LazyValue
+	{
+		/**
+		 * @return the decoded value, a String or a List of Strings.
+		 */
+		Object decode();
+	}
+
+	/** The number of values still held as LazyValue. */
+	private transient int m_pending = 0;
+
+	/**
+	 * Construct.
+	 * 
+	 * @param size
+	 *        The expected number of properties.
+	 */
+	public LazyPropertiesTable(int size)
+	{
+		super(Math.max(11, (size * 4) / 3 + 1));
+	}
+
+	/**
+	 * Add a property whose value will be decoded on first read.
+	 * 
+	 * @param name
+	 *        The property name.
+	 * @param value
+	 *        The encoded value.
+	 */
+	public synchronized void putLazy(String name, LazyValue value)
+	{
+		if (super.put(name, value) instanceof LazyValue) return;
+		m_pending++;
+	}
+
+	/**
+	 * @return the number of property values not yet decoded.
+	 */
+	public synchronized int getPendingCount()
+	{
+		return m_pending;
+	}
+
+	/**
+	 * Decode a value read from the table, replacing the encoded form.
+	 */
+	private Object resolve(Object key, Object value)
+	{
+		if (!(value instanceof LazyValue)) return value;
+		Object decoded = ((LazyValue) value).decode();
+		super.put((String) key, decoded);
+		m_pending--;
+		return decoded;
+	}
+
+	/**
+	 * Decode an encoded value that is leaving the table.
+	 */
+	private Object release(Object value)
+	{
+		if (!(value instanceof LazyValue)) return value;
+		m_pending--;
+		return ((LazyValue) value).decode();
+	}
+
+	/**
+	 * Decode every value still held in its encoded form.
+	 */
+	protected synchronized void decodeAll()
+	{
+		if (m_pending == 0) return;
+		for (Object key : super.keySet().toArray())
+		{
+			resolve(key, super.get(key));
+		}
+	}
+
+	@Override
+	public synchronized Object get(Object key)
+	{
+		return resolve(key, super.get(key));
+	}
+
+	@Override
+	public synchronized Object getOrDefault(Object key, Object defaultValue)
+	{
+		Object value = get(key);
+		return (value == null) ? defaultValue : value;
+	}
+
+	@Override
+	public synchronized Object put(String key, Object value)
+	{
+		return release(super.put(key, value));
+	}
+
+	@Override
+	public synchronized Object putIfAbsent(String key, Object value)
+	{
+		return resolve(key, super.putIfAbsent(key, value));
+	}
+
+	@Override
+	public synchronized Object remove(Object key)
+	{
+		return release(super.remove(key));
+	}
+
+	@Override
+	public synchronized boolean remove(Object key, Object value)
+	{
+		decodeAll();
+		return super.remove(key, value);
+	}
+
+	@Override
+	public synchronized boolean replace(String key, Object oldValue, Object newValue)
+	{
+		decodeAll();
+		return super.replace(key, oldValue, newValue);
+	}
+
+	@Override
+	public synchronized Object replace(String key, Object value)
+	{
+		if (!super.containsKey(key)) return null;
+		return put(key, value);
+	}
+
+	@Override
+	public synchronized void clear()
+	{
+		super.clear();
+		m_pending = 0;
+	}
+
+	@Override
+	public synchronized boolean contains(Object value)
+	{
+		decodeAll();
+		return super.contains(value);
+	}
+
+	@Override
+	public boolean containsValue(Object value)
+	{
+		return contains(value);
+	}
+
+	@Override
+	public synchronized Enumeration<Object> elements()
+	{
+		decodeAll();
+		return super.elements();
+	}
+
+	@Override
+	public synchronized Collection<Object> values()
+	{
+		decodeAll();
+		return super.values();
+	}
+
+	@Override
+	public synchronized Set<Map.Entry<String, Object>> entrySet()
+	{
+		decodeAll();
+		return super.entrySet();
+	}
+
+	@Override
+	public synchronized void forEach(BiConsumer<? super String, ? super Object> action)
+	{
+		decodeAll();
+		super.forEach(action);
+	}
+
+	@Override
+	public synchronized void replaceAll(BiFunction<? super String, ? super Object, ? extends Object> function)
+	{
+		decodeAll();
+		super.replaceAll(function);
+	}
+
+	@Override
+	public synchronized Object computeIfAbsent(String key, Function<? super String, ? extends Object> mappingFunction)
+	{
+		resolve(key, super.get(key));
+		return super.computeIfAbsent(key, mappingFunction);
+	}
+
+	@Override
+	public synchronized Object computeIfPresent(String key,
+			BiFunction<? super String, ? super Object, ? extends Object> remappingFunction)
+	{
+		resolve(key, super.get(key));
+		return super.computeIfPresent(key, remappingFunction);
+	}
+
+	@Override
+	public synchronized Object compute(String key, BiFunction<? super String, ? super Object, ? extends Object> remappingFunction)
+	{
+		resolve(key, super.get(key));
+		return super.compute(key, remappingFunction);
+	}
+
+	@Override
+	public synchronized Object merge(String key, Object value,
+			BiFunction<? super Object, ? super Object, ? extends Object> remappingFunction)
+	{
+		resolve(key, super.get(key));
+		return super.merge(key, value, remappingFunction);
+	}
+
+	@Override
+	public synchronized boolean equals(Object o)
+	{
+		decodeAll();
+		return super.equals(o);
+	}
+
+	@Override
+	public synchronized int hashCode()
+	{
+		decodeAll();
+		return super.hashCode();
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		decodeAll();
+		return super.toString();
+	}
+
+	@Override
+	public synchronized Object clone()
+	{
+		decodeAll();
+		return super.clone();
+	}
+
+	/**
+	 * Serialize as a plain Hashtable so the encoded values never leave this JVM.
+	 */
+	protected Object writeReplace() throws ObjectStreamException
+	{
+		return new Hashtable<String, Object>(this);
+	}
+}
@@ -0,0 +1,154 @@
+/******************************************************************************
+ * $URL$
+ * $Id$
+ ******************************************************************************
+ *
+ * Copyright (c) 2003-2016 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *       http://opensource.org/licenses/ecl2
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ *****************************************************************************/
+
+package org.sakaiproject.content.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.content.api.ContentResource;
+
+public class ZipContentWriterTest {
+
+	private static final List<String> STORED = Arrays.asList("image/jpeg", "video/*", "application/zip");
+
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() {
+		executor = Executors.newFixedThreadPool(4);
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	private ContentResource resource(String id, String type, final byte[] body) throws Exception {
+		ContentResource resource = mock(ContentResource.class);
+		when(resource.getId()).thenReturn(id);
+		when(resource.getContentType()).thenReturn(type);
+		when(resource.getContentLength()).thenReturn((long) body.length);
+		when(resource.streamContent()).thenAnswer(new Answer<Object>() {
+			public Object answer(InvocationOnMock invocation) {
+				return new ByteArrayInputStream(body);
+			}
+		});
+		return resource;
+	}
+
+	private byte[] body(int length, long seed) {
+		byte[] body = new byte[length];
+		new Random(seed).nextBytes(body);
+		return body;
+	}
+
+	private void assertArchive(List<ZipContentWriter.Member> members, List<byte[]> bodies, byte[] archive) throws Exception {
+		ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(archive));
+		for (int i = 0; i < members.size(); i++) {
+			ZipEntry entry = zip.getNextEntry();
+			assertEquals(members.get(i).getName(), entry.getName());
+			assertArrayEquals(entry.getName(), bodies.get(i), IOUtils.toByteArray(zip));
+		}
+		assertNull(zip.getNextEntry());
+	}
+
+	@Test
+	public void testIsStoredType() {
+		ZipContentWriter writer = new ZipContentWriter(null, 1, 1024, STORED);
+		assertTrue(writer.isStoredType("image/jpeg"));
+		assertTrue(writer.isStoredType("IMAGE/JPEG; charset=binary"));
+		assertTrue(writer.isStoredType("video/mp4"));
+		assertFalse(writer.isStoredType("text/plain"));
+		assertFalse(writer.isStoredType("application/zipx"));
+		assertFalse(writer.isStoredType(null));
+	}
+
+	@Test
+	public void testWriteInOrderWithReadAhead() throws Exception {
+		List<ZipContentWriter.Member> members = new ArrayList<ZipContentWriter.Member>();
+		List<byte[]> bodies = new ArrayList<byte[]>();
+		for (int i = 0; i < 40; i++) {
+			// every fifth body is too large for the budget and is streamed instead
+			byte[] body = body(i % 5 == 0 ? 20000 : 100 + i * 37, i);
+			bodies.add(body);
+			members.add(new ZipContentWriter.Member("folder/file" + i + ".txt", resource("/group/site/folder/file" + i + ".txt", "text/plain", body)));
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new ZipContentWriter(executor, 4, 16 * 1024, STORED).write(members, out);
+		assertArchive(members, bodies, out.toByteArray());
+
+		// the executor is shared, the writer leaves it running for the next archive
+		assertFalse(executor.isShutdown());
+		ByteArrayOutputStream again = new ByteArrayOutputStream();
+		new ZipContentWriter(executor, 4, 16 * 1024, STORED).write(members, again);
+		assertArchive(members, bodies, again.toByteArray());
+
+		ByteArrayOutputStream serial = new ByteArrayOutputStream();
+		new ZipContentWriter(null, 1, 16 * 1024, STORED).write(members, serial);
+		assertArchive(members, bodies, serial.toByteArray());
+	}
+
+	@Test
+	public void testCompressedTypesAreStored() throws Exception {
+		byte[] text = new byte[5000];
+		Arrays.fill(text, (byte) 'a');
+		byte[] jpeg = body(5000, 1);
+		List<ZipContentWriter.Member> members = Arrays.asList(
+				new ZipContentWriter.Member("a.txt", resource("/a.txt", "text/plain", text)),
+				new ZipContentWriter.Member("b.jpg", resource("/b.jpg", "image/jpeg", jpeg)));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new ZipContentWriter(executor, 2, 1024 * 1024, STORED).write(members, out);
+
+		ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+		ZipEntry entry = zip.getNextEntry();
+		assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+		assertArrayEquals(text, IOUtils.toByteArray(zip));
+		entry = zip.getNextEntry();
+		assertEquals(ZipEntry.STORED, entry.getMethod());
+		assertEquals(jpeg.length, entry.getCompressedSize());
+		assertArrayEquals(jpeg, IOUtils.toByteArray(zip));
+	}
+}
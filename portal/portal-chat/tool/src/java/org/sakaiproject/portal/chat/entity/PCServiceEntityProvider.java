@@ -6,12 +6,16 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.UUID;
 
 import org.apache.commons.lang3.StringEscapeUtils;
@@ -75,6 +79,12 @@ public final class PCServiceEntityProvider extends AbstractEntityProvider implem
     
     private int pollInterval = 5000;
 
+    /* How often the heartbeats stamped on this node are sent to the cluster, in one message. 0 sends each one as it comes in. */
+    private int heartbeatFlushInterval = 1000;
+
+    /* How long a user's connections are reused for before asking Profile2 again. 0 asks on every poll. */
+    private int connectionsCacheInterval = 30000;
+
     private boolean isVideoEnabled = false;
 
     private final List<PortalVideoServer> iceServers = new ArrayList<PortalVideoServer>();
@@ -119,9 +129,13 @@ public final class PCServiceEntityProvider extends AbstractEntityProvider implem
 		this.developerService = developerService;
 	}
 	
-	/* A mapping of a list of messages onto the user id they are intended for */
-	private final Map<String, Map<String, Map<String, List<UserMessage>>>> messageMap
-        = new HashMap<String, Map<String, Map<String, List<UserMessage>>>>();
+	/*
+	 * A mapping of a list of messages onto the user id they are intended for. Each user's messages
+	 * are only ever changed inside compute() or taken with remove(), so polls and new messages for
+	 * different users never wait on each other.
+	 */
+	private final ConcurrentHashMap<String, Map<String, Map<String, List<UserMessage>>>> messageMap
+        = new ConcurrentHashMap<String, Map<String, Map<String, List<UserMessage>>>>();
 	
     /*
      *  A mapping of timestamps onto the user id that sent the heartbeat. The initial capacity should be set
@@ -130,6 +144,17 @@ public final class PCServiceEntityProvider extends AbstractEntityProvider implem
      */
 	private Map<String,UserMessage> heartbeatMap;
 
+    /* Heartbeats stamped on this node since the last flush to the cluster, keyed on user id */
+    private final Map<String,UserMessage> pendingHeartbeats = new ConcurrentHashMap<String,UserMessage>();
+
+    private ScheduledExecutorService heartbeatFlusher;
+
+    /* Filtered connections keyed on user id */
+    private final Map<String,CachedConnections> connectionsCache = new ConcurrentHashMap<String,CachedConnections>();
+
+    /* Once the cache holds this many users, expired and then the oldest entries are dropped before adding another */
+    private int connectionsCacheSize = 1000;
+
     /* JGroups channel for keeping the above maps in sync across nodes in a Sakai cluster */
     private Channel clusterChannel = null;
     private boolean clustered = false;
@@ -150,6 +175,10 @@ public final class PCServiceEntityProvider extends AbstractEntityProvider implem
         
         pollInterval = serverConfigurationService.getInt("portal.chat.pollInterval", 5000);
 
+        heartbeatFlushInterval = serverConfigurationService.getInt("portalchat.heartbeat.flushInterval", 1000);
+
+        connectionsCacheInterval = serverConfigurationService.getInt("portal.chat.connectionsCacheInterval", 30000);
+
         showSiteUsers = serverConfigurationService.getBoolean("portal.chat.showSiteUsers", true);
         
         isVideoEnabled = serverConfigurationService.getBoolean("portal.chat.video", true);
@@ -195,9 +224,30 @@ public final class PCServiceEntityProvider extends AbstractEntityProvider implem
         
         int heartbeatMapSize = serverConfigurationService.getInt("portalchat.heartbeatmap.size",1000);
         heartbeatMap = new ConcurrentHashMap<String,UserMessage>(heartbeatMapSize,0.75F,64);
+        connectionsCacheSize = heartbeatMapSize;
+
+        if (clustered && heartbeatFlushInterval > 0) {
+            heartbeatFlusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "PC heartbeat flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            heartbeatFlusher.scheduleWithFixedDelay(() -> {
+                try {
+                    flushHeartbeats();
+                } catch (Exception e) {
+                    logger.error("Error flushing heartbeats to the cluster", e);
+                }
+            }, heartbeatFlushInterval, heartbeatFlushInterval, TimeUnit.MILLISECONDS);
+            logger.info("Portal chat heartbeats are sent to the cluster every {}ms", heartbeatFlushInterval);
+        }
     }
     
     public void destroy() {
+
+        if (heartbeatFlusher != null) {
+            heartbeatFlusher.shutdownNow();
+        }
     	
     	if (clusterChannel != null && clusterChannel.isConnected()) {
     		// This calls disconnect() first
@@ -205,6 +255,63 @@ public final class PCServiceEntityProvider extends AbstractEntityProvider implem
     	}
     }
 
+    /**
+     * Returns the user's connections, reusing the last lookup for connectionsCacheInterval ms. Building
+     * the Person instances is by far the most expensive part of a poll, and connections rarely change.
+     */
+    private List<Person> getCachedConnectionsForUser(String uuid) {
+
+        if (connectionsCacheInterval <= 0) {
+            return getConnectionsForUser(uuid);
+        }
+
+        long now = System.currentTimeMillis();
+        CachedConnections cached = connectionsCache.get(uuid);
+        if (cached == null || now - cached.loaded >= connectionsCacheInterval) {
+            if (cached == null && connectionsCache.size() >= connectionsCacheSize) {
+                evictConnections(now);
+            }
+            // only one tab installs a lookup and runs it outside the map lock; the user's other tabs wait for its result
+            CachedConnections fresh = new CachedConnections(new FutureTask<List<Person>>(() -> getConnectionsForUser(uuid)), now);
+            cached = connectionsCache.compute(uuid, (id, c) -> c != null && now - c.loaded < connectionsCacheInterval ? c : fresh);
+            if (cached == fresh) {
+                fresh.connections.run();
+            }
+        }
+        try {
+            return cached.connections.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return new ArrayList<Person>();
+        } catch (ExecutionException ee) {
+            // don't keep a failed lookup for the whole interval
+            connectionsCache.remove(uuid, cached);
+            if (ee.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ee.getCause();
+            }
+            throw new RuntimeException(ee.getCause());
+        }
+    }
+
+    /**
+     * Drops the expired connections and, when every entry is still fresh, the oldest ones, so that the
+     * cache stays under connectionsCacheSize.
+     */
+    private void evictConnections(long now) {
+
+        connectionsCache.values().removeIf(c -> now - c.loaded >= connectionsCacheInterval);
+        int excess = connectionsCache.size() - connectionsCacheSize + 1;
+        if (excess > 0) {
+            // leave some room so the next new users do not sort the cache again
+            excess += connectionsCacheSize / 10;
+            List<Map.Entry<String,CachedConnections>> entries = new ArrayList<Map.Entry<String,CachedConnections>>(connectionsCache.entrySet());
+            entries.sort((a, b) -> Long.compare(a.getValue().loaded, b.getValue().loaded));
+            for (int i = 0; i < excess && i < entries.size(); i++) {
+                connectionsCache.remove(entries.get(i).getKey(), entries.get(i).getValue());
+            }
+        }
+    }
+
     /**
      * Uses reflection to call Profile2's connections method.
      *
@@ -302,7 +409,7 @@ public final class PCServiceEntityProvider extends AbstractEntityProvider implem
 
 		final UserMessage lastHeartbeat = heartbeatMap.get(to);
 		
-		if (lastHeartbeat == null || ((new Date()).getTime() - lastHeartbeat.timestamp) >= pollInterval) {
+		if (!isOnline(lastHeartbeat, (new Date()).getTime())) {
             // If this is not a video signal, send a message via the profile's
             // messaging function
             if (!isVideoSignal) {
@@ -405,6 +512,18 @@ public final class PCServiceEntityProvider extends AbstractEntityProvider implem
         }
 	}
 
+	private static class CachedConnections {
+
+		private final FutureTask<List<Person>> connections;
+		private final long loaded;
+
+		private CachedConnections(FutureTask<List<Person>> connections, long loaded) {
+
+			this.connections = connections;
+			this.loaded = loaded;
+		}
+	}
+
 	public class PortalChatUser {
 		
 		public String id;
@@ -477,21 +596,24 @@ public final class PCServiceEntityProvider extends AbstractEntityProvider implem
             if (clustered) {
             	
             	logger.debug("We are clustered. Propagating heartbeat ...");
-            	
-                Message msg = new Message(null, null, userMessage);
-                try {
-                    clusterChannel.send(msg);
-                    logger.debug("Heartbeat message sent.");
-                } catch (Exception e) {
-                    logger.error("Error sending JGroups heartbeat message", e);
+
+                if (heartbeatFlushInterval > 0) {
+                    // Sent with the other heartbeats by flushHeartbeats. A user with several tabs open only goes once.
+                    pendingHeartbeats.put(currentUser.getId(), userMessage);
+                } else {
+                    Message msg = new Message(null, null, userMessage);
+                    try {
+                        clusterChannel.send(msg);
+                        logger.debug("Heartbeat message sent.");
+                    } catch (Exception e) {
+                        logger.error("Error sending JGroups heartbeat message", e);
+                    }
                 }
             }
         } else {
 			logger.debug("{} is offline. Removing them from the message map ...", currentUser.getEid());
 
-            synchronized (messageMap) {
-                messageMap.remove(currentUser.getId());
-            }
+            messageMap.remove(currentUser.getId());
 
 	        sendClearMessage(currentUser.getId());
 
@@ -517,7 +639,7 @@ public final class PCServiceEntityProvider extends AbstractEntityProvider implem
 			}
         }
 		
-		List<Person> connections = getConnectionsForUser(currentUser.getId());
+		List<Person> connections = getCachedConnectionsForUser(currentUser.getId());
 		
 		List<PortalChatUser> onlineConnections = new ArrayList<PortalChatUser>(connections.size());
 		
@@ -529,9 +651,7 @@ public final class PCServiceEntityProvider extends AbstractEntityProvider implem
 			
 			UserMessage lastHeartbeat = heartbeatMap.get(uuid);
 			
-			if (lastHeartbeat == null) continue;
-			
-			if ((now.getTime() - lastHeartbeat.timestamp) < pollInterval) {
+			if (isOnline(lastHeartbeat, now.getTime())) {
 				onlineConnections.add(new PortalChatUser(uuid, uuid, false, lastHeartbeat.content));
 			}
 		}
@@ -541,29 +661,26 @@ public final class PCServiceEntityProvider extends AbstractEntityProvider implem
 
 		String currentUserId = currentUser.getId();
 		
-		synchronized (messageMap) {
-			if (messageMap.containsKey(currentUserId)) {
-				// Grab the type map for this user
-                Map<String, Map<String, List<UserMessage>>> typeMap = messageMap.get(currentUserId);
-
-                // Now pull the plain, video and connection messages for this site
-                messages = typeMap.get(PLAIN).get(siteId);
-                if (messages != null) {
-                    messages.addAll(typeMap.get(PLAIN).get(CONNECTION));
-                } else {
-                    messages = typeMap.get(PLAIN).get(CONNECTION);
-                }
-
-                videoMessages = typeMap.get(VIDEO).get(siteId);
-                if (videoMessages != null) {
-                    videoMessages.addAll(typeMap.get(VIDEO).get(CONNECTION));
-                } else {
-                    videoMessages = typeMap.get(VIDEO).get(CONNECTION);
-                }
+		// Take this user's messages. Anything added after this goes into a new entry for the next poll.
+		Map<String, Map<String, List<UserMessage>>> typeMap = messageMap.remove(currentUserId);
+		if (typeMap != null) {
+            // Now pull the plain, video and connection messages for this site
+            messages = typeMap.get(PLAIN).get(siteId);
+            if (messages != null) {
+                messages.addAll(typeMap.get(PLAIN).get(CONNECTION));
+            } else {
+                messages = typeMap.get(PLAIN).get(CONNECTION);
+            }
 
-                messageMap.remove(currentUserId);
-			}
+            videoMessages = typeMap.get(VIDEO).get(siteId);
+            if (videoMessages != null) {
+                videoMessages.addAll(typeMap.get(VIDEO).get(CONNECTION));
+            } else {
+                videoMessages = typeMap.get(VIDEO).get(CONNECTION);
+            }
 
+            // Every node holds a copy of the messages. Only tell them to drop theirs when there was
+            // something to drop, rather than on every poll.
             sendClearMessage(currentUserId);
 		}
 
@@ -635,38 +752,39 @@ public final class PCServiceEntityProvider extends AbstractEntityProvider implem
 	}
 	
     /**
-     * Implements a threadsafe addition to the message map
+     * Implements a threadsafe addition to the message map. Only the recipient's entry is locked.
      */
-    private void addMessageToMap(UserMessage m) {
+    private void addMessageToMap(final UserMessage m) {
 
-        synchronized (messageMap) {
+        messageMap.compute(m.to, (to, typeMap) -> {
 
-            if (!messageMap.containsKey(m.to)) {
-				logger.debug("No message map entry for '{}'. Creating new entries ...", m.to);
-                Map<String, Map<String, List<UserMessage>>> typeMap = new HashMap<String, Map<String, List<UserMessage>>>();
+            if (typeMap == null) {
+				logger.debug("No message map entry for '{}'. Creating new entries ...", to);
+                typeMap = new HashMap<String, Map<String, List<UserMessage>>>();
                 typeMap.put(PLAIN, new HashMap<String, List<UserMessage>>());
                 typeMap.get(PLAIN).put(m.siteId, new ArrayList<UserMessage>());
                 typeMap.get(PLAIN).put(CONNECTION, new ArrayList<UserMessage>());
                 typeMap.put(VIDEO, new HashMap<String, List<UserMessage>>());
                 typeMap.get(VIDEO).put(m.siteId, new ArrayList<UserMessage>());
                 typeMap.get(VIDEO).put(CONNECTION, new ArrayList<UserMessage>());
-                messageMap.put(m.to, typeMap);
             }
 
             if (m.video) {
                 logger.debug("Message is a video message");
-                Map<String, List<UserMessage>> videoMap = messageMap.get(m.to).get(VIDEO);
+                Map<String, List<UserMessage>> videoMap = typeMap.get(VIDEO);
 
                 if (m.fromConnection) {
                     videoMap.get(CONNECTION).add(m);
                 } else if (videoMap.containsKey(m.siteId)) {
                     videoMap.get(m.siteId).add(m);
                 } else {
-                    videoMap.put(m.siteId, Arrays.asList(m));
+                    List<UserMessage> list = new ArrayList<UserMessage>();
+                    list.add(m);
+                    videoMap.put(m.siteId, list);
                 }
             } else {
                 logger.debug("Message is a plain message");
-                Map<String, List<UserMessage>> plainMap = messageMap.get(m.to).get(PLAIN);
+                Map<String, List<UserMessage>> plainMap = typeMap.get(PLAIN);
 
                 if (m.fromConnection) {
                     plainMap.get(CONNECTION).add(m);
@@ -675,10 +793,62 @@ public final class PCServiceEntityProvider extends AbstractEntityProvider implem
                     plainMap.get(m.siteId).add(m);
                 } else {
 					logger.debug("plainMap does not contain '{}'. A new list will be mapped", m.siteId);
-                    plainMap.put(m.siteId, Arrays.asList(m));
+                    List<UserMessage> list = new ArrayList<UserMessage>();
+                    list.add(m);
+                    plainMap.put(m.siteId, list);
                 }
             }
+
+            return typeMap;
+        });
+    }
+
+    /**
+     * A heartbeat is good for one poll interval, plus the time it can wait on its node to be sent to the cluster.
+     */
+    private boolean isOnline(UserMessage heartbeat, long now) {
+
+        if (heartbeat == null) {
+            return false;
+        }
+        return (now - heartbeat.timestamp) < pollInterval + Math.max(heartbeatFlushInterval, 0);
+    }
+
+    /**
+     * Sends the heartbeats stamped since the last flush to the cluster as one message, so the cost
+     * of the cluster traffic depends on the number of nodes rather than on the number of open tabs.
+     */
+    void flushHeartbeats() {
+
+        if (!clustered || pendingHeartbeats.isEmpty()) {
+            return;
+        }
+
+        ArrayList<UserMessage> heartbeats = new ArrayList<UserMessage>(pendingHeartbeats.size());
+        for (String userId : pendingHeartbeats.keySet()) {
+            UserMessage heartbeat = pendingHeartbeats.remove(userId);
+            if (heartbeat != null) {
+                heartbeats.add(heartbeat);
+            }
         }
+
+        if (!heartbeats.isEmpty()) {
+            try {
+				logger.debug("Sending {} heartbeats to cluster ...", heartbeats.size());
+                clusterChannel.send(new Message(null, null, heartbeats));
+            } catch (Exception e) {
+                logger.error("Error sending JGroups heartbeats message", e);
+            }
+        }
+    }
+
+    /**
+     * Use the given channel to talk to the cluster. Used by the tests.
+     */
+    void setClusterChannel(Channel clusterChannel) {
+
+        this.clusterChannel = clusterChannel;
+        this.clustered = clusterChannel != null;
     }
 
 	private class EmailSender implements Runnable {
@@ -719,14 +889,21 @@ public final class PCServiceEntityProvider extends AbstractEntityProvider implem
     public void receive(Message msg) {
 
         Object o = msg.getObject();
-        if (o instanceof UserMessage) {
+        if (o instanceof List) {
+            List<?> heartbeats = (List<?>) o;
+            logger.debug("Received {} heartbeats from cluster ...", heartbeats.size());
+            for (Object heartbeat : heartbeats) {
+                if (heartbeat instanceof UserMessage) {
+                    UserMessage message = (UserMessage) heartbeat;
+                    heartbeatMap.put(message.from, message);
+                }
+            }
+        } else if (o instanceof UserMessage) {
             UserMessage message = (UserMessage) o;
             if (message.to == null) {
             	if (message.clear) {
                     String userId = message.from;
-                    synchronized (messageMap) {
-                        messageMap.remove(userId);
-    				}
+                    messageMap.remove(userId);
             	} else {
             		logger.debug("Received heartbeat from cluster ...");
             		heartbeatMap.put(message.from, message);
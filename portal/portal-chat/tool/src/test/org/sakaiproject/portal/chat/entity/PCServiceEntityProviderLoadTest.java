@@ -0,0 +1,208 @@
+package org.sakaiproject.portal.chat.entity;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.jgroups.Channel;
+import org.jgroups.Message;
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.portal.api.PortalChatPermittedHelper;
+import org.sakaiproject.presence.api.PresenceService;
+import org.sakaiproject.profile2.logic.ProfileConnectionsLogic;
+import org.sakaiproject.profile2.logic.ProfileMessagingLogic;
+import org.sakaiproject.profile2.model.Person;
+import org.sakaiproject.user.api.User;
+import org.sakaiproject.user.api.UserDirectoryService;
+
+/**
+ * Load driver for portal chat: thousands of logged in users with the chat idle in two tabs each,
+ * polling a two node cluster whose JGroups channels are wired to each other.
+ */
+public class PCServiceEntityProviderLoadTest extends TestCase {
+
+	private static final int USERS = 3000;
+	private static final int TABS = 2;
+	// one minute of polling every 5 seconds
+	private static final int POLLS = 12;
+
+	private final ThreadLocal<User> currentUser = new ThreadLocal<User>();
+	private final Map<String, User> users = new HashMap<String, User>();
+
+	private UserDirectoryService userDirectoryService;
+	private ProfileConnectionsLogic profileConnectionsLogic;
+
+	private PCServiceEntityProvider node1;
+	private PCServiceEntityProvider node2;
+	private final AtomicInteger node1Sends = new AtomicInteger();
+	private final AtomicInteger node2Sends = new AtomicInteger();
+
+	@Override
+	protected void setUp() throws Exception {
+
+		userDirectoryService = mock(UserDirectoryService.class);
+		when(userDirectoryService.getAnonymousUser()).thenReturn(mock(User.class));
+		when(userDirectoryService.getCurrentUser()).thenAnswer(invocation -> currentUser.get());
+
+		profileConnectionsLogic = mock(ProfileConnectionsLogic.class);
+		when(profileConnectionsLogic.getConnectionsForUser(anyString())).thenReturn(new ArrayList<Person>());
+
+		for (int i = 0; i < USERS; i++) {
+			User user = mock(User.class);
+			when(user.getId()).thenReturn("user" + i);
+			when(user.getEid()).thenReturn("user" + i);
+			users.put("user" + i, user);
+		}
+
+		node1 = newNode();
+		node2 = newNode();
+		node1.setClusterChannel(channelTo(node2, node1Sends));
+		node2.setClusterChannel(channelTo(node1, node2Sends));
+	}
+
+	private PCServiceEntityProvider newNode() {
+
+		ServerConfigurationService serverConfigurationService = mock(ServerConfigurationService.class);
+		when(serverConfigurationService.getInt(anyString(), anyInt())).thenAnswer(invocation -> invocation.getArguments()[1]);
+		when(serverConfigurationService.getBoolean(anyString(), anyBoolean())).thenAnswer(invocation -> invocation.getArguments()[1]);
+		when(serverConfigurationService.getString(anyString(), anyString())).thenAnswer(invocation -> invocation.getArguments()[1]);
+		// room for every user's connections
+		when(serverConfigurationService.getInt("portalchat.heartbeatmap.size", 1000)).thenReturn(USERS);
+
+		PortalChatPermittedHelper portalChatPermittedHelper = mock(PortalChatPermittedHelper.class);
+		when(portalChatPermittedHelper.checkChatPermitted(anyString())).thenReturn(true);
+
+		PCServiceEntityProvider node = new PCServiceEntityProvider();
+		node.setServerConfigurationService(serverConfigurationService);
+		node.setUserDirectoryService(userDirectoryService);
+		node.setPresenceService(mock(PresenceService.class));
+		node.setProfileConnectionsLogic(profileConnectionsLogic);
+		node.setProfileMessagingLogic(mock(ProfileMessagingLogic.class));
+		node.setPortalChatPermittedHelper(portalChatPermittedHelper);
+		node.init();
+		return node;
+	}
+
+	private Channel channelTo(final PCServiceEntityProvider other, final AtomicInteger sends) throws Exception {
+
+		Channel channel = mock(Channel.class);
+		doAnswer(invocation -> {
+			sends.incrementAndGet();
+			other.receive((Message) invocation.getArguments()[0]);
+			return null;
+		}).when(channel).send(any(Message.class));
+		return channel;
+	}
+
+	private PCServiceEntityProvider nodeOf(int user) {
+		return user % 2 == 0 ? node1 : node2;
+	}
+
+	private Map<String, Object> poll(PCServiceEntityProvider node, String userId, String siteId) {
+
+		currentUser.set(users.get(userId));
+		try {
+			Map<String, Object> params = new HashMap<String, Object>();
+			params.put("online", "true");
+			params.put("videoAgent", "none");
+			params.put("siteId", siteId);
+			return node.handleLatestData(null, params);
+		} finally {
+			currentUser.remove();
+		}
+	}
+
+	private String send(PCServiceEntityProvider node, String from, String to, String siteId, String message) {
+
+		currentUser.set(users.get(from));
+		try {
+			Map<String, Object> params = new HashMap<String, Object>();
+			params.put("to", to);
+			params.put("siteId", siteId);
+			params.put("message", message);
+			return node.createEntity(null, null, params);
+		} finally {
+			currentUser.remove();
+		}
+	}
+
+	public void testIdleTabs() throws Exception {
+
+		for (int round = 0; round < POLLS; round++) {
+			ExecutorService tabs = Executors.newFixedThreadPool(32);
+			for (int i = 0; i < USERS; i++) {
+				final int user = i;
+				for (int tab = 0; tab < TABS; tab++) {
+					tabs.execute(() -> poll(nodeOf(user), "user" + user, null));
+				}
+			}
+			tabs.shutdown();
+			assertTrue(tabs.awaitTermination(1, TimeUnit.MINUTES));
+			// one heartbeat flush per node and poll interval
+			node1.flushHeartbeats();
+			node2.flushHeartbeats();
+		}
+
+		// 72000 polls sent one heartbeat and one clear message each; now each node sends one batch per flush
+		assertEquals(POLLS, node1Sends.get());
+		assertEquals(POLLS, node2Sends.get());
+
+		// connections are looked up once per user, not on every poll
+		verify(profileConnectionsLogic, times(USERS)).getConnectionsForUser(anyString());
+
+		// every user is online on the node they are not polling
+		assertEquals("success", send(node1, "user0", "user1", "site1", "hello"));
+		assertEquals("success", send(node2, "user1", "user0", "site1", "hello"));
+	}
+
+	public void testMessagesAcrossNodes() throws Exception {
+
+		// user0 polls node1 and user1 polls node2, and the heartbeats reach the other node
+		poll(node1, "user0", "site1");
+		poll(node2, "user1", "site1");
+		node1.flushHeartbeats();
+		node2.flushHeartbeats();
+		node1Sends.set(0);
+		node2Sends.set(0);
+
+		// user0 chats to user1 from two sites at once
+		assertEquals("success", send(node1, "user0", "user1", "site1", "first"));
+		ExecutorService senders = Executors.newFixedThreadPool(8);
+		for (int i = 0; i < 49; i++) {
+			final String message = "message " + i;
+			senders.execute(() -> send(node1, "user0", "user1", "site2", message));
+		}
+		senders.shutdown();
+		assertTrue(senders.awaitTermination(1, TimeUnit.MINUTES));
+		assertEquals(50, node1Sends.get());
+
+		Map<String, Object> data = poll(node2, "user1", "site2");
+		assertEquals(49, ((List<?>) data.get("messages")).size());
+		// node2 tells node1 to drop its copy, once
+		assertEquals(1, node2Sends.get());
+
+		data = poll(node1, "user1", "site2");
+		assertTrue(((List<?>) data.get("messages")).isEmpty());
+		data = poll(node2, "user1", "site2");
+		assertTrue(((List<?>) data.get("messages")).isEmpty());
+		// nothing was left to clear, so nothing more was sent
+		assertEquals(1, node2Sends.get());
+	}
+}
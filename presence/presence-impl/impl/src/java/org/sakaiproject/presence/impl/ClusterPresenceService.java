@@ -21,10 +21,26 @@
 
 package org.sakaiproject.presence.impl;
 
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.sakaiproject.db.api.SqlReader;
 import org.sakaiproject.db.api.SqlService;
 import org.sakaiproject.event.api.UsageSession;
 
@@ -45,6 +61,10 @@ public class ClusterPresenceService extends BasePresenceService
 	 */
 	protected Storage newStorage()
 	{
+		if (m_buffered)
+		{
+			return new BufferedClusterStorage();
+		}
 		return new ClusterStorage();
 	}
 
@@ -76,6 +96,43 @@ public class ClusterPresenceService extends BasePresenceService
 		m_autoDdl = Boolean.valueOf(value);
 	}
 
+	/** Configuration: keep presence in memory and write the changes to the DB in periodic batches. */
+	protected boolean m_buffered = false;
+
+	/**
+	 * Configuration: keep presence in memory and write the changes to the DB in periodic batches.
+	 * 
+	 * @param value
+	 *        the buffered value.
+	 */
+	public void setBuffered(String value)
+	{
+		m_buffered = Boolean.valueOf(value);
+	}
+
+	/** Configuration: how often in seconds buffered presence changes are written and the cluster's presence is read. */
+	protected int m_flushSeconds = 15;
+
+	/**
+	 * Configuration: how often in seconds buffered presence changes are written and the cluster's presence is read.
+	 * 
+	 * @param value
+	 *        flush seconds.
+	 */
+	public void setFlushSeconds(String value)
+	{
+		try
+		{
+			m_flushSeconds = Integer.parseInt(value);
+		}
+		catch (Exception ignore)
+		{
+		}
+	}
+
+	/** Runs the flushes of the buffered storage. */
+	protected ScheduledExecutorService m_flusher = null;
+
 	/**********************************************************************************************************************************************************************************************************************************************************
 	 * Init and Destroy
 	 *********************************************************************************************************************************************************************************************************************************************************/
@@ -94,6 +151,27 @@ public class ClusterPresenceService extends BasePresenceService
 			}
 
 			super.init();
+
+			if (m_storage instanceof BufferedClusterStorage)
+			{
+				final BufferedClusterStorage storage = (BufferedClusterStorage) m_storage;
+				m_flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+					Thread thread = new Thread(r, "SakaiPresenceService.Flush");
+					thread.setDaemon(true);
+					return thread;
+				});
+				m_flusher.scheduleWithFixedDelay(() -> {
+					try
+					{
+						storage.flush();
+					}
+					catch (Exception e)
+					{
+						M_log.warn("flush(): ", e);
+					}
+				}, 0, Math.max(m_flushSeconds, 1), TimeUnit.SECONDS);
+				M_log.info("init(): buffering presence, flushing every " + m_flushSeconds + " seconds");
+			}
 		}
 		catch (Exception t)
 		{
@@ -101,6 +179,25 @@ public class ClusterPresenceService extends BasePresenceService
 		}
 	}
 
+	/**
+	 * Returns to uninitialized state, writing any buffered presence changes first.
+	 */
+	public void destroy()
+	{
+		if (m_flusher != null)
+		{
+			m_flusher.shutdownNow();
+			m_flusher = null;
+		}
+
+		if (m_storage instanceof BufferedClusterStorage)
+		{
+			((BufferedClusterStorage) m_storage).writeChanges();
+		}
+
+		super.destroy();
+	}
+
 	/**********************************************************************************************************************************************************************************************************************************************************
 	 * Storage
 	 *********************************************************************************************************************************************************************************************************************************************************/
@@ -211,4 +308,379 @@ public class ClusterPresenceService extends BasePresenceService
 			return locs;
 		}
 	}
+
+	/**
+	 * Identifies one session's presence at one location.
+	 */
+	protected static class PresenceKey
+	{
+		protected final String m_sessionId;
+
+		protected final String m_locationId;
+
+		public PresenceKey(String sessionId, String locationId)
+		{
+			m_sessionId = sessionId;
+			m_locationId = locationId;
+		}
+
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof PresenceKey)) return false;
+			PresenceKey other = (PresenceKey) obj;
+			return m_sessionId.equals(other.m_sessionId) && m_locationId.equals(other.m_locationId);
+		}
+
+		public int hashCode()
+		{
+			return 31 * m_sessionId.hashCode() + m_locationId.hashCode();
+		}
+	}
+
+	/**
+	 * Storage that keeps the presence of this app server's sessions in memory, and answers reads from that and from a
+	 * snapshot of the whole cluster's presence. Changes are coalesced and written to SAKAI_PRESENCE in one transaction
+	 * every flushSeconds, after which the snapshot is read again. Presence that comes and goes between two flushes never
+	 * reaches the DB, and reads never do.
+	 */
+	protected class BufferedClusterStorage implements Storage
+	{
+		/** This server's presence: session id to session, keyed on location id. */
+		protected final Map<String, Map<String, UsageSession>> m_local = new ConcurrentHashMap<String, Map<String, UsageSession>>();
+
+		/** Presence changes not yet written: TRUE to insert, FALSE to delete. Guarded by itself. */
+		protected final Map<PresenceKey, Boolean> m_changes = new LinkedHashMap<PresenceKey, Boolean>();
+
+		/** Sessions whose presence is to be deleted from every location. Guarded by m_changes. */
+		protected final Set<String> m_removedSessions = new HashSet<String>();
+
+		/** The cluster's presence as of the last flush: active sessions keyed on location id. */
+		protected volatile Map<String, List<UsageSession>> m_snapshot = null;
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public void setPresence(final String sessionId, String locationId)
+		{
+			// this is nearly always the current session, which needs no trip to the DB
+			UsageSession current = m_usageSessionService.getSession();
+			if (current == null || !sessionId.equals(current.getId()))
+			{
+				current = m_usageSessionService.getSession(sessionId);
+			}
+			if (current == null) return;
+			final UsageSession session = current;
+
+			m_local.compute(locationId, (location, sessions) -> {
+				if (sessions == null)
+				{
+					sessions = new ConcurrentHashMap<String, UsageSession>();
+				}
+				sessions.put(sessionId, session);
+				return sessions;
+			});
+
+			synchronized (m_changes)
+			{
+				PresenceKey key = new PresenceKey(sessionId, locationId);
+				if (Boolean.FALSE.equals(m_changes.get(key)))
+				{
+					// the row is still there
+					m_changes.remove(key);
+				}
+				else
+				{
+					m_changes.put(key, Boolean.TRUE);
+				}
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public void removePresence(final String sessionId, String locationId)
+		{
+			m_local.computeIfPresent(locationId, (location, sessions) -> {
+				sessions.remove(sessionId);
+				return sessions.isEmpty() ? null : sessions;
+			});
+
+			synchronized (m_changes)
+			{
+				PresenceKey key = new PresenceKey(sessionId, locationId);
+				if (Boolean.TRUE.equals(m_changes.get(key)))
+				{
+					// the row was never written
+					m_changes.remove(key);
+				}
+				else
+				{
+					m_changes.put(key, Boolean.FALSE);
+				}
+			}
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public List<String> removeSessionPresence(final String sessionId)
+		{
+			final List<String> presence = new ArrayList<String>();
+			for (String locationId : m_local.keySet())
+			{
+				m_local.computeIfPresent(locationId, (location, sessions) -> {
+					if (sessions.remove(sessionId) != null)
+					{
+						presence.add(location);
+					}
+					return sessions.isEmpty() ? null : sessions;
+				});
+			}
+
+			synchronized (m_changes)
+			{
+				for (Iterator<PresenceKey> i = m_changes.keySet().iterator(); i.hasNext();)
+				{
+					if (sessionId.equals(i.next().m_sessionId))
+					{
+						i.remove();
+					}
+				}
+				m_removedSessions.add(sessionId);
+			}
+
+			return presence;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public List<UsageSession> getSessions(String locationId)
+		{
+			Map<String, UsageSession> sessions = new LinkedHashMap<String, UsageSession>();
+
+			List<UsageSession> cluster = getSnapshot().get(locationId);
+			if (cluster != null)
+			{
+				synchronized (m_changes)
+				{
+					for (UsageSession session : cluster)
+					{
+						// leave out what has been removed here since the snapshot was read
+						if (m_removedSessions.contains(session.getId())) continue;
+						if (Boolean.FALSE.equals(m_changes.get(new PresenceKey(session.getId(), locationId)))) continue;
+						sessions.put(session.getId(), session);
+					}
+				}
+			}
+
+			Map<String, UsageSession> local = m_local.get(locationId);
+			if (local != null)
+			{
+				for (UsageSession session : local.values())
+				{
+					sessions.putIfAbsent(session.getId(), session);
+				}
+			}
+
+			return new ArrayList<UsageSession>(sessions.values());
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public List<String> getLocations()
+		{
+			Set<String> locations = new HashSet<String>(getSnapshot().keySet());
+			locations.addAll(m_local.keySet());
+
+			return new ArrayList<String>(locations);
+		}
+
+		/**
+		 * Write the buffered changes, then read the cluster's presence again.
+		 */
+		public void flush()
+		{
+			writeChanges();
+			m_snapshot = readSnapshot();
+		}
+
+		protected Map<String, List<UsageSession>> getSnapshot()
+		{
+			Map<String, List<UsageSession>> snapshot = m_snapshot;
+			if (snapshot == null)
+			{
+				// not flushed yet
+				snapshot = readSnapshot();
+				m_snapshot = snapshot;
+			}
+			return snapshot;
+		}
+
+		/**
+		 * Write the buffered changes to SAKAI_PRESENCE in one transaction. If that fails they are kept for the next flush.
+		 */
+		public void writeChanges()
+		{
+			List<String> removedSessions;
+			Map<PresenceKey, Boolean> changes;
+			synchronized (m_changes)
+			{
+				if (m_changes.isEmpty() && m_removedSessions.isEmpty()) return;
+
+				removedSessions = new ArrayList<String>(m_removedSessions);
+				changes = new LinkedHashMap<PresenceKey, Boolean>(m_changes);
+				m_removedSessions.clear();
+				m_changes.clear();
+			}
+
+			Connection conn = null;
+			boolean wasCommit = true;
+			boolean ok = true;
+			try
+			{
+				conn = m_sqlService.borrowConnection();
+				wasCommit = conn.getAutoCommit();
+				if (wasCommit)
+				{
+					conn.setAutoCommit(false);
+				}
+
+				for (String sessionId : removedSessions)
+				{
+					ok = ok && m_sqlService.dbWrite(conn, "delete from SAKAI_PRESENCE where SESSION_ID = ?", new Object[] { sessionId });
+				}
+
+				// deletes before inserts, a location may be left and entered again by another session
+				for (Map.Entry<PresenceKey, Boolean> change : changes.entrySet())
+				{
+					if (change.getValue()) continue;
+					ok = ok && m_sqlService.dbWrite(conn, "delete from SAKAI_PRESENCE where ( SESSION_ID = ? and LOCATION_ID = ?)",
+							new Object[] { change.getKey().m_sessionId, change.getKey().m_locationId });
+				}
+
+				for (Map.Entry<PresenceKey, Boolean> change : changes.entrySet())
+				{
+					if (!change.getValue()) continue;
+					ok = ok && m_sqlService.dbWrite(conn, "insert into SAKAI_PRESENCE (SESSION_ID,LOCATION_ID) values ( ?, ?)",
+							new Object[] { change.getKey().m_sessionId, change.getKey().m_locationId });
+				}
+
+				if (ok)
+				{
+					conn.commit();
+					if (M_log.isDebugEnabled())
+						M_log.debug("writeChanges(): " + changes.size() + " changes, " + removedSessions.size() + " sessions removed");
+				}
+				else
+				{
+					M_log.warn("writeChanges(): dbWrite failed");
+					conn.rollback();
+				}
+			}
+			catch (SQLException e)
+			{
+				ok = false;
+				M_log.warn("writeChanges(): " + e, e);
+				if (conn != null)
+				{
+					try
+					{
+						conn.rollback();
+					}
+					catch (Exception ee)
+					{
+						M_log.warn("writeChanges(): while rolling back: " + ee);
+					}
+				}
+			}
+			finally
+			{
+				if (conn != null)
+				{
+					try
+					{
+						if (!conn.isClosed() && conn.getAutoCommit() != wasCommit)
+						{
+							conn.setAutoCommit(wasCommit);
+						}
+					}
+					catch (Exception e)
+					{
+						M_log.warn("writeChanges(): while setting auto commit: " + e, e);
+					}
+					m_sqlService.returnConnection(conn);
+				}
+			}
+
+			if (!ok)
+			{
+				// keep them, unless something newer has come in since
+				synchronized (m_changes)
+				{
+					m_removedSessions.addAll(removedSessions);
+					for (Map.Entry<PresenceKey, Boolean> change : changes.entrySet())
+					{
+						if (!m_changes.containsKey(change.getKey()))
+						{
+							m_changes.put(change.getKey(), change.getValue());
+						}
+					}
+				}
+			}
+		}
+
+		/**
+		 * Read the whole cluster's presence, in two queries.
+		 */
+		@SuppressWarnings("unchecked")
+		protected Map<String, List<UsageSession>> readSnapshot()
+		{
+			List<String[]> rows = m_sqlService.dbRead("select SESSION_ID, LOCATION_ID from SAKAI_PRESENCE", null, new SqlReader<String[]>()
+			{
+				public String[] readSqlResultRecord(ResultSet result)
+				{
+					try
+					{
+						return new String[] { result.getString(1), result.getString(2) };
+					}
+					catch (SQLException e)
+					{
+						M_log.warn("readSnapshot(): " + e);
+						return null;
+					}
+				}
+			});
+
+			if (rows.isEmpty()) return Collections.emptyMap();
+
+			// the active sessions that have presence anywhere
+			List<UsageSession> active = m_usageSessionService.getSessions("(select distinct SESSION_ID from SAKAI_PRESENCE)", "A",
+					"SESSION_ID", "1=1", null);
+			Map<String, UsageSession> sessions = new HashMap<String, UsageSession>(active.size() * 2);
+			for (UsageSession session : active)
+			{
+				sessions.put(session.getId(), session);
+			}
+
+			Map<String, List<UsageSession>> snapshot = new HashMap<String, List<UsageSession>>();
+			for (String[] row : rows)
+			{
+				if (row == null) continue;
+				UsageSession session = sessions.get(row[0]);
+				if (session == null) continue;
+
+				List<UsageSession> present = snapshot.get(row[1]);
+				if (present == null)
+				{
+					present = new ArrayList<UsageSession>();
+					snapshot.put(row[1], present);
+				}
+				present.add(session);
+			}
+
+			return snapshot;
+		}
+	}
 }
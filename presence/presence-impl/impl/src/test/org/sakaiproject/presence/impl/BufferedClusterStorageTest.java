@@ -0,0 +1,169 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2016 The Apereo Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.presence.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.db.api.SqlService;
+import org.sakaiproject.event.api.UsageSession;
+import org.sakaiproject.event.api.UsageSessionService;
+
+public class BufferedClusterStorageTest
+{
+	private static final String INSERT = "insert into SAKAI_PRESENCE (SESSION_ID,LOCATION_ID) values ( ?, ?)";
+
+	private static final String DELETE = "delete from SAKAI_PRESENCE where ( SESSION_ID = ? and LOCATION_ID = ?)";
+
+	private SqlService sqlService;
+
+	private Connection connection;
+
+	private UsageSessionService usageSessionService;
+
+	private ClusterPresenceService.BufferedClusterStorage storage;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		sqlService = mock(SqlService.class);
+		connection = mock(Connection.class);
+		when(sqlService.borrowConnection()).thenReturn(connection);
+		when(connection.getAutoCommit()).thenReturn(true);
+		when(sqlService.dbWrite(any(Connection.class), anyString(), any(Object[].class))).thenReturn(true);
+
+		usageSessionService = mock(UsageSessionService.class);
+		for (String id : new String[] { "s1", "s2", "s3" })
+		{
+			UsageSession session = session(id);
+			when(usageSessionService.getSession(id)).thenReturn(session);
+		}
+
+		ClusterPresenceService service = new ClusterPresenceService();
+		service.setSqlService(sqlService);
+		service.setUsageSessionService(usageSessionService);
+		storage = service.new BufferedClusterStorage();
+		// no cluster presence unless a test sets it
+		storage.m_snapshot = Collections.emptyMap();
+	}
+
+	private UsageSession session(String id)
+	{
+		UsageSession session = mock(UsageSession.class);
+		when(session.getId()).thenReturn(id);
+		return session;
+	}
+
+	@Test
+	public void testSetThenRemoveWithinOneFlushNeverWrites() throws Exception
+	{
+		storage.setPresence("s1", "site-a");
+		storage.removePresence("s1", "site-a");
+		storage.writeChanges();
+
+		verify(sqlService, never()).borrowConnection();
+		assertTrue(storage.getSessions("site-a").isEmpty());
+	}
+
+	@Test
+	public void testRemoveAfterFlushWritesDelete() throws Exception
+	{
+		storage.setPresence("s1", "site-a");
+		storage.writeChanges();
+		verify(sqlService).dbWrite(eq(connection), eq(INSERT), eq(new Object[] { "s1", "site-a" }));
+		verify(connection).commit();
+
+		storage.removePresence("s1", "site-a");
+		storage.writeChanges();
+		verify(sqlService).dbWrite(eq(connection), eq(DELETE), eq(new Object[] { "s1", "site-a" }));
+		verify(connection, times(2)).commit();
+		verify(sqlService, times(2)).returnConnection(connection);
+	}
+
+	@Test
+	public void testFailedWriteIsRequeuedWithoutOverwritingNewerChanges() throws Exception
+	{
+		storage.setPresence("s1", "site-a");
+		storage.setPresence("s2", "site-a");
+
+		// s1 leaves while the write is in progress, then the write fails
+		when(sqlService.dbWrite(eq(connection), eq(INSERT), any(Object[].class))).thenAnswer(invocation -> {
+			storage.removePresence("s1", "site-a");
+			return false;
+		});
+		storage.writeChanges();
+		verify(connection).rollback();
+		verify(connection, never()).commit();
+
+		ClusterPresenceService.PresenceKey s1 = new ClusterPresenceService.PresenceKey("s1", "site-a");
+		ClusterPresenceService.PresenceKey s2 = new ClusterPresenceService.PresenceKey("s2", "site-a");
+		assertEquals(Boolean.FALSE, storage.m_changes.get(s1));
+		assertEquals(Boolean.TRUE, storage.m_changes.get(s2));
+
+		// the next flush writes the requeued insert and the newer delete
+		doReturn(true).when(sqlService).dbWrite(eq(connection), eq(INSERT), any(Object[].class));
+		storage.writeChanges();
+		verify(sqlService).dbWrite(eq(connection), eq(DELETE), eq(new Object[] { "s1", "site-a" }));
+		verify(sqlService).dbWrite(eq(connection), eq(INSERT), eq(new Object[] { "s2", "site-a" }));
+		verify(connection).commit();
+		assertTrue(storage.m_changes.isEmpty());
+	}
+
+	@Test
+	public void testGetSessionsHidesSessionsRemovedSinceTheSnapshot() throws Exception
+	{
+		// s1, s2 and s3 were present when the snapshot was read, s1 and s2 were on this server
+		storage.setPresence("s1", "site-a");
+		storage.setPresence("s2", "site-a");
+		storage.writeChanges();
+		Map<String, List<UsageSession>> snapshot = new HashMap<String, List<UsageSession>>();
+		snapshot.put("site-a", Arrays.asList(session("s1"), session("s2"), session("s3")));
+		storage.m_snapshot = snapshot;
+		assertEquals(3, storage.getSessions("site-a").size());
+
+		storage.removePresence("s1", "site-a");
+		storage.removeSessionPresence("s2");
+
+		List<UsageSession> sessions = storage.getSessions("site-a");
+		assertEquals(1, sessions.size());
+		assertEquals("s3", sessions.get(0).getId());
+		assertEquals(Arrays.asList("site-a"), storage.getLocations());
+	}
+}
@@ -3,3 +3,30 @@
 --
 alter table GB_GRADABLE_OBJECT_T alter column IS_EXTRA_CREDIT drop default;
 alter table GB_GRADABLE_OBJECT_T alter column HIDE_IN_ALL_GRADES_TABLE drop default;
+
+--
+-- Content bodies stored under their hash (content.body.dedup) are reference counted by FILE_PATH
+--
+CREATE INDEX CONTENT_RESOURCE_FILE_PATH_I ON CONTENT_RESOURCE (FILE_PATH);
+-- and swept some time after their last reference is gone
+CREATE TABLE CONTENT_BODY_RELEASED (FILE_PATH VARCHAR (128) NOT NULL, RESOURCE_ID VARCHAR (255), RELEASED_AT BIGINT NOT NULL, PRIMARY KEY (FILE_PATH));
+
+--
+-- SiteStats week and month rollups (enableRollups@org.sakaiproject.sitestats.api.StatsManager)
+--
+CREATE TABLE SST_SITEACTIVITY_ROLLUP (ID BIGINT NOT NULL AUTO_INCREMENT, SITE_ID VARCHAR(99) NOT NULL, EVENT_ID VARCHAR(32) NOT NULL, PERIOD_TYPE VARCHAR(1) NOT NULL,
+	PERIOD_START DATE NOT NULL, ACTIVITY_COUNT BIGINT NOT NULL, PRIMARY KEY (ID), UNIQUE (SITE_ID, EVENT_ID, PERIOD_TYPE, PERIOD_START));
+CREATE INDEX SST_SITEACTIVITY_ROLLUP_IX ON SST_SITEACTIVITY_ROLLUP (SITE_ID, PERIOD_TYPE, PERIOD_START);
+
+--
+-- SiteStats StatsAggregateJob records its throughput and lag in each job run
+--
+ALTER TABLE SST_JOB_RUN ADD COLUMN EVENTS_PROCESSED BIGINT, ADD COLUMN EVENTS_LAG BIGINT;
+
+--
+-- Structured submission columns for assignments (structuredSubmissionColumns@org.sakaiproject.assignment.api.AssignmentService)
+-- Existing rows are filled in by the StructuredSubmissionColumnsConversion in assignment/upgradeschema_mysql.config
+--
+ALTER TABLE ASSIGNMENT_SUBMISSION ADD COLUMN GRADE VARCHAR(99), ADD COLUMN GRADE_RELEASED VARCHAR(6), ADD COLUMN RETURNED VARCHAR(6),
+	ADD COLUMN RETURN_TIME VARCHAR(99), ADD COLUMN MODIFIED_TIME VARCHAR(99);
+CREATE INDEX ASSIGNMENT_SUBMISSION_STATUS ON ASSIGNMENT_SUBMISSION (CONTEXT, SUBMITTED, GRADED);
@@ -3,3 +3,31 @@
 --
 ALTER TABLE GB_GRADABLE_OBJECT_T MODIFY IS_EXTRA_CREDIT DEFAULT NULL;
 ALTER TABLE GB_GRADABLE_OBJECT_T MODIFY HIDE_IN_ALL_GRADES_TABLE DEFAULT NULL;
+
+--
+-- Content bodies stored under their hash (content.body.dedup) are reference counted by FILE_PATH
+--
+CREATE INDEX CONTENT_RESOURCE_FILE_PATH_I ON CONTENT_RESOURCE (FILE_PATH);
+-- and swept some time after their last reference is gone
+CREATE TABLE CONTENT_BODY_RELEASED (FILE_PATH VARCHAR2 (128) NOT NULL, RESOURCE_ID VARCHAR2 (255), RELEASED_AT NUMBER(18) NOT NULL, PRIMARY KEY (FILE_PATH));
+
+--
+-- SiteStats week and month rollups (enableRollups@org.sakaiproject.sitestats.api.StatsManager)
+--
+CREATE TABLE SST_SITEACTIVITY_ROLLUP (ID NUMBER(19,0) NOT NULL, SITE_ID VARCHAR2(99 CHAR) NOT NULL, EVENT_ID VARCHAR2(32 CHAR) NOT NULL, PERIOD_TYPE VARCHAR2(1 CHAR) NOT NULL,
+	PERIOD_START DATE NOT NULL, ACTIVITY_COUNT NUMBER(19,0) NOT NULL, PRIMARY KEY (ID), UNIQUE (SITE_ID, EVENT_ID, PERIOD_TYPE, PERIOD_START));
+CREATE INDEX SST_SITEACTIVITY_ROLLUP_IX ON SST_SITEACTIVITY_ROLLUP (SITE_ID, PERIOD_TYPE, PERIOD_START);
+CREATE SEQUENCE SST_SITEACTIVITY_ROLLUP_ID;
+
+--
+-- SiteStats StatsAggregateJob records its throughput and lag in each job run
+--
+ALTER TABLE SST_JOB_RUN ADD (EVENTS_PROCESSED NUMBER(19,0), EVENTS_LAG NUMBER(19,0));
+
+--
+-- Structured submission columns for assignments (structuredSubmissionColumns@org.sakaiproject.assignment.api.AssignmentService)
+-- Existing rows are filled in by the StructuredSubmissionColumnsConversion in assignment/upgradeschema_oracle.config
+--
+ALTER TABLE ASSIGNMENT_SUBMISSION ADD (GRADE VARCHAR2(99), GRADE_RELEASED VARCHAR2(6), RETURNED VARCHAR2(6),
+	RETURN_TIME VARCHAR2(99), MODIFIED_TIME VARCHAR2(99));
+CREATE INDEX ASN_SUB_STATUS_INDEX ON ASSIGNMENT_SUBMISSION (CONTEXT, SUBMITTED, GRADED);
@@ -3095,7 +3095,11 @@ public class DeliveryBean
 	        log.debug("***setTimeElapsed="+timeElapsed);
 		    adata.setTimeElapsed(timeElapsed);
 	        GradingService gradingService = new GradingService();
-	        gradingService.saveOrUpdateAssessmentGrading(adata);
+	        // linear access may hold answers that were scored for feedback but not saved yet,
+	        // those have to go through with the full save
+	        if ("1".equals(navigation) || !gradingService.bufferTimeElapsed(adata)) {
+	          gradingService.saveOrUpdateAssessmentGrading(adata);
+	        }
 	        setTimeElapse(adata.getTimeElapsed().toString());
 	      }
 	    }
@@ -3119,7 +3123,9 @@ public class DeliveryBean
 		    	int timeElapsed  = Math.round((new Date().getTime() - adata.getAttemptDate().getTime())/1000.0f);
 		        adata.setTimeElapsed(timeElapsed);
 		        GradingService gradingService = new GradingService();
-		        gradingService.saveOrUpdateAssessmentGradingOnly(adata);
+		        if (!gradingService.bufferTimeElapsed(adata)) {
+		          gradingService.saveOrUpdateAssessmentGradingOnly(adata);
+		        }
 		        setTimeElapse(adata.getTimeElapsed().toString());
 		      }
 		    }
@@ -47,6 +47,7 @@ import org.apache.poi.ss.usermodel.Font;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.sakaiproject.component.cover.ServerConfigurationService;
 import org.sakaiproject.jsf.model.PhaseAware;
@@ -81,6 +82,8 @@ public class ExportResponsesBean implements Serializable, PhaseAware {
 	
 	public static final String FORMAT = "<format ";
 	public static final String FORMAT_BOLD = FORMAT + "bold/>";
+	/** Rows kept in memory by the streaming export, the rest are flushed to a temporary file */
+	private static final int STREAMING_WINDOW_SIZE = 100;
 
 	
 	private String assessmentId;
@@ -164,36 +167,28 @@ public class ExportResponsesBean implements Serializable, PhaseAware {
 	
 	public void exportExcel(ActionEvent event){
         log.debug("exporting as Excel: assessment id =  " + getAssessmentId());
-        // allow local customization of spreadsheet output
-        FacesContext faces = FacesContext.getCurrentInstance();
-        HttpServletResponse response = (HttpServletResponse)faces.getExternalContext().getResponse();
-        response.reset();	// Eliminate the added-on stuff
-        response.setHeader("Pragma", "public");	// Override old-style cache control
-        response.setHeader("Cache-Control", "public, must-revalidate, post-check=0, pre-check=0, max-age=0");	// New-style
-        writeDataToResponse(getSpreadsheetData(), getDownloadFileName(), response);
-        faces.responseComplete();
+        writeResponsesToResponse(false);
     }
 
 	public void exportExcelActiveOnly(ActionEvent event){
         log.debug("exporting as Excel for active students: assessment id =  " + getAssessmentId());
-        boolean activeOnly = true;
-        FacesContext faces = FacesContext.getCurrentInstance();
-        HttpServletResponse response = (HttpServletResponse)faces.getExternalContext().getResponse();
-        response.reset();	// Eliminate the added-on stuff
-        response.setHeader("Pragma", "public");	// Override old-style cache control
-        response.setHeader("Cache-Control", "public, must-revalidate, post-check=0, pre-check=0, max-age=0"); // New-style
-        writeDataToResponse(getSpreadsheetData(activeOnly), getDownloadFileName(), response);
-        faces.responseComplete();
+        writeResponsesToResponse(true);
     }
 
 	//added for exluding inactive participants from the export bugid:5489 9/11/2013 -Qu
 	//modified also to support sakai original method which include inactive participants in the export
-    private List<List<Object>> getSpreadsheetData() {
-    	boolean activeOnly = false;
-    	return getSpreadsheetData(activeOnly);
-	 }
+    /**
+     * Writes the responses straight into a streaming xlsx workbook as they are read, which only
+     * keeps a window of rows in memory, so a large assessment does not have to fit in the heap.
+     */
+    private void writeResponsesToResponse(boolean activeOnly) {
+        // allow local customization of spreadsheet output
+        FacesContext faces = FacesContext.getCurrentInstance();
+        HttpServletResponse response = (HttpServletResponse)faces.getExternalContext().getResponse();
+        response.reset();	// Eliminate the added-on stuff
+        response.setHeader("Pragma", "public");	// Override old-style cache control
+        response.setHeader("Cache-Control", "public, must-revalidate, post-check=0, pre-check=0, max-age=0");	// New-style
 
-    private List<List<Object>> getSpreadsheetData(boolean activeOnly) {
     	TotalScoresBean totalScores = (TotalScoresBean) ContextUtil.lookupBean("totalScores");
     	Map useridMap = totalScores.getUserIdMap(TotalScoresBean.CALLED_FROM_EXPORT_LISTENER);
     	
@@ -216,18 +211,9 @@ public class ExportResponsesBean implements Serializable, PhaseAware {
         String rationaleString = ContextUtil.getLocalizedString("org.sakaiproject.tool.assessment.bundle.EvaluationMessages","rationale");
         String itemGradingCommentsString = ContextUtil.getLocalizedString("org.sakaiproject.tool.assessment.bundle.EvaluationMessages","grader_comments");
         String responseCommentsString = ContextUtil.getLocalizedString("org.sakaiproject.tool.assessment.bundle.EvaluationMessages","student_comments");
-        
-        List exportResponsesDataList = gradingService.getExportResponsesData(assessmentId, anonymous, audioMessage, fileUploadMessage, noSubmissionMessage, 
-        		showPartAndTotalScoreSpreadsheetColumns, poolString, partString, questionString, responseString, rationaleString, itemGradingCommentsString, useridMap, responseCommentsString);
-        //SAM-1693 the returned list could be null -DH
-        List<List<Object>> list = new ArrayList<List<Object>>();
-        if (exportResponsesDataList != null) {
-        	list = (List<List<Object>>) exportResponsesDataList.get(0);
-        }
-         
 
-        // Now insert the header line
-        ArrayList<Object> headerList = new ArrayList<Object>();
+        // The header line, the question columns are added once the first submission is read
+        final List<Object> headerList = new ArrayList<Object>();
         headerList.add(HEADER_MARKER);
         if (anonymous) {
   		  headerList.add(ContextUtil.getLocalizedString("org.sakaiproject.tool.assessment.bundle.EvaluationMessages","sub_id"));
@@ -251,31 +237,53 @@ public class ExportResponsesBean implements Serializable, PhaseAware {
 	        headerList.add(ContextUtil.getLocalizedString("org.sakaiproject.tool.assessment.bundle.EvaluationMessages","tot"));
 	        headerList.add(itemGradingCommentsString);
         }
-        //SAM-1693 the returned list could be null -DH
-        if (exportResponsesDataList != null) {
-        	headerList.addAll((ArrayList) exportResponsesDataList.get(1));
-        }
-  	  	
-  	    list.add(0,headerList);
-  	  	
-  		ArrayList<Object> newSheetList;
-  	  	newSheetList = new ArrayList<Object>();
-  	  	newSheetList.add(NEW_SHEET_MARKER);
-  	  	newSheetList.add(ContextUtil.getLocalizedString("org.sakaiproject.tool.assessment.bundle.EvaluationMessages","responses"));
-  	  	list.add(0, newSheetList);
-
-  	  	if (showDetailedStatisticsSheet) {
-  	  		newSheetList = new ArrayList<Object>();
-  	  		newSheetList.add(NEW_SHEET_MARKER);
-  	  		newSheetList.add(ContextUtil.getLocalizedString("org.sakaiproject.tool.assessment.bundle.EvaluationMessages","item_analysis"));
-  	  		list.add(newSheetList);
-
-        	while (detailedStats.hasNext()) {
-        		list.add((List)detailedStats.next());
-        	}
-        }
-  	  	
-        return list;
+
+		response.setContentType("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet");
+		String escapedFilename = org.sakaiproject.util.Validator.escapeUrl(getDownloadFileName());
+		response.setHeader("Content-disposition", "attachment; filename=" + escapedFilename + ".xlsx; filename*=UTF-8''" + escapedFilename + ".xlsx");
+
+		SXSSFWorkbook wb = new SXSSFWorkbook(STREAMING_WINDOW_SIZE);
+		wb.setCompressTempFiles(true);
+		OutputStream out = null;
+		try {
+			String fontName = ServerConfigurationService.getString("spreadsheet.font");
+			final CellStyle boldStyle = createBoldStyle(wb, fontName);
+			final CellStyle cellStyle = createCellStyle(wb, fontName);
+
+			final Sheet sheet = wb.createSheet(ContextUtil.getLocalizedString("org.sakaiproject.tool.assessment.bundle.EvaluationMessages","responses"));
+			final int[] rowPos = {0};
+			gradingService.exportResponsesData(assessmentId, anonymous, audioMessage, fileUploadMessage, noSubmissionMessage,
+					showPartAndTotalScoreSpreadsheetColumns, poolString, partString, questionString, responseString, rationaleString, itemGradingCommentsString, useridMap, responseCommentsString,
+					questionHeaders -> {
+						headerList.addAll(questionHeaders);
+						addRow(sheet, rowPos[0]++, headerList, boldStyle, cellStyle);
+					},
+					rowData -> addRow(sheet, rowPos[0]++, rowData, boldStyle, cellStyle));
+			log.info("Samigo export (" + headerList.size() + " columns, " + (rowPos[0] - 1) + " rows): streaming xlsx");
+
+			if (showDetailedStatisticsSheet) {
+				Sheet statisticsSheet = wb.createSheet(ContextUtil.getLocalizedString("org.sakaiproject.tool.assessment.bundle.EvaluationMessages","item_analysis"));
+				int statisticsRowPos = 0;
+				while (detailedStats.hasNext()) {
+					addRow(statisticsSheet, statisticsRowPos++, (List<Object>) detailedStats.next(), boldStyle, cellStyle);
+				}
+			}
+
+			out = response.getOutputStream();
+			wb.write(out);
+			out.flush();
+		} catch (IOException e) {
+			log.error(e.getMessage(), e);
+		} finally {
+			// remove the temporary files of the streamed rows
+			wb.dispose();
+			try {
+				if (out != null) out.close();
+			} catch (IOException e) {
+				log.error(e.getMessage(), e);
+			}
+		}
+        faces.responseComplete();
     }
     
     /**
@@ -377,23 +385,9 @@ public class ExportResponsesBean implements Serializable, PhaseAware {
 		    wb = new XSSFWorkbook();
 		}
 
-		CellStyle boldStyle = wb.createCellStyle();
-		Font font = wb.createFont();
-		font.setBoldweight(Font.BOLDWEIGHT_BOLD);
 		String fontName = ServerConfigurationService.getString("spreadsheet.font");
-		if (fontName != null) {
-			font.setFontName(fontName);
-		}
-		boldStyle.setFont(font);
-		CellStyle headerStyle = boldStyle;
-
-		CellStyle cellStyle = null;
-		if (fontName != null) {
-			font = wb.createFont();
-			font.setFontName(fontName);
-			cellStyle = wb.createCellStyle();
-			cellStyle.setFont(font);
-		}
+		CellStyle boldStyle = createBoldStyle(wb, fontName);
+		CellStyle cellStyle = createCellStyle(wb, fontName);
 		
 		Sheet sheet = null;
 
@@ -407,57 +401,78 @@ public class ExportResponsesBean implements Serializable, PhaseAware {
 				 sheet = wb.createSheet(rowData.get(1).toString());
 				 rowPos = 0;
 			}
-			// By convention, the first list in the list contains column headers.
-			// This should only happen once and usually only in a single-sheet workbook
-			else if (rowData.get(0).toString().equals(HEADER_MARKER)) {
-			    if (sheet == null) {
-		              sheet = wb.createSheet("responses"); // avoid NPE
-			    }
-				Row headerRow = sheet.createRow(rowPos++);
-				for (short i = 0; i < rowData.size()-1; i++) {
-					createCell(headerRow, i, headerStyle).setCellValue(rowData.get(i+1).toString());
-				}
-			}
 			else {
 			    if (sheet == null) {
 			        sheet = wb.createSheet("responses"); // avoid NPE
 			    }
-				Row row = sheet.createRow(rowPos++);
-				short colPos = 0;
-				Iterator colIter = rowData.iterator();
-				while (colIter.hasNext()) {
-				//for (short i = 0; i < rowData.size(); i++) {
-					Cell cell = null;
-					
-					//Object data = rowData.get(i);
-					Object data = colIter.next();
-					if (data != null) {
-						if (data.toString().startsWith(FORMAT)) {
-							if (data.equals(FORMAT_BOLD)) {
-								cell = createCell(row, colPos++, boldStyle);
-							}
-							data = colIter.next();
-						}
-						else {
-							cell = createCell(row, colPos++, cellStyle);
+			    addRow(sheet, rowPos++, rowData, boldStyle, cellStyle);
+			}
+		}
+		
+		return wb;
+	}
+
+	private CellStyle createBoldStyle(Workbook wb, String fontName) {
+		CellStyle boldStyle = wb.createCellStyle();
+		Font font = wb.createFont();
+		font.setBoldweight(Font.BOLDWEIGHT_BOLD);
+		if (fontName != null) {
+			font.setFontName(fontName);
+		}
+		boldStyle.setFont(font);
+		return boldStyle;
+	}
+
+	private CellStyle createCellStyle(Workbook wb, String fontName) {
+		CellStyle cellStyle = null;
+		if (fontName != null) {
+			Font font = wb.createFont();
+			font.setFontName(fontName);
+			cellStyle = wb.createCellStyle();
+			cellStyle.setFont(font);
+		}
+		return cellStyle;
+	}
+
+	private void addRow(Sheet sheet, int rowPos, List<Object> rowData, CellStyle boldStyle, CellStyle cellStyle) {
+		// By convention, the first list in the list contains column headers.
+		// This should only happen once and usually only in a single-sheet workbook
+		if (rowData.get(0).toString().equals(HEADER_MARKER)) {
+			Row headerRow = sheet.createRow(rowPos);
+			for (short i = 0; i < rowData.size()-1; i++) {
+				createCell(headerRow, i, boldStyle).setCellValue(rowData.get(i+1).toString());
+			}
+		}
+		else {
+			Row row = sheet.createRow(rowPos);
+			short colPos = 0;
+			Iterator colIter = rowData.iterator();
+			while (colIter.hasNext()) {
+				Cell cell = null;
+				Object data = colIter.next();
+				if (data != null) {
+					if (data.toString().startsWith(FORMAT)) {
+						if (data.equals(FORMAT_BOLD)) {
+							cell = createCell(row, colPos++, boldStyle);
 						}
-						if (data != null) {
-							if (data instanceof Double) {
-								cell.setCellValue(((Double)data).doubleValue());
-							} else {
-								AnswerSurveyConverter converter = new AnswerSurveyConverter();
-								String datac = converter.getAsString(null, null, data.toString());
-								// stripping html for export, SAK-17021
-								cell.setCellValue(FormattedText.convertFormattedTextToPlaintext(datac));
-							}
+						data = colIter.next();
+					}
+					else {
+						cell = createCell(row, colPos++, cellStyle);
+					}
+					if (data != null) {
+						if (data instanceof Double) {
+							cell.setCellValue(((Double)data).doubleValue());
+						} else {
+							AnswerSurveyConverter converter = new AnswerSurveyConverter();
+							String datac = converter.getAsString(null, null, data.toString());
+							// stripping html for export, SAK-17021
+							cell.setCellValue(FormattedText.convertFormattedTextToPlaintext(datac));
 						}
 					}
 				}
 			}
-			
 		}
-		
-		return wb;
 	}
 
 	private int findColumnSize(List<List<Object>> spreadsheetData) {
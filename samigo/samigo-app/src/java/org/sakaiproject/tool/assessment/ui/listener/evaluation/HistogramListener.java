@@ -47,6 +47,7 @@ import org.sakaiproject.tool.assessment.data.ifc.assessment.PublishedAssessmentI
 import org.sakaiproject.tool.assessment.data.ifc.assessment.SectionDataIfc;
 import org.sakaiproject.tool.assessment.data.ifc.shared.TypeIfc;
 import org.sakaiproject.tool.assessment.facade.AgentFacade;
+import org.sakaiproject.tool.assessment.services.AssessmentStatisticsCache;
 import org.sakaiproject.tool.assessment.services.GradingService;
 import org.sakaiproject.tool.assessment.services.PublishedItemService;
 import org.sakaiproject.tool.assessment.services.assessment.PublishedAssessmentService;
@@ -219,12 +220,10 @@ public class HistogramListener
 
 		  delegate = new GradingService();
 		  PublishedAssessmentService pubService = new PublishedAssessmentService();
-		  List<AssessmentGradingData> allscores = delegate.getTotalScores(publishedId, which);
-          //set the ItemGradingData manually here. or we cannot
-          //retrieve it later.
-          for(AssessmentGradingData agd: allscores){
-          	agd.setItemGradingSet(delegate.getItemGradingSet(String.valueOf(agd.getAssessmentGradingId())));
-          }
+		  // the submissions come with their ItemGradingData set, and are only
+		  // loaded again once a submission has been added or regraded
+		  AssessmentStatisticsCache.Statistics statistics = delegate.getStatistics(publishedId, which);
+		  List<AssessmentGradingData> allscores = statistics.getAssessmentGradings();
           if (allscores.isEmpty()) {
 			// Similar case in Bug 1537, but clicking Statistics link instead of assignment title.
 			// Therefore, redirect the the same page.
@@ -343,7 +342,7 @@ public class HistogramListener
 			  boolean isRandompart = false;
                           String poolName = null;
 			  
-			  HashMap itemScoresMap = delegate.getItemScores(Long.valueOf(publishedId), Long.valueOf(0), which);
+			  HashMap itemScoresMap = statistics.getItemGradings();
 			  HashMap itemScores = new HashMap();
 			  			  
 			  if (totalScores.getReleaseToAnonymous()) {
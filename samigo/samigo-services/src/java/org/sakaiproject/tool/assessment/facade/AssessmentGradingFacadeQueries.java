@@ -49,6 +49,7 @@ import java.util.Random;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -105,6 +106,7 @@ import org.sakaiproject.tool.assessment.services.PersistenceHelper;
 import org.sakaiproject.tool.assessment.services.assessment.EventLogService;
 import org.sakaiproject.tool.assessment.services.assessment.PublishedAssessmentService;
 import org.sakaiproject.tool.assessment.services.AutoSubmitAssessmentsJob;
+import org.sakaiproject.user.api.User;
 import org.sakaiproject.user.api.UserDirectoryService;
 import org.springframework.orm.hibernate3.HibernateCallback;
 import org.springframework.orm.hibernate3.support.HibernateDaoSupport;
@@ -119,6 +121,9 @@ import org.sakaiproject.exception.ServerOverloadException;
 public class AssessmentGradingFacadeQueries extends HibernateDaoSupport implements AssessmentGradingFacadeQueriesAPI{
   private static final Logger log = LoggerFactory.getLogger(AssessmentGradingFacadeQueries.class);
 
+  /** Number of submissions loaded at a time by the responses export */
+  private static final int EXPORT_RESPONSES_PAGE_SIZE = 100;
+
   /**
    * Default empty Constructor
    */
@@ -1876,6 +1881,48 @@ public class AssessmentGradingFacadeQueries extends HibernateDaoSupport implemen
     }
   }
 
+  public void saveTimeElapsed(Map<Long, Integer> timeElapsedMap) {
+    if (timeElapsedMap == null || timeElapsedMap.isEmpty()) {
+      return;
+    }
+    Session session = getHibernateTemplate().getSessionFactory().getCurrentSession();
+    // update the column alone: writing back whole entities would race with a submit and could revert its status and totals
+    Query query = session.createQuery("update AssessmentGradingData set timeElapsed=:t " +
+        "where assessmentGradingId=:id and (timeElapsed is null or timeElapsed < :t)");
+    for (Map.Entry<Long, Integer> entry : timeElapsedMap.entrySet()) {
+      // never move the clock backwards, another node or a full save may already have written a later value
+      query.setInteger("t", entry.getValue())
+          .setLong("id", entry.getKey())
+          .executeUpdate();
+    }
+  }
+
+  public String getStatisticsFingerprint(final Long publishedAssessmentId) {
+    Session session = getHibernateTemplate().getSessionFactory().getCurrentSession();
+    Object[] submissions = (Object[]) session.createQuery(
+        "select count(a.assessmentGradingId), max(a.assessmentGradingId), max(a.submittedDate), max(a.gradedDate), " +
+        "sum(a.finalScore), sum(a.totalOverrideScore) " +
+        "from AssessmentGradingData a where a.publishedAssessmentId=:id and a.forGrade=:forGrade")
+        .setLong("id", publishedAssessmentId)
+        .setBoolean("forGrade", true)
+        .uniqueResult();
+    // regrading an answer touches the item grading, and not always the total
+    Object[] answers = (Object[]) session.createQuery(
+        "select count(i.itemGradingId), max(i.itemGradingId), max(i.gradedDate), sum(i.autoScore), sum(i.overrideScore) " +
+        "from ItemGradingData i, AssessmentGradingData a " +
+        "where i.assessmentGradingId=a.assessmentGradingId and a.publishedAssessmentId=:id and a.forGrade=:forGrade")
+        .setLong("id", publishedAssessmentId)
+        .setBoolean("forGrade", true)
+        .uniqueResult();
+    StringBuilder fingerprint = new StringBuilder();
+    for (Object[] values : new Object[][] { submissions, answers }) {
+      for (Object value : values) {
+        fingerprint.append(value instanceof Date ? String.valueOf(((Date) value).getTime()) : String.valueOf(value)).append('/');
+      }
+    }
+    return fingerprint.toString();
+  }
+
   public PublishedAssessmentIfc getPublishedAssessmentByAssessmentGradingId(final Long assessmentGradingId){
     PublishedAssessmentIfc pub = null;
     final String query = "select p from PublishedAssessmentData p, AssessmentGradingData a "+
@@ -2438,35 +2485,61 @@ public class AssessmentGradingFacadeQueries extends HibernateDaoSupport implemen
   
   
   public List getExportResponsesData(String publishedAssessmentId, boolean anonymous, String audioMessage, String fileUploadMessage, String noSubmissionMessage, boolean showPartAndTotalScoreSpreadsheetColumns, String poolString, String partString, String questionString, String textString, String rationaleString, String itemGradingCommentsString, Map useridMap, String responseCommentString) {
-	  ArrayList dataList = new ArrayList();
-	  ArrayList headerList = new ArrayList();
+	  final ArrayList dataList = new ArrayList();
+	  final ArrayList headerList = new ArrayList();
+	  exportResponsesData(publishedAssessmentId, anonymous, audioMessage, fileUploadMessage, noSubmissionMessage, showPartAndTotalScoreSpreadsheetColumns,
+			  poolString, partString, questionString, textString, rationaleString, itemGradingCommentsString, useridMap, responseCommentString,
+			  headerList::addAll, dataList::add);
 	  ArrayList finalList = new ArrayList(2);
+	  finalList.add(dataList);
+	  finalList.add(headerList);
+	  return finalList;
+  }
+
+  public void exportResponsesData(String publishedAssessmentId, boolean anonymous, String audioMessage, String fileUploadMessage, String noSubmissionMessage, boolean showPartAndTotalScoreSpreadsheetColumns, String poolString, String partString, String questionString, String textString, String rationaleString, String itemGradingCommentsString, Map useridMap, String responseCommentString,
+		  Consumer<List<Object>> headerHandler, Consumer<List<Object>> rowHandler) {
 	  PublishedAssessmentService pubService = new PublishedAssessmentService();
 	  
 	  HashSet publishedAssessmentSections = pubService.getSectionSetForAssessment(Long.valueOf(publishedAssessmentId));
 	  Double zeroDouble = 0.0;
-	  HashMap publishedAnswerHash = pubService.preparePublishedAnswerHash(pubService.getPublishedAssessment(publishedAssessmentId));
-	  HashMap publishedItemTextHash = pubService.preparePublishedItemTextHash(pubService.getPublishedAssessment(publishedAssessmentId));
-	  HashMap publishedItemHash = pubService.preparePublishedItemHash(pubService.getPublishedAssessment(publishedAssessmentId));
+	  PublishedAssessmentFacade publishedAssessment = pubService.getPublishedAssessment(publishedAssessmentId);
+	  HashMap publishedAnswerHash = pubService.preparePublishedAnswerHash(publishedAssessment);
+	  HashMap publishedItemTextHash = pubService.preparePublishedItemTextHash(publishedAssessment);
+	  HashMap publishedItemHash = pubService.preparePublishedItemHash(publishedAssessment);
 
       //Get this sorted to add the blank gradings for the questions not answered later.
       Set publishItemSet = new TreeSet(new ItemComparator());
       publishItemSet.addAll(publishedItemHash.values());
-          
-	  int numSubmission = 1;
-	  String numSubmissionText;
-	  String lastAgentId = "";
-	  String agentEid = "";
-	  String firstName = "";
-	  String lastName = "";
-	  Set useridSet = new HashSet(useridMap.keySet());
-	  ArrayList responseList;
-	  boolean canBeExported;
-	  boolean fistItemGradingData = true;
-	  List list = getAllOrderedSubmissions(publishedAssessmentId);
-	  Iterator assessmentGradingIter = list.iterator();	  
-	  while(assessmentGradingIter.hasNext()) {
-		  
+
+	  // rows are written in their final order, so only the sort keys are held for every
+	  // submission and the answers are loaded a page at a time
+	  List<ArrayList> rowKeys = getExportResponsesRowKeys(publishedAssessmentId, anonymous, noSubmissionMessage, useridMap);
+	  Session session = getHibernateTemplate().getSessionFactory().getCurrentSession();
+	  Map<Long, AssessmentGradingData> page = new HashMap<>();
+	  // rows without a submission that come before the header is known
+	  List<List<Object>> pendingRows = new ArrayList<>();
+	  boolean headerWritten = false;
+	  for (int rowIndex = 0; rowIndex < rowKeys.size(); rowIndex++) {
+		  if (rowIndex % EXPORT_RESPONSES_PAGE_SIZE == 0) {
+			  for (AssessmentGradingData done : page.values()) {
+				  session.evict(done);
+			  }
+			  page = getAssessmentGradingsWithItemGradings(rowKeys.subList(rowIndex, Math.min(rowIndex + EXPORT_RESPONSES_PAGE_SIZE, rowKeys.size())), anonymous);
+		  }
+		  ArrayList rowKey = rowKeys.get(rowIndex);
+		  Long rowAssessmentGradingId = getExportResponsesRowKeyId(rowKey, anonymous);
+		  if (rowAssessmentGradingId == null) {
+			  // student without a submission
+			  if (headerWritten) {
+				  rowHandler.accept(rowKey);
+			  }
+			  else {
+				  pendingRows.add(rowKey);
+			  }
+			  continue;
+		  }
+		  AssessmentGradingData assessmentGradingData = page.get(rowAssessmentGradingId);
+
 		  // create new section-item-scores structure for this assessmentGrading
 		  Iterator sectionsIter = publishedAssessmentSections.iterator();
 		  HashMap sectionItems = new HashMap();
@@ -2485,52 +2558,12 @@ public class AssessmentGradingFacadeQueries extends HibernateDaoSupport implemen
 			  sectionScores.put(publishedSection.getSequence(), zeroDouble);
 		  }
 		  
-		  AssessmentGradingData assessmentGradingData = (AssessmentGradingData) assessmentGradingIter.next();
-		  String agentId = assessmentGradingData.getAgentId();
-		  responseList = new ArrayList();
-		  canBeExported = false;
-		  if (anonymous) {
-			  canBeExported = true;
-			  responseList.add(assessmentGradingData.getAssessmentGradingId());
-		  }
-		  else {
-			  if (useridMap.containsKey(assessmentGradingData.getAgentId())) {
-				  useridSet.remove(assessmentGradingData.getAgentId());
-				  canBeExported = true;
-				  try {
-					  agentEid = userDirectoryService.getUser(assessmentGradingData.getAgentId()).getEid();
-					  firstName = userDirectoryService.getUser(assessmentGradingData.getAgentId()).getFirstName();
-					  lastName = userDirectoryService.getUser(assessmentGradingData.getAgentId()).getLastName();
-				  } catch (Exception e) {
-					  log.error("Cannot get user");
-				  }
-				  responseList.add(lastName);
-				  responseList.add(firstName);
-				  responseList.add(agentEid);
-				  if (assessmentGradingData.getForGrade()) {
-					  if (lastAgentId.equals(agentId)) {
-						  numSubmission++;
-					  }
-					  else {
-						  numSubmission = 1;
-						  lastAgentId = agentId;
-					  }
-				  }
-				  else {
-					  numSubmission = 0;
-					  lastAgentId = agentId;
-				  }
-				  if (numSubmission == 0) {
-					  numSubmissionText = noSubmissionMessage;
-				  }
-				  else {
-					  numSubmissionText = String.valueOf(numSubmission);
-				  }
-				  responseList.add(numSubmissionText);
-			  }
-		  }
 
-		  if (canBeExported) {
+		  ArrayList responseList = new ArrayList(anonymous ? rowKey : rowKey.subList(0, 4));
+		  // Only set header based on the first item grading data
+		  List headerList = headerWritten ? null : new ArrayList();
+		  // null if the submission was removed since the export started
+		  if (assessmentGradingData != null) {
 			  int sectionScoreColumnStart = responseList.size();
 			  if (showPartAndTotalScoreSpreadsheetColumns) {
 				  Double finalScore = assessmentGradingData.getFinalScore();
@@ -2550,7 +2583,15 @@ public class AssessmentGradingFacadeQueries extends HibernateDaoSupport implemen
 			  
 			  Long assessmentGradingId = assessmentGradingData.getAssessmentGradingId();
 
-			  HashMap studentGradingMap = getStudentGradingData(assessmentGradingData.getAssessmentGradingId().toString(), false);
+			  HashMap studentGradingMap = new HashMap();
+			  for (ItemGradingData itemGradingData : assessmentGradingData.getItemGradingSet()) {
+				  ArrayList thisone = (ArrayList) studentGradingMap.get(itemGradingData.getPublishedItemId());
+				  if (thisone == null) {
+					  thisone = new ArrayList();
+					  studentGradingMap.put(itemGradingData.getPublishedItemId(), thisone);
+				  }
+				  thisone.add(itemGradingData);
+			  }
 			  ArrayList grades = new ArrayList();
 			  grades.addAll(studentGradingMap.values());
 
@@ -2933,7 +2974,7 @@ public class AssessmentGradingFacadeQueries extends HibernateDaoSupport implemen
 				  }
 
 				  // Only set header based on the first item grading data
-				  if (fistItemGradingData) {
+				  if (headerList != null) {
                   	//get the pool name
                     String poolName = null;
                     for(Iterator i = publishedAssessmentSections.iterator(); i.hasNext();){
@@ -2978,37 +3019,146 @@ public class AssessmentGradingFacadeQueries extends HibernateDaoSupport implemen
 				  }
 			  }
 
-			  dataList.add(responseList);
 
-			  if (fistItemGradingData) {
-				  fistItemGradingData = false;
+			  if (headerList != null) {
+				  headerHandler.accept(headerList);
+				  headerWritten = true;
+				  for (List<Object> pendingRow : pendingRows) {
+					  rowHandler.accept(pendingRow);
+				  }
+				  pendingRows.clear();
 			  }
+			  rowHandler.accept(responseList);
 		  }
-	  } // while
+	  }
+	  for (AssessmentGradingData done : page.values()) {
+		  session.evict(done);
+	  }
 
-	  if (!anonymous && !useridSet.isEmpty()) {
-		  Iterator iter = useridSet.iterator();
-		  while (iter.hasNext()) {
-			  String id = (String) iter.next();
-			  try {
-				  agentEid = userDirectoryService.getUser(id).getEid();
-				  firstName = userDirectoryService.getUser(id).getFirstName();
-				  lastName = userDirectoryService.getUser(id).getLastName();
-			  } catch (Exception e) {
-				  log.error("Cannot get user");
+	  if (!headerWritten) {
+		  headerHandler.accept(new ArrayList<>());
+		  for (List<Object> pendingRow : pendingRows) {
+			  rowHandler.accept(pendingRow);
+		  }
+	  }
+  }
+
+  /**
+   * Build the sort keys of the responses export in their final order: [lastName, firstName, eid,
+   * number of submission, assessmentGradingId] for every submission and [lastName, firstName, eid,
+   * no submission message] for the students without one, or [assessmentGradingId] when anonymous.
+   */
+  private List<ArrayList> getExportResponsesRowKeys(String publishedAssessmentId, boolean anonymous, String noSubmissionMessage, Map useridMap) {
+	  Session session = getHibernateTemplate().getSessionFactory().getCurrentSession();
+	  List<Object[]> submissions = session.createQuery("select a.assessmentGradingId, a.agentId, a.forGrade from AssessmentGradingData a " +
+			  "where a.publishedAssessmentId=:publishedAssessmentId and (a.forGrade=:forGrade or (a.forGrade=:notForGrade and a.status=:status and a.finalScore <> 0)) " +
+			  "order by a.agentId ASC, a.submittedDate")
+			  .setLong("publishedAssessmentId", Long.parseLong(publishedAssessmentId))
+			  .setBoolean("forGrade", true)
+			  .setBoolean("notForGrade", false)
+			  .setInteger("status", AssessmentGradingData.NO_SUBMISSION)
+			  .list();
+
+	  List<ArrayList> rowKeys = new ArrayList<>();
+	  if (anonymous) {
+		  for (Object[] submission : submissions) {
+			  ArrayList rowKey = new ArrayList(1);
+			  rowKey.add(submission[0]);
+			  rowKeys.add(rowKey);
+		  }
+		  Collections.sort(rowKeys, new ResponsesComparator(true));
+		  return rowKeys;
+	  }
+
+	  Set useridSet = new HashSet(useridMap.keySet());
+	  Map<String, User> users = new HashMap<>();
+	  for (User user : userDirectoryService.getUsers(useridMap.keySet())) {
+		  users.put(user.getId(), user);
+	  }
+	  int numSubmission = 1;
+	  String lastAgentId = "";
+	  for (Object[] submission : submissions) {
+		  String agentId = (String) submission[1];
+		  if (!useridMap.containsKey(agentId)) {
+			  continue;
+		  }
+		  useridSet.remove(agentId);
+		  if (Boolean.TRUE.equals(submission[2])) {
+			  if (lastAgentId.equals(agentId)) {
+				  numSubmission++;
 			  }
-			  responseList = new ArrayList();
-			  responseList.add(lastName);
-			  responseList.add(firstName);
-			  responseList.add(agentEid);
-			  responseList.add(noSubmissionMessage);
-			  dataList.add(responseList);
+			  else {
+				  numSubmission = 1;
+				  lastAgentId = agentId;
+			  }
+		  }
+		  else {
+			  numSubmission = 0;
+			  lastAgentId = agentId;
 		  }
+		  ArrayList rowKey = getExportResponsesUserColumns(agentId, users);
+		  rowKey.add(numSubmission == 0 ? noSubmissionMessage : String.valueOf(numSubmission));
+		  rowKey.add(submission[0]);
+		  rowKeys.add(rowKey);
 	  }
-	  Collections.sort(dataList, new ResponsesComparator(anonymous));
-	  finalList.add(dataList);
-	  finalList.add(headerList);
-	  return finalList;
+	  Iterator iter = useridSet.iterator();
+	  while (iter.hasNext()) {
+		  ArrayList rowKey = getExportResponsesUserColumns((String) iter.next(), users);
+		  rowKey.add(noSubmissionMessage);
+		  rowKeys.add(rowKey);
+	  }
+	  Collections.sort(rowKeys, new ResponsesComparator(false));
+	  return rowKeys;
+  }
+
+  private ArrayList getExportResponsesUserColumns(String agentId, Map<String, User> users) {
+	  ArrayList columns = new ArrayList();
+	  User user = users.get(agentId);
+	  if (user == null) {
+		  log.error("Cannot get user " + agentId);
+		  columns.add("");
+		  columns.add("");
+		  columns.add(agentId);
+	  }
+	  else {
+		  columns.add(user.getLastName());
+		  columns.add(user.getFirstName());
+		  columns.add(user.getEid());
+	  }
+	  return columns;
+  }
+
+  private Long getExportResponsesRowKeyId(ArrayList rowKey, boolean anonymous) {
+	  if (anonymous) {
+		  return (Long) rowKey.get(0);
+	  }
+	  return rowKey.size() > 4 ? (Long) rowKey.get(4) : null;
+  }
+
+  /**
+   * Load one page of the responses export with the item gradings in a single query.
+   */
+  private Map<Long, AssessmentGradingData> getAssessmentGradingsWithItemGradings(List<ArrayList> rowKeys, boolean anonymous) {
+	  List<Long> ids = new ArrayList<>();
+	  for (ArrayList rowKey : rowKeys) {
+		  Long id = getExportResponsesRowKeyId(rowKey, anonymous);
+		  if (id != null) {
+			  ids.add(id);
+		  }
+	  }
+	  Map<Long, AssessmentGradingData> gradings = new HashMap<>();
+	  if (ids.isEmpty()) {
+		  return gradings;
+	  }
+	  Session session = getHibernateTemplate().getSessionFactory().getCurrentSession();
+	  List<AssessmentGradingData> list = session.createQuery("select distinct a from AssessmentGradingData a " +
+			  "left join fetch a.itemGradingSet where a.assessmentGradingId in (:ids)")
+			  .setParameterList("ids", ids)
+			  .list();
+	  for (AssessmentGradingData data : list) {
+		  gradings.put(data.getAssessmentGradingId(), data);
+	  }
+	  return gradings;
   }
   
   
@@ -3455,57 +3605,102 @@ public class AssessmentGradingFacadeQueries extends HibernateDaoSupport implemen
 		return list;
 	}
 	
-	public void autoSubmitAssessments() {
+	private static final String AUTO_SUBMIT_FROM_WHERE =
+	        "from AssessmentGradingData a, PublishedAccessControl c " +
+	        "where a.publishedAssessmentId = c.assessment.publishedAssessmentId " +
+	        "and c.retractDate <= :now " +
+	        "and a.status != 5 " +
+	        "and (a.hasAutoSubmissionRun = 0 or a.hasAutoSubmissionRun is null) " +
+	        "and c.autoSubmit = 1 " +
+	        "and a.attemptDate is not null " +
+	        "and (a.attemptDate <= c.retractDate or (c.dueDate <= :now and c.lateHandling = 2)) ";
+
+	public List<Long> getAutoSubmitPublishedAssessmentIds() {
+        String hql = "select distinct a.publishedAssessmentId " + AUTO_SUBMIT_FROM_WHERE +
+                "order by a.publishedAssessmentId";
+
+        Session session = getHibernateTemplate().getSessionFactory().getCurrentSession();
+        return session.createQuery(hql).setTimestamp("now", new Date()).list();
+	}
+
+	public List<String> getAutoSubmitAgentIds(Long publishedAssessmentId) {
+        String hql = "select distinct a.agentId " + AUTO_SUBMIT_FROM_WHERE +
+                "and a.publishedAssessmentId = :publishedAssessmentId " +
+                "order by a.agentId";
+
+        Session session = getHibernateTemplate().getSessionFactory().getCurrentSession();
+        return session.createQuery(hql)
+                .setTimestamp("now", new Date())
+                .setLong("publishedAssessmentId", publishedAssessmentId)
+                .list();
+	}
+
+	public int autoSubmitAssessments(Long publishedAssessmentId, Collection<String> agentIds) {
+        if (agentIds == null || agentIds.isEmpty()) {
+            return 0;
+        }
+
+        // all the pending attempts of an agent are in the same batch, so the repeat attempt check below still works
         String hql = "select new AssessmentGradingData(a.assessmentGradingId, a.publishedAssessmentId, " +
                 "a.agentId, a.submittedDate, a.isLate, a.forGrade, a.totalAutoScore, a.totalOverrideScore, " +
                 "a.finalScore, a.comments, a.status, a.gradedBy, a.gradedDate, a.attemptDate, a.timeElapsed) " +
-                "from AssessmentGradingData a, PublishedAccessControl c " +
-                "where a.publishedAssessmentId = c.assessment.publishedAssessmentId " +
-                "and c.retractDate <= :now " +
-                "and a.status != 5 " +
-                "and (a.hasAutoSubmissionRun = 0 or a.hasAutoSubmissionRun is null) " +
-                "and c.autoSubmit = 1 " +
-                "and a.attemptDate is not null " +
-                "and (a.attemptDate <= c.retractDate or (c.dueDate <= :now and c.lateHandling = 2)) " +
-                "order by a.publishedAssessmentId, a.agentId, a.forGrade desc, a.assessmentGradingId";
+                AUTO_SUBMIT_FROM_WHERE +
+                "and a.publishedAssessmentId = :publishedAssessmentId " +
+                "and a.agentId in (:agentIds) " +
+                "order by a.agentId, a.forGrade desc, a.assessmentGradingId";
 
         Session session = getHibernateTemplate().getSessionFactory().getCurrentSession();
 
-        List<AssessmentGradingData> list = session.createQuery(hql).setTimestamp("now", new Date()).list();
-        log.info("AutoSubmit found {} submissions to process", list.size());
+        List<AssessmentGradingData> list = session.createQuery(hql)
+                .setTimestamp("now", new Date())
+                .setLong("publishedAssessmentId", publishedAssessmentId)
+                .setParameterList("agentIds", agentIds)
+                .list();
+        if (list.isEmpty()) {
+            return 0;
+        }
+        log.debug("AutoSubmit found {} submissions to process for published assessment {}", list.size(), publishedAssessmentId);
 
-	    Iterator iter = list.iterator();
 	    String lastAgentId = "";
-	    Long lastPublishedAssessmentId = Long.valueOf(0);
-	    AssessmentGradingData adata = null;
+	    int processed = 0;
 	    HashMap sectionSetMap = new HashMap();
 	    
-	    // SAM-1088 getting the assessment so we can check to see if last user attempt was after due date
-	    PublishedAssessmentFacade assessment = null;
-	    
 	    EventLogService eventService = new EventLogService();
 	    EventLogFacade eventLogFacade = new EventLogFacade();
 	    PublishedAssessmentService publishedAssessmentService = new PublishedAssessmentService();
-	    
+
+	    // SAM-1088 getting the assessment so we can check to see if last user attempt was after due date,
+	    // once for the whole batch rather than for every repeat attempt
+	    PublishedAssessmentFacade assessment = (PublishedAssessmentFacade) publishedAssessmentService.getAssessment(publishedAssessmentId);
+
+	    List<Long> assessmentGradingIds = new ArrayList<>();
+	    for (AssessmentGradingData data : list) {
+	    	assessmentGradingIds.add(data.getAssessmentGradingId());
+	    }
+	    Map<Long, EventLogData> eventLogDataMap = getLatestEventLogData(assessmentGradingIds);
+
 		GradebookExternalAssessmentService g = null;
-		boolean updateGrades = false;
-		HashMap toGradebookPublishedAssessmentSiteIdMap = null;
+		String gradebookSiteId = null;
 		GradebookServiceHelper gbsHelper = null;
 		if (IntegrationContextFactory.getInstance() != null) {
 			boolean integrated = IntegrationContextFactory.getInstance().isIntegrated();
 			if (integrated) {
 				g = (GradebookExternalAssessmentService) SpringBeanLocator.getInstance().getBean("org.sakaiproject.service.gradebook.GradebookExternalAssessmentService");
 			}
-			toGradebookPublishedAssessmentSiteIdMap = publishedAssessmentService.getToGradebookPublishedAssessmentSiteIdMap();
 			gbsHelper = IntegrationContextFactory.getInstance().getGradebookServiceHelper();
-			updateGrades = true;
+			if (assessment.getEvaluationModel() != null && "1".equals(assessment.getEvaluationModel().getToGradeBook())) {
+				String currentSiteId = publishedAssessmentService.getPublishedAssessmentOwner(publishedAssessmentId);
+				if (currentSiteId != null && gbsHelper.gradebookExists(GradebookFacade.getGradebookUId(currentSiteId), g)) {
+					gradebookSiteId = currentSiteId;
+				}
+			}
 		}
+		Map<String, Double> studentScores = new HashMap<>();
 		boolean updateCurrentGrade;
-	    while (iter.hasNext()) {
+	    for (AssessmentGradingData adata : list) {
 	    	updateCurrentGrade = false;
             Map<String, Object> notiValues = new HashMap<>();
 	    	try{
-	    		adata = (AssessmentGradingData) iter.next();
 	    		adata.setHasAutoSubmissionRun(Boolean.TRUE);
 	    		
 				Date endDate = new Date();
@@ -3518,12 +3713,12 @@ public class AssessmentGradingFacadeQueries extends HibernateDaoSupport implemen
 						if (adata.getFinalScore() == null) {
 								adata.setFinalScore(0d);
 						}
-						if (adata.getAttemptDate() != null && assessment != null && assessment.getDueDate() != null &&
+						if (adata.getAttemptDate() != null && assessment.getDueDate() != null &&
 										adata.getAttemptDate().after(assessment.getDueDate())) {
 								adata.setIsLate(true);
 						}
 						// SAM-1088
-						else if (adata.getSubmittedDate() != null && assessment != null && assessment.getDueDate() != null &&
+						else if (adata.getSubmittedDate() != null && assessment.getDueDate() != null &&
 										adata.getSubmittedDate().after(assessment.getDueDate())) {
 								adata.setIsLate(true);
 						}
@@ -3534,15 +3729,12 @@ public class AssessmentGradingFacadeQueries extends HibernateDaoSupport implemen
 
     				updateCurrentGrade = true;
     				adata.setIsAutoSubmitted(Boolean.TRUE);
-    				if (lastPublishedAssessmentId.equals(adata.getPublishedAssessmentId()) 
-    						&& lastAgentId.equals(adata.getAgentId())) {
+    				if (lastAgentId.equals(adata.getAgentId())) {
     					adata.setStatus(AssessmentGradingData.AUTOSUBMIT_UPDATED);
 
         				// Check: needed updating gradebook
         				// If the assessment is configured with highest score and exists a previous submission with higher score 
         				// this submission doesn't have to be sent to gradebook
-        				assessment = (PublishedAssessmentFacade)publishedAssessmentService.getAssessment(adata.getPublishedAssessmentId());
-        				
         				if (assessment.getEvaluationModel().getScoringType().equals(EvaluationModel.HIGHEST_SCORE)) {
         					AssessmentGradingData assessmentGrading = 
         							getHighestSubmittedAssessmentGrading(adata.getPublishedAssessmentId(), adata.getAgentId(), null);
@@ -3556,9 +3748,8 @@ public class AssessmentGradingFacadeQueries extends HibernateDaoSupport implemen
     				}
     				completeItemGradingData(adata, sectionSetMap);
 
-    				List eventLogDataList = eventService.getEventLogData(adata.getAssessmentGradingId());
-    				if (!eventLogDataList.isEmpty()) {
-    					EventLogData eventLogData= (EventLogData) eventLogDataList.get(0);
+    				EventLogData eventLogData = eventLogDataMap.get(adata.getAssessmentGradingId());
+    				if (eventLogData != null) {
     					//will do the i18n issue later.
     					eventLogData.setErrorMsg("No Errors (Auto submit)");
     					eventLogData.setEndDate(endDate);
@@ -3583,53 +3774,63 @@ public class AssessmentGradingFacadeQueries extends HibernateDaoSupport implemen
     				notiValues.put("userID", adata.getAgentId());
     				notiValues.put("submissionDate", adata.getSubmittedDate());
 
-    				PublishedAssessmentFacade publishedAssessment = publishedAssessmentService.getPublishedAssessment( adata.getPublishedAssessmentId().toString() );
-    				String confirmationNumber = adata.getAssessmentGradingId() + "-" + publishedAssessment.getPublishedAssessmentId() + "-"
+    				String confirmationNumber = adata.getAssessmentGradingId() + "-" + adata.getPublishedAssessmentId() + "-"
     					+ adata.getAgentId() + "-" + adata.getSubmittedDate().toString();
     				notiValues.put( "confirmationNumber", confirmationNumber );
 
     				EventTrackingService.post(EventTrackingService.newEvent(SamigoConstants.EVENT_ASSESSMENT_AUTO_SUBMITTED, notiValues.toString(), AgentFacade.getCurrentSiteId(), false, SamigoConstants.NOTI_EVENT_ASSESSMENT_SUBMITTED));
     			}
 
-	    		lastPublishedAssessmentId = adata.getPublishedAssessmentId();
     			lastAgentId = adata.getAgentId();
 
 	    		//we only want to save one at a time to help the job continue when there's an error 
     			getHibernateTemplate().saveOrUpdate(adata);
-    			//update grades
-    			if(updateGrades && updateCurrentGrade && toGradebookPublishedAssessmentSiteIdMap.containsKey(adata.getPublishedAssessmentId())) {
-    				String currentSiteId = (String) toGradebookPublishedAssessmentSiteIdMap.get(adata.getPublishedAssessmentId());
-    				if (gbsHelper.gradebookExists(GradebookFacade.getGradebookUId(currentSiteId), g)){
-    					int retryCount = persistenceHelper.getRetryCount();
-    					while (retryCount > 0){
-    						try {
-    							Map<String, Double> studentScore = new HashMap<>();
-    							studentScore.put(adata.getAgentId(),adata.getFinalScore());
-    							gbsHelper.updateExternalAssessmentScores(adata.getPublishedAssessmentId(), studentScore, g);
-    							retryCount = 0;
-    						}
-    						catch (Exception e) {
-    							if(adata != null){
-    				    			log.error("Error while updating external assessment score during auto submitting assessment grade data id: " + adata.getAssessmentGradingId(), e);
-    				    		}else{
-    				    			log.error(e.getMessage(), e);
-    				    		}
-    							retryCount = persistenceHelper.retryDeadlock(e, retryCount);
-    						}
-    					}
-    				}
-    			}
+    			processed++;
 
-    			adata = null;
+    			if (gradebookSiteId != null && updateCurrentGrade) {
+    				studentScores.put(adata.getAgentId(), adata.getFinalScore());
+    			}
 	    	}catch (Exception e) {
-	    		if(adata != null){
-	    			log.error("Error while auto submitting assessment grade data id: " + adata.getAssessmentGradingId(), e);
-	    		}else{
-	    			log.error(e.getMessage(), e);
-	    		}
+	    		log.error("Error while auto submitting assessment grade data id: " + adata.getAssessmentGradingId(), e);
 			}
 	    }
-	    
+
+	    //update grades of the whole batch in one call
+	    if (!studentScores.isEmpty()) {
+	    	int retryCount = persistenceHelper.getRetryCount();
+	    	while (retryCount > 0){
+	    		try {
+	    			gbsHelper.updateExternalAssessmentScores(publishedAssessmentId, studentScores, g);
+	    			retryCount = 0;
+	    		}
+	    		catch (Exception e) {
+	    			log.error("Error while updating external assessment scores during auto submitting published assessment id: " + publishedAssessmentId, e);
+	    			retryCount = persistenceHelper.retryDeadlock(e, retryCount);
+	    		}
+	    	}
+	    }
+
+	    return processed;
+	}
+
+	/**
+	 * Get the most recent event log of each of the given assessment gradings in one query.
+	 */
+	private Map<Long, EventLogData> getLatestEventLogData(List<Long> assessmentGradingIds) {
+		Map<Long, EventLogData> eventLogDataMap = new HashMap<>();
+		Session session = getHibernateTemplate().getSessionFactory().getCurrentSession();
+		for (int i = 0; i < assessmentGradingIds.size(); i += 1000) {
+			List<Long> ids = assessmentGradingIds.subList(i, Math.min(i + 1000, assessmentGradingIds.size()));
+			List<EventLogData> list = session.createQuery("select eld from EventLogData as eld where eld.processId in (:ids) order by eld.id desc")
+					.setParameterList("ids", ids)
+					.list();
+			for (EventLogData eventLogData : list) {
+				if (!eventLogDataMap.containsKey(eventLogData.getProcessId())) {
+					eventLogDataMap.put(eventLogData.getProcessId(), eventLogData);
+				}
+			}
+		}
+		return eventLogDataMap;
 	}
 
 	private String makeHeader(String section, int sectionNumber, String question, String headerType, int questionNumber, String pool, String poolName) {
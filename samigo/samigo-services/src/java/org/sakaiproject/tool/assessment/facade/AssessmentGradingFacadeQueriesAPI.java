@@ -29,6 +29,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Consumer;
 
 import org.sakaiproject.tool.assessment.data.dao.grading.AssessmentGradingAttachment;
 import org.sakaiproject.tool.assessment.data.dao.grading.AssessmentGradingData;
@@ -206,6 +207,19 @@ public interface AssessmentGradingFacadeQueriesAPI
 
   public void saveOrUpdateAll(Collection<ItemGradingData> c);
 
+  /**
+   * Update the time elapsed of many assessment gradings in one transaction. A value is
+   * only written when it is later than the one already stored.
+   * @param timeElapsedMap time elapsed in seconds by assessmentGradingId
+   */
+  public void saveTimeElapsed(Map<Long, Integer> timeElapsedMap);
+
+  /**
+   * A value that changes whenever a submission of the given published assessment is added,
+   * removed or regraded, read with two aggregate queries instead of loading the gradings.
+   */
+  public String getStatisticsFingerprint(Long publishedAssessmentId);
+
   public PublishedAssessmentIfc getPublishedAssessmentByAssessmentGradingId(Long assessmentGradingId);
 
   public PublishedAssessmentIfc getPublishedAssessmentByPublishedItemId(Long publishedItemId);
@@ -245,6 +259,14 @@ public interface AssessmentGradingFacadeQueriesAPI
   public int getLateSubmissionsNumberByAgentId(Long publishedAssessmentId, String agentIdString, Date dueDate);
   
   public List getExportResponsesData(String publishedAssessmentId, boolean anonymous, String audioMessage, String fileUploadMessage, String noSubmissionMessage, boolean showPartAndTotalScoreSpreadsheetColumns, String poolString, String sectionString, String questionString, String textString, String rationaleString, String itemGradingCommentsString, Map useridMap, String responseCommentString);
+
+  /**
+   * Same data as getExportResponsesData, handed out one row at a time in the final order. The
+   * submissions are loaded a page at a time so memory does not grow with their number. The
+   * header handler is called once, before the first row.
+   */
+  public void exportResponsesData(String publishedAssessmentId, boolean anonymous, String audioMessage, String fileUploadMessage, String noSubmissionMessage, boolean showPartAndTotalScoreSpreadsheetColumns, String poolString, String sectionString, String questionString, String textString, String rationaleString, String itemGradingCommentsString, Map useridMap, String responseCommentString,
+		  Consumer<List<Object>> headerHandler, Consumer<List<Object>> rowHandler);
   
   public boolean getHasGradingData(Long publishedAssessmentId);
 
@@ -259,7 +281,22 @@ public interface AssessmentGradingFacadeQueriesAPI
   
   public List getSiteNeedResubmitList(String siteId);
   
-  public void autoSubmitAssessments();
+  /**
+   * @return the published assessments that have attempts waiting to be auto submitted
+   */
+  public List<Long> getAutoSubmitPublishedAssessmentIds();
+
+  /**
+   * @return the agents with attempts of the given published assessment waiting to be auto submitted
+   */
+  public List<String> getAutoSubmitAgentIds(Long publishedAssessmentId);
+
+  /**
+   * Auto submit the pending attempts of the given agents for one published assessment,
+   * and send their scores to the gradebook in one update.
+   * @return the number of attempts processed
+   */
+  public int autoSubmitAssessments(Long publishedAssessmentId, Collection<String> agentIds);
   
   public ItemGradingAttachment createItemGradingtAttachment(ItemGradingData itemGrading, String resourceId, String filename, String protocol);
   
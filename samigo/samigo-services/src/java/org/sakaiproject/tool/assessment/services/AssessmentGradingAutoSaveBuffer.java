@@ -0,0 +1,203 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2016 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.tool.assessment.services;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sakaiproject.component.cover.ServerConfigurationService;
+import org.sakaiproject.tool.assessment.data.dao.grading.AssessmentGradingData;
+
+/**
+ * Write-behind buffer for the progress writes made while a student moves through an
+ * assessment. Every page, timer refresh and table of contents visit of a timed assessment
+ * saves the assessment grading just to record the time elapsed; with this buffer enabled
+ * those saves are coalesced per assessment grading and written in one transaction every
+ * few seconds instead.
+ * <p>
+ * Answers are not buffered. The delivery flow reloads the item gradings of every page to
+ * merge and score the new answers, so they are always written through.
+ * <p>
+ * Crash safety: the buffer only lives on this node, and the sticky session keeps a student
+ * on the same node. If the node dies, at most one interval of time elapsed is lost, and the
+ * value is recalculated from the attempt date the next time the student syncs the timer.
+ * A full save of the assessment grading (every page of answers, submit, auto submit) takes
+ * the pending value with it and drops it from the buffer, and a flush never lowers a
+ * stored value, so a late flush from one node cannot undo a write made by another.
+ * <p>
+ * Properties:
+ * <ul>
+ * <li>samigo.autoSave.writeBehind.enabled - default false</li>
+ * <li>samigo.autoSave.writeBehind.interval - seconds between flushes, default 5</li>
+ * <li>samigo.autoSave.writeBehind.maxEntries - pending gradings before a flush is forced, default 5000</li>
+ * </ul>
+ */
+public class AssessmentGradingAutoSaveBuffer {
+
+	private static final Logger log = LoggerFactory.getLogger(AssessmentGradingAutoSaveBuffer.class);
+
+	private static AssessmentGradingAutoSaveBuffer instance;
+
+	private final boolean enabled;
+	private final int maxEntries;
+	private final Consumer<Map<Long, Integer>> writer;
+	private final ConcurrentHashMap<Long, Integer> pending = new ConcurrentHashMap<>();
+
+	private final AtomicLong offered = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong flushes = new AtomicLong();
+	private final AtomicLong failedFlushes = new AtomicLong();
+
+	private ScheduledExecutorService scheduler;
+
+	AssessmentGradingAutoSaveBuffer(boolean enabled, int maxEntries, Consumer<Map<Long, Integer>> writer) {
+		this.enabled = enabled;
+		this.maxEntries = maxEntries;
+		this.writer = writer;
+	}
+
+	public static synchronized AssessmentGradingAutoSaveBuffer getInstance() {
+		if (instance == null) {
+			boolean enabled = ServerConfigurationService.getBoolean("samigo.autoSave.writeBehind.enabled", false);
+			int interval = ServerConfigurationService.getInt("samigo.autoSave.writeBehind.interval", 5);
+			int maxEntries = ServerConfigurationService.getInt("samigo.autoSave.writeBehind.maxEntries", 5000);
+			instance = new AssessmentGradingAutoSaveBuffer(enabled && interval > 0, maxEntries,
+					timeElapsedMap -> PersistenceService.getInstance().getAssessmentGradingFacadeQueries().saveTimeElapsed(timeElapsedMap));
+			if (instance.enabled) {
+				instance.start(interval);
+			}
+		}
+		return instance;
+	}
+
+	private void start(int interval) {
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "samigo-autosave-write-behind");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(() -> {
+			try {
+				flush();
+			} catch (Exception e) {
+				log.error("Unexpected error flushing the assessment grading write-behind buffer", e);
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+		log.info("Samigo autosave write-behind enabled, flushing every {}s or at {} pending gradings", interval, maxEntries);
+	}
+
+	/**
+	 * Buffer the time elapsed of an assessment grading instead of saving it.
+	 * @return false if the buffer is disabled and the caller has to save the grading itself
+	 */
+	public boolean offer(AssessmentGradingData data) {
+		if (!enabled || data == null || data.getAssessmentGradingId() == null
+				|| data.getAssessmentGradingId().longValue() <= 0 || data.getTimeElapsed() == null) {
+			return false;
+		}
+		offered.incrementAndGet();
+		pending.merge(data.getAssessmentGradingId(), data.getTimeElapsed(), Math::max);
+		if (pending.size() >= maxEntries) {
+			flush();
+		}
+		return true;
+	}
+
+	/**
+	 * Copy a pending time elapsed onto an assessment grading that is loaded or about to be
+	 * saved, so the caller sees its own writes. The pending entry is dropped when the grading
+	 * is saved.
+	 */
+	public void apply(AssessmentGradingData data, boolean saving) {
+		if (!enabled || data == null || data.getAssessmentGradingId() == null) {
+			return;
+		}
+		Integer timeElapsed = saving ? pending.remove(data.getAssessmentGradingId()) : pending.get(data.getAssessmentGradingId());
+		if (timeElapsed != null && (data.getTimeElapsed() == null || data.getTimeElapsed() < timeElapsed)) {
+			data.setTimeElapsed(timeElapsed);
+		}
+	}
+
+	/**
+	 * Write every pending time elapsed in one batch. Entries that fail to be written are put
+	 * back so the next flush tries again.
+	 */
+	public void flush() {
+		if (pending.isEmpty()) {
+			return;
+		}
+		Map<Long, Integer> batch = new HashMap<>();
+		for (Long assessmentGradingId : pending.keySet()) {
+			Integer timeElapsed = pending.remove(assessmentGradingId);
+			if (timeElapsed != null) {
+				batch.put(assessmentGradingId, timeElapsed);
+			}
+		}
+		if (batch.isEmpty()) {
+			return;
+		}
+		try {
+			writer.accept(batch);
+			flushes.incrementAndGet();
+			written.addAndGet(batch.size());
+			log.debug("Flushed {} assessment gradings, {} offered and {} written since start", batch.size(), offered.get(), written.get());
+		} catch (Exception e) {
+			failedFlushes.incrementAndGet();
+			log.warn("Could not flush {} assessment gradings, will retry: {}", batch.size(), e.getMessage());
+			for (Map.Entry<Long, Integer> entry : batch.entrySet()) {
+				pending.merge(entry.getKey(), entry.getValue(), Math::max);
+			}
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	public long getOfferedCount() {
+		return offered.get();
+	}
+
+	public long getWrittenCount() {
+		return written.get();
+	}
+
+	public long getFlushCount() {
+		return flushes.get();
+	}
+
+	public long getFailedFlushCount() {
+		return failedFlushes.get();
+	}
+}
@@ -0,0 +1,222 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2016 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.tool.assessment.services;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sakaiproject.component.cover.ServerConfigurationService;
+import org.sakaiproject.tool.assessment.data.dao.grading.AssessmentGradingData;
+import org.sakaiproject.tool.assessment.data.dao.grading.ItemGradingData;
+
+/**
+ * Keeps the submissions and answers the Statistics and Item Analysis pages are calculated
+ * from, so opening the page again does not reload every item grading of the assessment.
+ * <p>
+ * An entry is only used while the fingerprint of the published assessment's submissions
+ * is the same as when it was loaded. The fingerprint covers the number and the latest of
+ * the submissions and answers, their graded dates and score totals, so a new submission,
+ * a deleted one or a regrade gives a new fingerprint and the next request loads the data
+ * again. The fingerprint is taken before loading, so a change made during the load is not
+ * hidden. Entries also expire after a while, as a safety net for writes that do not move
+ * any of those values.
+ * <p>
+ * The cached gradings are shared between requests and must not be modified.
+ * <p>
+ * The memory an entry uses grows with its item gradings, about a kilobyte each, so the cache
+ * is also bounded by the total number of item gradings it holds. The least recently used
+ * entries are dropped to stay under it, and an assessment with more item gradings than the
+ * whole bound is not cached at all.
+ * <p>
+ * Properties:
+ * <ul>
+ * <li>samigo.statistics.cache.maxEntries - assessments kept per server, default 20, 0 disables the cache</li>
+ * <li>samigo.statistics.cache.maxItemGradings - item gradings kept per server, default 100000</li>
+ * <li>samigo.statistics.cache.ttl - seconds an entry may be used, default 600</li>
+ * </ul>
+ */
+public class AssessmentStatisticsCache {
+
+	private static final Logger log = LoggerFactory.getLogger(AssessmentStatisticsCache.class);
+
+	private static AssessmentStatisticsCache instance;
+
+	private final int maxEntries;
+	private final long maxItemGradings;
+	private final long timeToLive;
+
+	/**
+	 * publishedId + which -> entry, in least recently used order
+	 */
+	private final Map<String, Entry> entries;
+
+	/**
+	 * item gradings held by all entries
+	 */
+	private long itemGradingCount;
+
+	private long hits;
+	private long misses;
+
+	AssessmentStatisticsCache(int maxEntries, long maxItemGradings, long timeToLive) {
+		this.maxEntries = maxEntries;
+		this.maxItemGradings = maxItemGradings;
+		this.timeToLive = timeToLive;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	}
+
+	public static synchronized AssessmentStatisticsCache getInstance() {
+		if (instance == null) {
+			int maxEntries = ServerConfigurationService.getInt("samigo.statistics.cache.maxEntries", 20);
+			int maxItemGradings = ServerConfigurationService.getInt("samigo.statistics.cache.maxItemGradings", 100000);
+			int ttl = ServerConfigurationService.getInt("samigo.statistics.cache.ttl", 600);
+			instance = new AssessmentStatisticsCache(ttl > 0 && maxItemGradings > 0 ? maxEntries : 0, maxItemGradings, ttl * 1000L);
+			log.info("Samigo statistics cache max entries: {}, max item gradings: {}, time to live: {}s",
+					instance.maxEntries, maxItemGradings, ttl);
+		}
+		return instance;
+	}
+
+	public boolean isEnabled() {
+		return maxEntries > 0;
+	}
+
+	/**
+	 * @return the cached statistics data, or null if there is none for this fingerprint
+	 */
+	public Statistics get(String publishedId, String which, String fingerprint) {
+		if (!isEnabled() || fingerprint == null) {
+			return null;
+		}
+		synchronized (entries) {
+			Entry entry = entries.get(key(publishedId, which));
+			if (entry == null || !entry.fingerprint.equals(fingerprint)
+					|| System.currentTimeMillis() - entry.created > timeToLive) {
+				misses++;
+				return null;
+			}
+			hits++;
+			return entry.statistics;
+		}
+	}
+
+	/**
+	 * @param fingerprint the fingerprint read before the statistics data was loaded
+	 */
+	public void put(String publishedId, String which, String fingerprint, Statistics statistics) {
+		if (!isEnabled() || fingerprint == null) {
+			return;
+		}
+		Entry entry = new Entry(fingerprint, statistics);
+		synchronized (entries) {
+			Entry previous = entries.remove(key(publishedId, which));
+			if (previous != null) {
+				itemGradingCount -= previous.itemGradingCount;
+			}
+			if (entry.itemGradingCount > maxItemGradings) {
+				log.debug("Not caching statistics data of published assessment {}, {} item gradings", publishedId, entry.itemGradingCount);
+				return;
+			}
+			entries.put(key(publishedId, which), entry);
+			itemGradingCount += entry.itemGradingCount;
+			Iterator<Entry> eldest = entries.values().iterator();
+			while (entries.size() > maxEntries || itemGradingCount > maxItemGradings) {
+				itemGradingCount -= eldest.next().itemGradingCount;
+				eldest.remove();
+			}
+			log.debug("Cached statistics data of published assessment {}, {} hits and {} misses since start", publishedId, hits, misses);
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public long getItemGradingCount() {
+		synchronized (entries) {
+			return itemGradingCount;
+		}
+	}
+
+	public long getHitCount() {
+		synchronized (entries) {
+			return hits;
+		}
+	}
+
+	public long getMissCount() {
+		synchronized (entries) {
+			return misses;
+		}
+	}
+
+	private String key(String publishedId, String which) {
+		return publishedId + "/" + which;
+	}
+
+	/**
+	 * The submissions of a published assessment for one scoring option, each with its item
+	 * gradings, and the same item gradings by published item id.
+	 */
+	public static class Statistics {
+		private final List<AssessmentGradingData> assessmentGradings;
+		private final HashMap<Long, ArrayList<ItemGradingData>> itemGradings;
+
+		public Statistics(List<AssessmentGradingData> assessmentGradings, HashMap<Long, ArrayList<ItemGradingData>> itemGradings) {
+			this.assessmentGradings = assessmentGradings;
+			this.itemGradings = itemGradings;
+		}
+
+		public List<AssessmentGradingData> getAssessmentGradings() {
+			return assessmentGradings;
+		}
+
+		public HashMap<Long, ArrayList<ItemGradingData>> getItemGradings() {
+			return itemGradings;
+		}
+	}
+
+	private static class Entry {
+		private final String fingerprint;
+		private final Statistics statistics;
+		private final long itemGradingCount;
+		private final long created = System.currentTimeMillis();
+
+		Entry(String fingerprint, Statistics statistics) {
+			this.fingerprint = fingerprint;
+			this.statistics = statistics;
+			long count = 0;
+			for (List<ItemGradingData> list : statistics.getItemGradings().values()) {
+				count += list.size();
+			}
+			this.itemGradingCount = count;
+		}
+	}
+}
@@ -2,7 +2,13 @@ package org.sakaiproject.tool.assessment.services;
 
 
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,6 +20,7 @@ import org.sakaiproject.component.cover.ServerConfigurationService;
 import org.sakaiproject.event.api.UsageSession;
 import org.sakaiproject.event.cover.EventTrackingService;
 import org.sakaiproject.event.cover.UsageSessionService;
+import org.sakaiproject.thread_local.cover.ThreadLocalManager;
 import org.sakaiproject.tool.api.Session;
 import org.sakaiproject.tool.cover.SessionManager;
 
@@ -21,6 +28,12 @@ import org.sakaiproject.tool.cover.SessionManager;
 public class AutoSubmitAssessmentsJob implements StatefulJob {
 	
 	private static final Logger LOG = LoggerFactory.getLogger(AutoSubmitAssessmentsJob.class);	
+
+	/** Number of published assessments auto submitted at the same time */
+	private static final String THREADS_PROPERTY = "samigo.autoSubmit.threads";
+	/** Number of students auto submitted in one transaction */
+	private static final String BATCH_SIZE_PROPERTY = "samigo.autoSubmit.batchSize";
+
 	protected String serverName = "unknown";
 
 	private AuthzGroupService authzGroupService;
@@ -79,11 +92,91 @@ public class AutoSubmitAssessmentsJob implements StatefulJob {
 
 		LOG.info("Start Job: " + whoAmI.toString());
 		
-		GradingService gradingService = new GradingService();
-		gradingService.autoSubmitAssessments();
+		autoSubmitAssessments();
 		
 		logoutFromSakai();
 	}
+
+	/**
+	 * Auto submit every published assessment with pending attempts. The published assessments
+	 * are shared out to a pool of worker threads and each one is processed in batches of students,
+	 * every batch in its own transaction, so a failure only loses that batch and the next run picks
+	 * it up again.
+	 */
+	protected void autoSubmitAssessments() {
+		final GradingService gradingService = new GradingService();
+		final int batchSize = Math.max(1, ServerConfigurationService.getInt(BATCH_SIZE_PROPERTY, 100));
+		int threads = Math.max(1, ServerConfigurationService.getInt(THREADS_PROPERTY, 4));
+		long start = System.currentTimeMillis();
+
+		List<Long> publishedAssessmentIds;
+		try {
+			publishedAssessmentIds = gradingService.getAutoSubmitPublishedAssessmentIds();
+		} catch (Exception e) {
+			LOG.error("Error while looking for assessments to auto submit", e);
+			return;
+		}
+		final int total = publishedAssessmentIds.size();
+		LOG.info("AutoSubmit found " + total + " published assessments to process");
+		if (total == 0) {
+			return;
+		}
+
+		final AtomicInteger assessmentsDone = new AtomicInteger();
+		final AtomicInteger submissions = new AtomicInteger();
+		final AtomicInteger failedBatches = new AtomicInteger();
+
+		// the workers run as the job user
+		final Session jobSession = SessionManager.getCurrentSession();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, total));
+		for (final Long publishedAssessmentId : publishedAssessmentIds) {
+			executor.execute(() -> {
+				SessionManager.setCurrentSession(jobSession);
+				try {
+					int processed = autoSubmitAssessment(gradingService, publishedAssessmentId, batchSize, failedBatches);
+					submissions.addAndGet(processed);
+					LOG.info("AutoSubmit progress: " + assessmentsDone.incrementAndGet() + "/" + total
+							+ " published assessments, published assessment " + publishedAssessmentId + " had " + processed + " submissions");
+				} finally {
+					ThreadLocalManager.clear();
+				}
+			});
+		}
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			LOG.warn("AutoSubmit interrupted, the remaining assessments will be processed on the next run");
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+
+		LOG.info("AutoSubmit processed " + submissions.get() + " submissions in " + assessmentsDone.get() + "/" + total
+				+ " published assessments with " + failedBatches.get() + " failed batches in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	private int autoSubmitAssessment(GradingService gradingService, Long publishedAssessmentId, int batchSize, AtomicInteger failedBatches) {
+		List<String> agentIds;
+		try {
+			agentIds = gradingService.getAutoSubmitAgentIds(publishedAssessmentId);
+		} catch (Exception e) {
+			LOG.error("Error while looking for submissions to auto submit for published assessment id: " + publishedAssessmentId, e);
+			failedBatches.incrementAndGet();
+			return 0;
+		}
+
+		int processed = 0;
+		for (int i = 0; i < agentIds.size(); i += batchSize) {
+			List<String> batch = new ArrayList<>(agentIds.subList(i, Math.min(i + batchSize, agentIds.size())));
+			try {
+				processed += gradingService.autoSubmitAssessments(publishedAssessmentId, batch);
+			} catch (Exception e) {
+				LOG.error("Error while auto submitting " + batch.size() + " students of published assessment id: " + publishedAssessmentId, e);
+				failedBatches.incrementAndGet();
+			}
+		}
+		return processed;
+	}
 	
 	/**
 	 * <p>Login to sakai and start a user session. This users is intended
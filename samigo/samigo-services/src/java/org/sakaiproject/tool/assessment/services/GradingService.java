@@ -45,6 +45,7 @@ import java.util.Random;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.TreeSet;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -155,6 +156,52 @@ public class GradingService
     return results;
   }
   
+  /**
+   * Get the submissions and answers the statistics of a published assessment are
+   * calculated from. They are read from AssessmentStatisticsCache while no submission has
+   * changed, otherwise loaded with one query for the submissions and one for their answers.
+   * The result is shared and must not be modified.
+   */
+  public AssessmentStatisticsCache.Statistics getStatistics(String publishedId, String which)
+  {
+    AssessmentStatisticsCache cache = AssessmentStatisticsCache.getInstance();
+    String fingerprint = null;
+    if (cache.isEnabled()) {
+      try {
+        fingerprint = PersistenceService.getInstance().
+          getAssessmentGradingFacadeQueries().getStatisticsFingerprint(Long.valueOf(publishedId));
+      } catch (Exception e) {
+        log.warn("Could not read the statistics fingerprint of published assessment " + publishedId + ": " + e.getMessage());
+      }
+    }
+    AssessmentStatisticsCache.Statistics statistics = cache.get(publishedId, which, fingerprint);
+    if (statistics != null) {
+      return statistics;
+    }
+
+    List<AssessmentGradingData> gradings = getTotalScores(publishedId, which);
+    if (gradings == null) {
+      gradings = new ArrayList<AssessmentGradingData>();
+    }
+    HashMap<Long, ArrayList<ItemGradingData>> itemGradings = new HashMap<Long, ArrayList<ItemGradingData>>();
+    if (!gradings.isEmpty()) {
+      itemGradings = getItemScores(Long.valueOf(0), gradings, false);
+    }
+    Map<Long, Set<ItemGradingData>> itemGradingSets = new HashMap<Long, Set<ItemGradingData>>();
+    for (List<ItemGradingData> list : itemGradings.values()) {
+      for (ItemGradingData data : list) {
+        itemGradingSets.computeIfAbsent(data.getAssessmentGradingId(), k -> new HashSet<ItemGradingData>()).add(data);
+      }
+    }
+    for (AssessmentGradingData data : gradings) {
+      Set<ItemGradingData> itemGradingSet = itemGradingSets.get(data.getAssessmentGradingId());
+      data.setItemGradingSet(itemGradingSet != null ? itemGradingSet : new HashSet<ItemGradingData>());
+    }
+    statistics = new AssessmentStatisticsCache.Statistics(gradings, itemGradings);
+    cache.put(publishedId, which, fingerprint, statistics);
+    return statistics;
+  }
+
  /**
   * Get all submissions for a published assessment from the back end.
   */
@@ -583,8 +630,10 @@ public class GradingService
   
   public AssessmentGradingData load(String assessmentGradingId, boolean loadGradingAttachment) {
     try{
-      return PersistenceService.getInstance().getAssessmentGradingFacadeQueries().
+      AssessmentGradingData data = PersistenceService.getInstance().getAssessmentGradingFacadeQueries().
           load(Long.valueOf(assessmentGradingId), loadGradingAttachment);
+      AssessmentGradingAutoSaveBuffer.getInstance().apply(data, false);
+      return data;
     }
     catch(Exception e)
     {
@@ -684,6 +733,7 @@ public class GradingService
       */
       // this will update itemGradingSet and assessmentGrading. May as well, otherwise I would have
       // to reload assessment again
+      AssessmentGradingAutoSaveBuffer.getInstance().apply(assessment, true);
       PersistenceService.getInstance().
         getAssessmentGradingFacadeQueries().saveOrUpdateAssessmentGrading(assessment);
     } catch (Exception e) {
@@ -703,6 +753,7 @@ public class GradingService
       int size = assessment.getItemGradingSet().size();
       log.debug("before persist to db: size = " + size);
       try {
+    	  AssessmentGradingAutoSaveBuffer.getInstance().apply(assessment, true);
     	  PersistenceService.getInstance().getAssessmentGradingFacadeQueries().saveOrUpdateAssessmentGrading(assessment);
       } catch (Exception e) {
           log.error(e.getMessage(), e);
@@ -715,6 +766,17 @@ public class GradingService
       }
   }
 
+  /**
+   * Record the time elapsed of an assessment grading that is being taken. When the autosave
+   * write-behind buffer is enabled the write is coalesced with the next ones, otherwise
+   * nothing is done and the caller has to save the grading.
+   * @return true if the time elapsed was buffered
+   */
+  public boolean bufferTimeElapsed(AssessmentGradingData assessment)
+  {
+	  return AssessmentGradingAutoSaveBuffer.getInstance().offer(assessment);
+  }
+
   public List getAssessmentGradingIds(String publishedItemId){
     try{
       return PersistenceService.getInstance().getAssessmentGradingFacadeQueries().
@@ -2587,6 +2649,13 @@ Here are the definition and 12 cases I came up with (lydia, 01/2006):
 	    }
 	    return list;
   }
+
+  public void exportResponsesData(String publishedAssessmentId, boolean anonymous, String audioMessage, String fileUploadMessage, String noSubmissionMessage, boolean showPartAndTotalScoreSpreadsheetColumns, String poolString, String partString, String questionString, String textString, String rationaleString, String itemGradingCommentsString, Map useridMap, String responseCommentString,
+		  Consumer<List<Object>> headerHandler, Consumer<List<Object>> rowHandler) {
+	  PersistenceService.getInstance().getAssessmentGradingFacadeQueries().exportResponsesData(publishedAssessmentId, anonymous, audioMessage, fileUploadMessage, noSubmissionMessage,
+			  showPartAndTotalScoreSpreadsheetColumns, poolString, partString, questionString, textString, rationaleString, itemGradingCommentsString, useridMap, responseCommentString,
+			  headerHandler, rowHandler);
+  }
   
   private void removeUnsubmittedAssessmentGradingData(AssessmentGradingData data){
 	  try {
@@ -3333,13 +3402,23 @@ Here are the definition and 12 cases I came up with (lydia, 01/2006):
 	    return list;
   }
   
-  public void autoSubmitAssessments() {
-	  try {
-		  PersistenceService.getInstance().
-		  getAssessmentGradingFacadeQueries().autoSubmitAssessments();
-	  } catch (Exception e) {
-		  log.error(e.getMessage(), e);
-	  }
+  public List<Long> getAutoSubmitPublishedAssessmentIds() {
+	  return PersistenceService.getInstance().
+	  getAssessmentGradingFacadeQueries().getAutoSubmitPublishedAssessmentIds();
+  }
+
+  public List<String> getAutoSubmitAgentIds(Long publishedAssessmentId) {
+	  return PersistenceService.getInstance().
+	  getAssessmentGradingFacadeQueries().getAutoSubmitAgentIds(publishedAssessmentId);
+  }
+
+  /**
+   * Auto submit one batch of agents of a published assessment in its own transaction.
+   * @return the number of attempts processed
+   */
+  public int autoSubmitAssessments(Long publishedAssessmentId, Collection<String> agentIds) {
+	  return PersistenceService.getInstance().
+	  getAssessmentGradingFacadeQueries().autoSubmitAssessments(publishedAssessmentId, agentIds);
   }
   
   public ItemGradingAttachment createItemGradingAttachment(
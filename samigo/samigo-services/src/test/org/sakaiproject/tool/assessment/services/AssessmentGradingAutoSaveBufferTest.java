@@ -0,0 +1,154 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2016 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.tool.assessment.services;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.tool.assessment.data.dao.grading.AssessmentGradingData;
+
+/**
+ * Load test of the autosave write-behind buffer: a timed final with 3000 students
+ * navigating 20 pages each, against an in-memory "database".
+ */
+public class AssessmentGradingAutoSaveBufferTest {
+
+    private static final int STUDENTS = 3000;
+    private static final int PAGES = 20;
+
+    private final Map<Long, Integer> database = new HashMap<>();
+    private final List<Integer> transactions = new ArrayList<>();
+    private boolean failWrites = false;
+
+    private AssessmentGradingAutoSaveBuffer newBuffer(boolean enabled, int maxEntries) {
+        return new AssessmentGradingAutoSaveBuffer(enabled, maxEntries, batch -> {
+            synchronized (database) {
+                if (failWrites) {
+                    throw new RuntimeException("database down");
+                }
+                transactions.add(batch.size());
+                for (Map.Entry<Long, Integer> entry : batch.entrySet()) {
+                    database.merge(entry.getKey(), entry.getValue(), Math::max);
+                }
+            }
+        });
+    }
+
+    private AssessmentGradingData grading(long id, int timeElapsed) {
+        AssessmentGradingData data = new AssessmentGradingData();
+        data.setAssessmentGradingId(id);
+        data.setTimeElapsed(timeElapsed);
+        return data;
+    }
+
+    @Test
+    public void testExamStartIsCoalesced() throws Exception {
+        final AssessmentGradingAutoSaveBuffer buffer = newBuffer(true, 100000);
+        ExecutorService students = Executors.newFixedThreadPool(16);
+        for (int page = 1; page <= PAGES; page++) {
+            final int elapsed = page * 30;
+            for (long id = 1; id <= STUDENTS; id++) {
+                final long gradingId = id;
+                students.execute(() -> Assert.assertTrue(buffer.offer(grading(gradingId, elapsed))));
+            }
+            // one flush interval every 5 pages
+            if (page % 5 == 0) {
+                students.shutdown();
+                students.awaitTermination(1, TimeUnit.MINUTES);
+                buffer.flush();
+                students = Executors.newFixedThreadPool(16);
+            }
+        }
+        students.shutdown();
+        students.awaitTermination(1, TimeUnit.MINUTES);
+        buffer.flush();
+
+        // 60000 page saves became 4 transactions of 3000 rows
+        Assert.assertEquals(STUDENTS * PAGES, buffer.getOfferedCount());
+        Assert.assertEquals(4, transactions.size());
+        Assert.assertEquals(STUDENTS * 4, buffer.getWrittenCount());
+        Assert.assertEquals(0, buffer.getPendingCount());
+        for (long id = 1; id <= STUDENTS; id++) {
+            Assert.assertEquals(Integer.valueOf(PAGES * 30), database.get(id));
+        }
+    }
+
+    @Test
+    public void testBufferIsBounded() {
+        AssessmentGradingAutoSaveBuffer buffer = newBuffer(true, 500);
+        for (long id = 1; id <= STUDENTS; id++) {
+            buffer.offer(grading(id, 60));
+            Assert.assertTrue(buffer.getPendingCount() < 500);
+        }
+        Assert.assertEquals(STUDENTS / 500, transactions.size());
+    }
+
+    @Test
+    public void testFailedFlushIsRetried() {
+        AssessmentGradingAutoSaveBuffer buffer = newBuffer(true, 100000);
+        buffer.offer(grading(1L, 60));
+        failWrites = true;
+        buffer.flush();
+        Assert.assertEquals(1, buffer.getFailedFlushCount());
+        Assert.assertEquals(1, buffer.getPendingCount());
+
+        // a later value arrives while the database is down
+        buffer.offer(grading(1L, 90));
+        failWrites = false;
+        buffer.flush();
+        Assert.assertEquals(Integer.valueOf(90), database.get(1L));
+    }
+
+    @Test
+    public void testFullSaveTakesPendingValue() {
+        AssessmentGradingAutoSaveBuffer buffer = newBuffer(true, 100000);
+        buffer.offer(grading(1L, 120));
+
+        // a reload sees its own write and keeps it pending
+        AssessmentGradingData loaded = grading(1L, 60);
+        buffer.apply(loaded, false);
+        Assert.assertEquals(Integer.valueOf(120), loaded.getTimeElapsed());
+        Assert.assertEquals(1, buffer.getPendingCount());
+
+        // a submit saves it and drops it from the buffer
+        AssessmentGradingData submitted = grading(1L, 60);
+        buffer.apply(submitted, true);
+        Assert.assertEquals(Integer.valueOf(120), submitted.getTimeElapsed());
+        Assert.assertEquals(0, buffer.getPendingCount());
+        buffer.flush();
+        Assert.assertTrue(transactions.isEmpty());
+    }
+
+    @Test
+    public void testDisabledWritesThrough() {
+        AssessmentGradingAutoSaveBuffer buffer = newBuffer(false, 100000);
+        Assert.assertFalse(buffer.offer(grading(1L, 60)));
+        Assert.assertEquals(0, buffer.getPendingCount());
+    }
+}
@@ -0,0 +1,134 @@
+/**********************************************************************************
+ * $URL$
+ * $Id$
+ ***********************************************************************************
+ *
+ * Copyright (c) 2016 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ **********************************************************************************/
+
+package org.sakaiproject.tool.assessment.services;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.tool.assessment.data.dao.grading.AssessmentGradingData;
+import org.sakaiproject.tool.assessment.data.dao.grading.ItemGradingData;
+
+public class AssessmentStatisticsCacheTest {
+
+    private static final String HIGHEST = "1";
+    private static final String LAST = "2";
+
+    private AssessmentStatisticsCache.Statistics statistics() {
+        return new AssessmentStatisticsCache.Statistics(new ArrayList<AssessmentGradingData>(),
+                new HashMap<Long, ArrayList<ItemGradingData>>());
+    }
+
+    @Test
+    public void testSameFingerprintIsReused() {
+        AssessmentStatisticsCache cache = new AssessmentStatisticsCache(20, 100000, 60000);
+        AssessmentStatisticsCache.Statistics statistics = statistics();
+        Assert.assertNull(cache.get("1", HIGHEST, "100/"));
+        cache.put("1", HIGHEST, "100/", statistics);
+
+        Assert.assertSame(statistics, cache.get("1", HIGHEST, "100/"));
+        Assert.assertSame(statistics, cache.get("1", HIGHEST, "100/"));
+        Assert.assertEquals(2, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+
+        // each scoring option has its own submissions
+        Assert.assertNull(cache.get("1", LAST, "100/"));
+    }
+
+    @Test
+    public void testChangedSubmissionsAreReloaded() {
+        AssessmentStatisticsCache cache = new AssessmentStatisticsCache(20, 100000, 60000);
+        cache.put("1", HIGHEST, "100/", statistics());
+
+        // a new submission or a regrade moves the fingerprint
+        Assert.assertNull(cache.get("1", HIGHEST, "101/"));
+        AssessmentStatisticsCache.Statistics reloaded = statistics();
+        cache.put("1", HIGHEST, "101/", reloaded);
+        Assert.assertSame(reloaded, cache.get("1", HIGHEST, "101/"));
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testCacheIsBounded() {
+        AssessmentStatisticsCache cache = new AssessmentStatisticsCache(20, 100000, 60000);
+        for (int i = 0; i < 100; i++) {
+            cache.put(String.valueOf(i), HIGHEST, "1/", statistics());
+        }
+        Assert.assertEquals(20, cache.size());
+        Assert.assertNull(cache.get("0", HIGHEST, "1/"));
+        Assert.assertNotNull(cache.get("99", HIGHEST, "1/"));
+    }
+
+    private AssessmentStatisticsCache.Statistics statistics(int itemGradings) {
+        HashMap<Long, ArrayList<ItemGradingData>> byItem = new HashMap<Long, ArrayList<ItemGradingData>>();
+        ArrayList<ItemGradingData> list = new ArrayList<ItemGradingData>();
+        for (int i = 0; i < itemGradings; i++) {
+            list.add(new ItemGradingData());
+        }
+        byItem.put(1L, list);
+        return new AssessmentStatisticsCache.Statistics(new ArrayList<AssessmentGradingData>(), byItem);
+    }
+
+    @Test
+    public void testCacheIsBoundedByItemGradings() {
+        AssessmentStatisticsCache cache = new AssessmentStatisticsCache(20, 100, 60000);
+        cache.put("1", HIGHEST, "1/", statistics(40));
+        cache.put("2", HIGHEST, "1/", statistics(40));
+        Assert.assertEquals(80, cache.getItemGradingCount());
+
+        // the least recently used entry makes room for the new one
+        Assert.assertNotNull(cache.get("1", HIGHEST, "1/"));
+        cache.put("3", HIGHEST, "1/", statistics(40));
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(80, cache.getItemGradingCount());
+        Assert.assertNull(cache.get("2", HIGHEST, "1/"));
+        Assert.assertNotNull(cache.get("1", HIGHEST, "1/"));
+
+        // a reload replaces the count of the entry it replaces
+        cache.put("1", HIGHEST, "2/", statistics(10));
+        Assert.assertEquals(50, cache.getItemGradingCount());
+
+        // an assessment larger than the whole cache is not kept, and drops its stale entry
+        cache.put("1", HIGHEST, "3/", statistics(101));
+        Assert.assertNull(cache.get("1", HIGHEST, "3/"));
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals(40, cache.getItemGradingCount());
+    }
+
+    @Test
+    public void testEntriesExpire() throws Exception {
+        AssessmentStatisticsCache cache = new AssessmentStatisticsCache(20, 100000, 1);
+        cache.put("1", HIGHEST, "100/", statistics());
+        Thread.sleep(10);
+        Assert.assertNull(cache.get("1", HIGHEST, "100/"));
+    }
+
+    @Test
+    public void testDisabledCachesNothing() {
+        AssessmentStatisticsCache cache = new AssessmentStatisticsCache(0, 100000, 60000);
+        Assert.assertFalse(cache.isEnabled());
+        cache.put("1", HIGHEST, "100/", statistics());
+        Assert.assertNull(cache.get("1", HIGHEST, "100/"));
+        Assert.assertEquals(0, cache.size());
+    }
+}
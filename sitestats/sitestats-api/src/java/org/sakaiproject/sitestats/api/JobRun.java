@@ -56,4 +56,16 @@ public interface JobRun {
 	
 	/** Set the date of the last event processed by this job run. */
 	public void setLastEventDate(Date lastEventDate);
+	
+	/** Get the number of events processed by this job run. */
+	public long getEventsProcessed();
+	
+	/** Set the number of events processed by this job run. */
+	public void setEventsProcessed(long eventsProcessed);
+	
+	/** Get how many event ids SAKAI_EVENT was ahead of this job run when it finished. */
+	public long getEventsLag();
+	
+	/** Set how many event ids SAKAI_EVENT was ahead of this job run when it finished. */
+	public void setEventsLag(long eventsLag);
 }
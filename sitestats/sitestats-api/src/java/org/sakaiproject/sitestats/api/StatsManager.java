@@ -129,6 +129,9 @@ public interface StatsManager {
 	/** Are site presence statistics enabled? */
 	public boolean isEnableSitePresences();
 	
+	/** Are week/month rollups of site activity and visits maintained (and used by reports once built)? */
+	public boolean isEnableRollups();
+	
 	/** Get chart background color used to draw charts on SiteStats tool. */
 	public String getChartBackgroundColor();
 	
@@ -18,4 +18,8 @@ public interface StatsUpdateManagerMXBean {
     double getNumberOfEventsGeneratedPerSec();
 
     long getAverageTimeInEventProcessingPerEvent();
+
+    long getNumberOfEventsDropped();
+
+    long getQueueLag();
 }
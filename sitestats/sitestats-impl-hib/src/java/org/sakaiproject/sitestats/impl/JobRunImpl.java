@@ -35,6 +35,9 @@ public class JobRunImpl implements JobRun, Serializable {
 	private Date				jobStartDate;
 	private Date				jobEndDate;
 	private Date				lastEventDate;
+	// nullable: not set on runs recorded before these columns existed
+	private Long				eventsProcessed;
+	private Long				eventsLag;
 
 	public boolean equals(Object o) {
 		if(o == null) return false;
@@ -147,4 +150,32 @@ public class JobRunImpl implements JobRun, Serializable {
 		this.lastEventDate = lastEventDate;
 	}
 
+	/* (non-Javadoc)
+	 * @see org.sakaiproject.sitestats.api.JobRun#getEventsProcessed()
+	 */
+	public long getEventsProcessed() {
+		return eventsProcessed == null ? 0 : eventsProcessed.longValue();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.sakaiproject.sitestats.api.JobRun#setEventsProcessed(long)
+	 */
+	public void setEventsProcessed(long eventsProcessed) {
+		this.eventsProcessed = Long.valueOf(eventsProcessed);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.sakaiproject.sitestats.api.JobRun#getEventsLag()
+	 */
+	public long getEventsLag() {
+		return eventsLag == null ? 0 : eventsLag.longValue();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.sakaiproject.sitestats.api.JobRun#setEventsLag(long)
+	 */
+	public void setEventsLag(long eventsLag) {
+		this.eventsLag = Long.valueOf(eventsLag);
+	}
+
 }
@@ -0,0 +1,118 @@
+/**
+ * $URL$
+ * $Id$
+ *
+ * Copyright (c) 2006-2009 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.sitestats.impl;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * Site activity (or site visits, under the site visit event id) summed over a
+ * whole week or month, so long date ranges don't have to be read day by day
+ * from SST_SITEACTIVITY and SST_SITEVISITS.
+ */
+public class SiteActivityRollupImpl implements Serializable {
+	private static final long	serialVersionUID	= 1L;
+	/** Period type: week, starting on Monday. */
+	public static final String	PERIOD_WEEK			= "W";
+	/** Period type: calendar month. */
+	public static final String	PERIOD_MONTH		= "M";
+	private long id;
+	private String siteId;
+	private String eventId;
+	private String periodType;
+	private Date periodStart;
+	private long count;
+
+	public boolean equals(Object o) {
+		if(o == null) return false;
+		if(!(o instanceof SiteActivityRollupImpl)) return false;
+		SiteActivityRollupImpl other = (SiteActivityRollupImpl) o;
+		return id == other.getId()
+				&& siteId.equals(other.getSiteId())
+				&& eventId.equals(other.getEventId())
+				&& periodType.equals(other.getPeriodType())
+				&& periodStart.equals(other.getPeriodStart())
+				&& count == other.getCount();
+	}
+
+	public int hashCode() {
+		if(siteId == null) return Integer.MIN_VALUE;
+		String hashStr = this.getClass().getName() + ":" 
+				+ id
+				+ this.getSiteId().hashCode()
+				+ this.getEventId().hashCode()
+				+ this.getPeriodType().hashCode()
+				+ this.getPeriodStart().hashCode()
+				+ count;
+		return hashStr.hashCode();
+	}
+	
+	public String toString(){
+		return siteId + " : " + eventId + " : " + periodType + " : " + periodStart + " : " + count;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public void setId(long id) {
+		this.id = id;
+	}
+
+	public String getSiteId() {
+		return siteId;
+	}
+
+	public void setSiteId(String siteId) {
+		this.siteId = siteId;
+	}
+
+	public String getEventId() {
+		return eventId;
+	}
+
+	public void setEventId(String eventId) {
+		this.eventId = eventId;
+	}
+
+	public String getPeriodType() {
+		return periodType;
+	}
+
+	public void setPeriodType(String periodType) {
+		this.periodType = periodType;
+	}
+
+	public Date getPeriodStart() {
+		return periodStart;
+	}
+
+	public void setPeriodStart(Date periodStart) {
+		this.periodStart = periodStart;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public void setCount(long count) {
+		this.count = count;
+	}
+
+}
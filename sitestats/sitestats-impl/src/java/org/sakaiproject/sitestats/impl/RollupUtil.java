@@ -0,0 +1,302 @@
+/**
+ * $URL$
+ * $Id$
+ *
+ * Copyright (c) 2006-2009 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.sitestats.impl;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.Criteria;
+import org.hibernate.LockMode;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.StatelessSession;
+import org.hibernate.criterion.Expression;
+import org.hibernate.exception.ConstraintViolationException;
+import org.sakaiproject.sitestats.api.SiteActivity;
+import org.sakaiproject.sitestats.api.SiteVisits;
+import org.sakaiproject.sitestats.api.StatsManager;
+
+/**
+ * Week and month rollups of site activity and site visits (SST_SITEACTIVITY_ROLLUP).
+ * <p>
+ * The consolidation step adds the counts it writes to the day rows (SST_SITEACTIVITY, SST_SITEVISITS)
+ * to the rollup rows as increments in the database, so several cluster nodes can consolidate at once
+ * without overwriting each other. The initial build, claimed by a single node, sets each rollup from the
+ * day rows while holding the site's rollup rows locked. Site visits are stored under
+ * {@link StatsManager#SITEVISIT_EVENTID}, which never appears in SST_SITEACTIVITY.
+ */
+public class RollupUtil {
+	/** Site id of the row recording that rollups were built for the existing day rows. */
+	public static final String		BUILT_MARKER_SITEID		= "!rollups";
+	private static final String[]	PERIOD_TYPES			= {SiteActivityRollupImpl.PERIOD_WEEK, SiteActivityRollupImpl.PERIOD_MONTH};
+
+	private RollupUtil() {
+	}
+
+	// ################################################################
+	// Periods
+	// ################################################################
+	/** Get the first day of the week (Monday) or month containing the given date. */
+	public static Date getPeriodStart(String periodType, Date date) {
+		Calendar c = Calendar.getInstance();
+		c.setTime(date);
+		truncate(c);
+		if(SiteActivityRollupImpl.PERIOD_MONTH.equals(periodType)) {
+			c.set(Calendar.DAY_OF_MONTH, 1);
+		}else{
+			// Calendar.MONDAY == 2, Calendar.SUNDAY == 1
+			c.add(Calendar.DAY_OF_YEAR, -((c.get(Calendar.DAY_OF_WEEK) + 5) % 7));
+		}
+		return c.getTime();
+	}
+
+	/** Get the first day after the period starting on the given date. */
+	public static Date getPeriodEnd(String periodType, Date periodStart) {
+		Calendar c = Calendar.getInstance();
+		c.setTime(periodStart);
+		if(SiteActivityRollupImpl.PERIOD_MONTH.equals(periodType)) {
+			c.add(Calendar.MONTH, 1);
+		}else{
+			c.add(Calendar.DAY_OF_YEAR, 7);
+		}
+		return c.getTime();
+	}
+
+	/**
+	 * Split the days between iDate and fDate (both inclusive, as in the StatsManager query methods)
+	 * into whole months, whole weeks and the remaining days, preferring the coarsest period that fits.
+	 * Weeks never cross a month boundary, so every part falls in a single month.
+	 */
+	public static Plan getPlan(Date iDate, Date fDate) {
+		Calendar c = Calendar.getInstance();
+		c.setTime(iDate);
+		truncate(c);
+		Date cursor = c.getTime();
+		c.setTime(fDate);
+		truncate(c);
+		c.add(Calendar.DAY_OF_YEAR, 1);
+		Date end = c.getTime();
+
+		Plan plan = new Plan();
+		while(cursor.before(end)) {
+			Date monthStart = getPeriodStart(SiteActivityRollupImpl.PERIOD_MONTH, cursor);
+			Date monthEnd = getPeriodEnd(SiteActivityRollupImpl.PERIOD_MONTH, monthStart);
+			if(cursor.equals(monthStart) && !monthEnd.after(end)) {
+				Plan.add(plan.months, cursor, monthEnd);
+				cursor = monthEnd;
+				continue;
+			}
+			Date weekEnd = getPeriodEnd(SiteActivityRollupImpl.PERIOD_WEEK, cursor);
+			if(cursor.equals(getPeriodStart(SiteActivityRollupImpl.PERIOD_WEEK, cursor))
+					&& !weekEnd.after(end) && !weekEnd.after(monthEnd)) {
+				Plan.add(plan.weeks, cursor, weekEnd);
+				cursor = weekEnd;
+				continue;
+			}
+			c.setTime(cursor);
+			c.add(Calendar.DAY_OF_YEAR, 1);
+			Plan.add(plan.days, cursor, c.getTime());
+			cursor = c.getTime();
+		}
+		return plan;
+	}
+
+	private static void truncate(Calendar c) {
+		c.set(Calendar.HOUR_OF_DAY, 0);
+		c.set(Calendar.MINUTE, 0);
+		c.set(Calendar.SECOND, 0);
+		c.set(Calendar.MILLISECOND, 0);
+	}
+
+	/** Contiguous [start, end) date ranges to read from the day rows, the week rollups and the month rollups. */
+	public static class Plan {
+		private final List<Date[]>	days	= new ArrayList<Date[]>();
+		private final List<Date[]>	weeks	= new ArrayList<Date[]>();
+		private final List<Date[]>	months	= new ArrayList<Date[]>();
+
+		private static void add(List<Date[]> ranges, Date start, Date end) {
+			if(!ranges.isEmpty() && ranges.get(ranges.size() - 1)[1].equals(start)) {
+				ranges.get(ranges.size() - 1)[1] = end;
+			}else{
+				ranges.add(new Date[] {start, end});
+			}
+		}
+
+		public List<Date[]> getDays() {
+			return days;
+		}
+
+		public List<Date[]> getWeeks() {
+			return weeks;
+		}
+
+		public List<Date[]> getMonths() {
+			return months;
+		}
+	}
+
+	// ################################################################
+	// Maintenance
+	// ################################################################
+	/** Add the counts of the given (just saved) day rows to the rollups covering them. */
+	public static void updateRollups(Session session, Collection<SiteActivity> activity, Collection<SiteVisits> visits) throws SQLException {
+		Map<List<Object>, Long> deltas = new LinkedHashMap<List<Object>, Long>();
+		if(activity != null) {
+			for(SiteActivity a : activity) {
+				addTotal(deltas, a.getSiteId(), a.getEventId(), a.getDate(), a.getCount());
+			}
+		}
+		if(visits != null) {
+			for(SiteVisits v : visits) {
+				addTotal(deltas, v.getSiteId(), StatsManager.SITEVISIT_EVENTID, v.getDate(), v.getTotalVisits());
+			}
+		}
+		if(deltas.isEmpty()) {
+			return;
+		}
+		// write the day rows before touching the rollups, so a build holding them locked sees neither or both
+		session.flush();
+		for(Map.Entry<List<Object>, Long> e : deltas.entrySet()) {
+			List<Object> key = e.getKey();
+			saveRollup(session, (String) key.get(0), (String) key.get(1), (String) key.get(2), (Date) key.get(3), e.getValue().longValue(), true);
+		}
+	}
+
+	/**
+	 * Set all the rollups of a site from its day rows. The site's rollup rows are locked before the day rows
+	 * are read, so consolidation on other nodes either committed before the build or adds its counts after it.
+	 */
+	public static void rebuildRollups(Session session, String siteId) throws SQLException {
+		Map<List<Object>, Long> totals = new HashMap<List<Object>, Long>();
+		Criteria c = session.createCriteria(SiteActivityRollupImpl.class);
+		c.add(Expression.eq("siteId", siteId));
+		c.setLockMode(LockMode.UPGRADE);
+		List<SiteActivityRollupImpl> existing = c.list();
+		for(SiteActivityRollupImpl r : existing) {
+			// rollups no longer backed by any day row are reset
+			totals.put(Arrays.<Object>asList(siteId, r.getEventId(), r.getPeriodType(), r.getPeriodStart()), Long.valueOf(0));
+		}
+		List<Object[]> activity = session.createQuery("select s.eventId, s.date, sum(s.count) from SiteActivityImpl as s " +
+				"where s.siteId = :siteid group by s.eventId, s.date")
+				.setString("siteid", siteId)
+				.list();
+		for(Object[] row : activity) {
+			addTotal(totals, siteId, (String) row[0], (Date) row[1], ((Number) row[2]).longValue());
+		}
+		List<Object[]> visits = session.createQuery("select s.date, sum(s.totalVisits) from SiteVisitsImpl as s " +
+				"where s.siteId = :siteid group by s.date")
+				.setString("siteid", siteId)
+				.list();
+		for(Object[] row : visits) {
+			addTotal(totals, siteId, StatsManager.SITEVISIT_EVENTID, (Date) row[0], ((Number) row[1]).longValue());
+		}
+
+		for(Map.Entry<List<Object>, Long> e : totals.entrySet()) {
+			List<Object> key = e.getKey();
+			saveRollup(session, siteId, (String) key.get(1), (String) key.get(2), (Date) key.get(3), e.getValue().longValue(), false);
+		}
+	}
+
+	private static void addTotal(Map<List<Object>, Long> totals, String siteId, String eventId, Date date, long count) {
+		for(String type : PERIOD_TYPES) {
+			List<Object> key = Arrays.<Object>asList(siteId, eventId, type, getPeriodStart(type, date));
+			Long total = totals.get(key);
+			totals.put(key, Long.valueOf(total == null ? count : total.longValue() + count));
+		}
+	}
+
+	/** Set (or, if add is true, add to) the count of a rollup, inserting its row if there is none yet. */
+	private static void saveRollup(Session session, String siteId, String eventId, String periodType, Date periodStart, long count, boolean add) throws SQLException {
+		if(updateRollup(session, siteId, eventId, periodType, periodStart, count, add) > 0 || count == 0) {
+			return;
+		}
+		// another node may insert the same period at the same time: the unique key lets one insert through,
+		// and the other updates that row instead
+		if(!insertRollup(session, siteId, eventId, periodType, periodStart, count)) {
+			updateRollup(session, siteId, eventId, periodType, periodStart, count, add);
+		}
+	}
+
+	/** Insert a rollup row, returning false (and rolling back just the insert) if the row already exists. */
+	private static boolean insertRollup(Session session, String siteId, String eventId, String periodType, Date periodStart, long count) throws SQLException {
+		SiteActivityRollupImpl r = new SiteActivityRollupImpl();
+		r.setSiteId(siteId);
+		r.setEventId(eventId);
+		r.setPeriodType(periodType);
+		r.setPeriodStart(periodStart);
+		r.setCount(count);
+		Connection connection = session.connection();
+		Savepoint savepoint = connection.setSavepoint();
+		StatelessSession insert = session.getSessionFactory().openStatelessSession(connection);
+		try{
+			insert.insert(r);
+			return true;
+		}catch(ConstraintViolationException e){
+			connection.rollback(savepoint);
+			return false;
+		}finally{
+			insert.close();
+		}
+	}
+
+	private static int updateRollup(Session session, String siteId, String eventId, String periodType, Date periodStart, long count, boolean add) {
+		return session.createQuery("update SiteActivityRollupImpl r set r.count = " + (add ? "r.count + " : "") + ":count " +
+				"where r.siteId = :siteid and r.eventId = :eventid and r.periodType = :type and r.periodStart = :start")
+				.setLong("count", count)
+				.setString("siteid", siteId)
+				.setString("eventid", eventId)
+				.setString("type", periodType)
+				.setDate("start", periodStart)
+				.executeUpdate();
+	}
+
+	/**
+	 * Claim the initial build for this node. Only the first node to claim it on a given day builds,
+	 * so a node that stops while building leaves the build to be retried the next day.
+	 */
+	public static boolean claimBuild(Session session) throws SQLException {
+		Calendar c = Calendar.getInstance();
+		truncate(c);
+		return insertRollup(session, BUILT_MARKER_SITEID, BUILT_MARKER_SITEID, SiteActivityRollupImpl.PERIOD_WEEK, c.getTime(), 1);
+	}
+
+	/** Record that rollups exist for all the day rows present before rollup maintenance was switched on. */
+	public static void saveBuiltMarker(Session session) throws SQLException {
+		saveRollup(session, BUILT_MARKER_SITEID, BUILT_MARKER_SITEID, SiteActivityRollupImpl.PERIOD_MONTH, new Date(0), 1, false);
+	}
+
+	/** Have rollups been built for the existing day rows? */
+	public static boolean isBuilt(Session session) {
+		Criteria c = session.createCriteria(SiteActivityRollupImpl.class);
+		c.add(Expression.eq("siteId", BUILT_MARKER_SITEID));
+		c.add(Expression.eq("periodType", SiteActivityRollupImpl.PERIOD_MONTH));
+		c.setMaxResults(1);
+		return !c.list().isEmpty();
+	}
+}
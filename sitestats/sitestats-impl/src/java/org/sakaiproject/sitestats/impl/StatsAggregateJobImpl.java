@@ -27,6 +27,8 @@ import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,6 +49,8 @@ public class StatsAggregateJobImpl implements StatefulJob {
 	// Spring fields
 	private int					maxEventsPerRun		= 0;
 	private int					sqlBlockSize		= 1000;
+	private int					sqlFetchSize		= 0;
+	private int					readerThreads		= 1;
 	private long				startEventId		= -1;
 	private long 				lastEventIdInTable	= -1;
 
@@ -70,19 +74,17 @@ public class StatsAggregateJobImpl implements StatefulJob {
 	private final static String ORACLE_CHECK_FOR_CONTEXT = "select column_name from USER_TAB_COLUMNS where table_name='SAKAI_EVENT' and column_name='CONTEXT'";
 	private final static String MYSQL_CONTEXT_COLUMN   = ",CONTEXT as CONTEXT";
 	private final static String ORACLE_CONTEXT_COLUMN  = ",CONTEXT";
+	// Blocks are EVENT_ID ranges (seek on the primary key), never offsets
 	private String MYSQL_GET_EVENT					= "select " + MYSQL_DEFAULT_COLUMNS + MYSQL_CONTEXT_COLUMN + " " +
 														"from SAKAI_EVENT e join SAKAI_SESSION s on e.SESSION_ID=s.SESSION_ID " +
-														"where EVENT_ID >= ? " +
-														"order by EVENT_ID asc LIMIT ?";
+														"where EVENT_ID >= ? and EVENT_ID <= ? " +
+														"order by EVENT_ID asc";
 	
-	// SAK-28967 - this query is very slow, replace it with the one below
-	private String ORACLE_GET_EVENT					= "SELECT * FROM ( " +
-														"SELECT " +
+	private String ORACLE_GET_EVENT					= "SELECT " +
 															ORACLE_DEFAULT_COLUMNS + ORACLE_CONTEXT_COLUMN + " " +
 														"from SAKAI_EVENT e join SAKAI_SESSION s on e.SESSION_ID=s.SESSION_ID " +
-														"where EVENT_ID >= ? " +
-														"order by EVENT_ID asc) " +
-														"WHERE ROWNUM <= ?";
+														"where EVENT_ID >= ? and EVENT_ID <= ? " +
+														"order by EVENT_ID asc";
 	
 	private String MYSQL_PAST_SITE_EVENTS			= "select " + MYSQL_DEFAULT_COLUMNS + MYSQL_CONTEXT_COLUMN + " " +
 														"from SAKAI_EVENT e join SAKAI_SESSION s on e.SESSION_ID=s.SESSION_ID " +
@@ -210,132 +212,100 @@ public class StatsAggregateJobImpl implements StatefulJob {
 
 	private long getLastEventIdInTable() throws SQLException {
 		if(lastEventIdInTable == -1) {
-			Connection connection = null;
-			Statement st = null;
-			ResultSet rs = null;
+			lastEventIdInTable = readLastEventIdInTable();
+		}
+		return lastEventIdInTable;
+	}
+
+	private long readLastEventIdInTable() throws SQLException {
+		long lastId = 0;
+		Connection connection = null;
+		Statement st = null;
+		ResultSet rs = null;
+		try{
+			connection = getEventDbConnection();
+			st = connection.createStatement();
+			rs = st.executeQuery(LAST_EVENT_ID);
+			if(rs.next()){
+				lastId = rs.getLong("LAST_ID");
+			}
+		}catch(SQLException e){
+			LOG.error("Unable to retrieve events", e); 
+		}finally{
 			try{
-				connection = getEventDbConnection();
-				st = connection.createStatement();
-				rs = st.executeQuery(LAST_EVENT_ID);
-				if(rs.next()){
-					lastEventIdInTable = rs.getLong("LAST_ID");
-				}
-			}catch(SQLException e){
-				LOG.error("Unable to retrieve events", e); 
+				if(rs != null)
+					rs.close();
 			}finally{
 				try{
-					if(rs != null)
-						rs.close();
+					if(st != null)
+						st.close();
 				}finally{
-					try{
-						if(st != null)
-							st.close();
-					}finally{
-						closeEventDbConnection(connection);
-					}
+					closeEventDbConnection(connection);
 				}
 			}
 		}
-		return lastEventIdInTable;
+		return lastId;
 	}
 
 	private String startJob() throws SQLException {
-		List<Event> eventsQueue = new ArrayList<Event>();
 		long processedCounter = 0;
-		long offset = 0;
-		long lastProcessedEventId = 0;
 		long lastProcessedEventIdWithSuccess = 0;
 		long firstEventIdProcessed = -1;
-		long firstEventIdProcessedInBlock = -1;
-		Date lastEventDate = null;
 		Date lastEventDateWithSuccess = null;
 		long start = System.currentTimeMillis();
 		boolean sqlError = false;
 		String returnMessage = null;
 		
-		Connection connection = getEventDbConnection();
+		// events are read by EVENT_ID ranges (keyset), up to the last event present when the job started
 		long eventIdLowerLimit = getEventIdLowerLimit();
-		PreparedStatement st = null;
-		ResultSet rs = null;
+		long eventIdUpperLimit = readLastEventIdInTable();
+		long blockCount = eventIdUpperLimit < eventIdLowerLimit ? 0 : (eventIdUpperLimit - eventIdLowerLimit) / sqlBlockSize + 1;
+		int readerCount = (int) Math.max(1, Math.min(getReaderThreads(), blockCount));
+		List<EventBlockReader> readers = new ArrayList<EventBlockReader>();
+		List<Thread> readerThreads = new ArrayList<Thread>();
+		for(int i = 0; i < readerCount && blockCount > 0; i++) {
+			EventBlockReader reader = new EventBlockReader(eventIdLowerLimit + (long) i * sqlBlockSize, (long) readerCount * sqlBlockSize, eventIdUpperLimit);
+			Thread t = new Thread(reader, "SiteStats.StatsAggregateJob.Reader-" + i);
+			t.setDaemon(true);
+			readers.add(reader);
+			readerThreads.add(t);
+			t.start();
+		}
+		
 		try{
-			st = connection.prepareStatement(sqlGetEvent);
-			rs = null;
-			
-			// Let's make sure we don't end up in a never-ending loop
-			for (int loops = 0; loops < 100; loops++) {
-				long counter = 0;
-
-				// SAK-28967
-				if( offset == 0 ) {
-					offset = eventIdLowerLimit;
+			// process blocks in EVENT_ID order, saving a checkpoint (SST_JOB_RUN) after each one
+			for(long b = 0; b < blockCount; b++) {
+				EventBlock block = readers.get((int) (b % readerCount)).blocks.take();
+				if(block.error != null) {
+					throw block.error;
 				}
-				st.setLong( 1, offset );
-				st.setLong( 2, sqlBlockSize );
-				
-				rs = st.executeQuery();
-				
-				while(rs.next()){
-					Date date = null;
-					String event = null;
-					String ref = null;
-					String context = null;
-					String sessionUser = null;
-					String sessionId = null;
-					try{
-						//If an exception is launched, iteration is not aborted but no event is added to event queue
-						date = new Date(rs.getTimestamp("EVENT_DATE").getTime());
-						event = rs.getString("EVENT");
-						ref = rs.getString("REF");
-						sessionUser = rs.getString("SESSION_USER");
-						sessionId = rs.getString("SESSION_ID");
-						if(isEventContextSupported)
-							context = rs.getString("CONTEXT");
-						eventsQueue.add( statsUpdateManager.buildEvent(date, event, ref, context, sessionUser, sessionId) );
-						
-						lastProcessedEventId = rs.getInt("EVENT_ID");
-						lastEventDate = date;
-						if(firstEventIdProcessed == -1)
-							firstEventIdProcessed = jobRun.getStartEventId(); //was: lastProcessedEventId;
-						if(firstEventIdProcessedInBlock == -1)
-							firstEventIdProcessedInBlock = lastProcessedEventId;
-						processedCounter++;
-					}catch(Exception e){
-						if(LOG.isDebugEnabled())
-							LOG.debug("Ignoring "+event+", "+ref+", "+date+", "+sessionUser+", "+sessionId+" due to: "+e.toString());
-					}
-					counter++;
-				}
-				rs.close();
-				
-				// If we didn't see a single event, time to break out and wrap up this job
-				if (counter < 1) {
-					break;
+				if(block.rows < 1) {
+					continue;
 				}
-
-				if (firstEventIdProcessedInBlock > 0) {
-					// process events
-					boolean processedOk = statsUpdateManager.collectEvents(eventsQueue);
-					eventsQueue.clear();
-					if(processedOk){
-						lastProcessedEventIdWithSuccess = lastProcessedEventId;
-						lastEventDateWithSuccess = lastEventDate;
-						jobRun.setStartEventId(firstEventIdProcessed);
-						jobRun.setEndEventId(lastProcessedEventIdWithSuccess);
-						jobRun.setLastEventDate(lastEventDateWithSuccess);
-						jobRun.setJobEndDate(new Date(System.currentTimeMillis()));
-						saveJobRun(jobRun);
-					}else{
+				if(block.events.size() > 0) {
+					boolean processedOk = statsUpdateManager.collectEvents(block.events);
+					if(!processedOk){
 						returnMessage = "An error occurred while processing/persisting events to db. Please check your logs, fix possible problems and re-run this job (will start after last successful processed event).";
 						LOG.error(returnMessage);
 						throw new Exception(returnMessage);
 					}
+					processedCounter += block.events.size();
+					lastEventDateWithSuccess = block.lastEventDate;
 				}
-
-				firstEventIdProcessedInBlock = -1;
+				if(firstEventIdProcessed == -1)
+					firstEventIdProcessed = jobRun.getStartEventId();
+				// the whole id range was read: next run starts after it
+				lastProcessedEventIdWithSuccess = block.lastId;
+				jobRun.setStartEventId(firstEventIdProcessed);
+				jobRun.setEndEventId(lastProcessedEventIdWithSuccess);
+				jobRun.setLastEventDate(lastEventDateWithSuccess);
+				jobRun.setJobEndDate(new Date(System.currentTimeMillis()));
+				jobRun.setEventsProcessed(processedCounter);
+				jobRun.setEventsLag(eventIdUpperLimit - lastProcessedEventIdWithSuccess);
+				saveJobRun(jobRun);
+				
 				if(processedCounter >= getMaxEventsPerRun()) {
 					break;
-				} else {
-					offset += sqlBlockSize;
 				}
 			}
 
@@ -352,16 +322,9 @@ public class StatsAggregateJobImpl implements StatefulJob {
 				LOG.error("Unable to retrieve events due to an unknown cause", e);
 			}
 		}finally{
-			try{
-				if(rs != null)
-					rs.close();
-			}finally{
-				try{
-					if(st != null)
-						st.close();
-				}finally{
-					closeEventDbConnection(connection);
-				}
+			// readers may be waiting to hand over a block that won't be processed in this run
+			for(Thread t : readerThreads) {
+				t.interrupt();
 			}
 		}
 		
@@ -374,18 +337,121 @@ public class StatsAggregateJobImpl implements StatefulJob {
 		
 		if(firstEventIdProcessed == -1 && jobRun != null){
 			// no data was processed: do not persist to DB
-//			long eventId = jobRun.getEndEventId();
-//			firstEventIdProcessed = eventId;
-//			lastProcessedEventIdWithSuccess = eventId;
-//			jobRun.setEndEventId(lastProcessedEventId > 0 ? lastProcessedEventId : jobRun.getStartEventId());
-//			jobRun.setLastEventDate(lastEventDate != null ? lastEventDate : null);
-//			jobRun.setJobEndDate(new Date(System.currentTimeMillis()));
 			return "0 events processed in "+processingTime+"s (no entry will be added to SST_JOB_RUN; only events associated with a session are processed)";
-		}else{
-			saveJobRun(jobRun);
 		}
 		
-		return processedCounter + " events processed (ids: "+firstEventIdProcessed+" - "+lastProcessedEventIdWithSuccess+") in "+processingTime+"s (only events associated with a session are processed)";
+		// report how far behind SAKAI_EVENT the job still is
+		long lag = jobRun.getEventsLag();
+		try{
+			lag = Math.max(0, readLastEventIdInTable() - lastProcessedEventIdWithSuccess);
+		}catch(SQLException e){
+			LOG.warn("Unable to check last eventId in table SAKAI_EVENT", e);
+		}
+		jobRun.setEventsLag(lag);
+		saveJobRun(jobRun);
+		
+		long eventsPerSecond = processedCounter * 1000 / Math.max(1, System.currentTimeMillis() - start);
+		return processedCounter + " events processed (ids: "+firstEventIdProcessed+" - "+lastProcessedEventIdWithSuccess+") in "+processingTime+"s"
+				+ " ("+eventsPerSecond+" events/s, "+readerCount+" reader(s), "+lag+" event ids behind SAKAI_EVENT; only events associated with a session are processed)";
+	}
+	
+	/** SAKAI_EVENT rows with EVENT_ID between firstId and lastId (inclusive). */
+	private static class EventBlock {
+		private final long			firstId;
+		private final long			lastId;
+		private final List<Event>	events			= new ArrayList<Event>();
+		private long				rows			= 0;
+		private Date				lastEventDate	= null;
+		private Exception			error			= null;
+
+		private EventBlock(long firstId, long lastId) {
+			this.firstId = firstId;
+			this.lastId = lastId;
+		}
+	}
+	
+	/**
+	 * Reads every n-th block of a job run on its own connection, staying one block ahead of
+	 * the job thread, so several disjoint EVENT_ID ranges are read at the same time.
+	 */
+	private class EventBlockReader implements Runnable {
+		private final BlockingQueue<EventBlock>	blocks	= new ArrayBlockingQueue<EventBlock>(1);
+		private final long						firstBlockId;
+		private final long						step;
+		private final long						upperLimit;
+
+		private EventBlockReader(long firstBlockId, long step, long upperLimit) {
+			this.firstBlockId = firstBlockId;
+			this.step = step;
+			this.upperLimit = upperLimit;
+		}
+
+		public void run() {
+			Connection connection = null;
+			PreparedStatement st = null;
+			try{
+				connection = getEventDbConnection();
+				if(connection == null) {
+					throw new SQLException("Unable to connect to the SAKAI_EVENT database");
+				}
+				st = connection.prepareStatement(sqlGetEvent);
+				st.setFetchSize(getSqlFetchSize() > 0 ? getSqlFetchSize() : sqlBlockSize);
+				for(long from = firstBlockId; from <= upperLimit; from += step) {
+					EventBlock block = new EventBlock(from, Math.min(from + sqlBlockSize - 1, upperLimit));
+					readEventBlock(st, block);
+					blocks.put(block);
+				}
+			}catch(InterruptedException e){
+				// job run finished or failed
+			}catch(Exception e){
+				EventBlock failed = new EventBlock(-1, -1);
+				failed.error = e;
+				blocks.clear();
+				blocks.offer(failed);
+			}finally{
+				try{
+					if(st != null)
+						st.close();
+				}catch(SQLException e){
+				}finally{
+					closeEventDbConnection(connection);
+				}
+			}
+		}
+	}
+	
+	private void readEventBlock(PreparedStatement st, EventBlock block) throws SQLException {
+		st.setLong(1, block.firstId);
+		st.setLong(2, block.lastId);
+		ResultSet rs = st.executeQuery();
+		try{
+			while(rs.next()){
+				Date date = null;
+				String event = null;
+				String ref = null;
+				String context = null;
+				String sessionUser = null;
+				String sessionId = null;
+				try{
+					//If an exception is launched, iteration is not aborted but no event is added to event queue
+					date = new Date(rs.getTimestamp("EVENT_DATE").getTime());
+					event = rs.getString("EVENT");
+					ref = rs.getString("REF");
+					sessionUser = rs.getString("SESSION_USER");
+					sessionId = rs.getString("SESSION_ID");
+					if(isEventContextSupported)
+						context = rs.getString("CONTEXT");
+					block.events.add( statsUpdateManager.buildEvent(date, event, ref, context, sessionUser, sessionId) );
+					block.lastEventDate = date;
+				}catch(Exception e){
+					if(LOG.isDebugEnabled())
+						LOG.debug("Ignoring "+event+", "+ref+", "+date+", "+sessionUser+", "+sessionId+" due to: "+e.toString());
+				}
+				block.rows++;
+			}
+		}finally{
+			rs.close();
+		}
 	}
 
 	private long getEventIdLowerLimit() {
@@ -627,6 +693,22 @@ public class StatsAggregateJobImpl implements StatefulJob {
 		this.sqlBlockSize = sqlBlockSize;
 	}
 
+	public int getSqlFetchSize() {
+		return sqlFetchSize;
+	}
+
+	public void setSqlFetchSize(int sqlFetchSize) {
+		this.sqlFetchSize = sqlFetchSize;
+	}
+
+	public int getReaderThreads() {
+		return readerThreads;
+	}
+
+	public void setReaderThreads(int readerThreads) {
+		this.readerThreads = readerThreads;
+	}
+
 	public long getStartEventId() {
 		return startEventId;
 	}
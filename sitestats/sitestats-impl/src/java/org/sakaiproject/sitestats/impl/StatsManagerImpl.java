@@ -24,7 +24,9 @@ import java.lang.reflect.Method;
 import java.math.BigDecimal;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -34,6 +36,7 @@ import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
 import java.util.Set;
+import java.util.TreeMap;
 
 import org.apache.commons.digester.Digester;
 import org.apache.commons.lang.StringEscapeUtils;
@@ -111,6 +114,7 @@ public class StatsManagerImpl extends HibernateDaoSupport implements StatsManage
 	private Boolean						enableSiteActivity						= null;
 	private Boolean						enableResourceStats						= null;
 	private Boolean						enableSitePresences						= null;
+	private Boolean						enableRollups							= null;
 	private Boolean						visitsInfoAvailable						= null;
 	private boolean						enableServerWideStats					= true;
 	private boolean						countFilesUsingCHS						= true;
@@ -145,6 +149,11 @@ public class StatsManagerImpl extends HibernateDaoSupport implements StatsManage
 	/** Caching */
 	private Cache						cachePrefsData							= null;
 	
+	/** Rollups of existing day rows are built (once, by any node) before reports use them. */
+	private volatile boolean			rollupsBuilt							= false;
+	private volatile long				rollupsBuiltLastCheck					= 0;
+	private static final long			ROLLUPS_BUILT_CHECK_INTERVAL			= 60 * 1000;
+	
 	
 
 	// ################################################################
@@ -207,6 +216,16 @@ public class StatsManagerImpl extends HibernateDaoSupport implements StatsManage
 		return enableSitePresences;
 	}
 	
+	public void setEnableRollups(Boolean enableRollups) {
+		this.enableRollups = enableRollups;
+	}
+	public void setEnableRollups(boolean enableRollups) {
+		this.enableRollups = Boolean.valueOf(enableRollups);
+	}
+	public boolean isEnableRollups() {
+		return enableRollups;
+	}
+	
 	public void setCountFilesUsingCHS(boolean countFilesUsingCHS) {
 		this.countFilesUsingCHS = countFilesUsingCHS;
 	}
@@ -342,8 +361,19 @@ public class StatsManagerImpl extends HibernateDaoSupport implements StatsManage
 		M_ets.addPriorityObserver(this);
 		cachePrefsData = M_ms.newCache(PrefsData.class.getName());
 		
-		logger.info("init(): - (Event.getContext()?, site visits enabled, charts background color, charts in 3D, charts transparency, item labels visible on bar charts) : " +
-							isEventContextSupported+','+enableSiteVisits+','+chartBackgroundColor+','+chartIn3D+','+chartTransparency+','+itemLabelsVisible);
+		// Build rollups of the existing day rows in background, the first time rollups are enabled
+		if(enableRollups.booleanValue() && !isRollupsReady()) {
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					buildRollups();
+				}
+			}, "SiteStats.RollupsBuilder");
+			t.setDaemon(true);
+			t.start();
+		}
+		
+		logger.info("init(): - (Event.getContext()?, site visits enabled, charts background color, charts in 3D, charts transparency, item labels visible on bar charts, rollups enabled) : " +
+							isEventContextSupported+','+enableSiteVisits+','+chartBackgroundColor+','+chartIn3D+','+chartTransparency+','+itemLabelsVisible+','+enableRollups);
 	}
 	
 	public void checkAndSetDefaultPropertiesIfNotSet() {
@@ -359,6 +389,10 @@ public class StatsManagerImpl extends HibernateDaoSupport implements StatsManage
 		if(enableResourceStats == null) {
 			enableResourceStats = true;
 		}
+		if(enableRollups == null) {
+			// turn off, by default
+			enableRollups = false;
+		}
 		if(enableSitePresences == null) {
 			// turn off, by default
 			enableSitePresences = false;// M_scs.getBoolean("display.users.present", false) || M_scs.getBoolean("presence.events.log", false);
@@ -3442,6 +3476,8 @@ public class StatsManagerImpl extends HibernateDaoSupport implements StatsManage
 	public long getTotalSiteVisits(final String siteId, final Date iDate, final Date fDate) {
 		if(siteId == null){
 			throw new IllegalArgumentException("Null siteId");
+		}else if(isRollupsReady()){
+			return getTotalFromRollups(siteId, null, true, iDate, fDate);
 		}else{
 			String iDateStr = "";
 			String fDateStr = "";
@@ -3719,6 +3755,8 @@ public class StatsManagerImpl extends HibernateDaoSupport implements StatsManage
 	public List<SiteActivity> getSiteActivityByMonth(final String siteId, final List<String> events, final Date iDate, final Date fDate) {
 		if(siteId == null){
 			throw new IllegalArgumentException("Null siteId");
+		}else if(isRollupsReady()){
+			return getSiteActivityByMonthFromRollups(siteId, events, iDate, fDate);
 		}else{
 			String iDateStr = "";
 			String fDateStr = "";
@@ -3811,6 +3849,8 @@ public class StatsManagerImpl extends HibernateDaoSupport implements StatsManage
 	public List<SiteActivityByTool> getSiteActivityByTool(final String siteId, final List<String> events, final Date iDate, final Date fDate) {
 		if(siteId == null){
 			throw new IllegalArgumentException("Null siteId");
+		}else if(isRollupsReady()){
+			return getSiteActivityByToolFromRollups(siteId, events, iDate, fDate);
 		}else{
 			String iDateStr = "";
 			String fDateStr = "";
@@ -3985,6 +4025,8 @@ public class StatsManagerImpl extends HibernateDaoSupport implements StatsManage
 	public long getTotalSiteActivity(final String siteId, final List<String> events, final Date iDate, final Date fDate) {
 		if(siteId == null){
 			throw new IllegalArgumentException("Null siteId");
+		}else if(isRollupsReady()){
+			return getTotalFromRollups(siteId, events, false, iDate, fDate);
 		}else{
 			String iDateStr = "";
 			String fDateStr = "";
@@ -4027,6 +4069,199 @@ public class StatsManagerImpl extends HibernateDaoSupport implements StatsManage
 	}
 
 	
+	// ################################################################
+	// Rollups
+	// ################################################################
+	/**
+	 * Build week/month rollups for all the sites with day rows, then record that they are built.
+	 * Run once, when rollups are first enabled, by the first node to claim the build; the consolidation
+	 * step keeps them current afterwards.
+	 */
+	public void buildRollups() {
+		Boolean claimed = (Boolean) getHibernateTemplate().execute(new HibernateCallback() {
+			public Object doInHibernate(Session session) throws HibernateException, SQLException {
+				Transaction tx = null;
+				try{
+					tx = session.beginTransaction();
+					boolean claimed = RollupUtil.claimBuild(session);
+					tx.commit();
+					return Boolean.valueOf(claimed);
+				}catch(Exception e){
+					if(tx != null) tx.rollback();
+					LOG.warn("Unable to claim building rollups", e);
+					return Boolean.FALSE;
+				}
+			}
+		});
+		if(!claimed.booleanValue()) {
+			LOG.info("SiteStats rollups are built by another node");
+			return;
+		}
+		final String hql = "select distinct s.siteId from SiteActivityImpl as s";
+		final String hqlVisits = "select distinct s.siteId from SiteVisitsImpl as s";
+		HibernateCallback hcb = new HibernateCallback() {
+			public Object doInHibernate(Session session) throws HibernateException, SQLException {
+				Set<String> siteIds = new HashSet<String>(session.createQuery(hql).list());
+				siteIds.addAll(session.createQuery(hqlVisits).list());
+				return siteIds;
+			}
+		};
+		Set<String> siteIds = (Set<String>) getHibernateTemplate().execute(hcb);
+		LOG.info("Building SiteStats rollups for " + siteIds.size() + " sites");
+		long startTime = System.currentTimeMillis();
+		for(final String siteId : siteIds) {
+			Boolean ok = (Boolean) getHibernateTemplate().execute(new HibernateCallback() {
+				public Object doInHibernate(Session session) throws HibernateException, SQLException {
+					Transaction tx = null;
+					try{
+						tx = session.beginTransaction();
+						RollupUtil.rebuildRollups(session, siteId);
+						tx.commit();
+					}catch(Exception e){
+						if(tx != null) tx.rollback();
+						LOG.warn("Unable to build rollups for site " + siteId, e);
+						return Boolean.FALSE;
+					}
+					return Boolean.TRUE;
+				}
+			});
+			if(!ok.booleanValue()) {
+				// leave the marker unset: reports keep reading day rows and the next startup retries
+				return;
+			}
+		}
+		getHibernateTemplate().execute(new HibernateCallback() {
+			public Object doInHibernate(Session session) throws HibernateException, SQLException {
+				Transaction tx = null;
+				try{
+					tx = session.beginTransaction();
+					RollupUtil.saveBuiltMarker(session);
+					tx.commit();
+				}catch(Exception e){
+					if(tx != null) tx.rollback();
+					LOG.warn("Unable to save rollups marker", e);
+				}
+				return null;
+			}
+		});
+		rollupsBuilt = true;
+		LOG.info("Built SiteStats rollups in " + (System.currentTimeMillis() - startTime) + " ms");
+	}
+	
+	/** Can reports be answered from rollups? */
+	private boolean isRollupsReady() {
+		if(!enableRollups.booleanValue()) {
+			return false;
+		}
+		if(!rollupsBuilt && System.currentTimeMillis() - rollupsBuiltLastCheck > ROLLUPS_BUILT_CHECK_INTERVAL) {
+			rollupsBuiltLastCheck = System.currentTimeMillis();
+			rollupsBuilt = ((Boolean) getHibernateTemplate().execute(new HibernateCallback() {
+				public Object doInHibernate(Session session) throws HibernateException, SQLException {
+					return Boolean.valueOf(RollupUtil.isBuilt(session));
+				}
+			})).booleanValue();
+		}
+		return rollupsBuilt;
+	}
+	
+	/**
+	 * Get activity (or visits) counts between two dates (inclusive), reading whole months and weeks
+	 * from rollups and only the remaining days from SST_SITEACTIVITY (or SST_SITEVISITS).
+	 * @return a list of {period start date, event id, count}, with site visits under {@link #SITEVISIT_EVENTID}
+	 */
+	private List<Object[]> getRollupCounts(final String siteId, final List<String> events, final boolean visits, Date iDate, Date fDate) {
+		final RollupUtil.Plan plan = RollupUtil.getPlan(iDate != null ? iDate : new Date(0), fDate != null ? fDate : new Date());
+		final Collection<String> eventIds = visits ? Arrays.asList(SITEVISIT_EVENTID) 
+				: (events != null && events.size() > 0) ? events : M_ers.getEventIds();
+		final String hqlDays = visits
+				? "select s.date, sum(s.totalVisits) from SiteVisitsImpl as s " +
+					"where s.siteId = :siteid and s.date >= :idate and s.date < :fdate " +
+					"group by s.date"
+				: "select s.date, s.eventId, sum(s.count) from SiteActivityImpl as s " +
+					"where s.siteId = :siteid and s.eventId in (:eventlist) and s.date >= :idate and s.date < :fdate " +
+					"group by s.date, s.eventId";
+		final String hqlRollups = "select r.periodStart, r.eventId, sum(r.count) from SiteActivityRollupImpl as r " +
+				"where r.siteId = :siteid and r.eventId in (:eventlist) and r.periodType = :type " +
+				"and r.periodStart >= :idate and r.periodStart < :fdate " +
+				"group by r.periodStart, r.eventId";
+		HibernateCallback hcb = new HibernateCallback() {
+			public Object doInHibernate(Session session) throws HibernateException, SQLException {
+				List<Object[]> results = new ArrayList<Object[]>();
+				for(Date[] range : plan.getDays()) {
+					Query q = session.createQuery(hqlDays);
+					q.setString("siteid", siteId);
+					if(!visits)
+						q.setParameterList("eventlist", eventIds);
+					q.setDate("idate", range[0]);
+					q.setDate("fdate", range[1]);
+					for(Object[] r : (List<Object[]>) q.list()) {
+						results.add(visits ? new Object[] {r[0], SITEVISIT_EVENTID, r[1]} : r);
+					}
+				}
+				for(String type : new String[] {SiteActivityRollupImpl.PERIOD_WEEK, SiteActivityRollupImpl.PERIOD_MONTH}) {
+					for(Date[] range : SiteActivityRollupImpl.PERIOD_WEEK.equals(type) ? plan.getWeeks() : plan.getMonths()) {
+						Query q = session.createQuery(hqlRollups);
+						q.setString("siteid", siteId);
+						q.setParameterList("eventlist", eventIds);
+						q.setString("type", type);
+						q.setDate("idate", range[0]);
+						q.setDate("fdate", range[1]);
+						results.addAll(q.list());
+					}
+				}
+				return results;
+			}
+		};
+		return (List<Object[]>) getHibernateTemplate().execute(hcb);
+	}
+	
+	private long getTotalFromRollups(String siteId, List<String> events, boolean visits, Date iDate, Date fDate) {
+		long total = 0;
+		for(Object[] r : getRollupCounts(siteId, events, visits, iDate, fDate)) {
+			total += ((Number) r[2]).longValue();
+		}
+		return total;
+	}
+	
+	private List<SiteActivity> getSiteActivityByMonthFromRollups(String siteId, List<String> events, Date iDate, Date fDate) {
+		Map<Date, SiteActivity> byMonth = new TreeMap<Date, SiteActivity>();
+		for(Object[] r : getRollupCounts(siteId, events, false, iDate, fDate)) {
+			Date month = RollupUtil.getPeriodStart(SiteActivityRollupImpl.PERIOD_MONTH, (Date) r[0]);
+			SiteActivity c = byMonth.get(month);
+			if(c == null) {
+				c = new SiteActivityImpl();
+				c.setSiteId(siteId);
+				c.setDate(month);
+				c.setEventId(null);
+				byMonth.put(month, c);
+			}
+			c.setCount(c.getCount() + ((Number) r[2]).longValue());
+		}
+		return new ArrayList<SiteActivity>(byMonth.values());
+	}
+	
+	private List<SiteActivityByTool> getSiteActivityByToolFromRollups(String siteId, List<String> events, Date iDate, Date fDate) {
+		Map<String,ToolInfo> eventIdToolMap = M_ers.getEventIdToolMap();
+		Map<String,SiteActivityByTool> toolidSABT = new HashMap<String, SiteActivityByTool>();
+		List<ToolInfo> allTools = M_ers.getEventRegistry();
+		for(Object[] r : getRollupCounts(siteId, events, false, iDate, fDate)) {
+			ToolInfo toolInfo = eventIdToolMap.get((String) r[1]);
+			if(toolInfo != null) {
+				String toolId = toolInfo.getToolId();
+				SiteActivityByTool c = toolidSABT.get(toolId);
+				if(c == null) {
+					c = new SiteActivityByToolImpl();
+					c.setSiteId(siteId);
+					c.setTool(allTools.get(allTools.indexOf(new ToolInfo(toolId))));
+					toolidSABT.put(toolId, c);
+				}
+				c.setCount(c.getCount() + ((Number) r[2]).longValue());
+			}
+		}
+		return new ArrayList<SiteActivityByTool>(toolidSABT.values());
+	}
+
+	
 	// ################################################################
 	// Utility methods
 	// ################################################################
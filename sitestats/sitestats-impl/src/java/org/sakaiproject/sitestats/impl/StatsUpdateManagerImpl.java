@@ -32,6 +32,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.lang.StringUtils;
@@ -67,7 +72,7 @@ import org.springframework.orm.hibernate3.support.HibernateDaoSupport;
 /**
  * @author <a href="mailto:nuno@ufp.pt">Nuno Fernandes</a>
  */
-public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runnable, StatsUpdateManager, Observer, StatsUpdateManagerMXBean {
+public class StatsUpdateManagerImpl extends HibernateDaoSupport implements StatsUpdateManager, Observer, StatsUpdateManagerMXBean {
 	private Logger								LOG									= LoggerFactory.getLogger(StatsUpdateManagerImpl.class);
 	private final static String				PRESENCE_SUFFIX						= "-presence";
 	private final static int				PRESENCE_SUFFIX_LENGTH				= PRESENCE_SUFFIX.length();
@@ -77,6 +82,9 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 	public long								collectThreadUpdateInterval			= 4000L;
 	private boolean							collectAdminEvents					= false;
 	private boolean							collectEventsForSiteWithToolOnly	= true;
+	private int								collectThreadShards					= 4;
+	private int								collectThreadQueueSize				= 100000;
+	private long							collectThreadQueueMaxWait			= 1000L;
 
 	/** Sakai services */
 	private StatsManager					M_sm;
@@ -88,37 +96,26 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 	private UsageSessionService				M_uss;
 	private EventTrackingService			M_ets;
 
-	/** Collect Thread and Semaphore */
-	private Thread							collectThread;
-	private List<Event>						collectThreadQueue					= new ArrayList<Event>();
-	private Object							collectThreadSemaphore				= new Object();
-	private boolean							collectThreadRunning				= false;
-
-	/** Collect thread queue maps */
-	private Map<String, EventStat>					eventStatMap			= Collections.synchronizedMap(new HashMap<String, EventStat>());
-	private Map<String, ResourceStat>				resourceStatMap			= Collections.synchronizedMap(new HashMap<String, ResourceStat>());
-	private Map<String, LessonBuilderStat>			lessonBuilderStatMap	= Collections.synchronizedMap(new HashMap<String, LessonBuilderStat>());
-	private Map<String, SiteActivity>				activityMap				= Collections.synchronizedMap(new HashMap<String, SiteActivity>());
-	private Map<String, SiteVisits>					visitsMap				= Collections.synchronizedMap(new HashMap<String, SiteVisits>());
-	private Map<String, SitePresenceConsolidation>	presencesMap			= Collections.synchronizedMap(new HashMap<String, SitePresenceConsolidation>());
-	private Map<UniqueVisitsKey, Integer>			uniqueVisitsMap			= Collections.synchronizedMap(new HashMap<UniqueVisitsKey, Integer>());
-	private Map<String, EventDetail>		eventDetailMap						= Collections.synchronizedMap(new HashMap<String, EventDetail>());
-	private Map<String, ServerStat>					serverStatMap			= Collections.synchronizedMap(new HashMap<String, ServerStat>());
-	private Map<String, UserStat>					userStatMap				= Collections.synchronizedMap(new HashMap<String, UserStat>());
-
-	private Map<String, String>				lessonPageCreateEventMap		=  new HashMap<String, String>();
+	/** Collect threads: one per shard, events are partitioned on their site */
+	private volatile ConsolidationShard[]	shards								= null;
+	private volatile boolean				collectThreadRunning				= false;
+
+	/** Collect thread queue maps for events not related to a site (written by the first shard) */
+	private final Map<String, ServerStat>			serverStatMap			= new ConcurrentHashMap<String, ServerStat>();
+	private final Map<String, UserStat>				userStatMap				= new ConcurrentHashMap<String, UserStat>();
+
+	private final Map<String, String>		lessonPageCreateEventMap		=  new ConcurrentHashMap<String, String>();
 
 	private boolean							initialized							= false;
 	
-	private final ReentrantLock				lock								= new ReentrantLock();
 	//Default events collected for SST_EVENT_DETAIL -Qu bugid:3480 11/19/2010
 	private String interestedEvents = "sam.assessment.take, sam.assessment.save.exit,sam.assessment.submit";
 	//need to have this info in the resource ref field of samigo events ex: publishedAssessmentId=5632
 	
 	/** Metrics */
-	private boolean							isIdle								= true;
-	private long							totalEventsProcessed				= 0;
-	private long							totalTimeInEventProcessing			= 0;
+	private volatile boolean				isIdle								= true;
+	private final AtomicLong				totalEventsProcessed				= new AtomicLong();
+	private final AtomicLong				totalTimeInEventProcessing			= new AtomicLong();
 	private long							resetTime					= System.currentTimeMillis();
 
 	
@@ -172,6 +169,33 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 		return collectEventsForSiteWithToolOnly;
 	}
 	
+	/** Number of collect threads, each consolidating the events of its own share of sites. Read on init(). */
+	public void setCollectThreadShards(int shards){
+		this.collectThreadShards = shards;
+	}
+	
+	public int getCollectThreadShards(){
+		return collectThreadShards;
+	}
+	
+	/** Maximum number of events waiting to be consolidated, over all collect threads. Read on init(). */
+	public void setCollectThreadQueueSize(int size){
+		this.collectThreadQueueSize = size;
+	}
+	
+	public int getCollectThreadQueueSize(){
+		return collectThreadQueueSize;
+	}
+	
+	/** How long (ms) a new event waits for room on a full queue before it is dropped. */
+	public void setCollectThreadQueueMaxWait(long maxWait){
+		this.collectThreadQueueMaxWait = maxWait;
+	}
+	
+	public long getCollectThreadQueueMaxWait(){
+		return collectThreadQueueMaxWait;
+	}
+	
 	public void setStatsManager(StatsManager mng){
 		this.M_sm = mng;
 	}
@@ -216,6 +240,9 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 		}
 		buff.append(", collect administrator events: " + collectAdminEvents);
 		buff.append(", collect events only for sites with SiteStats: " + collectEventsForSiteWithToolOnly);			
+		
+		ConsolidationShard[] current = getShards();
+		buff.append(", collect threads: " + current.length + " (queue size: " + current[0].queueSize + " each)");
 		logger.info(buff.toString());
 		
 		initialized = true;
@@ -256,7 +283,7 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 			//LOG.debug("Time spent pre-processing 1 event: " + (endTime-startTime) + " ms");
 			boolean success = doUpdateConsolidatedEvents();
 			isIdle = true;
-			totalTimeInEventProcessing += (System.currentTimeMillis() - startTime);
+			totalTimeInEventProcessing.addAndGet(System.currentTimeMillis() - startTime);
 			return success;
 		}
 		return true;
@@ -293,7 +320,7 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 				//LOG.debug("Time spent pre-processing " + eventCount + " event(s): " + (endTime-startTime) + " ms");
 				boolean success = doUpdateConsolidatedEvents();
 				isIdle = true;
-				totalTimeInEventProcessing += (System.currentTimeMillis() - startTime);
+				totalTimeInEventProcessing.addAndGet(System.currentTimeMillis() - startTime);
 				return success;
 			}
 		}
@@ -379,27 +406,57 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 	// Metrics related methods
 	// ################################################################	
 	public int getQueueSize() {
-		return collectThreadQueue.size();
+		int size = 0;
+		for(ConsolidationShard shard : getShards()) {
+			size += shard.queue.size();
+		}
+		return size;
 	}
 	
 	public boolean isIdle() {
-		return this.isIdle && getQueueSize() == 0;
+		for(ConsolidationShard shard : getShards()) {
+			if(!shard.isIdle()) {
+				return false;
+			}
+		}
+		return this.isIdle;
 	}
 	
 	public void resetMetrics() {
-		totalEventsProcessed = 0;
-		totalTimeInEventProcessing = 0;
+		totalEventsProcessed.set(0);
+		totalTimeInEventProcessing.set(0);
+		for(ConsolidationShard shard : getShards()) {
+			shard.resetMetrics();
+		}
 		resetTime = System.currentTimeMillis();
 	}
 	
 	@Override
 	public long getNumberOfEventsProcessed() {
-		return totalEventsProcessed;
+		return totalEventsProcessed.get();
 	}
 	
 	@Override
 	public long getTotalTimeInEventProcessing() {
-		return totalTimeInEventProcessing;
+		return totalTimeInEventProcessing.get();
+	}
+	
+	@Override
+	public long getNumberOfEventsDropped() {
+		long dropped = 0;
+		for(ConsolidationShard shard : getShards()) {
+			dropped += shard.eventsDropped.get();
+		}
+		return dropped;
+	}
+	
+	@Override
+	public long getQueueLag() {
+		long lag = 0;
+		for(ConsolidationShard shard : getShards()) {
+			lag = Math.max(lag, shard.getLag());
+		}
+		return lag;
 	}
 	
 	@Override
@@ -414,10 +471,14 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 	
 	@Override
 	public double getNumberOfEventsProcessedPerSec() {
-		if(totalTimeInEventProcessing > 0) {
-			return Util.round((double)totalEventsProcessed / ((double)totalTimeInEventProcessing/1000), 3);
+		return getEventsPerSec(getNumberOfEventsProcessed(), getTotalTimeInEventProcessing());
+	}
+	
+	private static double getEventsPerSec(long events, long time) {
+		if(time > 0) {
+			return Util.round((double)events / ((double)time/1000), 3);
 		}else{
-			return Util.round((double)totalEventsProcessed / 0.001, 3); // => will assume 1ms instead of 0ms
+			return Util.round((double)events / 0.001, 3); // => will assume 1ms instead of 0ms
 		}
 	}
 	
@@ -425,16 +486,17 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 	public double getNumberOfEventsGeneratedPerSec() {
 		double ellapsed = (double) getTotalTimeElapsedSinceReset();
 		if(ellapsed > 0) {
-			return Util.round((double)totalEventsProcessed / (ellapsed/1000), 3);
+			return Util.round((double)getNumberOfEventsProcessed() / (ellapsed/1000), 3);
 		}else{
-			return Util.round((double)totalEventsProcessed / 0.001, 3); // => will assume 1ms instead of 0ms
+			return Util.round((double)getNumberOfEventsProcessed() / 0.001, 3); // => will assume 1ms instead of 0ms
 		}
 	}
 	
 	@Override
 	public long getAverageTimeInEventProcessingPerEvent() {
-		if(totalEventsProcessed > 0) {
-			return totalTimeInEventProcessing / totalEventsProcessed;
+		long processed = getNumberOfEventsProcessed();
+		if(processed > 0) {
+			return getTotalTimeInEventProcessing() / processed;
 		}else{
 			return 0;
 		}
@@ -452,6 +514,17 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 			sb.append("\t\tNumber of events genereated in Sakai per sec: ").append(getNumberOfEventsGeneratedPerSec()).append("\n");
 			sb.append("\t\tAverage time spent in event processing per event: ").append(getAverageTimeInEventProcessingPerEvent()).append(" ms\n");
 			sb.append("\t\tEvent queue size: ").append(getQueueSize()).append("\n");
+			sb.append("\t\tEvent queue lag: ").append(getQueueLag()).append(" ms\n");
+			sb.append("\t\tNumber of events dropped on a full queue: ").append(getNumberOfEventsDropped()).append("\n");
+			for(ConsolidationShard shard : getShards()) {
+				sb.append("\t\tCollect thread ").append(shard.index).append(": ");
+				sb.append(shard.eventsProcessed.get()).append(" events processed, ");
+				sb.append(getEventsPerSec(shard.eventsProcessed.get(), shard.timeInProcessing.get())).append(" events/sec, ");
+				sb.append("queue size ").append(shard.queue.size()).append(", ");
+				sb.append("lag ").append(shard.getLag()).append(" ms, ");
+				sb.append("last db update ").append(shard.lastUpdateTime).append(" ms, ");
+				sb.append(shard.eventsDropped.get()).append(" dropped\n");
+			}
 			sb.append("\t\tIdle: ").append(isIdle());
 		}else{
 			sb.append("#Events processed: ").append(getNumberOfEventsProcessed()).append(", ");
@@ -460,6 +533,19 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 			sb.append("#Events processed/sec: ").append(getNumberOfEventsProcessedPerSec()).append(", ");
 			sb.append("Avg. Time/event: ").append(getAverageTimeInEventProcessingPerEvent()).append(" ms, ");
 			sb.append("Event queue size: ").append(getQueueSize()).append(", ");
+			sb.append("Event queue lag: ").append(getQueueLag()).append(" ms, ");
+			sb.append("#Events dropped: ").append(getNumberOfEventsDropped()).append(", ");
+			sb.append("Collect threads: [");
+			ConsolidationShard[] current = getShards();
+			for(int i=0; i<current.length; i++) {
+				ConsolidationShard shard = current[i];
+				if(i > 0) sb.append("; ");
+				sb.append(shard.index).append(": ");
+				sb.append(getEventsPerSec(shard.eventsProcessed.get(), shard.timeInProcessing.get())).append(" events/sec, ");
+				sb.append("queue ").append(shard.queue.size()).append(", ");
+				sb.append("lag ").append(shard.getLag()).append(" ms");
+			}
+			sb.append("], ");
 			sb.append("Idle: ").append(isIdle());
 		}
 		return sb.toString();
@@ -471,72 +557,66 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 	// ################################################################	
 	/** Method called whenever an new event is generated from EventTrackingService: do not call this method! */
 	public void update(Observable obs, Object o) {
-		// At the moment this isn't threadsafe, but as sakai event handling is single threaded this shoudn't be a problem,
-		// but it's not a formal contract.
 		if(o instanceof Event){
 			Event e = (Event) o;
 			Event eventWithPreciseDate = buildEvent(getToday(), e.getEvent(), e.getResource(), e.getContext(), e.getUserId(), e.getSessionId());
-			collectThreadQueue.add(eventWithPreciseDate);
-		}
-	}
-	
-	/** Update thread: do not call this method! */
-	public void run(){
-		try{
-			LOG.debug("Started statistics update thread");
-			while(collectThreadRunning){
-				// do update job
-				isIdle = false;
-				long startTime = System.currentTimeMillis();
-				int eventCount = collectThreadQueue.size();
-				if(eventCount > 0) {
-					//long startTime2 = System.currentTimeMillis();
-					while(collectThreadQueue.size() > 0){
-						preProcessEvent(collectThreadQueue.remove(0));
-					}
-					//long endTime2 = System.currentTimeMillis();
-					//LOG.debug("Time spent pre-processing " + eventCount + " event(s): " + (endTime2-startTime2) + " ms");
-				}
-				doUpdateConsolidatedEvents();
-				isIdle = true;
-				totalTimeInEventProcessing += (System.currentTimeMillis() - startTime);
-
-				// sleep if no work to do
-				if(!collectThreadRunning) break;
-				try{
-					synchronized (collectThreadSemaphore){
-						collectThreadSemaphore.wait(collectThreadUpdateInterval);
+			// events of the same site always go to the same collect thread, so they are consolidated in order
+			ConsolidationShard shard = getShard(e.getContext() != null ? e.getContext() : e.getResource());
+			try{
+				if(!shard.queue.offer(eventWithPreciseDate, collectThreadQueueMaxWait, TimeUnit.MILLISECONDS)) {
+					// the db can't keep up: drop it rather than hold up event delivery any longer
+					if(shard.eventsDropped.incrementAndGet() % 1000 == 1) {
+						LOG.warn("Statistics event queue " + shard.index + " is full, events are being dropped (" + shard.eventsDropped.get() + " so far)");
 					}
-				}catch(InterruptedException e){
-					LOG.warn("Failed to sleep statistics update thread",e);
 				}
+			}catch(InterruptedException ex){
+				Thread.currentThread().interrupt();
 			}
-		}catch(Throwable t){
-			LOG.debug("Failed to execute statistics update thread", t);
-		}finally{
-			if(collectThreadRunning){
-				// thread was stopped by an unknown error: restart
-				LOG.debug("Statistics update thread was stoped by an unknown error: restarting...");
-				startUpdateThread();
-			}else
-				LOG.debug("Finished statistics update thread");
 		}
 	}
 
-	/** Start the update thread */
+	/** Start the update threads */
 	private void startUpdateThread(){
 		collectThreadRunning = true;
-		collectThread = null;
-		collectThread = new Thread(this, "org.sakaiproject.sitestats.impl.StatsUpdateManagerImpl");
-		collectThread.start();
+		for(ConsolidationShard shard : getShards()) {
+			shard.start();
+		}
 	}
 	
-	/** Stop the update thread */
+	/** Stop the update threads */
 	private void stopUpdateThread(){
 		collectThreadRunning = false;
-		synchronized (collectThreadSemaphore){
-			collectThreadSemaphore.notifyAll();
+		for(ConsolidationShard shard : getShards()) {
+			shard.stop();
+		}
+	}
+	
+	private ConsolidationShard[] getShards() {
+		ConsolidationShard[] current = shards;
+		if(current == null) {
+			synchronized(this) {
+				current = shards;
+				if(current == null) {
+					int shardCount = Math.max(1, collectThreadShards);
+					int shardQueueSize = Math.max(1, collectThreadQueueSize / shardCount);
+					current = new ConsolidationShard[shardCount];
+					for(int i=0; i<shardCount; i++) {
+						current[i] = new ConsolidationShard(i, shardQueueSize);
+					}
+					shards = current;
+				}
+			}
 		}
+		return current;
+	}
+	
+	/** The shard consolidating the events of this site (or other partitioning key) */
+	private ConsolidationShard getShard(String key) {
+		ConsolidationShard[] current = getShards();
+		if(key == null) {
+			return current[0];
+		}
+		return current[(key.hashCode() & Integer.MAX_VALUE) % current.length];
 	}
 	
 
@@ -544,7 +624,7 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 	// Event process methods
 	// ################################################################	
 	private void preProcessEvent(Event event) {
-		totalEventsProcessed++;
+		totalEventsProcessed.incrementAndGet();
 		String userId = event.getUserId();
 		Event e = fixMalFormedEvents(event);
 		if (e == null) {
@@ -642,12 +722,13 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 			return;
 
 		Date date = getTruncatedDate(dateTime);
+		// all the rows of a site are consolidated (and written) by the same shard
+		ConsolidationShard shard = getShard(siteId);
 		// update		
 		if(isRegisteredEvent(eventId) && !StatsManager.SITEVISITEND_EVENTID.equals(eventId)){
 			// add to eventStatMap
 			String key = userId+siteId+eventId+date;
-			synchronized(eventStatMap){
-				EventStat e1 = eventStatMap.get(key);
+			shard.eventStatMap.compute(key, (k, e1) -> {
 				if(e1 == null){
 					e1 = new EventStatImpl();
 					e1.setUserId(userId);
@@ -656,36 +737,29 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 					e1.setDate(date);
 				}
 				e1.setCount(e1.getCount() + 1);
-				eventStatMap.put(key, e1);
-			}
+				return e1;
+			});
 			
 			//added by -Qu
 			if(Arrays.asList(getInterestedEvents()).contains(eventId)){
 				Date dTime = Calendar.getInstance().getTime();
 				String key1 = userId+siteId+eventId+dTime;
 				// add to eventDetailMap
-				synchronized(eventDetailMap){
-					EventDetail e1 = eventDetailMap.get(key1);
-					if(e1 == null){
-						e1 = new EventDetailImpl();
-						e1.setUserId(userId);
-						e1.setSiteId(siteId);
-						e1.setEventId(eventId);
-						e1.setDate(dTime);
-						e1.setItemId(getItemId(resourceRef));
-						e1.setItemType(getItemType(resourceRef));
-						eventDetailMap.put(key1, e1);
-					}
-					else
-						LOG.info("Duplicate event " + eventId + " for user " + userId + " at site " + siteId + " at time " + dTime);
-				}
+				EventDetail e1 = new EventDetailImpl();
+				e1.setUserId(userId);
+				e1.setSiteId(siteId);
+				e1.setEventId(eventId);
+				e1.setDate(dTime);
+				e1.setItemId(getItemId(resourceRef));
+				e1.setItemType(getItemType(resourceRef));
+				if(shard.eventDetailMap.putIfAbsent(key1, e1) != null)
+					LOG.info("Duplicate event " + eventId + " for user " + userId + " at site " + siteId + " at time " + dTime);
 			}
 
 			if(!StatsManager.SITEVISIT_EVENTID.equals(eventId)){
 				// add to activityMap
 				String key2 = siteId+date+eventId;
-				synchronized(activityMap){
-					SiteActivity e2 = activityMap.get(key2);
+				shard.activityMap.compute(key2, (k, e2) -> {
 					if(e2 == null){
 						e2 = new SiteActivityImpl();
 						e2.setSiteId(siteId);
@@ -693,22 +767,22 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 						e2.setEventId(eventId);
 					}
 					e2.setCount(e2.getCount() + 1);
-					activityMap.put(key2, e2);
-				}
+					return e2;
+				});
 			}
 		}	
 
 		if(eventId.startsWith(StatsManager.RESOURCE_EVENTID_PREFIX)){
 			// add to resourceStatMap
-			String resourceAction = null;
+			String action = null;
 			try{
-				resourceAction = eventId.split("\\.")[1];
+				action = eventId.split("\\.")[1];
 			}catch(ArrayIndexOutOfBoundsException ex){
-				resourceAction = eventId;
+				action = eventId;
 			}
+			final String resourceAction = action;
 			String key = userId+siteId+resourceRef+resourceAction+date;
-			synchronized(resourceStatMap){
-				ResourceStat e1 = resourceStatMap.get(key);
+			shard.resourceStatMap.compute(key, (k, e1) -> {
 				if(e1 == null){
 					e1 = new ResourceStatImpl();
 					e1.setUserId(userId);
@@ -718,8 +792,8 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 					e1.setDate(date);
 				}
 				e1.setCount(e1.getCount() + 1);
-				resourceStatMap.put(key, e1);
-			}
+				return e1;
+			});
 		} else if (eventId.startsWith(StatsManager.LESSONS_EVENTID_PREFIX)) {
 			String[] resourceParts = resourceRef.split("/");
 			if (resourceParts.length > 3 && "page".equals(resourceParts[2])) {
@@ -773,7 +847,9 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 
 						if (creatorUserIds.size() > 0) {
 							creatorUserId = creatorUserIds.get(0);
-							lessonPageCreateEventMap.put(resourceRef, creatorUserId);
+							if (creatorUserId != null) {
+								lessonPageCreateEventMap.put(resourceRef, creatorUserId);
+							}
 							if (creatorUserIds.size() > 1) {
 								LOG.warn("Multiple create events for page reference: " + resourceRef);
 							}
@@ -781,18 +857,18 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 					}
 
 					if (creatorUserId == null || !creatorUserId.equals(userId)) {
-						addToLessonBuilderStatMap(key, userId, siteId, resourceRef, pageId, lessonBuilderAction, date);
+						addToLessonBuilderStatMap(shard, key, userId, siteId, resourceRef, pageId, lessonBuilderAction, date);
 					}
 				} else {
-					addToLessonBuilderStatMap(key, userId, siteId, resourceRef, pageId, lessonBuilderAction, date);
+					addToLessonBuilderStatMap(shard, key, userId, siteId, resourceRef, pageId, lessonBuilderAction, date);
 				}
 			}
 		} else if(StatsManager.SITEVISIT_EVENTID.equals(eventId)){
 			// add to visitsMap
 			String key = siteId+date;
-			lock.lock();
+			shard.lock.lock();
 			try{
-				SiteVisits e1 = visitsMap.get(key);
+				SiteVisits e1 = shard.visitsMap.get(key);
 				if(e1 == null){
 					e1 = new SiteVisitsImpl();
 					e1.setSiteId(siteId);
@@ -801,15 +877,15 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 				e1.setTotalVisits(e1.getTotalVisits() + 1);
 				// unique visits are determined when updating to db:
 				//	 --> e1.setTotalUnique(totalUnique);
-				visitsMap.put(key, e1);
+				shard.visitsMap.put(key, e1);
 				// place entry on map so we can update unique visits later
 				UniqueVisitsKey keyUniqueVisits = new UniqueVisitsKey(siteId, date);
-				uniqueVisitsMap.put(keyUniqueVisits, Integer.valueOf(1));
+				shard.uniqueVisitsMap.put(keyUniqueVisits, Integer.valueOf(1));
 				
 				// site presence started
 				if(M_sm.isEnableSitePresences()) {
 					String pKey = siteId+userId+date;
-					SitePresenceConsolidation spc = presencesMap.get(pKey);
+					SitePresenceConsolidation spc = shard.presencesMap.get(pKey);
 					if(spc == null) {
 						SitePresence sp = new SitePresenceImpl();
 						sp.setSiteId(siteId);
@@ -818,19 +894,19 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 						spc = new SitePresenceConsolidation(sp);
 					}
 					spc.sitePresence.setLastVisitStartTime(dateTime);
-					presencesMap.put(pKey, spc);					
+					shard.presencesMap.put(pKey, spc);					
 				}
 			}finally{
-				lock.unlock();
+				shard.lock.unlock();
 			}
 			
 		}else if(StatsManager.SITEVISITEND_EVENTID.equals(eventId)){
 			// site presence ended
 			if(M_sm.isEnableSitePresences()) {
 				String pKey = siteId+userId+date;
-				lock.lock();
+				shard.lock.lock();
 				try{
-					SitePresenceConsolidation spc = presencesMap.get(pKey);
+					SitePresenceConsolidation spc = shard.presencesMap.get(pKey);
 					if(spc == null) {
 						SitePresence sp = new SitePresenceImpl();
 						sp.setSiteId(siteId);
@@ -850,19 +926,18 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 						spc.sitePresence.setDuration(existingDuration + additionalDuration);						
 						spc.sitePresence.setLastVisitStartTime(null);	
 					}
-					presencesMap.put(pKey, spc);
+					shard.presencesMap.put(pKey, spc);
 				}finally{
-					lock.unlock();
+					shard.lock.unlock();
 				}
 			}
 		} 
 		
 	}
 
-	private void addToLessonBuilderStatMap(String key, String userId, String siteId, String pageRef, long pageId, String action, Date date) {
+	private void addToLessonBuilderStatMap(ConsolidationShard shard, String key, String userId, String siteId, String pageRef, long pageId, String action, Date date) {
 
-		synchronized (lessonBuilderStatMap) {
-			LessonBuilderStat e1 = lessonBuilderStatMap.get(key);
+		shard.lessonBuilderStatMap.compute(key, (k, e1) -> {
 			if (e1 == null) {
 				e1 = new LessonBuilderStatImpl();
 				e1.setUserId(userId);
@@ -873,8 +948,8 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 				e1.setDate(date);
 			}
 			e1.setCount(e1.getCount() + 1);
-			lessonBuilderStatMap.put(key, e1);
-		}
+			return e1;
+		});
 	}
 
 	protected boolean isRegisteredEvent(String eventId) {
@@ -888,16 +963,15 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 				
 		// add to serverStatMap
 		String key = eventId+date;
-		synchronized(serverStatMap){
-			ServerStat s = serverStatMap.get(key);
+		serverStatMap.compute(key, (k, s) -> {
 			if(s == null){
 				s = new ServerStatImpl();
 				s.setEventId(eventId);
 				s.setDate(date);
 			}
 			s.setCount(s.getCount() + 1);
-			serverStatMap.put(key, s);
-		}
+			return s;
+		});
 		
 	}
 	
@@ -908,16 +982,15 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 				
 		// add to userStatMap
 		String key = userId+date;
-		synchronized(userStatMap){
-			UserStat s = userStatMap.get(key);
+		userStatMap.compute(key, (k, s) -> {
 			if(s == null){
 				s = new UserStatImpl();
 				s.setUserId(userId);
 				s.setDate(date);
 			}
 			s.setCount(s.getCount() + 1);
-			userStatMap.put(key, s);
-		}
+			return s;
+		});
 		
 	}
 	
@@ -925,135 +998,129 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 	// ################################################################
 	// Db update methods
 	// ################################################################	
-	@SuppressWarnings("unchecked")
-	private synchronized boolean doUpdateConsolidatedEvents() {
-		long startTime = System.currentTimeMillis();
-		if(eventStatMap.size() > 0 || resourceStatMap.size() > 0
-				|| activityMap.size() > 0 || uniqueVisitsMap.size() > 0 
-				|| visitsMap.size() > 0 || presencesMap.size() > 0
-				|| serverStatMap.size() > 0 || userStatMap.size() > 0) {
-			Object r = getHibernateTemplate().execute(new HibernateCallback() {			
-				public Object doInHibernate(Session session) throws HibernateException, SQLException {
-					Transaction tx = null;
-					try{
-						tx = session.beginTransaction();
-						// do: EventStat
-						if(eventStatMap.size() > 0) {
-							Collection<EventStat> tmp1 = null;
-							synchronized(eventStatMap){
-								tmp1 = eventStatMap.values();
-								eventStatMap = Collections.synchronizedMap(new HashMap<String, EventStat>());
+	/** Write what every shard has consolidated so far */
+	private boolean doUpdateConsolidatedEvents() {
+		boolean success = true;
+		for(ConsolidationShard shard : getShards()) {
+			success = doUpdateConsolidatedEvents(shard) && success;
+		}
+		return success;
+	}
+	
+	/** Write what this shard has consolidated so far, in one transaction. The first shard also writes the server and user stats. */
+	private boolean doUpdateConsolidatedEvents(final ConsolidationShard shard) {
+		final boolean withServerStats = shard.index == 0;
+		synchronized(shard) {
+			long startTime = System.currentTimeMillis();
+			if(shard.hasConsolidatedEvents()
+					|| (withServerStats && (serverStatMap.size() > 0 || userStatMap.size() > 0))) {
+				Object r = getHibernateTemplate().execute(new HibernateCallback() {			
+					public Object doInHibernate(Session session) throws HibernateException, SQLException {
+						Transaction tx = null;
+						try{
+							tx = session.beginTransaction();
+							// do: EventStat
+							if(shard.eventStatMap.size() > 0) {
+								doUpdateEventStatObjects(session, drain(shard.eventStatMap));
 							}
-							doUpdateEventStatObjects(session, tmp1);
-						}
-
-						//do: EventDetail
-						if(eventDetailMap.size() > 0) {
-							Collection<EventDetail> tmp1 = null;
-							synchronized(eventDetailMap){
-								tmp1 = eventDetailMap.values();
-								eventDetailMap = Collections.synchronizedMap(new HashMap<String, EventDetail>());
+	
+							//do: EventDetail
+							if(shard.eventDetailMap.size() > 0) {
+								doUpdateEventDetailObjects(session, drain(shard.eventDetailMap));
 							}
-							doUpdateEventDetailObjects(session, tmp1);
-						}
-
-						// do: ResourceStat
-						if(resourceStatMap.size() > 0) {
-							Collection<ResourceStat> tmp2 = null;
-							synchronized(resourceStatMap){
-								tmp2 = resourceStatMap.values();
-								resourceStatMap = Collections.synchronizedMap(new HashMap<String, ResourceStat>());
+	
+							// do: ResourceStat
+							if(shard.resourceStatMap.size() > 0) {
+								doUpdateResourceStatObjects(session, drain(shard.resourceStatMap));
 							}
-							doUpdateResourceStatObjects(session, tmp2);
-						}
-
-						// do: Lessons ResourceStat
-						if (lessonBuilderStatMap.size() > 0) {
-							Collection<LessonBuilderStat> tmp3 = null;
-							synchronized (lessonBuilderStatMap) {
-								tmp3 = lessonBuilderStatMap.values();
-								lessonBuilderStatMap = Collections.synchronizedMap(new HashMap<String, LessonBuilderStat>());
+	
+							// do: Lessons ResourceStat
+							if (shard.lessonBuilderStatMap.size() > 0) {
+								doUpdateLessonBuilderStatObjects(session, drain(shard.lessonBuilderStatMap));
 							}
-							doUpdateLessonBuilderStatObjects(session, tmp3);
-						}
-						
-						// do: SiteActivity
-						if(activityMap.size() > 0) {
+							
+							// do: SiteActivity
 							Collection<SiteActivity> tmp3 = null;
-							synchronized(activityMap){
-								tmp3 = activityMap.values();
-								activityMap = Collections.synchronizedMap(new HashMap<String, SiteActivity>());
+							if(shard.activityMap.size() > 0) {
+								tmp3 = drain(shard.activityMap);
+								doUpdateSiteActivityObjects(session, tmp3);
 							}
-							doUpdateSiteActivityObjects(session, tmp3);
-						}
-	
-						// do: SiteVisits
-						if(uniqueVisitsMap.size() > 0 || visitsMap.size() > 0) {	
-							// determine unique visits for event related sites
-							Map<UniqueVisitsKey, Integer> tmp4;
-							synchronized(uniqueVisitsMap){
-								tmp4 = uniqueVisitsMap;
-								uniqueVisitsMap = Collections.synchronizedMap(new HashMap<UniqueVisitsKey, Integer>());
+		
+							// do: SiteVisits and SitePresences (consolidated together, under the shard lock)
+							Map<UniqueVisitsKey, Integer> tmp4 = null;
+							Collection<SiteVisits> tmp5 = null;
+							Collection<SitePresenceConsolidation> tmp6 = null;
+							shard.lock.lock();
+							try{
+								if(shard.uniqueVisitsMap.size() > 0 || shard.visitsMap.size() > 0) {
+									tmp4 = new HashMap<UniqueVisitsKey, Integer>(shard.uniqueVisitsMap);
+									shard.uniqueVisitsMap.clear();
+									tmp5 = drain(shard.visitsMap);
+								}
+								if(shard.presencesMap.size() > 0) {
+									tmp6 = drain(shard.presencesMap);
+								}
+							}finally{
+								shard.lock.unlock();
 							}
-							tmp4 = doGetSiteUniqueVisits(session, tmp4);
-						
-							// do: SiteVisits
-							if(visitsMap.size() > 0) {
-								Collection<SiteVisits> tmp5 = null;
-								synchronized(visitsMap){
-									tmp5 = visitsMap.values();
-									visitsMap = Collections.synchronizedMap(new HashMap<String, SiteVisits>());
+							if(tmp4 != null) {	
+								// determine unique visits for event related sites
+								tmp4 = doGetSiteUniqueVisits(session, tmp4);
+								if(tmp5.size() > 0) {
+									doUpdateSiteVisitsObjects(session, tmp5, tmp4);
 								}
-								doUpdateSiteVisitsObjects(session, tmp5, tmp4);
 							}
-						}
-						
-						// do: SitePresences
-						if(presencesMap.size() > 0) {
-							Collection<SitePresenceConsolidation> tmp6 = null;
-							synchronized(presencesMap){
-								tmp6 = presencesMap.values();
-								presencesMap = Collections.synchronizedMap(new HashMap<String, SitePresenceConsolidation>());
+							if(tmp6 != null) {
+								doUpdateSitePresencesObjects(session, tmp6);
 							}
-							doUpdateSitePresencesObjects(session, tmp6);
-						}
-						
-						// do: ServerStats
-						if(serverStatMap.size() > 0) {
-							Collection<ServerStat> tmp7 = null;
-							synchronized(serverStatMap){
-								tmp7 = serverStatMap.values();
-								serverStatMap = Collections.synchronizedMap(new HashMap<String, ServerStat>());
+							
+							// do: week/month rollups of SiteActivity and SiteVisits
+							if(M_sm.isEnableRollups()) {
+								RollupUtil.updateRollups(session, tmp3, tmp5);
 							}
-							doUpdateServerStatObjects(session, tmp7);
-						}
-						
-						// do: UserStats
-						if(userStatMap.size() > 0) {
-							Collection<UserStat> tmp8 = null;
-							synchronized(userStatMap){
-								tmp8 = userStatMap.values();
-								userStatMap = Collections.synchronizedMap(new HashMap<String, UserStat>());
+							
+							if(withServerStats) {
+								// do: ServerStats
+								if(serverStatMap.size() > 0) {
+									doUpdateServerStatObjects(session, drain(serverStatMap));
+								}
+								
+								// do: UserStats
+								if(userStatMap.size() > 0) {
+									doUpdateUserStatObjects(session, drain(userStatMap));
+								}
 							}
-							doUpdateUserStatObjects(session, tmp8);
+		
+							// commit ALL
+							tx.commit();
+						}catch(Exception e){
+							if(tx != null) tx.rollback();
+							LOG.warn("Unable to commit transaction: ", e);
+							return Boolean.FALSE;
 						}
+						return Boolean.TRUE;
+					}			
+				});
+				long endTime = System.currentTimeMillis();
+				shard.lastUpdateTime = endTime - startTime;
+				LOG.debug("Time spent in doUpdateConsolidatedEvents() for shard " + shard.index + ": " + (endTime-startTime) + " ms");
+				return ((Boolean) r).booleanValue();
+			}else{
+				return true;
+			}
+		}
+	}
 	
-						// commit ALL
-						tx.commit();
-					}catch(Exception e){
-						if(tx != null) tx.rollback();
-						LOG.warn("Unable to commit transaction: ", e);
-						return Boolean.FALSE;
-					}
-					return Boolean.TRUE;
-				}			
-			});
-			long endTime = System.currentTimeMillis();
-			LOG.debug("Time spent in doUpdateConsolidatedEvents(): " + (endTime-startTime) + " ms");
-			return ((Boolean) r).booleanValue();
-		}else{
-			return true;
+	/** Take all the values off a consolidation map. Values updated meanwhile stay for the next update. */
+	private static <K, V> Collection<V> drain(Map<K, V> map) {
+		List<V> values = new ArrayList<V>(map.size());
+		for(K key : map.keySet()) {
+			V value = map.remove(key);
+			if(value != null) {
+				values.add(value);
+			}
 		}
+		return values;
 	}
 	
 	private void doUpdateEventStatObjects(Session session, Collection<EventStat> o) {
@@ -1646,7 +1713,7 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 	// ################################################################
 	// Utility methods
 	// ################################################################	
-	private synchronized boolean isValidEvent(Event e) {
+	private boolean isValidEvent(Event e) {
 		if(e.getEvent().startsWith(StatsManager.RESOURCE_EVENTID_PREFIX)){
 			String ref = e.getResource();	
 			if(ref.trim().equals("")) return false;			
@@ -1821,6 +1888,127 @@ public class StatsUpdateManagerImpl extends HibernateDaoSupport implements Runna
 		return c.getTime();
 	}
 
+	/**
+	 * A collect thread with its own bounded event queue and consolidation maps. Rows are consolidated in the
+	 * shard of their site, so no two shards ever write the same rows.
+	 */
+	private class ConsolidationShard implements Runnable {
+		private final int									index;
+		private final int									queueSize;
+		private final BlockingQueue<Event>					queue;
+		private final Object								semaphore				= new Object();
+		private volatile Thread								thread;
+		private volatile boolean							idle					= true;
+
+		/** Consolidation maps */
+		private final Map<String, EventStat>				eventStatMap			= new ConcurrentHashMap<String, EventStat>();
+		private final Map<String, ResourceStat>				resourceStatMap			= new ConcurrentHashMap<String, ResourceStat>();
+		private final Map<String, LessonBuilderStat>		lessonBuilderStatMap	= new ConcurrentHashMap<String, LessonBuilderStat>();
+		private final Map<String, SiteActivity>				activityMap				= new ConcurrentHashMap<String, SiteActivity>();
+		private final Map<String, SiteVisits>				visitsMap				= new ConcurrentHashMap<String, SiteVisits>();
+		private final Map<String, SitePresenceConsolidation> presencesMap			= new ConcurrentHashMap<String, SitePresenceConsolidation>();
+		private final Map<UniqueVisitsKey, Integer>			uniqueVisitsMap			= new ConcurrentHashMap<UniqueVisitsKey, Integer>();
+		private final Map<String, EventDetail>				eventDetailMap			= new ConcurrentHashMap<String, EventDetail>();
+		/** Guards visitsMap, uniqueVisitsMap and presencesMap, which are consolidated together */
+		private final ReentrantLock							lock					= new ReentrantLock();
+
+		/** Metrics */
+		private final AtomicLong							eventsProcessed			= new AtomicLong();
+		private final AtomicLong							timeInProcessing		= new AtomicLong();
+		private final AtomicLong							eventsDropped			= new AtomicLong();
+		private volatile long								lastUpdateTime			= 0;
+
+		public ConsolidationShard(int index, int queueSize) {
+			this.index = index;
+			this.queueSize = queueSize;
+			this.queue = new LinkedBlockingQueue<Event>(queueSize);
+		}
+
+		public boolean hasConsolidatedEvents() {
+			return eventStatMap.size() > 0 || eventDetailMap.size() > 0 || resourceStatMap.size() > 0
+				|| lessonBuilderStatMap.size() > 0 || activityMap.size() > 0 || uniqueVisitsMap.size() > 0
+				|| visitsMap.size() > 0 || presencesMap.size() > 0;
+		}
+
+		public boolean isIdle() {
+			return idle && queue.isEmpty();
+		}
+
+		/** How long (ms) the oldest event on the queue has been waiting */
+		public long getLag() {
+			Event oldest = queue.peek();
+			if(oldest instanceof CustomEventImpl && ((CustomEventImpl) oldest).getDate() != null) {
+				return Math.max(0, System.currentTimeMillis() - ((CustomEventImpl) oldest).getDate().getTime());
+			}
+			return 0;
+		}
+
+		public void resetMetrics() {
+			eventsProcessed.set(0);
+			timeInProcessing.set(0);
+			eventsDropped.set(0);
+		}
+
+		public void start() {
+			Thread t = new Thread(this, "org.sakaiproject.sitestats.impl.StatsUpdateManagerImpl." + index);
+			thread = t;
+			t.start();
+		}
+
+		public void stop() {
+			thread = null;
+			synchronized (semaphore){
+				semaphore.notifyAll();
+			}
+		}
+
+		/** Update thread: do not call this method! */
+		public void run(){
+			Thread current = Thread.currentThread();
+			try{
+				LOG.debug("Started statistics update thread " + index);
+				List<Event> batch = new ArrayList<Event>();
+				while(collectThreadRunning && thread == current){
+					// do update job
+					idle = false;
+					long startTime = System.currentTimeMillis();
+					queue.drainTo(batch);
+					for(Event event : batch) {
+						preProcessEvent(event);
+					}
+					eventsProcessed.addAndGet(batch.size());
+					batch.clear();
+					doUpdateConsolidatedEvents(this);
+					idle = true;
+					long time = System.currentTimeMillis() - startTime;
+					timeInProcessing.addAndGet(time);
+					totalTimeInEventProcessing.addAndGet(time);
+
+					// sleep if no work to do (or not yet much of it)
+					if(!collectThreadRunning || thread != current) break;
+					if(queue.size() < queueSize / 2) {
+						try{
+							synchronized (semaphore){
+								semaphore.wait(collectThreadUpdateInterval);
+							}
+						}catch(InterruptedException e){
+							LOG.warn("Failed to sleep statistics update thread",e);
+						}
+					}
+				}
+			}catch(Throwable t){
+				LOG.debug("Failed to execute statistics update thread", t);
+			}finally{
+				if(collectThreadRunning && thread == current){
+					// thread was stopped by an unknown error: restart
+					LOG.debug("Statistics update thread was stoped by an unknown error: restarting...");
+					start();
+				}else
+					LOG.debug("Finished statistics update thread " + index);
+			}
+		}
+	}
+
 	private static class UniqueVisitsKey {
 		public String siteId;
 		public Date date;
@@ -28,6 +28,7 @@ import org.hibernate.Transaction;
 import org.sakaiproject.sitestats.impl.EventStatImpl;
 import org.sakaiproject.sitestats.impl.ResourceStatImpl;
 import org.sakaiproject.sitestats.impl.SiteActivityImpl;
+import org.sakaiproject.sitestats.impl.SiteActivityRollupImpl;
 import org.sakaiproject.sitestats.impl.SitePresenceImpl;
 import org.sakaiproject.sitestats.impl.SiteVisitsImpl;
 import org.springframework.orm.hibernate3.HibernateCallback;
@@ -106,6 +107,10 @@ public class DBImpl extends HibernateDaoSupport implements DB {
 					for(Object o : all) {
 						session.delete(o);
 					}
+					all = session.createCriteria(SiteActivityRollupImpl.class).list();
+					for(Object o : all) {
+						session.delete(o);
+					}
 					all = session.createCriteria(EventStatImpl.class).list();
 					for(Object o : all) {
 						session.delete(o);
@@ -0,0 +1,260 @@
+/**
+ * $URL$
+ * $Id$
+ *
+ * Copyright (c) 2006-2016 The Sakai Foundation
+ *
+ * Licensed under the Educational Community License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *             http://www.opensource.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sakaiproject.sitestats.test;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.quartz.JobDataMap;
+import org.quartz.JobDetail;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobKey;
+import org.quartz.Scheduler;
+import org.sakaiproject.component.app.scheduler.jobs.SpringJobBeanWrapper;
+import org.sakaiproject.db.api.SqlService;
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.sitestats.api.JobRun;
+import org.sakaiproject.sitestats.api.StatsUpdateManager;
+import org.sakaiproject.sitestats.impl.JobRunImpl;
+import org.sakaiproject.sitestats.impl.StatsAggregateJobImpl;
+import org.sakaiproject.sitestats.test.mocks.FakeEvent;
+
+/**
+ * Runs StatsAggregateJobImpl against a fake SAKAI_EVENT table with sparse EVENT_IDs.
+ */
+public class StatsAggregateJobTest {
+
+	private static final long[]			EVENT_IDS		= { 1, 2, 3, 10, 11, 2500, 2501, 5000, 7999, 8000 };
+
+	private StatsAggregateJobImpl		job;
+	private StatsUpdateManager			statsUpdateManager;
+	private JobExecutionContext			context;
+
+	private TreeSet<Long>				eventIds;
+	/** results of "select max(EVENT_ID)", one per query, the last one repeats */
+	private LinkedList<Long>			lastEventIds;
+	/** EVENT_ID range starting the block the readers fail on, -1 for none */
+	private long						failingBlock;
+	private JobRun						latestJobRun;
+
+	private List<String>				collected;
+	private List<long[]>				checkpoints;
+	private Set<String>					readerThreads;
+
+	@Before
+	public void onSetUp() throws Exception {
+		eventIds = new TreeSet<Long>();
+		for(long id : EVENT_IDS) {
+			eventIds.add(id);
+		}
+		lastEventIds = new LinkedList<Long>();
+		lastEventIds.add(eventIds.last());
+		failingBlock = -1;
+		latestJobRun = null;
+		collected = Collections.synchronizedList(new ArrayList<String>());
+		checkpoints = new ArrayList<long[]>();
+		readerThreads = Collections.synchronizedSet(new HashSet<String>());
+
+		SqlService sqlService = mock(SqlService.class);
+		when(sqlService.getVendor()).thenReturn("mysql");
+		when(sqlService.borrowConnection()).thenAnswer(invocation -> connection());
+
+		statsUpdateManager = mock(StatsUpdateManager.class);
+		when(statsUpdateManager.getLatestJobRun()).thenAnswer(invocation -> latestJobRun);
+		when(statsUpdateManager.buildEvent(any(Date.class), anyString(), anyString(), anyString(), anyString(), anyString()))
+			.thenAnswer(invocation -> new FakeEvent((String) invocation.getArguments()[1], (String) invocation.getArguments()[2], true, 0));
+		doAnswer(invocation -> {
+			for(Object e : (List<?>) invocation.getArguments()[0]) {
+				collected.add(((Event) e).getResource());
+			}
+			return true;
+		}).when(statsUpdateManager).collectEvents(anyListOf(Event.class));
+		when(statsUpdateManager.saveJobRun(any(JobRun.class))).thenAnswer(invocation -> {
+			// the job updates the same JobRun after each block
+			JobRun run = (JobRun) invocation.getArguments()[0];
+			checkpoints.add(new long[] { run.getStartEventId(), run.getEndEventId(), run.getEventsProcessed(), run.getEventsLag() });
+			return true;
+		});
+
+		job = new StatsAggregateJobImpl();
+		job.setSqlService(sqlService);
+		job.setStatsUpdateManager(statsUpdateManager);
+		job.setStartEventId(0);
+		job.setSqlBlockSize(1000);
+		job.setReaderThreads(3);
+		job.setMaxEventsPerRun(50000);
+
+		JobDataMap dataMap = new JobDataMap();
+		dataMap.put(SpringJobBeanWrapper.SPRING_BEAN_NAME, "org.sakaiproject.sitestats.api.StatsAggregateJob");
+		JobDetail jobDetail = mock(JobDetail.class);
+		when(jobDetail.getKey()).thenReturn(new JobKey("StatsAggregateJob"));
+		when(jobDetail.getJobDataMap()).thenReturn(dataMap);
+		Scheduler scheduler = mock(Scheduler.class);
+		context = mock(JobExecutionContext.class);
+		when(context.getJobDetail()).thenReturn(jobDetail);
+		when(context.getScheduler()).thenReturn(scheduler);
+		when(scheduler.getCurrentlyExecutingJobs()).thenReturn(Arrays.asList(context));
+	}
+
+	// ---- TESTS ----
+
+	@Test
+	public void testParallelReadersCollectInOrder() throws Exception {
+		// new events are written while the job runs
+		lastEventIds.add(8042L);
+		job.execute(context);
+
+		Assert.assertEquals(refs(EVENT_IDS), collected);
+		Assert.assertEquals(3, readerThreads.size());
+
+		// a checkpoint after each block with events, the last one with the final lag
+		Assert.assertEquals(6, checkpoints.size());
+		assertCheckpoint(0, 999, 5, 8000 - 999, checkpoints.get(0));
+		assertCheckpoint(0, 2999, 7, 8000 - 2999, checkpoints.get(1));
+		assertCheckpoint(0, 5999, 8, 8000 - 5999, checkpoints.get(2));
+		assertCheckpoint(0, 7999, 9, 8000 - 7999, checkpoints.get(3));
+		assertCheckpoint(0, 8000, 10, 0, checkpoints.get(4));
+		assertCheckpoint(0, 8000, 10, 42, checkpoints.get(5));
+	}
+
+	@Test
+	public void testReaderErrorStopsAtLastCheckpoint() throws Exception {
+		eventIds.add(1500L);
+		failingBlock = 1000;
+		job.execute(context);
+
+		// the blocks after the failed one are not processed
+		Assert.assertEquals(refs(1, 2, 3, 10, 11), collected);
+		Assert.assertEquals(1, checkpoints.size());
+		assertCheckpoint(0, 999, 5, 8000 - 999, checkpoints.get(0));
+
+		// the next run starts after the checkpoint
+		JobRun lastRun = new JobRunImpl();
+		lastRun.setEndEventId(checkpoints.get(0)[1]);
+		latestJobRun = lastRun;
+		failingBlock = -1;
+		collected.clear();
+		checkpoints.clear();
+		job.execute(context);
+
+		Assert.assertEquals(refs(1500, 2500, 2501, 5000, 7999, 8000), collected);
+		long[] last = checkpoints.get(checkpoints.size() - 1);
+		assertCheckpoint(1000, 8000, 6, 0, last);
+	}
+
+	// ---- HELPERS ----
+
+	private void assertCheckpoint(long startId, long endId, long processed, long lag, long[] checkpoint) {
+		Assert.assertEquals("start event id", startId, checkpoint[0]);
+		Assert.assertEquals("end event id", endId, checkpoint[1]);
+		Assert.assertEquals("events processed", processed, checkpoint[2]);
+		Assert.assertEquals("events lag", lag, checkpoint[3]);
+	}
+
+	private List<String> refs(long... ids) {
+		List<String> refs = new ArrayList<String>();
+		for(long id : ids) {
+			refs.add(ref(id));
+		}
+		return refs;
+	}
+
+	private String ref(long id) {
+		return "/event/" + id;
+	}
+
+	private synchronized long nextLastEventId() {
+		return lastEventIds.size() > 1 ? lastEventIds.removeFirst() : lastEventIds.getFirst();
+	}
+
+	private Connection connection() throws SQLException {
+		Connection connection = mock(Connection.class);
+		when(connection.createStatement()).thenAnswer(invocation -> {
+			Statement st = mock(Statement.class);
+			when(st.executeQuery(anyString())).thenAnswer(query -> {
+				ResultSet rs = mock(ResultSet.class);
+				when(rs.next()).thenReturn(true, false);
+				when(rs.getLong("LAST_ID")).thenReturn(nextLastEventId());
+				return rs;
+			});
+			return st;
+		});
+		when(connection.prepareStatement(anyString())).thenAnswer(invocation -> {
+			String sql = (String) invocation.getArguments()[0];
+			PreparedStatement st = mock(PreparedStatement.class);
+			if(!sql.contains("EVENT_ID >= ?")) {
+				// no SAKAI_EVENT.CONTEXT column
+				ResultSet rs = mock(ResultSet.class);
+				when(st.executeQuery()).thenReturn(rs);
+				return st;
+			}
+			final long[] range = new long[2];
+			doAnswer(set -> {
+				range[(Integer) set.getArguments()[0] - 1] = (Long) set.getArguments()[1];
+				return null;
+			}).when(st).setLong(anyInt(), anyLong());
+			when(st.executeQuery()).thenAnswer(query -> {
+				readerThreads.add(Thread.currentThread().getName());
+				if(range[0] == failingBlock) {
+					throw new SQLException("Failing block " + range[0]);
+				}
+				return events(new ArrayList<Long>(eventIds.subSet(range[0], true, range[1], true)));
+			});
+			return st;
+		});
+		return connection;
+	}
+
+	private ResultSet events(final List<Long> ids) throws SQLException {
+		ResultSet rs = mock(ResultSet.class);
+		final int[] row = { -1 };
+		when(rs.next()).thenAnswer(invocation -> ++row[0] < ids.size());
+		when(rs.getTimestamp("EVENT_DATE")).thenAnswer(invocation -> new Timestamp(ids.get(row[0])));
+		when(rs.getString("EVENT")).thenReturn("test.event");
+		when(rs.getString("REF")).thenAnswer(invocation -> ref(ids.get(row[0])));
+		when(rs.getString("SESSION_USER")).thenReturn("user");
+		when(rs.getString("SESSION_ID")).thenReturn("session");
+		return rs;
+	}
+}
@@ -27,6 +27,7 @@ import static org.easymock.EasyMock.replay;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
@@ -45,6 +46,7 @@ import org.sakaiproject.site.api.SiteService;
 import org.sakaiproject.sitestats.api.EventStat;
 import org.sakaiproject.sitestats.api.PrefsData;
 import org.sakaiproject.sitestats.api.ResourceStat;
+import org.sakaiproject.sitestats.api.SiteActivity;
 import org.sakaiproject.sitestats.api.SiteActivityByTool;
 import org.sakaiproject.sitestats.api.SiteVisits;
 import org.sakaiproject.sitestats.api.Stat;
@@ -56,6 +58,8 @@ import org.sakaiproject.sitestats.api.SummaryVisitsChartData;
 import org.sakaiproject.sitestats.api.SummaryVisitsTotals;
 import org.sakaiproject.sitestats.api.event.ToolInfo;
 import org.sakaiproject.sitestats.api.report.ReportManager;
+import org.sakaiproject.sitestats.impl.RollupUtil;
+import org.sakaiproject.sitestats.impl.SiteActivityRollupImpl;
 import org.sakaiproject.sitestats.impl.StatsManagerImpl;
 import org.sakaiproject.sitestats.impl.StatsUpdateManagerImpl;
 import org.sakaiproject.sitestats.test.data.FakeData;
@@ -543,6 +547,66 @@ public class StatsManagerTest extends AbstractJUnit4SpringContextTests {
 		
 	}
 	
+	@Test
+	public void testRollups() {
+		// a whole month is read from one month rollup, a whole week inside a month from one week rollup
+		Calendar c = Calendar.getInstance();
+		c.set(2015, Calendar.MARCH, 1);
+		Date march1st = c.getTime();
+		c.set(2015, Calendar.MARCH, 31);
+		RollupUtil.Plan plan = RollupUtil.getPlan(march1st, c.getTime());
+		Assert.assertEquals(1, plan.getMonths().size());
+		Assert.assertEquals(0, plan.getWeeks().size());
+		Assert.assertEquals(0, plan.getDays().size());
+		c.set(2015, Calendar.MARCH, 2); // Monday
+		Date march2nd = c.getTime();
+		c.set(2015, Calendar.MARCH, 10);
+		plan = RollupUtil.getPlan(march2nd, c.getTime());
+		Assert.assertEquals(0, plan.getMonths().size());
+		Assert.assertEquals(1, plan.getWeeks().size());
+		Assert.assertEquals(1, plan.getDays().size());
+		
+		// day rows collected before rollups are enabled are picked up by buildRollups(),
+		// the ones collected afterwards by the consolidation step
+		M_sum.collectEvents(getSampleData());
+		((StatsManagerImpl)M_sm).setEnableRollups(true);
+		try{
+			((StatsManagerImpl)M_sm).buildRollups();
+			M_sum.collectEvents(getSampleData());
+			Assert.assertFalse(db.getResultsForClass(SiteActivityRollupImpl.class).isEmpty());
+			long rollupActivity = M_sm.getTotalSiteActivity(FakeData.SITE_A_ID, null);
+			long rollupVisits = M_sm.getTotalSiteVisits(FakeData.SITE_A_ID);
+			SummaryActivityTotals rollupTotals = M_sm.getSummaryActivityTotals(FakeData.SITE_A_ID);
+			List<SiteActivityByTool> rollupByTool = M_sm.getSiteActivityByTool(FakeData.SITE_A_ID, null, null, null);
+			List<SiteActivity> rollupByMonth = M_sm.getSiteActivityByMonth(FakeData.SITE_A_ID, null, null, null);
+			
+			((StatsManagerImpl)M_sm).setEnableRollups(false);
+			Assert.assertEquals(16, rollupActivity);
+			Assert.assertEquals(M_sm.getTotalSiteActivity(FakeData.SITE_A_ID, null), rollupActivity);
+			Assert.assertEquals(18, rollupVisits);
+			Assert.assertEquals(M_sm.getTotalSiteVisits(FakeData.SITE_A_ID), rollupVisits);
+			SummaryActivityTotals dayTotals = M_sm.getSummaryActivityTotals(FakeData.SITE_A_ID);
+			Assert.assertEquals(dayTotals.getTotalActivity(), rollupTotals.getTotalActivity());
+			Assert.assertEquals(dayTotals.getLast7DaysActivityAverage(), rollupTotals.getLast7DaysActivityAverage(), 1e-8);
+			Assert.assertEquals(dayTotals.getLast30DaysActivityAverage(), rollupTotals.getLast30DaysActivityAverage(), 1e-8);
+			Assert.assertEquals(2, rollupByTool.size());
+			for(SiteActivityByTool s : rollupByTool) {
+				if(FakeData.TOOL_CHAT.equals(s.getTool().getToolId())) {
+					Assert.assertEquals(12, s.getCount());
+				}else{
+					Assert.assertEquals(4, s.getCount());
+				}
+			}
+			long byMonthTotal = 0;
+			for(SiteActivity s : rollupByMonth) {
+				byMonthTotal += s.getCount();
+			}
+			Assert.assertEquals(16, byMonthTotal);
+		}finally{
+			((StatsManagerImpl)M_sm).setEnableRollups(false);
+		}
+	}
+	
 	private List<Event> getSampleData() {
 		List<Event> samples = new ArrayList<Event>();
 		Date today = new Date();
@@ -667,6 +667,36 @@ public class StatsUpdateManagerTest extends AbstractJUnit4SpringContextTests {
 		Assert.assertEquals(2, results.size());
 	}
 	
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testConfigCollectThreadShards() {
+		db.deleteAll();
+		// #3: events are consolidated by several collect threads, partitioned on site
+		Assert.assertEquals(4, ((StatsUpdateManagerImpl)M_sum).getCollectThreadShards());
+		M_sum.setCollectThreadEnabled(true);
+
+		for(int i=0; i<200; i++) {
+			String siteId = i % 2 == 0 ? FakeData.SITE_A_ID : FakeData.SITE_B_ID;
+			String userId = i % 4 < 2 ? FakeData.USER_A_ID : FakeData.USER_B_ID;
+			M_ets.post(M_sum.buildEvent(new Date(), FakeData.EVENT_CHATNEW, "/chat/msg/"+siteId, siteId, userId, "session-id-a"));
+		}
+		while(!M_sum.isIdle()) {
+			try{
+				// give it time to process events
+				Thread.sleep(300);			
+			}catch(Exception e) {}
+		}
+
+		// 2 sites x 2 users, none of the events lost or counted twice
+		List<EventStat> results = (List<EventStat>) db.getResultsForClass(EventStatImpl.class);
+		Assert.assertEquals(4, results.size());
+		for(EventStat es : results) {
+			Assert.assertEquals(50, es.getCount());
+		}
+		Assert.assertEquals(0, M_sum.getQueueSize());
+		Assert.assertTrue(M_sum.getMetricsSummary(false).contains("Collect thread 3: "));
+	}
+	
 	@SuppressWarnings("unchecked")
 	@Test
 	public void testConfigIsCollectAdminEvents() {
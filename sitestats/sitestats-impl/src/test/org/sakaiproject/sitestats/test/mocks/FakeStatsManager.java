@@ -310,6 +310,10 @@ public class FakeStatsManager implements StatsManager {
 		return false;
 	}
 
+	public boolean isEnableRollups() {
+		return false;
+	}
+
 	public boolean isEventContextSupported() {
 		// TODO Auto-generated method stub
 		return false;
@@ -54,6 +54,11 @@ public class MockStatsManager implements StatsManager {
 		return false;
 	}
 
+	@Override
+	public boolean isEnableRollups() {
+		return false;
+	}
+
 	@Override
 	public String getChartBackgroundColor() {
 		// TODO Auto-generated method stub